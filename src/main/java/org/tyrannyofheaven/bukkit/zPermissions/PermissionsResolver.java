@@ -16,6 +16,7 @@
 package org.tyrannyofheaven.bukkit.zPermissions;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
@@ -28,6 +29,7 @@ import java.util.logging.Logger;
 
 import org.tyrannyofheaven.bukkit.util.ToHLoggingUtils;
 import org.tyrannyofheaven.bukkit.zPermissions.dao.PermissionDao;
+import org.tyrannyofheaven.bukkit.zPermissions.dao.ReadOnlyPermissionDao;
 import org.tyrannyofheaven.bukkit.zPermissions.model.Entry;
 import org.tyrannyofheaven.bukkit.zPermissions.util.Utils;
 
@@ -38,6 +40,12 @@ import org.tyrannyofheaven.bukkit.zPermissions.util.Utils;
  */
 public class PermissionsResolver {
 
+    // Default maximum number of resolved group combinations to remember
+    private static final int DEFAULT_CACHE_SIZE = 256;
+
+    // Number of levels produced by scopePermissions()
+    private static final int SCOPE_LEVELS = 4;
+
     private final ZPermissionsPlugin plugin;
 
     private final PermissionDao dao;
@@ -54,6 +62,11 @@ public class PermissionsResolver {
 
     private boolean includeDefaultInAssigned = true;
 
+    private final ResolutionCache resolutionCache = new ResolutionCache(DEFAULT_CACHE_SIZE);
+
+    // Added to the system clock when checking expirations
+    private volatile long clockOffset;
+
     // For plugin use
     PermissionsResolver(ZPermissionsPlugin plugin) {
         this.plugin = plugin;
@@ -76,6 +89,7 @@ public class PermissionsResolver {
         this.groupPermissionFormats.clear();
         if (groupPermissionFormats != null)
             this.groupPermissionFormats.addAll(groupPermissionFormats);
+        invalidateCache();
     }
 
     /**
@@ -88,6 +102,7 @@ public class PermissionsResolver {
         this.assignedGroupPermissionFormats.clear();
         if (assignedGroupPermissionFormats != null)
             this.assignedGroupPermissionFormats.addAll(assignedGroupPermissionFormats);
+        invalidateCache();
     }
 
     /**
@@ -97,6 +112,7 @@ public class PermissionsResolver {
      */
     public void setDefaultGroup(String defaultGroup) {
         this.defaultGroup = defaultGroup;
+        invalidateCache();
     }
 
     // Get DAO, accounting for decoupling from plugin
@@ -129,6 +145,7 @@ public class PermissionsResolver {
 
     public void setOpaqueInheritance(boolean opaqueInheritance) {
         this.opaqueInheritance = opaqueInheritance;
+        invalidateCache();
     }
 
     private boolean isInterleavedPlayerPermissions() {
@@ -137,6 +154,7 @@ public class PermissionsResolver {
 
     public void setInterleavedPlayerPermissions(boolean interleavedPlayerPermissions) {
         this.interleavedPlayerPermissions = interleavedPlayerPermissions;
+        invalidateCache();
     }
 
     // Returns whether or not default group should be included in assigned permissions
@@ -153,6 +171,25 @@ public class PermissionsResolver {
      */
     public void setIncludeDefaultInAssigned(boolean includeDefaultInAssigned) {
         this.includeDefaultInAssigned = includeDefaultInAssigned;
+        invalidateCache();
+    }
+
+    /**
+     * Discard all cached group resolutions. Changes to the permissions store
+     * are detected automatically, so this only needs to be called when the
+     * resolver's own configuration changes.
+     */
+    public void invalidateCache() {
+        resolutionCache.clear();
+    }
+
+    // For testing
+    void setClockOffset(long clockOffset) {
+        this.clockOffset = clockOffset;
+    }
+
+    private long currentTimeMillis() {
+        return System.currentTimeMillis() + clockOffset;
     }
 
     // Output debug message
@@ -175,8 +212,24 @@ public class PermissionsResolver {
      * @return effective permissions for this player
      */
     public ResolverResult resolvePlayer(String playerName, String world, Set<String> regions) {
+        return resolvePlayer(getDao(), playerName, world, regions);
+    }
+
+    /**
+     * Resolve a player's permissions against a specific DAO, e.g. a read-only
+     * snapshot. Safe to call from any thread, provided the DAO is.
+     * NB: world and regions should all be in lowercase!
+     * 
+     * @param dao the DAO to read from
+     * @param playerName the player's name
+     * @param world the desination world name in lowercase
+     * @param regions the name of the regions containing the destination, all
+     *   in lowercase
+     * @return effective permissions for this player
+     */
+    public ResolverResult resolvePlayer(ReadOnlyPermissionDao dao, String playerName, String world, Set<String> regions) {
         // Get this player's groups
-        List<String> groups = Utils.toGroupNames(Utils.filterExpired(getDao().getGroups(playerName)));
+        List<String> groups = Utils.toGroupNames(Utils.filterExpired(dao.getGroups(playerName)));
         if (groups.isEmpty()) {
             // If no groups, use the default group
             groups.add(getDefaultGroup());
@@ -185,30 +238,81 @@ public class PermissionsResolver {
         // Resolve each group in turn (highest priority resolved last)
         debug("Groups for %s: %s", playerName, groups);
 
-        List<String> resolveOrder = new ArrayList<String>();
-        for (String group : groups) {
-            calculateResolutionOrder(resolveOrder, group);
-        }
-        debug("Resolution order for %s: %s", playerName, resolveOrder);
+        ResolvedGroups resolvedGroups = resolveGroups(dao, groups, world, regions);
+        debug("Resolution order for %s: %s", playerName, resolvedGroups.getResolveOrder());
 
-        List<Entry> entries = new ArrayList<Entry>();
-        resolveGroupHelper(entries, groups, resolveOrder);
-        
-        Map<String, Boolean> permissions;
+        List<Map<String, Boolean>> playerPermissions = scopePermissions(dao.getEntries(playerName, false, world, regions), regions, world);
+
+        Map<String, Boolean> permissions = new LinkedHashMap<String, Boolean>();
         if (isInterleavedPlayerPermissions()) {
             // Player-specific permissions overrides group permissions (at same level)
-            entries.addAll(getDao().getEntries(playerName, false));
-
-            permissions = applyPermissions(entries, regions, world);
+            for (int i = 0; i < SCOPE_LEVELS; i++) {
+                permissions.putAll(resolvedGroups.getPermissions().get(i));
+                permissions.putAll(playerPermissions.get(i));
+            }
         }
         else {
             // Apply all player-specific permissions at the end
-            permissions = applyPermissions(entries, regions, world);
-            
-            permissions.putAll(applyPermissions(getDao().getEntries(playerName, false), regions, world));
+            for (Map<String, Boolean> level : resolvedGroups.getPermissions())
+                permissions.putAll(level);
+            for (Map<String, Boolean> level : playerPermissions)
+                permissions.putAll(level);
         }
 
-        return new ResolverResult(permissions, new LinkedHashSet<String>(resolveOrder));
+        Set<String> regionNames = resolvedGroups.getRegionNames();
+        Set<String> playerRegionNames = dao.getRegionNames(playerName, false);
+        if (!playerRegionNames.isEmpty()) {
+            regionNames = new HashSet<String>(regionNames);
+            regionNames.addAll(playerRegionNames);
+        }
+
+        return new ResolverResult(permissions, new LinkedHashSet<String>(resolvedGroups.getResolveOrder()), regionNames);
+    }
+
+    // Resolve the group portion of a player's permissions. Since many players
+    // share the same assigned groups, the result is cached and only
+    // re-calculated when one of the involved groups changes.
+    private ResolvedGroups resolveGroups(ReadOnlyPermissionDao dao, List<String> groups, String world, Set<String> regions) {
+        ResolutionKey key = new ResolutionKey(groups, world, regions);
+
+        ResolvedGroups resolvedGroups = resolutionCache.get(key);
+        if (resolvedGroups != null) {
+            if (currentTimeMillis() < resolvedGroups.getExpiresAt() &&
+                    Arrays.equals(resolvedGroups.getGenerations(), getGenerations(dao, resolvedGroups.getResolveOrder())))
+                return resolvedGroups;
+            resolutionCache.remove(key);
+        }
+
+        List<String> resolveOrder = calculateResolutionOrder(dao, groups);
+        long[] generations = getGenerations(dao, resolveOrder);
+
+        List<Entry> entries = new ArrayList<Entry>();
+        resolveGroupHelper(dao, entries, groups, resolveOrder, world, regions);
+
+        Set<String> regionNames = new HashSet<String>();
+        for (String group : resolveOrder) {
+            regionNames.addAll(dao.getRegionNames(group, true));
+        }
+
+        resolvedGroups = new ResolvedGroups(resolveOrder, generations, scopePermissions(entries, regions, world),
+                getEarliestExpiration(entries), regionNames);
+
+        // Only remember it if nothing changed while we were busy
+        if (Arrays.equals(generations, getGenerations(dao, resolveOrder)) &&
+                resolveOrder.equals(calculateResolutionOrder(dao, groups)))
+            resolutionCache.put(key, resolvedGroups);
+
+        return resolvedGroups;
+    }
+
+    // Fetch the current generation of each group
+    private long[] getGenerations(ReadOnlyPermissionDao dao, List<String> groups) {
+        long[] generations = new long[groups.size()];
+        int i = 0;
+        for (String group : groups) {
+            generations[i++] = dao.getGroupGeneration(group);
+        }
+        return generations;
     }
 
     /**
@@ -223,18 +327,26 @@ public class PermissionsResolver {
      * @return effective permissions for this group
      */
     public Map<String, Boolean> resolveGroup(String groupName, String world, Set<String> regions) {
-        List<String> resolveOrder = new ArrayList<String>();
-        calculateResolutionOrder(resolveOrder, groupName);
+        List<String> resolveOrder = calculateResolutionOrder(getDao(), Collections.singletonList(groupName));
 
         List<Entry> entries = new ArrayList<Entry>();
-        resolveGroupHelper(entries, Collections.singletonList(groupName), resolveOrder);
+        resolveGroupHelper(getDao(), entries, Collections.singletonList(groupName), resolveOrder, world, regions);
 
         return applyPermissions(entries, regions, world);
     }
 
+    // Determine the order in which the given groups (and their ancestors) should be resolved
+    private List<String> calculateResolutionOrder(ReadOnlyPermissionDao dao, List<String> groups) {
+        Set<String> resolveOrder = new LinkedHashSet<String>();
+        for (String group : groups) {
+            calculateResolutionOrder(dao, resolveOrder, group);
+        }
+        return new ArrayList<String>(resolveOrder);
+    }
+
     // Determine the order in which groups should be resolved
-    private void calculateResolutionOrder(List<String> resolveOrder, String group) {
-        List<String> ancestry = getDao().getAncestry(group);
+    private void calculateResolutionOrder(ReadOnlyPermissionDao dao, Set<String> resolveOrder, String group) {
+        List<String> ancestry = dao.getAncestry(group);
         if (ancestry.isEmpty()) {
             // This only happens when the default group does not exist
             ancestry.add(getDefaultGroup());
@@ -249,14 +361,14 @@ public class PermissionsResolver {
             }
             else {
                 // First appearance wins
-                if (!resolveOrder.contains(ancestor))
-                    resolveOrder.add(ancestor);
+                resolveOrder.add(ancestor);
             }
         }
     }
 
-    // Add ancillary permissions and permissions from each resolved group
-    private void resolveGroupHelper(List<Entry> entries, List<String> assignedGroups, List<String> resolveOrder) {
+    // Add ancillary permissions and permissions from each resolved group. Only
+    // entries applicable to the given world and regions are fetched.
+    private void resolveGroupHelper(ReadOnlyPermissionDao dao, List<Entry> entries, List<String> assignedGroups, List<String> resolveOrder, String world, Set<String> regions) {
         Set<String> assigned = new HashSet<String>(assignedGroups); // for contains()
 
         for (String group : resolveOrder) {
@@ -280,7 +392,7 @@ public class PermissionsResolver {
                 entries.add(groupPerm);
             }
 
-            entries.addAll(getDao().getEntries(group, true));
+            entries.addAll(dao.getEntries(group, true, world, regions));
         }
     }
 
@@ -289,45 +401,189 @@ public class PermissionsResolver {
     // then overridden by any world-specific permissions.
     private Map<String, Boolean> applyPermissions(List<Entry> entries, Set<String> regions, String world) {
         Map<String, Boolean> permissions = new LinkedHashMap<String, Boolean>();
+        for (Map<String, Boolean> level : scopePermissions(entries, regions, world)) {
+            permissions.putAll(level);
+        }
+        return permissions;
+    }
+
+    // Find the time at which the first temporary entry that's still in effect
+    // expires, or Long.MAX_VALUE if there is none
+    private long getEarliestExpiration(List<Entry> entries) {
+        long now = currentTimeMillis();
+        long result = Long.MAX_VALUE;
+        for (Entry e : entries) {
+            if (e.getExpiration() != null) {
+                long expiration = e.getExpiration().getTime();
+                if (expiration > now && expiration < result)
+                    result = expiration;
+            }
+        }
+        return result;
+    }
 
+    // Sort applicable entries into levels, each of which overrides the one
+    // before it: universal, world-specific, universal region-specific, and
+    // finally region- and world-specific.
+    private List<Map<String, Boolean>> scopePermissions(List<Entry> entries, Set<String> regions, String world) {
+        Map<String, Boolean> universalPermissions = new LinkedHashMap<String, Boolean>();
+        Map<String, Boolean> worldPermissions = new LinkedHashMap<String, Boolean>();
         Map<String, Boolean> regionPermissions = new LinkedHashMap<String, Boolean>();
-        List<Entry> worldPermissions = new ArrayList<Entry>();
+        Map<String, Boolean> regionWorldPermissions = new LinkedHashMap<String, Boolean>();
 
-        // Apply non-region-specific, non-world-specific permissions first
+        long now = currentTimeMillis();
         for (Entry e : entries) {
+            boolean value = e.isValue();
+            if (e.getExpiration() != null && e.getExpiration().getTime() <= now) {
+                // Expired temporary permission, not yet purged. Fall back to
+                // the permanent value it overrode, if any.
+                if (e.getPreviousValue() == null)
+                    continue;
+                value = e.getPreviousValue();
+            }
+
             if (e.getRegion() == null && e.getWorld() == null) {
-                permissions.put(e.getPermission(), e.isValue());
+                universalPermissions.put(e.getPermission(), value);
             }
             else if (e.getRegion() != null && e.getWorld() == null) {
                 // Universal region-specific (should these really be supported?)
                 if (regions.contains(e.getRegion().getName()))
-                    regionPermissions.put(e.getPermission(), e.isValue());
+                    regionPermissions.put(e.getPermission(), value);
             }
             else if (e.getWorld().getName().equals(world)) {
-                worldPermissions.add(e);
+                if (e.getRegion() == null) {
+                    // Non region-specific
+                    worldPermissions.put(e.getPermission(), value);
+                }
+                else {
+                    if (regions.contains(e.getRegion().getName()))
+                        regionWorldPermissions.put(e.getPermission(), value);
+                }
             }
         }
 
-        // Then override with world-specific permissions
-        Map<String, Boolean> regionWorldPermissions = new LinkedHashMap<String, Boolean>();
-        for (Entry e : worldPermissions) {
-            if (e.getRegion() == null) {
-                // Non region-specific
-                permissions.put(e.getPermission(), e.isValue());
-            }
-            else {
-                if (regions.contains(e.getRegion().getName()))
-                    regionWorldPermissions.put(e.getPermission(), e.isValue());
-            }
+        List<Map<String, Boolean>> result = new ArrayList<Map<String, Boolean>>(SCOPE_LEVELS);
+        result.add(universalPermissions);
+        result.add(worldPermissions);
+        result.add(regionPermissions);
+        result.add(regionWorldPermissions);
+        return result;
+    }
+
+    // Cache key: assigned groups (in priority order) + location
+    private static class ResolutionKey {
+
+        private final List<String> groups;
+
+        private final String world;
+
+        private final Set<String> regions;
+
+        public ResolutionKey(List<String> groups, String world, Set<String> regions) {
+            this.groups = new ArrayList<String>(groups);
+            this.world = world;
+            this.regions = new HashSet<String>(regions);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) return true;
+            if (!(obj instanceof ResolutionKey)) return false;
+            ResolutionKey o = (ResolutionKey)obj;
+            return groups.equals(o.groups) &&
+                    (world == null ? o.world == null : world.equals(o.world)) &&
+                    regions.equals(o.regions);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = 17;
+            result = 37 * result + groups.hashCode();
+            result = 37 * result + (world == null ? 0 : world.hashCode());
+            result = 37 * result + regions.hashCode();
+            return result;
+        }
+
+    }
+
+    // Resolved group permissions, split into scope levels so player permissions
+    // may be applied on top of them later
+    private static class ResolvedGroups {
+
+        private final List<String> resolveOrder;
+
+        private final long[] generations;
+
+        private final List<Map<String, Boolean>> permissions;
+
+        private final long expiresAt;
+
+        private final Set<String> regionNames;
+
+        public ResolvedGroups(List<String> resolveOrder, long[] generations, List<Map<String, Boolean>> permissions, long expiresAt, Set<String> regionNames) {
+            this.resolveOrder = Collections.unmodifiableList(resolveOrder);
+            this.generations = generations;
+            this.permissions = Collections.unmodifiableList(permissions);
+            this.expiresAt = expiresAt;
+            this.regionNames = Collections.unmodifiableSet(regionNames);
+        }
+
+        public List<String> getResolveOrder() {
+            return resolveOrder;
+        }
+
+        public long[] getGenerations() {
+            return generations;
+        }
+
+        public List<Map<String, Boolean>> getPermissions() {
+            return permissions;
+        }
+
+        // Time at which a temporary permission included in the result expires
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+
+        // Regions referenced by any entry of the resolved groups
+        public Set<String> getRegionNames() {
+            return regionNames;
+        }
+
+    }
+
+    // Simple thread-safe LRU cache of ResolvedGroups
+    private static class ResolutionCache {
+
+        private final Map<ResolutionKey, ResolvedGroups> cache;
+
+        public ResolutionCache(final int maxSize) {
+            cache = new LinkedHashMap<ResolutionKey, ResolvedGroups>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<ResolutionKey, ResolvedGroups> eldest) {
+                    return size() > maxSize;
+                }
+            };
+        }
+
+        public synchronized ResolvedGroups get(ResolutionKey key) {
+            return cache.get(key);
+        }
+
+        public synchronized void put(ResolutionKey key, ResolvedGroups resolvedGroups) {
+            cache.put(key, resolvedGroups);
+        }
+
+        public synchronized void remove(ResolutionKey key) {
+            cache.remove(key);
+        }
+
+        public synchronized void clear() {
+            cache.clear();
         }
-        
-        // Override with universal, region-specific permissions
-        permissions.putAll(regionPermissions);
 
-        // Finally, override with region- and world-specific permissions
-        permissions.putAll(regionWorldPermissions);
-        
-        return permissions;
     }
 
     public static class ResolverResult {
@@ -335,10 +591,13 @@ public class PermissionsResolver {
         private final Map<String, Boolean> permissions;
         
         private final Set<String> groups;
+
+        private final Set<String> regionNames;
         
-        private ResolverResult(Map<String, Boolean> permissions, Set<String> groups) {
+        private ResolverResult(Map<String, Boolean> permissions, Set<String> groups, Set<String> regionNames) {
             this.permissions = permissions;
             this.groups = groups;
+            this.regionNames = regionNames;
         }
 
         public Map<String, Boolean> getPermissions() {
@@ -348,6 +607,17 @@ public class PermissionsResolver {
         public Set<String> getGroups() {
             return groups;
         }
+
+        /**
+         * Returns the names of all regions referenced by the player's entries
+         * or those of the player's groups. Being in any other region makes no
+         * difference to the player's permissions.
+         * 
+         * @return the relevant region names
+         */
+        public Set<String> getRegionNames() {
+            return regionNames;
+        }
         
     }
 
@@ -20,6 +20,7 @@ import java.util.Set;
 
 import org.bukkit.Location;
 import org.bukkit.entity.Player;
+import org.tyrannyofheaven.bukkit.zPermissions.util.RefreshStatistics;
 
 /**
  * Core operations (usually concerning the online permissions system aka Bukkit)
@@ -64,4 +65,6 @@ public interface ZPermissionsCore {
     
     public Set<String> getRegions(Location location);
 
+    public RefreshStatistics getRefreshStatistics();
+
 }
@@ -29,12 +29,17 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 
 import org.bukkit.Bukkit;
@@ -65,10 +70,14 @@ import org.tyrannyofheaven.bukkit.zPermissions.command.DirTypeCompleter;
 import org.tyrannyofheaven.bukkit.zPermissions.command.GroupTypeCompleter;
 import org.tyrannyofheaven.bukkit.zPermissions.command.RootCommands;
 import org.tyrannyofheaven.bukkit.zPermissions.command.TrackTypeCompleter;
+import org.tyrannyofheaven.bukkit.zPermissions.dao.AvajePermissionDao2;
+import org.tyrannyofheaven.bukkit.zPermissions.dao.BaseMemoryPermissionDao;
+import org.tyrannyofheaven.bukkit.zPermissions.dao.LoadChanges;
 import org.tyrannyofheaven.bukkit.zPermissions.dao.PermissionDao;
 import org.tyrannyofheaven.bukkit.zPermissions.listener.ZPermissionsFallbackListener;
 import org.tyrannyofheaven.bukkit.zPermissions.listener.ZPermissionsPlayerListener;
 import org.tyrannyofheaven.bukkit.zPermissions.listener.ZPermissionsRegionPlayerListener;
+import org.tyrannyofheaven.bukkit.zPermissions.model.ChangeLogEntry;
 import org.tyrannyofheaven.bukkit.zPermissions.model.EntityMetadata;
 import org.tyrannyofheaven.bukkit.zPermissions.model.Entry;
 import org.tyrannyofheaven.bukkit.zPermissions.model.Inheritance;
@@ -76,16 +85,22 @@ import org.tyrannyofheaven.bukkit.zPermissions.model.Membership;
 import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionEntity;
 import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionRegion;
 import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionWorld;
+import org.tyrannyofheaven.bukkit.zPermissions.region.CachingRegionStrategy;
 import org.tyrannyofheaven.bukkit.zPermissions.region.RegionStrategy;
 import org.tyrannyofheaven.bukkit.zPermissions.region.ResidenceRegionStrategy;
 import org.tyrannyofheaven.bukkit.zPermissions.region.WorldGuardRegionStrategy;
 import org.tyrannyofheaven.bukkit.zPermissions.service.ZPermissionsServiceImpl;
 import org.tyrannyofheaven.bukkit.zPermissions.storage.AvajeStorageStrategy;
+import org.tyrannyofheaven.bukkit.zPermissions.storage.KeyValueStorageStrategy;
 import org.tyrannyofheaven.bukkit.zPermissions.storage.MemoryStorageStrategy;
+import org.tyrannyofheaven.bukkit.zPermissions.storage.ShardedStorageStrategy;
 import org.tyrannyofheaven.bukkit.zPermissions.storage.StorageStrategy;
 import org.tyrannyofheaven.bukkit.zPermissions.util.ExpirationRefreshHandler;
 import org.tyrannyofheaven.bukkit.zPermissions.util.ModelDumper;
+import org.tyrannyofheaven.bukkit.zPermissions.util.RefreshStatistics;
 import org.tyrannyofheaven.bukkit.zPermissions.util.RefreshTask;
+import org.tyrannyofheaven.bukkit.zPermissions.util.SharedPermissionNodes;
+import org.tyrannyofheaven.bukkit.zPermissions.util.Utils;
 
 import com.avaje.ebean.EbeanServer;
 import com.avaje.ebeaninternal.api.SpiEbeanServer;
@@ -127,9 +142,12 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
     // Default database support
     private static final boolean DEFAULT_DATABASE_SUPPORT = true;
 
-    // Default number of ticks to wait between permissions refreshes of all players
+    // Default number of ticks to wait between bulk refresh runs
     private static final int DEFAULT_BULK_REFRESH_DELAY = 5;
 
+    // Default time budget (ms) for each bulk refresh run
+    private static final int DEFAULT_BULK_REFRESH_BUDGET = 5;
+
     // Default opaque inheritance
     private static final boolean DEFAULT_OPAQUE_INHERITANCE = true;
 
@@ -142,18 +160,78 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
     // Default auto-refresh interval
     private static final int DEFAULT_AUTO_REFRESH_INTERVAL = -1;
 
+    // Default change log poll interval
+    private static final int DEFAULT_CHANGE_LOG_POLL_INTERVAL = -1;
+
     // Default primary group track
     private static final String DEFAULT_PRIMARY_GROUP_TRACK = null;
 
+    // Default snapshot reads
+    private static final boolean DEFAULT_SNAPSHOT_READS = false;
+
+    // Default shared permissions
+    private static final boolean DEFAULT_SHARED_PERMISSIONS = false;
+
+    // Default async resolution
+    private static final boolean DEFAULT_ASYNC_RESOLUTION = false;
+
+    // Default number of resolver threads
+    private static final int DEFAULT_ASYNC_RESOLUTION_THREADS = 2;
+
+    // Default number of chunk sections to cache regions for (0 disables)
+    private static final int DEFAULT_REGION_CACHE_SIZE = 0;
+
+    // Default number of seconds to cache regions for
+    private static final int DEFAULT_REGION_CACHE_EXPIRATION = 30;
+
+    // Default number of ticks between movement region checks (0 checks every move)
+    private static final int DEFAULT_REGION_MOVE_INTERVAL = 0;
+
+    // Default file-based storage format
+    private static final String DEFAULT_FILE_FORMAT = "yaml";
+
+    // Default file-based storage journaling
+    private static final boolean DEFAULT_FILE_JOURNAL = false;
+
+    // Default number of seconds between journaled changes and the next full save
+    private static final int DEFAULT_FILE_JOURNAL_COMPACTION_DELAY = 300;
+
+    // Default number of file-based storage shards (0 disables sharding)
+    private static final int DEFAULT_FILE_SHARDS = 0;
+
+    // Default embedded store support
+    private static final boolean DEFAULT_EMBEDDED_STORE = false;
+
+    // Default embedded store JDBC driver (SQLite, which comes with CraftBukkit)
+    private static final String DEFAULT_EMBEDDED_STORE_DRIVER = "org.sqlite.JDBC";
+
+    // Default embedded store JDBC URL ({DIR} is the plugin's data folder)
+    private static final String DEFAULT_EMBEDDED_STORE_URL = "jdbc:sqlite:{DIR}data.db";
+
+    // Default number of seconds between a change and its commit to the embedded store
+    private static final int DEFAULT_EMBEDDED_STORE_COMMIT_DELAY = 1;
+
     // Filename of file-based storage
     private static final String FILE_STORAGE_FILENAME = "data.yml";
 
+    // Filename of file-based storage in binary format
+    private static final String FILE_STORAGE_BINARY_FILENAME = "data.dat";
+
+    // Filename of file-based storage journal
+    private static final String FILE_STORAGE_JOURNAL_FILENAME = "data.journal";
+
+    // Directory of sharded file-based storage
+    private static final String FILE_STORAGE_SHARD_DIRECTORY = "data";
+
     // Name of metadata key for our PlayerState instances
     private static final String PLAYER_METADATA_KEY = "zPermissions.PlayerState";
 
     // Prefix for each player's dynamic permission
     public static final String DYNAMIC_PERMISSION_PREFIX = "zPermissions_player.";
 
+    // Prefix for dynamic permissions shared by players with identical permissions
+    public static final String DYNAMIC_SHARED_PERMISSION_PREFIX = "zPermissions_shared.";
+
     // Version info (may include build number)
     private VersionInfo versionInfo;
 
@@ -199,15 +277,87 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
     // Maximum number of times to retry transactions (so total attempts is +1)
     private int txnMaxRetries;
 
+    // Whether file-based storage saves in binary format rather than YAML
+    private boolean fileBinary;
+
+    // Whether file-based storage journals changes between full saves
+    private boolean fileJournal;
+
+    // Seconds between journaled changes and the next full save
+    private int fileJournalCompactionDelay;
+
+    // Number of shards file-based storage is split into, 0 if not sharded
+    private int fileShards;
+
+    // Whether to use the embedded store rather than flat files
+    private boolean embeddedStore;
+
+    // JDBC driver of the embedded store
+    private String embeddedStoreDriver;
+
+    // JDBC URL of the embedded store
+    private String embeddedStoreUrl;
+
+    // Seconds between a change and its commit to the embedded store
+    private int embeddedStoreCommitDelay;
+
     // Interval for auto-refresh
     private int autoRefreshInterval;
 
     // Task ID for auto-refresh task
     private int autoRefreshTaskId = -1;
 
+    // Interval for polling the database change log (seconds)
+    private int changeLogPollInterval;
+
+    // Task ID for change log poll task
+    private int changeLogPollTaskId = -1;
+
     // Default primary group track
     private String defaultPrimaryGroupTrack;
 
+    // Whether DAO reads are served from immutable snapshots
+    private boolean snapshotReads;
+
+    // Whether players with identical permissions share a single dynamic permission
+    private boolean sharedPermissions;
+
+    // Shared dynamic permissions, used when sharedPermissions is true
+    private final SharedPermissionNodes sharedPermissionNodes = new SharedPermissionNodes(DYNAMIC_SHARED_PERMISSION_PREFIX);
+
+    // Whether refreshes of players with existing state are resolved off the main thread
+    private boolean asyncResolution;
+
+    // Size of the resolver pool
+    private int asyncResolutionThreads;
+
+    // Resolver pool, null if async resolution is disabled
+    private ExecutorService resolverExecutor;
+
+    // Number of chunk sections to cache regions for
+    private int regionCacheSize;
+
+    // Seconds to cache regions for
+    private int regionCacheExpiration;
+
+    // Ticks between movement region checks
+    private int regionMoveInterval;
+
+    // Region listener, null if region support is disabled
+    private ZPermissionsRegionPlayerListener regionPlayerListener;
+
+    // Task ID for movement region check task
+    private int regionMoveTaskId = -1;
+
+    // Lowercase group name -> online players whose resolution order includes it (main thread only)
+    private final Map<String, Set<String>> playersByGroup = new HashMap<String, Set<String>>();
+
+    // Online players whose state was removed, e.g. due to an error (main thread only)
+    private final Set<String> playersWithoutState = new HashSet<String>();
+
+    // Counts refreshes (and how many were no-ops)
+    private final RefreshStatistics refreshStatistics = new RefreshStatistics();
+
     // Strategy for permissions storage
     private StorageStrategy storageStrategy;
 
@@ -292,12 +442,22 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
         // Kill pending refresh, if any
         refreshTask.stop();
 
+        // Abandon any in-flight resolutions
+        if (resolverExecutor != null) {
+            resolverExecutor.shutdownNow();
+            resolverExecutor = null;
+        }
+
         // Really shut off all async tasks
         getServer().getScheduler().cancelTasks(this);
 
         // Ensure storage is shut down properly
-        if (storageStrategy != null)
+        if (storageStrategy != null) {
             storageStrategy.shutdown();
+            // Stops snapshot thread, if any
+            if (storageStrategy.getDao() instanceof BaseMemoryPermissionDao)
+                ((BaseMemoryPermissionDao)storageStrategy.getDao()).setSnapshotReads(false);
+        }
 
         // Clear any player state
 
@@ -335,6 +495,8 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
 
             initializeStorageStrategy();
 
+            startResolverPool();
+
             modelDumper = new ModelDumper(storageStrategy, this);
 
             // Install our commands
@@ -351,9 +513,12 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
 
             // Install our listeners
             expirationRefreshHandler = new ExpirationRefreshHandler(getZPermissionsCore(), storageStrategy, this);
+            if (getDao() instanceof BaseMemoryPermissionDao)
+                ((BaseMemoryPermissionDao)getDao()).setExpirationListener(expirationRefreshHandler);
             Bukkit.getPluginManager().registerEvents(new ZPermissionsPlayerListener(getZPermissionsCore(), this), this);
             if (regionSupport) {
-                Bukkit.getPluginManager().registerEvents(new ZPermissionsRegionPlayerListener(getZPermissionsCore()), this);
+                regionPlayerListener = new ZPermissionsRegionPlayerListener(getZPermissionsCore());
+                Bukkit.getPluginManager().registerEvents(regionPlayerListener, this);
                 log(this, "%s region support: %s", regionStrategy.getName(), regionStrategy.isEnabled() ? "Enabled" : "Waiting");
             }
 
@@ -369,6 +534,12 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
             // Start auto-refresh task, if one is configured
             startAutoRefreshTask();
 
+            // Likewise for change log polling
+            startChangeLogPollTask();
+
+            // And movement sampling
+            startRegionMoveTask();
+
             // Initialize expiration handler
             refreshExpirations();
 
@@ -413,11 +584,32 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
             }
         }
         
-        // If still no storage strategy at this point, use flat-file one
+        // If still no storage strategy at this point, use embedded store if enabled
+        if (storageStrategy == null && embeddedStore) {
+            log(this, "Using embedded store storage strategy.");
+            storageStrategy = new KeyValueStorageStrategy(this, new File(getDataFolder(), FILE_STORAGE_FILENAME),
+                    embeddedStoreDriver, embeddedStoreUrl.replace("{DIR}", getDataFolder().getAbsolutePath() + File.separator), embeddedStoreCommitDelay * 20);
+        }
+
+        // Otherwise, use flat-file one
         if (storageStrategy == null) {
             log(this, "Using file-based storage strategy.");
-            storageStrategy = new MemoryStorageStrategy(this, new File(getDataFolder(), FILE_STORAGE_FILENAME));
+            if (fileShards > 0) {
+                storageStrategy = new ShardedStorageStrategy(this, new File(getDataFolder(), FILE_STORAGE_FILENAME),
+                        new File(getDataFolder(), FILE_STORAGE_SHARD_DIRECTORY), fileShards,
+                        fileJournal ? new File(getDataFolder(), FILE_STORAGE_JOURNAL_FILENAME) : null, fileJournalCompactionDelay * 20);
+            }
+            else {
+                storageStrategy = new MemoryStorageStrategy(this, new File(getDataFolder(), FILE_STORAGE_FILENAME),
+                        new File(getDataFolder(), FILE_STORAGE_BINARY_FILENAME), fileBinary,
+                        fileJournal ? new File(getDataFolder(), FILE_STORAGE_JOURNAL_FILENAME) : null, fileJournalCompactionDelay * 20);
+            }
         }
+
+        if (storageStrategy.getDao() instanceof BaseMemoryPermissionDao)
+            ((BaseMemoryPermissionDao)storageStrategy.getDao()).setSnapshotReads(snapshotReads);
+        if (storageStrategy.getDao() instanceof AvajePermissionDao2)
+            ((AvajePermissionDao2)storageStrategy.getDao()).setChangeLog(true); // whether or not we poll
         
         // Initialize storage strategy
         try {
@@ -439,11 +631,11 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
         RegionStrategy regionStrategy;
 
         // WorldGuard
-        regionStrategy = new WorldGuardRegionStrategy(this, getZPermissionsCore());
+        regionStrategy = new WorldGuardRegionStrategy(this, getZPermissionsCore(), getDao());
         strategies.put(regionStrategy.getName(), regionStrategy);
 
         // Additional region managers are registered here.
-        regionStrategy = new ResidenceRegionStrategy(this, getZPermissionsCore());
+        regionStrategy = new ResidenceRegionStrategy(this, getZPermissionsCore(), getDao());
         strategies.put(regionStrategy.getName(), regionStrategy);
         
         // Run through list in preference order
@@ -457,6 +649,8 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
             
             if (regionStrategy.isPresent()) {
                 debug(this, "Found region manager %s", regionStrategy.getName());
+                if (regionCacheSize > 0)
+                    regionStrategy = new CachingRegionStrategy(this, regionStrategy, regionCacheSize, regionCacheExpiration * 1000L);
                 regionStrategy.init();
                 this.regionStrategy = regionStrategy;
                 return;
@@ -483,6 +677,7 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
         result.add(Entry.class);
         result.add(Membership.class);
         result.add(EntityMetadata.class);
+        result.add(ChangeLogEntry.class);
         return result;
     }
 
@@ -493,11 +688,21 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
         // NB Attachment is recycled along with the player instance
 
         // Disassociate PlayerState
+        PlayerState playerState = getPlayerState(player);
+        if (playerState != null)
+            updateGroupIndex(player.getName(), playerState.getGroups(), Collections.<String>emptySet());
         player.removeMetadata(PLAYER_METADATA_KEY, this);
 
+        // Callers only skip recalculation when the player is leaving
+        if (recalculate)
+            playersWithoutState.add(player.getName());
+        else
+            playersWithoutState.remove(player.getName());
+
         // Remove dynamic permission and recalculate, if wanted
         final String permName = DYNAMIC_PERMISSION_PREFIX + player.getName();
         Bukkit.getPluginManager().removePermission(permName);
+        sharedPermissionNodes.release(player.getName());
         if (recalculate) {
             for (Permissible p : Bukkit.getPluginManager().getPermissionSubscriptions(permName)) {
                 p.recalculatePermissions();
@@ -517,60 +722,70 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
             throw e; // Never catch errors
         }
         catch (Throwable t) {
-            error(this, "Exception while updating permissions for %s", player.getName(), t);
-            broadcastAdmin(this, colorize("{RED}SEVERE error while determining permissions; see server.log!"));
-            
-            // Kick the player, if configured to do so
-            if (kickOnError && (kickOpsOnError || !player.isOp())) {
-                // Probably safer to do this synchronously
-                final String playerName = player.getName();
-                getServer().getScheduler().scheduleSyncDelayedTask(this, new Runnable() {
-                    @Override
-                    public void run() {
-                        Player player = getServer().getPlayerExact(playerName);
-                        if (player != null)
-                            player.kickPlayer("Error determining your permissions");
-                    }
-                });
-            }
-            else {
-                // Ensure player has no permissions
-                removeBukkitPermissions(player, true);
-                sendMessage(player, colorize("{RED}Error determining your permissions; all permissions removed!"));
-            }
+            handleResolutionError(player, t);
         }
         
         // Fire off event if requested and changed
         if (eventCause != null && changed) {
+            fireUpdateEvent(player, eventCause);
+        }
+    }
+
+    // Deal with a failure to determine a player's permissions
+    private void handleResolutionError(Player player, Throwable t) {
+        error(this, "Exception while updating permissions for %s", player.getName(), t);
+        broadcastAdmin(this, colorize("{RED}SEVERE error while determining permissions; see server.log!"));
+        
+        // Kick the player, if configured to do so
+        if (kickOnError && (kickOpsOnError || !player.isOp())) {
+            // Probably safer to do this synchronously
             final String playerName = player.getName();
-            // Translate RefreshEvent to ZPermissionsPlayerPermissionsChangeEvent.Cause
-            // Kinda dumb, but I don't want internal code to depend on the event class.
-            final ZPermissionsPlayerUpdateEvent.Cause cause;
-            switch (eventCause) {
-            case COMMAND:
-                cause = ZPermissionsPlayerUpdateEvent.Cause.COMMAND;
-                break;
-            case GROUP_CHANGE:
-                cause = ZPermissionsPlayerUpdateEvent.Cause.GROUP_CHANGE;
-                break;
-            case MOVEMENT:
-                cause = ZPermissionsPlayerUpdateEvent.Cause.MOVEMENT;
-                break;
-            default:
-                throw new AssertionError("Unhandled RefreshCause: " + eventCause);
-            }
-            // Fire it off on the following tick
-            Bukkit.getScheduler().runTask(this, new Runnable() {
+            getServer().getScheduler().scheduleSyncDelayedTask(this, new Runnable() {
                 @Override
                 public void run() {
-                    Player player = Bukkit.getPlayerExact(playerName);
-                    if (player != null) {
-                        ZPermissionsPlayerUpdateEvent event = new ZPermissionsPlayerUpdateEvent(player, cause);
-                        Bukkit.getPluginManager().callEvent(event);
-                    }
+                    Player player = getServer().getPlayerExact(playerName);
+                    if (player != null)
+                        player.kickPlayer("Error determining your permissions");
                 }
             });
         }
+        else {
+            // Ensure player has no permissions
+            removeBukkitPermissions(player, true);
+            sendMessage(player, colorize("{RED}Error determining your permissions; all permissions removed!"));
+        }
+    }
+
+    // Fire ZPermissionsPlayerUpdateEvent on the following tick
+    private void fireUpdateEvent(Player player, RefreshCause eventCause) {
+        final String playerName = player.getName();
+        // Translate RefreshEvent to ZPermissionsPlayerPermissionsChangeEvent.Cause
+        // Kinda dumb, but I don't want internal code to depend on the event class.
+        final ZPermissionsPlayerUpdateEvent.Cause cause;
+        switch (eventCause) {
+        case COMMAND:
+            cause = ZPermissionsPlayerUpdateEvent.Cause.COMMAND;
+            break;
+        case GROUP_CHANGE:
+            cause = ZPermissionsPlayerUpdateEvent.Cause.GROUP_CHANGE;
+            break;
+        case MOVEMENT:
+            cause = ZPermissionsPlayerUpdateEvent.Cause.MOVEMENT;
+            break;
+        default:
+            throw new AssertionError("Unhandled RefreshCause: " + eventCause);
+        }
+        // Fire it off on the following tick
+        Bukkit.getScheduler().runTask(this, new Runnable() {
+            @Override
+            public void run() {
+                Player player = Bukkit.getPlayerExact(playerName);
+                if (player != null) {
+                    ZPermissionsPlayerUpdateEvent event = new ZPermissionsPlayerUpdateEvent(player, cause);
+                    Bukkit.getPluginManager().callEvent(event);
+                }
+            }
+        });
     }
 
     // Simulate failures probabilistically
@@ -583,14 +798,15 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
     // Update state about a player, resolving effective permissions and
     // creating/updating their attachment
     private boolean setBukkitPermissionsInternal(final Player player, Location location, boolean force) {
-        final Set<String> regions = getRegions(location);
-
         // Fetch existing state
         final String permName = DYNAMIC_PERMISSION_PREFIX + player.getName();
         Permission perm = Bukkit.getPluginManager().getPermission(permName);
 
         PlayerState playerState = getPlayerState(player);
 
+        // Only regions the player's permissions refer to matter
+        Set<String> regions = getRelevantRegions(location, playerState == null ? null : playerState.getRegionNames());
+
         boolean hasPermissionAttachment = player.hasPermission(permName);
 
         // Check if the player is missing any state or changed worlds/regions
@@ -605,47 +821,95 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
         // No need to update yet (most likely called by movement-based event)
         if (!force) return false;
 
+        // Supersede any resolution still in flight
+        if (playerState != null)
+            playerState.nextVersion();
+
         debug(this, "Updating permissions for %s", player.getName());
         debug(this, "  location = %s", location);
         debug(this, "  regions = %s", regions);
 
         // Resolve effective permissions
-        final String world = location.getWorld().getName().toLowerCase();
-        ResolverResult resolverResult = getRetryingTransactionStrategy().execute(new TransactionCallback<ResolverResult>() {
+        String world = location.getWorld().getName().toLowerCase();
+        ResolverResult resolverResult = resolvePlayer(player, world, regions);
+        if (playerState != null && !playerState.getRegionNames().containsAll(resolverResult.getRegionNames())) {
+            // Permissions now refer to regions that were filtered out, try again
+            Set<String> resolvedRegions = regions;
+            regions = getRelevantRegions(location, resolverResult.getRegionNames());
+            if (!regions.equals(resolvedRegions))
+                resolverResult = resolvePlayer(player, world, regions);
+        }
+        else
+            regions = filterRegions(regions, resolverResult.getRegionNames());
+
+        debug(this, "(Existing Permission: %s, PlayerState: %s, PermissionAttachment: %s)", perm != null, playerState != null, hasPermissionAttachment);
+
+        applyResolverResult(player, perm, playerState, hasPermissionAttachment, location.getWorld().getName(), regions, resolverResult);
+        return true;
+    }
+
+    // Resolve a player's effective permissions in a transaction
+    private ResolverResult resolvePlayer(final Player player, final String world, final Set<String> regions) {
+        return getRetryingTransactionStrategy().execute(new TransactionCallback<ResolverResult>() {
             @Override
             public ResolverResult doInTransaction() throws Exception {
 //                fakeFailureChance();
                 return getResolver().resolvePlayer(player.getName(), world, regions);
             }
         });
+    }
 
-        debug(this, "(Existing Permission: %s, PlayerState: %s, PermissionAttachment: %s)", perm != null, playerState != null, hasPermissionAttachment);
+    // Install freshly-resolved permissions: update the player's dynamic
+    // permission and PlayerState, creating them (and the attachment) if
+    // missing. Main thread only.
+    private void applyResolverResult(Player player, Permission perm, PlayerState playerState, boolean hasPermissionAttachment, String worldName, Set<String> regions, ResolverResult resolverResult) {
+        Map<String, Boolean> children;
+        if (sharedPermissions) {
+            // Only child is the node shared by all players with the same permissions
+            children = Collections.singletonMap(sharedPermissionNodes.acquire(player.getName(), resolverResult.getPermissions()), Boolean.TRUE);
+        }
+        else {
+            sharedPermissionNodes.release(player.getName()); // in case it was just disabled
+            children = resolverResult.getPermissions();
+        }
 
         // Create dynamic permission to hold all permissions this player should have at this moment
+        boolean changed = true;
         if (perm == null) {
             // NB This implicitly calls recalculatePermissibles(). However, since it has not been
             // added yet, permissibles will not pick up its children.
-            perm = new Permission(permName, PermissionDefault.FALSE, resolverResult.getPermissions());
+            perm = new Permission(DYNAMIC_PERMISSION_PREFIX + player.getName(), PermissionDefault.FALSE, children);
             Bukkit.getPluginManager().addPermission(perm);
         }
         else {
-            perm.getChildren().clear();
-            perm.getChildren().putAll(resolverResult.getPermissions());
+            changed = Utils.updateChildren(perm.getChildren(), children);
+        }
+        refreshStatistics.recordRefresh(changed);
+
+        if (changed) {
+            // If player already has an attachment, then it will recalculate here.
+            // Otherwise subscribers will be empty and nothing really happens. The
+            // recalculation will then occur when the attachment is added below.
+            perm.recalculatePermissibles();
+        }
+        else {
+            debug(this, "Permissions for %s unchanged, skipping recalculation", player.getName());
         }
-        // If player already has an attachment, then it will recalculate here.
-        // Otherwise subscribers will be empty and nothing really happens. The
-        // recalculation will then occur when the attachment is added below.
-        perm.recalculatePermissibles();
 
         if (playerState != null) {
             // Update values
             playerState.setRegions(regions);
-            playerState.setWorld(location.getWorld().getName());
+            playerState.setRegionNames(resolverResult.getRegionNames());
+            playerState.setWorld(worldName);
+            Set<String> oldGroups = playerState.getGroups();
             playerState.setGroups(resolverResult.getGroups());
+            updateGroupIndex(player.getName(), oldGroups, playerState.getGroups());
         }
         else {
             // Create brand new PlayerState
-            playerState = new PlayerState(regions, location.getWorld().getName(), resolverResult.getGroups());
+            playerState = new PlayerState(regions, resolverResult.getRegionNames(), worldName, resolverResult.getGroups());
+            updateGroupIndex(player.getName(), Collections.<String>emptySet(), playerState.getGroups());
+            playersWithoutState.remove(player.getName());
             player.setMetadata(PLAYER_METADATA_KEY, new FixedMetadataValue(this, playerState));
         }
         
@@ -653,10 +917,163 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
         if (!hasPermissionAttachment) {
             player.addAttachment(this, perm.getName(), true);
         }
+    }
+
+    // Move a player between groups in playersByGroup
+    private void updateGroupIndex(String playerName, Set<String> oldGroups, Set<String> newGroups) {
+        for (String group : oldGroups) {
+            if (!newGroups.contains(group)) {
+                Set<String> players = playersByGroup.get(group);
+                if (players != null) {
+                    players.remove(playerName);
+                    if (players.isEmpty())
+                        playersByGroup.remove(group);
+                }
+            }
+        }
+        for (String group : newGroups) {
+            if (!oldGroups.contains(group)) {
+                Set<String> players = playersByGroup.get(group);
+                if (players == null) {
+                    players = new HashSet<String>();
+                    playersByGroup.put(group, players);
+                }
+                players.add(playerName);
+            }
+        }
+    }
+
+    // Resolve a player's permissions on the resolver pool against a snapshot
+    // of the DAO, then apply them on the main thread. Only done for players
+    // whose permissions are already set up, since they keep their current
+    // permissions in the meantime. Returns false if the caller should refresh
+    // synchronously instead.
+    private boolean refreshPlayerAsync(Player player, final RefreshCause cause) {
+        if (resolverExecutor == null)
+            return false;
+
+        PlayerState playerState = getPlayerState(player);
+        final String permName = DYNAMIC_PERMISSION_PREFIX + player.getName();
+        if (playerState == null ||
+                Bukkit.getPluginManager().getPermission(permName) == null ||
+                !player.hasPermission(permName))
+            return false;
+
+        // Region lookups aren't thread-safe, so do them now
+        Location location = player.getLocation();
+        final Set<String> regionNames = playerState.getRegionNames();
+        final Set<String> regions = getRelevantRegions(location, regionNames);
+        final String worldName = location.getWorld().getName();
+        final String playerName = player.getName();
+
+        // Result is only applied if no other refresh happens in the meantime
+        final long version = playerState.nextVersion();
+
+        final BaseMemoryPermissionDao dao = (BaseMemoryPermissionDao)getDao();
+        resolverExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ResolverResult resolverResult = null;
+                Throwable failure = null;
+                try {
+                    resolverResult = getResolver().resolvePlayer(dao.getReadOnlySnapshot(), playerName, worldName.toLowerCase(), regions);
+                }
+                catch (Error e) {
+                    throw e; // Never catch errors
+                }
+                catch (Throwable t) {
+                    failure = t;
+                }
+
+                if (!isEnabled())
+                    return; // Shutting down, don't bother
 
+                final ResolverResult result = resolverResult;
+                final Throwable error = failure;
+                Bukkit.getScheduler().runTask(ZPermissionsPlugin.this, new Runnable() {
+                    @Override
+                    public void run() {
+                        applyAsyncResult(playerName, version, worldName, regions, regionNames, result, error, cause);
+                    }
+                });
+            }
+        });
+        refreshStatistics.recordAsyncRefresh();
         return true;
     }
 
+    // Apply the result of refreshPlayerAsync(), unless it has gone stale
+    private void applyAsyncResult(String playerName, long version, String worldName, Set<String> regions, Set<String> regionNames, ResolverResult resolverResult, Throwable failure, RefreshCause cause) {
+        Player player = Bukkit.getPlayerExact(playerName);
+        if (player == null)
+            return; // Logged off
+
+        PlayerState playerState = getPlayerState(player);
+        if (playerState == null || playerState.getVersion() != version) {
+            // Player was refreshed (or moved) since, or permissions were removed
+            debug(this, "Discarding stale permissions for %s", playerName);
+            refreshStatistics.recordStaleResult();
+            return;
+        }
+
+        if (failure != null) {
+            handleResolutionError(player, failure);
+            return;
+        }
+
+        if (!worldName.equals(player.getWorld().getName()) ||
+                !regionNames.containsAll(resolverResult.getRegionNames())) {
+            // Changed worlds without a refresh, or permissions now refer to
+            // regions that were filtered out, so try again now
+            refreshStatistics.recordStaleResult();
+            setBukkitPermissions(player, player.getLocation(), true, cause);
+            return;
+        }
+
+        String permName = DYNAMIC_PERMISSION_PREFIX + player.getName();
+        try {
+            applyResolverResult(player, Bukkit.getPluginManager().getPermission(permName), playerState, player.hasPermission(permName), worldName,
+                    filterRegions(regions, resolverResult.getRegionNames()), resolverResult);
+        }
+        catch (Error e) {
+            throw e; // Never catch errors
+        }
+        catch (Throwable t) {
+            handleResolutionError(player, t);
+            return;
+        }
+
+        if (cause != null)
+            fireUpdateEvent(player, cause);
+    }
+
+    // Shut down existing resolver pool, if any, and start a new one if async
+    // resolution is enabled
+    private void startResolverPool() {
+        if (resolverExecutor != null) {
+            resolverExecutor.shutdown(); // In-flight resolutions will still be applied
+            resolverExecutor = null;
+        }
+
+        if (asyncResolution) {
+            if (!(getDao() instanceof BaseMemoryPermissionDao)) {
+                warn(this, "Storage strategy does not support snapshots; resolving permissions on the main thread");
+                return;
+            }
+
+            final AtomicInteger threadCount = new AtomicInteger();
+            resolverExecutor = Executors.newFixedThreadPool(asyncResolutionThreads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "zPermissions-resolver-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            debug(this, "Started %d resolver thread(s)", asyncResolutionThreads);
+        }
+    }
+
     /**
      * Returns names of regions that contain the location
      * 
@@ -670,6 +1087,30 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
         return Collections.emptySet();
     }
 
+    // Returns the regions containing the location that are among the given
+    // region names (all of them if null). Skips the lookup entirely if there
+    // are no region names.
+    private Set<String> getRelevantRegions(Location location, Set<String> regionNames) {
+        if (regionNames != null && regionNames.isEmpty())
+            return Collections.emptySet();
+        Set<String> regions = getRegions(location);
+        return regionNames == null ? regions : filterRegions(regions, regionNames);
+    }
+
+    // Restrict regions to those among the given region names
+    private static Set<String> filterRegions(Set<String> regions, Set<String> regionNames) {
+        if (regionNames.containsAll(regions))
+            return regions; // NB keeps interned sets intact
+        Set<String> result = new HashSet<String>(regions);
+        result.retainAll(regionNames);
+        return result;
+    }
+
+    @Override
+    public RefreshStatistics getRefreshStatistics() {
+        return refreshStatistics;
+    }
+
     /**
      * Refresh a particular player's attachment (and therefore, effective
      * permissions). Only does something if the player is actually online.
@@ -681,7 +1122,8 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
         Player player = Bukkit.getPlayerExact(playerName);
         if (player != null) {
             debug(this, "Refreshing player %s", player.getName());
-            setBukkitPermissions(player, player.getLocation(), true, cause);
+            if (!refreshPlayerAsync(player, cause))
+                setBukkitPermissions(player, player.getLocation(), true, cause);
         }
     }
 
@@ -691,6 +1133,9 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
     @Override
     public void refreshPlayers() {
         debug(this, "Refreshing all online players");
+        // Everyone is covered, so any changes from storage refreshes are moot
+        if (getDao() instanceof BaseMemoryPermissionDao)
+            ((BaseMemoryPermissionDao)getDao()).takeLoadChanges();
         Set<String> toRefresh = new HashSet<String>();
         for (Player player : Bukkit.getOnlinePlayers()) {
             toRefresh.add(player.getName());
@@ -717,14 +1162,14 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
     }
 
     /**
-     * Refresh expiration task if the given player is online.
+     * Refresh the given player's expirations. If the player is no longer
+     * online, their expirations are dropped.
      * 
      * @param playerName a player
      */
     @Override
     public void refreshExpirations(String playerName) {
-        if (Bukkit.getPlayerExact(playerName) != null)
-            refreshExpirations();
+        expirationRefreshHandler.rescan(playerName);
     }
 
     /**
@@ -735,13 +1180,11 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
     @Override
     public void refreshAffectedPlayers(String groupName) {
         groupName = groupName.toLowerCase();
-        Set<String> toRefresh = new HashSet<String>();
-        for (Player player : Bukkit.getOnlinePlayers()) {
-            PlayerState playerState = getPlayerState(player);
-            if (playerState == null || playerState.getGroups().contains(groupName)) {
-                toRefresh.add(player.getName());
-            }
-        }
+        // Players missing state are always refreshed
+        Set<String> toRefresh = new HashSet<String>(playersWithoutState);
+        Set<String> players = playersByGroup.get(groupName);
+        if (players != null)
+            toRefresh.addAll(players);
         
         if (toRefresh.isEmpty())
             return; // Nothing to do
@@ -751,6 +1194,42 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
         refreshTask.start(toRefresh);
     }
 
+    // Refresh online players affected by changes found by storage refreshes
+    // since the last full refresh: players who changed themselves or whose
+    // resolved groups (which include ancestors) changed. Returns false if
+    // nothing changed at all.
+    private boolean refreshChangedPlayers() {
+        LoadChanges changes = null;
+        if (getDao() instanceof BaseMemoryPermissionDao)
+            changes = ((BaseMemoryPermissionDao)getDao()).takeLoadChanges();
+        if (changes == null) {
+            // Don't know what changed
+            refreshPlayers();
+            return true;
+        }
+
+        debug(this, "Changes since last refresh: %s", changes);
+        // Players missing state are always refreshed
+        Set<String> toRefresh = new HashSet<String>(playersWithoutState);
+        for (String groupName : changes.getGroups()) {
+            Set<String> players = playersByGroup.get(groupName);
+            if (players != null)
+                toRefresh.addAll(players);
+        }
+        for (String playerName : changes.getPlayers()) {
+            Player player = Bukkit.getPlayerExact(playerName);
+            if (player != null)
+                toRefresh.add(player.getName());
+        }
+
+        if (!toRefresh.isEmpty()) {
+            if (getLogger().isLoggable(Level.FINE))
+                debug(this, "Refreshing players: %s", ToHStringUtils.delimitedString(", ", toRefresh));
+            refreshTask.start(toRefresh);
+        }
+        return !changes.isEmpty();
+    }
+
     /**
      * Retrieve the configured default track.
      * 
@@ -826,6 +1305,14 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
     private void readConfig() {
         // Barebones defaults
         databaseSupport = config.getBoolean("database-support", DEFAULT_DATABASE_SUPPORT);
+        fileBinary = "binary".equalsIgnoreCase(config.getString("file-format", DEFAULT_FILE_FORMAT));
+        fileJournal = config.getBoolean("file-journal", DEFAULT_FILE_JOURNAL);
+        fileJournalCompactionDelay = config.getInt("file-journal-compaction-delay", DEFAULT_FILE_JOURNAL_COMPACTION_DELAY);
+        fileShards = config.getInt("file-shards", DEFAULT_FILE_SHARDS);
+        embeddedStore = config.getBoolean("embedded-store", DEFAULT_EMBEDDED_STORE);
+        embeddedStoreDriver = config.getString("embedded-store-driver", DEFAULT_EMBEDDED_STORE_DRIVER);
+        embeddedStoreUrl = config.getString("embedded-store-url", DEFAULT_EMBEDDED_STORE_URL);
+        embeddedStoreCommitDelay = config.getInt("embedded-store-commit-delay", DEFAULT_EMBEDDED_STORE_COMMIT_DELAY);
         getResolver().setDefaultGroup(DEFAULT_GROUP);
         defaultTrack = DEFAULT_TRACK;
         dumpDirectory = new File(DEFAULT_DUMP_DIRECTORY);
@@ -939,7 +1426,18 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
 
         // FIXME currently hidden option
         refreshTask.setDelay(config.getInt("bulk-refresh-delay", DEFAULT_BULK_REFRESH_DELAY));
+        refreshTask.setBudget(config.getInt("bulk-refresh-budget", DEFAULT_BULK_REFRESH_BUDGET));
         autoRefreshInterval = config.getInt("auto-refresh-interval", DEFAULT_AUTO_REFRESH_INTERVAL);
+        changeLogPollInterval = config.getInt("change-log-poll-interval", DEFAULT_CHANGE_LOG_POLL_INTERVAL);
+        snapshotReads = config.getBoolean("snapshot-reads", DEFAULT_SNAPSHOT_READS);
+        sharedPermissions = config.getBoolean("shared-permissions", DEFAULT_SHARED_PERMISSIONS);
+        asyncResolution = config.getBoolean("async-resolution", DEFAULT_ASYNC_RESOLUTION);
+        asyncResolutionThreads = config.getInt("async-resolution-threads", DEFAULT_ASYNC_RESOLUTION_THREADS);
+        if (asyncResolutionThreads < 1)
+            asyncResolutionThreads = 1;
+        regionCacheSize = config.getInt("region-cache-size", DEFAULT_REGION_CACHE_SIZE);
+        regionCacheExpiration = config.getInt("region-cache-expiration", DEFAULT_REGION_CACHE_EXPIRATION);
+        regionMoveInterval = config.getInt("region-move-interval", DEFAULT_REGION_MOVE_INTERVAL);
 
         ToHDatabaseUtils.populateNamingConvention(config, namingConvention);
 
@@ -980,6 +1478,9 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
         config = ToHFileUtils.getConfig(this);
         readConfig();
         startAutoRefreshTask();
+        startChangeLogPollTask();
+        startRegionMoveTask();
+        startResolverPool();
         refresh(new Runnable() {
             @Override
             public void run() {
@@ -994,6 +1495,9 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
      */
     @Override
     public void refresh(Runnable finishTask) {
+        // Also a chance to pick up changed region definitions
+        if (regionStrategy != null)
+            regionStrategy.invalidate();
         storageStrategy.refresh(finishTask);
     }
 
@@ -1016,7 +1520,7 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
                         public void run() {
                             // This is executed after the storage refresh is done.
                             log(plugin, "Refresh done.");
-                            refreshPlayers();
+                            refreshChangedPlayers();
                             refreshExpirations();
                         }
                     });
@@ -1025,6 +1529,56 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
         }
     }
 
+    // Cancel existing change log poll task and start a new one if
+    // changeLogPollInterval is valid and storage supports it
+    private void startChangeLogPollTask() {
+        // Cancel previous task, if any
+        if (changeLogPollTaskId > -1) {
+            Bukkit.getScheduler().cancelTask(changeLogPollTaskId);
+            changeLogPollTaskId = -1;
+        }
+        // Start up new task at new interval
+        if (changeLogPollInterval > 0 && storageStrategy instanceof AvajeStorageStrategy) {
+            final AvajeStorageStrategy avajeStorageStrategy = (AvajeStorageStrategy)storageStrategy;
+            changeLogPollTaskId = Bukkit.getScheduler().scheduleSyncRepeatingTask(this, new Runnable() {
+                @Override
+                public void run() {
+                    avajeStorageStrategy.poll(new Runnable() {
+                        @Override
+                        public void run() {
+                            // This is executed after changes have been applied.
+                            if (refreshChangedPlayers())
+                                refreshExpirations();
+                        }
+                    });
+                }
+            }, changeLogPollInterval * 20, changeLogPollInterval * 20); // FIXME magic numbers
+        }
+    }
+
+    // Cancel existing movement check task and start a new one if
+    // regionMoveInterval is valid
+    private void startRegionMoveTask() {
+        if (regionPlayerListener == null)
+            return; // No region support
+
+        // Cancel previous task, if any
+        if (regionMoveTaskId > -1) {
+            Bukkit.getScheduler().cancelTask(regionMoveTaskId);
+            regionMoveTaskId = -1;
+        }
+        regionPlayerListener.setSampling(regionMoveInterval > 0);
+        // Start up new task at new interval
+        if (regionMoveInterval > 0) {
+            regionMoveTaskId = Bukkit.getScheduler().scheduleSyncRepeatingTask(this, new Runnable() {
+                @Override
+                public void run() {
+                    regionPlayerListener.processMoves();
+                }
+            }, regionMoveInterval, regionMoveInterval);
+        }
+    }
+
     // Retrieve associated PlayerState, if any
     private PlayerState getPlayerState(Player player) {
         for (MetadataValue mv : player.getMetadata(PLAYER_METADATA_KEY)) {
@@ -1040,25 +1594,40 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
         
         private Set<String> regions;
 
+        private Set<String> regionNames;
+
         private String world;
 
         private Set<String> groups;
 
-        public PlayerState(Set<String> regions, String world, Set<String> groups) {
+        private long version; // main thread only
+
+        public PlayerState(Set<String> regions, Set<String> regionNames, String world, Set<String> groups) {
             setRegions(regions);
+            setRegionNames(regionNames);
             setWorld(world);
             setGroups(groups);
         }
 
         public void setRegions(Set<String> regions) {
-            // NB should already be lower-cased
-            this.regions = Collections.unmodifiableSet(new HashSet<String>(regions));
+            // NB should already be lower-cased. Not copied, so interned sets
+            // can be compared by identity. Callers never modify it afterwards.
+            this.regions = regions;
         }
 
         public Set<String> getRegions() {
             return regions;
         }
 
+        // Regions referred to by the player's permissions, as of the last resolution
+        public void setRegionNames(Set<String> regionNames) {
+            this.regionNames = regionNames;
+        }
+
+        public Set<String> getRegionNames() {
+            return regionNames;
+        }
+
         public String getWorld() {
             return world;
         }
@@ -1081,6 +1650,15 @@ public class ZPermissionsPlugin extends JavaPlugin implements ZPermissionsCore,
             this.groups = Collections.unmodifiableSet(this.groups);
         }
 
+        public long getVersion() {
+            return version;
+        }
+
+        // Invalidates any refresh stamped with the previous version
+        public long nextVersion() {
+            return ++version;
+        }
+
     }
 
 }
@@ -189,7 +189,7 @@ public abstract class CommonCommands {
     }
 
     /**
-     * Verifies given permission does not start with the dynamic permission prefix.
+     * Verifies given permission does not start with a dynamic permission prefix.
      * 
      * @param sender the CommandSender to complain to if it does
      * @param permission the permission (must be unqualified)
@@ -197,7 +197,8 @@ public abstract class CommonCommands {
      */
     protected boolean checkDynamicPermission(CommandSender sender, String permission) {
         permission = permission.toLowerCase();
-        if (permission.startsWith(ZPermissionsPlugin.DYNAMIC_PERMISSION_PREFIX.toLowerCase())) {
+        if (permission.startsWith(ZPermissionsPlugin.DYNAMIC_PERMISSION_PREFIX.toLowerCase()) ||
+                permission.startsWith(ZPermissionsPlugin.DYNAMIC_SHARED_PERMISSION_PREFIX.toLowerCase())) {
             sendMessage(sender, colorize("{RED}I don't think so."));
             return true;
         }
@@ -523,11 +524,12 @@ public abstract class CommonCommands {
     }
 
     protected String formatEntry(CommandSender sender, Entry e) {
-        return String.format(colorize("{DARK_GREEN}- {GOLD}%s%s%s{DARK_GREEN}: {GREEN}%s"),
+        return String.format(colorize("{DARK_GREEN}- {GOLD}%s%s%s{DARK_GREEN}: {GREEN}%s%s"),
                 (e.getRegion() == null ? "" : e.getRegion().getName() + colorize("{DARK_GREEN}/{GOLD}")),
                 (e.getWorld() == null ? "" : e.getWorld().getName() + colorize("{DARK_GREEN}:{GOLD}")),
                 e.getPermission(),
-                e.isValue());
+                e.isValue(),
+                (e.getExpiration() == null ? "" : colorize("{YELLOW} [") + Utils.dateToString(e.getExpiration()) + "]"));
     }
 
     protected void handleMissingGroup(CommandSender sender, MissingGroupException e) {
@@ -30,12 +30,12 @@ import org.bukkit.entity.Player;
 import org.bukkit.plugin.Plugin;
 import org.tyrannyofheaven.bukkit.util.ToHMessageUtils;
 import org.tyrannyofheaven.bukkit.util.ToHStringUtils;
-import org.tyrannyofheaven.bukkit.util.ToHUtils;
 import org.tyrannyofheaven.bukkit.util.command.Command;
 import org.tyrannyofheaven.bukkit.util.command.Option;
 import org.tyrannyofheaven.bukkit.util.command.Session;
 import org.tyrannyofheaven.bukkit.util.transaction.TransactionCallbackWithoutResult;
 import org.tyrannyofheaven.bukkit.zPermissions.PermissionsResolver;
+import org.tyrannyofheaven.bukkit.zPermissions.QualifiedPermission;
 import org.tyrannyofheaven.bukkit.zPermissions.RefreshCause;
 import org.tyrannyofheaven.bukkit.zPermissions.ZPermissionsConfig;
 import org.tyrannyofheaven.bukkit.zPermissions.ZPermissionsCore;
@@ -126,14 +126,7 @@ public class PlayerCommands extends CommonCommands {
     }
 
     @Command(value={"settemp", "temp", "tmp"}, description="Set a temporary permission")
-    public void settemp(CommandSender sender, @Session("entityName") String playerName, @Option("permission") String permission, @Option(value="value", optional=true) Boolean value, @Option(value={"-t", "--timeout"}, valueName="timeout") Integer timeout) {
-        Player player = Bukkit.getPlayer(playerName);
-        if (player == null) {
-            sendMessage(sender, colorize("{RED}Player is not online."));
-            abortBatchProcessing();
-            return;
-        }
-        
+    public void settemp(CommandSender sender, final @Session("entityName") String playerName, @Option("permission") String permission, final @Option(value="value", optional=true) Boolean value, @Option(value={"-t", "--timeout"}, valueName="timeout") Integer timeout) {
         if (timeout == null)
             timeout = config.getDefaultTempPermissionTimeout();
         if (timeout <= 0) {
@@ -142,11 +135,26 @@ public class PlayerCommands extends CommonCommands {
             return;
         }
 
-        if (checkDynamicPermission(sender, permission)) return;
+        // Get world/permission
+        final QualifiedPermission wp = new QualifiedPermission(permission);
+
+        // Don't allow messing with the dynamic permission
+        if (checkDynamicPermission(sender, wp.getPermission())) return;
 
-        player.addAttachment(plugin, permission, value == null ? true : value, ToHUtils.TICKS_PER_SECOND * timeout);
+        final Date expiration = new Date(System.currentTimeMillis() + 1000L * timeout);
 
-        sendMessage(sender, colorize("{GOLD}%s{YELLOW} set to {GREEN}%s{YELLOW} for {AQUA}%s{YELLOW} for %d second%s"), permission, value == null ? Boolean.TRUE : value, player.getName(), timeout, timeout == 1 ? "" : "s");
+        // Stored alongside regular permissions. Overrides any existing entry
+        // until it expires, after which the permanent value is restored.
+        storageStrategy.getRetryingTransactionStrategy().execute(new TransactionCallbackWithoutResult() {
+            @Override
+            public void doInTransactionWithoutResult() throws Exception {
+                storageStrategy.getDao().setPermission(playerName, false, wp.getRegion(), wp.getWorld(), wp.getPermission(), value == null ? Boolean.TRUE : value, expiration);
+            }
+        });
+
+        sendMessage(sender, colorize("{GOLD}%s{YELLOW} set to {GREEN}%s{YELLOW} for {AQUA}%s{YELLOW} for %d second%s"), permission, value == null ? Boolean.TRUE : value, playerName, timeout, timeout == 1 ? "" : "s");
+        Utils.checkPlayer(sender, playerName);
+        core.refreshPlayer(playerName, RefreshCause.COMMAND);
     }
 
     @Command(value="has", description="Bukkit hasPermission() check")
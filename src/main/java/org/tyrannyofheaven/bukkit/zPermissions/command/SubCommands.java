@@ -57,6 +57,7 @@ import org.tyrannyofheaven.bukkit.zPermissions.model.Membership;
 import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionEntity;
 import org.tyrannyofheaven.bukkit.zPermissions.storage.StorageStrategy;
 import org.tyrannyofheaven.bukkit.zPermissions.util.ModelDumper;
+import org.tyrannyofheaven.bukkit.zPermissions.util.RefreshStatistics;
 import org.tyrannyofheaven.bukkit.zPermissions.util.Utils;
 
 /**
@@ -287,6 +288,22 @@ public class SubCommands {
         sendMessage(sender, colorize("{YELLOW}Refresh queued."));
     }
 
+    @Command(value="stats", description="Show permissions refresh statistics")
+    @Require("zpermissions.stats")
+    public void stats(CommandSender sender, @Option({"-r", "--reset"}) boolean reset) {
+        RefreshStatistics stats = core.getRefreshStatistics();
+        sendMessage(sender, colorize("{YELLOW}Player refreshes: {GREEN}%d{YELLOW} ({GREEN}%d{YELLOW} unchanged)"),
+                stats.getRefreshes(), stats.getUnchangedRefreshes());
+        sendMessage(sender, colorize("{YELLOW}Resolved asynchronously: {GREEN}%d{YELLOW} ({GREEN}%d{YELLOW} discarded as stale)"),
+                stats.getAsyncRefreshes(), stats.getStaleResults());
+        sendMessage(sender, colorize("{YELLOW}Refresh queue: {GREEN}%d{YELLOW} (max {GREEN}%d{YELLOW}), last drained in {GREEN}%d{YELLOW} ms ({GREEN}%d{YELLOW} drains)"),
+                stats.getQueueDepth(), stats.getMaxQueueDepth(), stats.getLastDrainTime(), stats.getDrains());
+        if (reset) {
+            stats.reset();
+            sendMessage(sender, colorize("{YELLOW}Statistics reset."));
+        }
+    }
+
     // Ensure filename doesn't have any funny characters
     private File sanitizeFilename(File dir, String filename) {
         String[] parts = filename.split(File.separatorChar == '\\' ? "\\\\" : File.separator);
@@ -17,14 +17,23 @@ package org.tyrannyofheaven.bukkit.zPermissions.dao;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
 import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.tyrannyofheaven.bukkit.zPermissions.model.ChangeLogEntry;
 import org.tyrannyofheaven.bukkit.zPermissions.model.EntityMetadata;
 import org.tyrannyofheaven.bukkit.zPermissions.model.Entry;
 import org.tyrannyofheaven.bukkit.zPermissions.model.Inheritance;
@@ -34,6 +43,8 @@ import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionRegion;
 import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionWorld;
 
 import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.Expr;
+import com.avaje.ebean.SqlRow;
 
 /**
  * Avaje PermissionDao implementation that keeps everything in memory.
@@ -48,6 +59,60 @@ public class AvajePermissionDao2 extends BaseMemoryPermissionDao {
 
     private final Executor executor;
 
+    // Readers (resolution, lookups) may proceed concurrently
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // How long to wait for a skipped change log id to show up before assuming
+    // its transaction was rolled back (or the id is still sitting unused in
+    // another server's batch of sequence values)
+    private static final long DEFAULT_CHANGE_LOG_GAP_TIMEOUT = 60000L;
+
+    // Allowance for transaction duration when looking for entries logged
+    // with ids we've already passed
+    private static final long CHANGE_LOG_LATE_MARGIN = 60000L;
+
+    // How long a measurement of the database clock is trusted
+    private static final long DATABASE_CLOCK_MAX_AGE = 10L * 60L * 1000L;
+
+    // Identifies our own entries in the change log
+    private final String serverId = UUID.randomUUID().toString();
+
+    private volatile boolean changeLog;
+
+    // Database clock minus our own, and when that was measured (0 = never).
+    // Change log times come from the database clock so servers with skewed
+    // clocks still agree on them.
+    private volatile long databaseClockOffset;
+
+    private volatile long databaseClockTime;
+
+    // Guards all the change log state below
+    private final Object changeLogLock = new Object();
+
+    // Every change log entry up to and including this id has been seen
+    private long lastChangeId = -1L;
+
+    // Seen ids past lastChangeId
+    private final TreeSet<Long> seenChangeIds = new TreeSet<Long>();
+
+    // When we started waiting on the id following lastChangeId
+    private long gapSince;
+
+    private long changeLogGapTimeout = DEFAULT_CHANGE_LOG_GAP_TIMEOUT;
+
+    // Ids up to lastChangeId seen lately, mapped to when we saw them. Ids
+    // come from a sequence that each server reserves in batches, so one
+    // server may log entries well below another's latest.
+    private final Map<Long, Long> recentChangeIds = new HashMap<Long, Long>();
+
+    // When the last load or poll started
+    private long lastPollTime;
+
+    // Lowercase names of entities that changed locally while being fetched
+    private final Set<String> deferredPlayers = new HashSet<String>();
+
+    private final Set<String> deferredGroups = new HashSet<String>();
+
     public AvajePermissionDao2(EbeanServer ebeanServer, Executor executor) {
         this.ebeanServer = ebeanServer;
         this.executor = executor != null ? executor : new Executor() {
@@ -58,6 +123,30 @@ public class AvajePermissionDao2 extends BaseMemoryPermissionDao {
         };
     }
 
+    @Override
+    public ReadOnlyPermissionDao getReadOnlySnapshot() {
+        ReadOnlyPermissionDao snapshot = getSnapshot();
+        if (snapshot == null) {
+            lock.readLock().lock();
+            try {
+                snapshot = updateSnapshot();
+            }
+            finally {
+                lock.readLock().unlock();
+            }
+        }
+        return snapshot;
+    }
+
+    // Returns an up-to-date snapshot if snapshot reads are enabled and one
+    // has been built since the last change, null otherwise. Readers never
+    // build snapshots themselves, they just take the read lock instead.
+    private ReadOnlyPermissionDao readSnapshot() {
+        if (!isSnapshotReads())
+            return null;
+        return getSnapshot();
+    }
+
     private EbeanServer getEbeanServer() {
         return ebeanServer;
     }
@@ -66,119 +155,418 @@ public class AvajePermissionDao2 extends BaseMemoryPermissionDao {
         return executor;
     }
 
+    /**
+     * Enable or disable writing to the change log. Should be enabled on all
+     * servers sharing the database, whether or not they poll the change log.
+     * 
+     * @param changeLog true to record changes in the change log
+     */
+    public void setChangeLog(boolean changeLog) {
+        this.changeLog = changeLog;
+    }
+
+    // For testing
+    void setChangeLogGapTimeout(long changeLogGapTimeout) {
+        synchronized (changeLogLock) {
+            this.changeLogGapTimeout = changeLogGapTimeout;
+        }
+    }
+
+    // Note that an entity was modified. Called from write runnables so it's
+    // part of the same transaction.
+    private void logChange(String name, boolean group) {
+        if (!changeLog) return;
+
+        ChangeLogEntry entry = new ChangeLogEntry();
+        entry.setServer(serverId);
+        entry.setName(name.toLowerCase());
+        entry.setGroup(group);
+        entry.setChanged(new Date(getDatabaseTime(false)));
+        getEbeanServer().save(entry);
+    }
+
+    // Current time according to the database clock. Measures the clock if
+    // fresh is true or the last measurement is stale; otherwise applies the
+    // last measured offset to our own clock.
+    private long getDatabaseTime(boolean fresh) {
+        long now = System.currentTimeMillis();
+        if (fresh || databaseClockTime == 0L || now - databaseClockTime >= DATABASE_CLOCK_MAX_AGE) {
+            try {
+                SqlRow row = getEbeanServer().createSqlQuery("SELECT CURRENT_TIMESTAMP AS db_now").findUnique();
+                Date dbNow = row == null ? null : row.getTimestamp("db_now");
+                if (dbNow != null) {
+                    long after = System.currentTimeMillis();
+                    databaseClockOffset = dbNow.getTime() - (now + after) / 2L;
+                    databaseClockTime = after;
+                    return after + databaseClockOffset;
+                }
+            }
+            catch (RuntimeException e) {
+                // Keep using the last offset (or none)
+                logger.log(Level.FINE, "Unable to read database clock", e);
+            }
+        }
+        return now + databaseClockOffset;
+    }
+
     @Override
-    synchronized PermissionRegion getRegion(String region) {
-        return super.getRegion(region);
+    PermissionRegion getRegion(String region) {
+        lock.readLock().lock();
+        try {
+            return super.getRegion(region);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
     }
 
     @Override
-    synchronized PermissionWorld getWorld(String world) {
-        return super.getWorld(world);
+    PermissionWorld getWorld(String world) {
+        lock.readLock().lock();
+        try {
+            return super.getWorld(world);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
     }
 
     @Override
-    synchronized public Boolean getPermission(String name, boolean group, String region, String world, String permission) {
-        return super.getPermission(name, group, region, world, permission);
+    public Boolean getPermission(String name, boolean group, String region, String world, String permission) {
+        ReadOnlyPermissionDao snapshot = readSnapshot();
+        if (snapshot != null)
+            return snapshot.getPermission(name, group, region, world, permission);
+        lock.readLock().lock();
+        try {
+            return super.getPermission(name, group, region, world, permission);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
     }
 
     @Override
-    synchronized public void setPermission(String name, boolean group, String region, String world, String permission, boolean value) {
-        super.setPermission(name, group, region, world, permission, value);
+    public void setPermission(String name, boolean group, String region, String world, String permission, boolean value, Date expiration) {
+        lock.writeLock().lock();
+        try {
+            super.setPermission(name, group, region, world, permission, value, expiration);
+        }
+        finally {
+            invalidateSnapshot();
+            lock.writeLock().unlock();
+        }
     }
 
     @Override
-    synchronized public boolean unsetPermission(String name, boolean group, String region, String world, String permission) {
-        return super.unsetPermission(name, group, region, world, permission);
+    public boolean unsetPermission(String name, boolean group, String region, String world, String permission) {
+        lock.writeLock().lock();
+        try {
+            return super.unsetPermission(name, group, region, world, permission);
+        }
+        finally {
+            invalidateSnapshot();
+            lock.writeLock().unlock();
+        }
     }
 
     @Override
-    synchronized public void addMember(String groupName, String member, Date expiration) {
-        super.addMember(groupName, member, expiration);
+    public int purgeExpiredPermissions(String name, boolean group) {
+        lock.writeLock().lock();
+        try {
+            return super.purgeExpiredPermissions(name, group);
+        }
+        finally {
+            invalidateSnapshot();
+            lock.writeLock().unlock();
+        }
     }
 
     @Override
-    synchronized public boolean removeMember(String groupName, String member) {
-        return super.removeMember(groupName, member);
+    public void addMember(String groupName, String member, Date expiration) {
+        lock.writeLock().lock();
+        try {
+            super.addMember(groupName, member, expiration);
+        }
+        finally {
+            invalidateSnapshot();
+            lock.writeLock().unlock();
+        }
     }
 
     @Override
-    synchronized public List<Membership> getGroups(String member) {
-        return super.getGroups(member);
+    public boolean removeMember(String groupName, String member) {
+        lock.writeLock().lock();
+        try {
+            return super.removeMember(groupName, member);
+        }
+        finally {
+            invalidateSnapshot();
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Membership> getGroups(String member) {
+        ReadOnlyPermissionDao snapshot = readSnapshot();
+        if (snapshot != null)
+            return snapshot.getGroups(member);
+        lock.readLock().lock();
+        try {
+            return super.getGroups(member);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
     }
 
     @Override
-    synchronized public List<Membership> getMembers(String group) {
-        return super.getMembers(group);
+    public List<Membership> getMembers(String group) {
+        ReadOnlyPermissionDao snapshot = readSnapshot();
+        if (snapshot != null)
+            return snapshot.getMembers(group);
+        lock.readLock().lock();
+        try {
+            return super.getMembers(group);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
     }
 
     @Override
-    synchronized public PermissionEntity getEntity(String name, boolean group) {
-        return super.getEntity(name, group);
+    public PermissionEntity getEntity(String name, boolean group) {
+        ReadOnlyPermissionDao snapshot = readSnapshot();
+        if (snapshot != null)
+            return snapshot.getEntity(name, group);
+        lock.readLock().lock();
+        try {
+            return super.getEntity(name, group);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<PermissionEntity> getEntities(boolean group) {
+        ReadOnlyPermissionDao snapshot = readSnapshot();
+        if (snapshot != null)
+            return snapshot.getEntities(group);
+        lock.readLock().lock();
+        try {
+            return super.getEntities(group);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void setGroup(String playerName, String groupName, Date expiration) {
+        lock.writeLock().lock();
+        try {
+            super.setGroup(playerName, groupName, expiration);
+        }
+        finally {
+            invalidateSnapshot();
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void setParent(String groupName, String parentName) {
+        lock.writeLock().lock();
+        try {
+            super.setParent(groupName, parentName);
+        }
+        finally {
+            invalidateSnapshot();
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void setPriority(String groupName, int priority) {
+        lock.writeLock().lock();
+        try {
+            super.setPriority(groupName, priority);
+        }
+        finally {
+            invalidateSnapshot();
+            lock.writeLock().unlock();
+        }
     }
 
     @Override
-    synchronized public List<PermissionEntity> getEntities(boolean group) {
-        return super.getEntities(group);
+    public boolean deleteEntity(String name, boolean group) {
+        lock.writeLock().lock();
+        try {
+            return super.deleteEntity(name, group);
+        }
+        finally {
+            invalidateSnapshot();
+            lock.writeLock().unlock();
+        }
     }
 
     @Override
-    synchronized public void setGroup(String playerName, String groupName, Date expiration) {
-        super.setGroup(playerName, groupName, expiration);
+    public List<String> getAncestry(String groupName) {
+        ReadOnlyPermissionDao snapshot = readSnapshot();
+        if (snapshot != null)
+            return snapshot.getAncestry(groupName);
+        lock.readLock().lock();
+        try {
+            return super.getAncestry(groupName);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
     }
 
     @Override
-    synchronized public void setParent(String groupName, String parentName) {
-        super.setParent(groupName, parentName);
+    public List<Entry> getEntries(String name, boolean group) {
+        ReadOnlyPermissionDao snapshot = readSnapshot();
+        if (snapshot != null)
+            return snapshot.getEntries(name, group);
+        lock.readLock().lock();
+        try {
+            return super.getEntries(name, group);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
     }
 
     @Override
-    synchronized public void setPriority(String groupName, int priority) {
-        super.setPriority(groupName, priority);
+    public List<Entry> getEntries(String name, boolean group, String world, Set<String> regions) {
+        ReadOnlyPermissionDao snapshot = readSnapshot();
+        if (snapshot != null)
+            return snapshot.getEntries(name, group, world, regions);
+        lock.readLock().lock();
+        try {
+            return super.getEntries(name, group, world, regions);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
     }
 
     @Override
-    synchronized public boolean deleteEntity(String name, boolean group) {
-        return super.deleteEntity(name, group);
+    public Set<String> getRegionNames() {
+        ReadOnlyPermissionDao snapshot = readSnapshot();
+        if (snapshot != null)
+            return snapshot.getRegionNames();
+        lock.readLock().lock();
+        try {
+            return super.getRegionNames();
+        }
+        finally {
+            lock.readLock().unlock();
+        }
     }
 
     @Override
-    synchronized public List<String> getAncestry(String groupName) {
-        return super.getAncestry(groupName);
+    public Set<String> getRegionNames(String name, boolean group) {
+        ReadOnlyPermissionDao snapshot = readSnapshot();
+        if (snapshot != null)
+            return snapshot.getRegionNames(name, group);
+        lock.readLock().lock();
+        try {
+            return super.getRegionNames(name, group);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
     }
 
     @Override
-    synchronized public List<Entry> getEntries(String name, boolean group) {
-        return super.getEntries(name, group);
+    public boolean createGroup(String name) {
+        lock.writeLock().lock();
+        try {
+            return super.createGroup(name);
+        }
+        finally {
+            invalidateSnapshot();
+            lock.writeLock().unlock();
+        }
     }
 
     @Override
-    synchronized public boolean createGroup(String name) {
-        return super.createGroup(name);
+    public List<String> getEntityNames(boolean group) {
+        ReadOnlyPermissionDao snapshot = readSnapshot();
+        if (snapshot != null)
+            return snapshot.getEntityNames(group);
+        lock.readLock().lock();
+        try {
+            return super.getEntityNames(group);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
     }
 
     @Override
-    synchronized public List<String> getEntityNames(boolean group) {
-        return super.getEntityNames(group);
+    public Object getMetadata(String name, boolean group, String metadataName) {
+        ReadOnlyPermissionDao snapshot = readSnapshot();
+        if (snapshot != null)
+            return snapshot.getMetadata(name, group, metadataName);
+        lock.readLock().lock();
+        try {
+            return super.getMetadata(name, group, metadataName);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
     }
 
     @Override
-    synchronized public Object getMetadata(String name, boolean group, String metadataName) {
-        return super.getMetadata(name, group, metadataName);
+    public void setMetadata(String name, boolean group, String metadataName, Object value) {
+        lock.writeLock().lock();
+        try {
+            super.setMetadata(name, group, metadataName, value);
+        }
+        finally {
+            invalidateSnapshot();
+            lock.writeLock().unlock();
+        }
     }
 
     @Override
-    synchronized public void setMetadata(String name, boolean group, String metadataName, Object value) {
-        super.setMetadata(name, group, metadataName, value);
+    public boolean unsetMetadata(String name, boolean group, String metadataName) {
+        lock.writeLock().lock();
+        try {
+            return super.unsetMetadata(name, group, metadataName);
+        }
+        finally {
+            invalidateSnapshot();
+            lock.writeLock().unlock();
+        }
     }
 
     @Override
-    synchronized public boolean unsetMetadata(String name, boolean group, String metadataName) {
-        return super.unsetMetadata(name, group, metadataName);
+    public void setParents(String groupName, List<String> parentNames) {
+        lock.writeLock().lock();
+        try {
+            super.setParents(groupName, parentNames);
+        }
+        finally {
+            invalidateSnapshot();
+            lock.writeLock().unlock();
+        }
     }
 
     @Override
-    synchronized public void setParents(String groupName, List<String> parentNames) {
-        super.setParents(groupName, parentNames);
+    public long getGroupGeneration(String groupName) {
+        ReadOnlyPermissionDao snapshot = readSnapshot();
+        if (snapshot != null)
+            return snapshot.getGroupGeneration(groupName);
+        lock.readLock().lock();
+        try {
+            return super.getGroupGeneration(groupName);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
     }
 
     @Override
@@ -239,6 +627,7 @@ public class AvajePermissionDao2 extends BaseMemoryPermissionDao {
                     // NB assumes name/group/displayName are only attributes that need saving
                     getEbeanServer().save(dbEntity);
                 }
+                logChange(name, group);
             }
         });
     }
@@ -251,6 +640,8 @@ public class AvajePermissionDao2 extends BaseMemoryPermissionDao {
         final String worldName = entry.getWorld() == null ? null : entry.getWorld().getName();
         final String permission = entry.getPermission();
         final boolean value = entry.isValue();
+        final Date expiration = entry.getExpiration();
+        final Boolean previousValue = entry.getPreviousValue();
 
         getExecutor().execute(new Runnable() {
             @Override
@@ -299,7 +690,10 @@ public class AvajePermissionDao2 extends BaseMemoryPermissionDao {
                 }
                 
                 dbEntry.setValue(value);
+                dbEntry.setExpiration(expiration);
+                dbEntry.setPreviousValue(previousValue);
                 getEbeanServer().save(dbEntry);
+                logChange(name, group);
             }
         });
     }
@@ -359,6 +753,7 @@ public class AvajePermissionDao2 extends BaseMemoryPermissionDao {
                 }
 
                 getEbeanServer().delete(dbEntry);
+                logChange(name, group);
             }
         });
     }
@@ -392,6 +787,7 @@ public class AvajePermissionDao2 extends BaseMemoryPermissionDao {
                 }
                 dbMembership.setExpiration(expiration);
                 getEbeanServer().save(dbMembership);
+                logChange(name, true);
             }
         });
     }
@@ -431,6 +827,7 @@ public class AvajePermissionDao2 extends BaseMemoryPermissionDao {
                 }
 
                 getEbeanServer().delete(dbEntity);
+                logChange(name, group);
             }
         });
     }
@@ -463,6 +860,7 @@ public class AvajePermissionDao2 extends BaseMemoryPermissionDao {
                 }
                 
                 getEbeanServer().delete(dbMembership);
+                logChange(name, true);
             }
         });
     }
@@ -496,6 +894,7 @@ public class AvajePermissionDao2 extends BaseMemoryPermissionDao {
                 
                 dbEntity.setParent(dbParent);
                 getEbeanServer().save(dbEntity);
+                logChange(name, true);
             }
         });
     }
@@ -537,6 +936,7 @@ public class AvajePermissionDao2 extends BaseMemoryPermissionDao {
                 }
                 dbInheritance.setOrdering(ordering);
                 getEbeanServer().save(dbInheritance);
+                logChange(childName, true);
             }
         });
     }
@@ -578,6 +978,7 @@ public class AvajePermissionDao2 extends BaseMemoryPermissionDao {
                 }
                 
                 getEbeanServer().delete(dbInheritance);
+                logChange(childName, true);
             }
         });
     }
@@ -599,6 +1000,7 @@ public class AvajePermissionDao2 extends BaseMemoryPermissionDao {
 
                 dbEntity.setPriority(priority);
                 getEbeanServer().save(dbEntity);
+                logChange(name, true);
             }
         });
     }
@@ -698,6 +1100,7 @@ public class AvajePermissionDao2 extends BaseMemoryPermissionDao {
 
                 dbMetadata.setValue(value);
                 getEbeanServer().save(dbMetadata);
+                logChange(name, group);
             }
         });
     }
@@ -731,11 +1134,17 @@ public class AvajePermissionDao2 extends BaseMemoryPermissionDao {
                 }
 
                 getEbeanServer().delete(dbMetadata);
+                logChange(name, group);
             }
         });
     }
 
     public void load() {
+        // Anything logged after this will be picked up by the next poll
+        long now = getDatabaseTime(true);
+        long lastId = getLastChangeId();
+        List<Long> recentIds = lastId < 0L ? Collections.<Long>emptyList() : getRecentChangeIds(now);
+
         // Current rationale: On any given server, the number of groups will have
         // an upper bound. However, the number of players will not. Granted, most
         // players will simply be members and not full-blown entities themselves.
@@ -748,6 +1157,18 @@ public class AvajePermissionDao2 extends BaseMemoryPermissionDao {
                 "find PermissionEntity fetch parent (displayName) where group = true")
                 .findList();
         load(players, groups);
+
+        synchronized (changeLogLock) {
+            lastChangeId = lastId;
+            seenChangeIds.clear();
+            gapSince = 0L;
+            recentChangeIds.clear();
+            for (Long id : recentIds)
+                recentChangeIds.put(id, now);
+            lastPollTime = now;
+            deferredPlayers.clear();
+            deferredGroups.clear();
+        }
     }
 
     private void load(List<PermissionEntity> players, List<PermissionEntity> groups) {
@@ -755,71 +1176,269 @@ public class AvajePermissionDao2 extends BaseMemoryPermissionDao {
 
         // Create full copies to force lazy-loads
         for (PermissionEntity player : players) {
-            PermissionEntity newPlayer = getEntity(memoryState, player.getDisplayName(), false);
-            loadPermissions(memoryState, player.getPermissions(), newPlayer);
-            loadMetadata(getEbeanServer().find(EntityMetadata.class).where()
-                    .eq("entity", player)
-                    .findList(), newPlayer);
+            loadPlayer(memoryState, player);
         }
         for (PermissionEntity group : groups) {
-            PermissionEntity newGroup = getEntity(memoryState, group.getDisplayName(), true);
-            loadPermissions(memoryState, getEbeanServer().find(Entry.class).where()
-                    .eq("entity", group)
-                    .findList(), newGroup);
-            loadMetadata(getEbeanServer().find(EntityMetadata.class).where()
-                    .eq("entity", group)
-                    .findList(), newGroup);
-            newGroup.setPriority(group.getPriority());
-            if (group.getParent() != null) {
-                // Backwards compatibility
-                PermissionEntity parentEntity = getEntity(memoryState, group.getParent().getDisplayName(), true);
+            loadGroup(memoryState, group);
+        }
+        
+        rebuildAncestry(memoryState);
+
+        lock.writeLock().lock();
+        try {
+            reloadMemoryState(memoryState);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private PermissionEntity loadPlayer(MemoryState memoryState, PermissionEntity player) {
+        PermissionEntity newPlayer = getEntity(memoryState, player.getDisplayName(), false);
+        loadPermissions(memoryState, player.getPermissions(), newPlayer);
+        loadMetadata(getEbeanServer().find(EntityMetadata.class).where()
+                .eq("entity", player)
+                .findList(), newPlayer);
+        return newPlayer;
+    }
+
+    private PermissionEntity loadGroup(MemoryState memoryState, PermissionEntity group) {
+        PermissionEntity newGroup = getEntity(memoryState, group.getDisplayName(), true);
+        loadPermissions(memoryState, getEbeanServer().find(Entry.class).where()
+                .eq("entity", group)
+                .findList(), newGroup);
+        loadMetadata(getEbeanServer().find(EntityMetadata.class).where()
+                .eq("entity", group)
+                .findList(), newGroup);
+        newGroup.setPriority(group.getPriority());
+        if (group.getParent() != null) {
+            // Backwards compatibility
+            PermissionEntity parentEntity = getEntity(memoryState, group.getParent().getDisplayName(), true);
+
+            Inheritance newInheritance = new Inheritance();
+            newInheritance.setChild(newGroup);
+            newInheritance.setParent(parentEntity);
+            newInheritance.setOrdering(0);
+            
+            // Linkages
+            newGroup.getInheritancesAsChild().add(newInheritance);
+            parentEntity.getInheritancesAsParent().add(newInheritance);
+        }
+        else {
+            List<Inheritance> inheritances = getEbeanServer().find(Inheritance.class).where()
+                    .eq("child", group)
+                    .join("parent", "displayName")
+                    .findList();
+            for (Inheritance inheritance : inheritances) {
+                PermissionEntity parentEntity = getEntity(memoryState, inheritance.getParent().getDisplayName(), true);
 
                 Inheritance newInheritance = new Inheritance();
                 newInheritance.setChild(newGroup);
                 newInheritance.setParent(parentEntity);
-                newInheritance.setOrdering(0);
+                newInheritance.setOrdering(inheritance.getOrdering());
                 
                 // Linkages
                 newGroup.getInheritancesAsChild().add(newInheritance);
                 parentEntity.getInheritancesAsParent().add(newInheritance);
             }
-            else {
-                List<Inheritance> inheritances = getEbeanServer().find(Inheritance.class).where()
-                        .eq("child", group)
-                        .join("parent", "displayName")
-                        .findList();
-                for (Inheritance inheritance : inheritances) {
-                    PermissionEntity parentEntity = getEntity(memoryState, inheritance.getParent().getDisplayName(), true);
-
-                    Inheritance newInheritance = new Inheritance();
-                    newInheritance.setChild(newGroup);
-                    newInheritance.setParent(parentEntity);
-                    newInheritance.setOrdering(inheritance.getOrdering());
-                    
-                    // Linkages
-                    newGroup.getInheritancesAsChild().add(newInheritance);
-                    parentEntity.getInheritancesAsParent().add(newInheritance);
+        }
+        List<Membership> memberships = getEbeanServer().find(Membership.class).where()
+                .eq("group", group)
+                .findList();
+        for (Membership membership : memberships) {
+            Membership newMembership = new Membership();
+            newMembership.setMember(membership.getMember());
+            newMembership.setGroup(newGroup);
+            newMembership.setExpiration(membership.getExpiration());
+            newGroup.getMemberships().add(newMembership);
+            
+            rememberMembership(memoryState, newMembership);
+        }
+        return newGroup;
+    }
+
+    // Returns the id of the latest change log entry (0 if none), or -1 if the
+    // change log is disabled
+    private long getLastChangeId() {
+        if (!changeLog) return -1L;
+
+        List<ChangeLogEntry> last = getEbeanServer().find(ChangeLogEntry.class)
+                .orderBy("id desc")
+                .setMaxRows(1)
+                .findList();
+        return last.isEmpty() ? 0L : last.get(0).getId();
+    }
+
+    // Returns the ids of change log entries recent enough to be returned by
+    // the next poll
+    private List<Long> getRecentChangeIds(long now) {
+        List<Long> result = new ArrayList<Long>();
+        for (ChangeLogEntry entry : getEbeanServer().find(ChangeLogEntry.class)
+                .select("id")
+                .where().ge("changed", new Date(now - CHANGE_LOG_LATE_MARGIN))
+                .findList()) {
+            result.add(entry.getId());
+        }
+        return result;
+    }
+
+    /**
+     * Apply changes made by other servers since the last load or poll. Only
+     * entities named in the change log are re-read. Should be called within a
+     * transaction, from the same thread that executes write runnables (so
+     * our own pending writes are already committed).
+     * 
+     * @return true if anything was applied. Use {@link #takeLoadChanges()} to
+     *   find out what.
+     */
+    public boolean poll() {
+        synchronized (changeLogLock) {
+            if (lastChangeId < 0L) return false; // Not loaded with change log enabled
+
+            // Everything past lastChangeId, plus anything logged since the
+            // last poll, whatever its id
+            long now = getDatabaseTime(true);
+            List<ChangeLogEntry> entries = getEbeanServer().find(ChangeLogEntry.class).where()
+                    .or(Expr.gt("id", lastChangeId), Expr.ge("changed", new Date(lastPollTime - CHANGE_LOG_LATE_MARGIN)))
+                    .orderBy("id")
+                    .findList();
+
+            Set<String> playerNames = new HashSet<String>(deferredPlayers);
+            Set<String> groupNames = new HashSet<String>(deferredGroups);
+            List<Long> newIds = new ArrayList<Long>(entries.size());
+            for (ChangeLogEntry entry : entries) {
+                Long id = entry.getId();
+                if (id > lastChangeId ? seenChangeIds.contains(id) : recentChangeIds.containsKey(id)) continue;
+                newIds.add(id);
+                if (serverId.equals(entry.getServer())) continue; // Already applied
+
+                if (entry.isGroup())
+                    groupNames.add(entry.getName().toLowerCase());
+                else
+                    playerNames.add(entry.getName().toLowerCase());
+            }
+
+            boolean applied = false;
+            if (!playerNames.isEmpty() || !groupNames.isEmpty())
+                applied = applyChanges(playerNames, groupNames);
+
+            // Only now that everything has been applied
+            for (Long id : newIds) {
+                if (id > lastChangeId)
+                    seenChangeIds.add(id);
+                else
+                    recentChangeIds.put(id, now); // Logged late
+            }
+            advanceLastChangeId(now);
+
+            // Forget ids too old to be returned again
+            for (Iterator<Long> i = recentChangeIds.values().iterator(); i.hasNext();) {
+                if (i.next() < lastPollTime - 2 * CHANGE_LOG_LATE_MARGIN)
+                    i.remove();
+            }
+            lastPollTime = now;
+
+            return applied;
+        }
+    }
+
+    // Re-read the named entities and replace them in memory. Entities modified
+    // locally in the meantime are deferred to the next poll.
+    private boolean applyChanges(Set<String> playerNames, Set<String> groupNames) {
+        Map<String, Long> playerGenerations = new HashMap<String, Long>();
+        Map<String, Long> groupGenerations = new HashMap<String, Long>();
+        lock.readLock().lock();
+        try {
+            for (String name : playerNames)
+                playerGenerations.put(name, getGeneration(name, false));
+            for (String name : groupNames)
+                groupGenerations.put(name, getGeneration(name, true));
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+
+        MemoryState scratch = new MemoryState();
+        Map<String, PermissionEntity> players = new HashMap<String, PermissionEntity>();
+        for (String name : playerNames) {
+            PermissionEntity player = getEbeanServer().createQuery(PermissionEntity.class,
+                    "find PermissionEntity fetch permissions where group = false and name = :name")
+                    .setParameter("name", name)
+                    .findUnique();
+            players.put(name, player == null ? null : loadPlayer(scratch, player));
+        }
+        Map<String, PermissionEntity> groups = new HashMap<String, PermissionEntity>();
+        for (String name : groupNames) {
+            PermissionEntity group = getEbeanServer().createQuery(PermissionEntity.class,
+                    "find PermissionEntity fetch parent (displayName) where group = true and name = :name")
+                    .setParameter("name", name)
+                    .findUnique();
+            groups.put(name, group == null ? null : loadGroup(scratch, group));
+        }
+
+        lock.writeLock().lock();
+        try {
+            deferredPlayers.clear();
+            deferredGroups.clear();
+            for (String name : playerNames) {
+                if (getGeneration(name, false) != playerGenerations.get(name)) {
+                    players.remove(name);
+                    deferredPlayers.add(name);
                 }
             }
-            List<Membership> memberships = getEbeanServer().find(Membership.class).where()
-                    .eq("group", group)
-                    .findList();
-            for (Membership membership : memberships) {
-                Membership newMembership = new Membership();
-                newMembership.setMember(membership.getMember());
-                newMembership.setGroup(newGroup);
-                newMembership.setExpiration(membership.getExpiration());
-                newGroup.getMemberships().add(newMembership);
-                
-                rememberMembership(memoryState, newMembership);
+            for (String name : groupNames) {
+                if (getGeneration(name, true) != groupGenerations.get(name)) {
+                    groups.remove(name);
+                    deferredGroups.add(name);
+                }
             }
+
+            if (players.isEmpty() && groups.isEmpty())
+                return false;
+            replaceEntities(players, groups);
+            return true;
         }
-        
-        synchronized (this) {
-            setMemoryState(memoryState);
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Advance lastChangeId past contiguous seen ids. A missing id may belong
+    // to a transaction that hasn't committed yet, so wait a bit before
+    // skipping it.
+    private void advanceLastChangeId(long now) {
+        while (!seenChangeIds.isEmpty()) {
+            long next = seenChangeIds.first();
+            if (next != lastChangeId + 1L) {
+                if (gapSince == 0L) {
+                    gapSince = now;
+                    break;
+                }
+                else if (now - gapSince < changeLogGapTimeout)
+                    break;
+                // Assume it was rolled back
+            }
+            seenChangeIds.remove(next);
+            recentChangeIds.put(next, now);
+            lastChangeId = next;
+            gapSince = 0L;
         }
     }
 
+    /**
+     * Delete change log entries older than the given age, going by the
+     * database clock. Should be called within a transaction.
+     * 
+     * @param maxAge entries last changed longer ago than this (in
+     *   milliseconds) are deleted
+     * @return the number of entries deleted
+     */
+    public int pruneChangeLog(long maxAge) {
+        return getEbeanServer().createUpdate(ChangeLogEntry.class, "delete from ChangeLogEntry where changed < :cutoff")
+                .setParameter("cutoff", new Date(getDatabaseTime(true) - maxAge))
+                .execute();
+    }
+
     private void loadPermissions(MemoryState memoryState, Collection<Entry> permissions, PermissionEntity entity) {
         for (Entry entry : permissions) {
             Entry newEntry = new Entry();
@@ -828,10 +1447,15 @@ public class AvajePermissionDao2 extends BaseMemoryPermissionDao {
             newEntry.setWorld(entry.getWorld() == null ? null : getWorld(memoryState, entry.getWorld().getName()));
             newEntry.setPermission(entry.getPermission().toLowerCase());
             newEntry.setValue(entry.isValue());
+            newEntry.setExpiration(entry.getExpiration());
+            newEntry.setPreviousValue(entry.getPreviousValue());
 
             newEntry.setEntity(entity);
-            entity.getPermissions().add(newEntry);
+            if (entity.getPermissions().add(newEntry))
+                retainRegionAndWorld(newEntry);
         }
+
+        entity.updateScopedPermissions();
     }
 
     private void loadMetadata(Collection<EntityMetadata> metadata, PermissionEntity entity) {
@@ -29,6 +29,14 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.tyrannyofheaven.bukkit.zPermissions.model.EntityMetadata;
 import org.tyrannyofheaven.bukkit.zPermissions.model.Entry;
@@ -62,14 +70,377 @@ public abstract class BaseMemoryPermissionDao implements PermissionDao {
         }
     };
 
+    // Source of group generations, shared so they never repeat across loads
+    private static final AtomicLong generationCounter = new AtomicLong();
+
     private MemoryState memoryState = new MemoryState();
 
+    // Incremented whenever memoryState changes
+    private final AtomicLong modCount = new AtomicLong();
+
+    private volatile boolean snapshotReads;
+
+    // Read-only copy of memoryState, only maintained when snapshotReads is true
+    private volatile SnapshotDao snapshot;
+
+    // Rebuilds the snapshot after changes, null unless snapshotReads is true
+    private ExecutorService snapshotExecutor; // synchronized on this
+
+    // True while a rebuild is queued but hasn't started
+    private final AtomicBoolean snapshotPending = new AtomicBoolean();
+
+    private final Runnable snapshotTask = new Runnable() {
+        @Override
+        public void run() {
+            // Cleared first so changes made during the rebuild queue another
+            snapshotPending.set(false);
+            try {
+                getReadOnlySnapshot();
+            }
+            catch (RuntimeException e) {
+                Logger.getLogger(getClass().getName()).log(Level.SEVERE, "Error building snapshot", e);
+            }
+        }
+    };
+
+    private volatile ExpirationListener expirationListener;
+
+    // Names of all regions in memoryState, null until needed
+    private volatile Set<String> regionNames;
+
+    // Changes found by reloadMemoryState() since last taken, null if none
+    private LoadChanges loadChanges; // synchronized on this
+
+    private boolean loaded; // synchronized on this
+
     protected MemoryState setMemoryState(MemoryState memoryState) {
         MemoryState old = this.memoryState;
         this.memoryState = memoryState;
+        regionNames = null;
+        invalidateSnapshot();
         return old;
     }
 
+    /**
+     * Replace the in-memory state with one freshly loaded from storage,
+     * noting which groups and players differ from the current state (see
+     * {@link #takeLoadChanges()}). Entities that are unchanged keep their
+     * generations, so cached resolutions and snapshots involving them remain
+     * valid. Callers should hold whatever lock guards writes.
+     * 
+     * @param memoryState the newly loaded state
+     */
+    protected void reloadMemoryState(MemoryState memoryState) {
+        LoadChanges changes = new LoadChanges();
+        diffEntities(this.memoryState.getGroups(), memoryState.getGroups(), changes);
+        diffEntities(this.memoryState.getPlayers(), memoryState.getPlayers(), changes);
+        diffMemberships(this.memoryState.getReverseMembershipMap(), memoryState.getReverseMembershipMap(), changes);
+
+        setMemoryState(memoryState);
+
+        synchronized (this) {
+            // Nothing meaningful to compare against on the very first load
+            if (loaded)
+                recordLoadChanges(changes);
+            loaded = true;
+        }
+    }
+
+    /**
+     * Replace individual entities in the in-memory state with copies freshly
+     * loaded from storage, e.g. after another server modified them. Loaded
+     * copies are only examined by name (their regions, worlds and parents
+     * need not belong to the current state) and nothing is written back to
+     * storage. Differences are noted as with {@link #reloadMemoryState(MemoryState)}.
+     * Callers should hold whatever lock guards writes.
+     * 
+     * @param players loaded players by lowercase name. A null value means the
+     *   player no longer exists.
+     * @param groups loaded groups by lowercase name. A null value means the
+     *   group no longer exists.
+     */
+    protected void replaceEntities(Map<String, PermissionEntity> players, Map<String, PermissionEntity> groups) {
+        LoadChanges changes = new LoadChanges();
+        for (Map.Entry<String, PermissionEntity> me : groups.entrySet()) {
+            replaceEntity(me.getKey(), true, me.getValue(), changes);
+        }
+        for (Map.Entry<String, PermissionEntity> me : players.entrySet()) {
+            replaceEntity(me.getKey(), false, me.getValue(), changes);
+        }
+        rebuildAncestry(memoryState);
+        regionNames = null;
+        invalidateSnapshot();
+
+        synchronized (this) {
+            recordLoadChanges(changes);
+        }
+    }
+
+    private void replaceEntity(String name, boolean group, PermissionEntity loaded, LoadChanges changes) {
+        Map<String, PermissionEntity> entities = group ? getGroups() : getPlayers();
+        PermissionEntity entity = entities.get(name);
+        if (entity == null && loaded == null)
+            return;
+
+        if (entity == null || loaded == null || !sameContent(entity, loaded)) {
+            if (group)
+                changes.addGroup(name);
+            else
+                changes.addPlayer(name);
+        }
+        Map<String, Long> oldMemberships = membershipContent(entity == null ? null : entity.getMemberships());
+        Map<String, Long> newMemberships = membershipContent(loaded == null ? null : loaded.getMemberships());
+        if (!oldMemberships.equals(newMemberships)) {
+            Set<String> keys = new HashSet<String>(oldMemberships.keySet());
+            keys.addAll(newMemberships.keySet());
+            for (String key : keys) {
+                if (!oldMemberships.containsKey(key) || !newMemberships.containsKey(key) ||
+                        !equal(oldMemberships.get(key), newMemberships.get(key)))
+                    changes.addPlayer(key.substring(key.indexOf('/') + 1));
+            }
+        }
+
+        if (entity != null) {
+            // Strip everything but the entity itself and its children
+            Set<PermissionRegion> unusedRegions = new HashSet<PermissionRegion>();
+            Set<PermissionWorld> unusedWorlds = new HashSet<PermissionWorld>();
+            for (Entry entry : entity.getPermissions()) {
+                releaseRegionAndWorld(entry, unusedRegions, unusedWorlds); // already gone from storage
+            }
+            entity.getPermissions().clear();
+            entity.getMetadata().clear();
+            for (Inheritance i : entity.getInheritancesAsChild()) {
+                i.getParent().getInheritancesAsParent().remove(i);
+                touch(i.getParent());
+            }
+            entity.getInheritancesAsChild().clear();
+            for (Membership membership : entity.getMemberships()) {
+                forgetMembership(membership);
+            }
+            entity.getMemberships().clear();
+        }
+
+        if (loaded == null) {
+            entities.remove(name);
+            for (Inheritance i : entity.getInheritancesAsParent()) {
+                i.getChild().getInheritancesAsChild().remove(i);
+                touch(i.getChild());
+                changes.addGroup(i.getChild().getName());
+            }
+            entity.getInheritancesAsParent().clear();
+            touch(entity);
+            return;
+        }
+
+        if (entity == null)
+            entity = getEntity(memoryState, loaded.getDisplayName(), group);
+        entity.setDisplayName(loaded.getDisplayName());
+        entity.setPriority(loaded.getPriority());
+
+        for (Entry entry : loaded.getPermissions()) {
+            Entry newEntry = new Entry();
+            newEntry.setEntity(entity);
+            newEntry.setRegion(entry.getRegion() == null ? null : getRegion(memoryState, entry.getRegion().getName()));
+            newEntry.setWorld(entry.getWorld() == null ? null : getWorld(memoryState, entry.getWorld().getName()));
+            newEntry.setPermission(entry.getPermission());
+            newEntry.setValue(entry.isValue());
+            newEntry.setExpiration(entry.getExpiration());
+            newEntry.setPreviousValue(entry.getPreviousValue());
+            if (entity.getPermissions().add(newEntry))
+                retainRegionAndWorld(newEntry);
+        }
+        entity.updateScopedPermissions();
+
+        for (EntityMetadata em : loaded.getMetadata()) {
+            EntityMetadata newMetadata = new EntityMetadata();
+            newMetadata.setEntity(entity);
+            newMetadata.setName(em.getName());
+            newMetadata.setValue(em.getValue());
+            entity.getMetadata().add(newMetadata);
+        }
+        entity.updateMetadataMap();
+
+        for (Inheritance inheritance : loaded.getInheritancesAsChild()) {
+            PermissionEntity parent = getEntity(memoryState, inheritance.getParent().getDisplayName(), true);
+
+            Inheritance newInheritance = new Inheritance();
+            newInheritance.setChild(entity);
+            newInheritance.setParent(parent);
+            newInheritance.setOrdering(inheritance.getOrdering());
+
+            entity.getInheritancesAsChild().add(newInheritance);
+            parent.getInheritancesAsParent().add(newInheritance);
+            touch(parent);
+        }
+
+        for (Membership membership : loaded.getMemberships()) {
+            Membership newMembership = new Membership();
+            newMembership.setMember(membership.getMember().toLowerCase());
+            newMembership.setGroup(entity);
+            newMembership.setExpiration(membership.getExpiration());
+            entity.getMemberships().add(newMembership);
+
+            rememberMembership(memoryState, newMembership);
+        }
+
+        touch(entity);
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    // Caller should be synchronized on this
+    private void recordLoadChanges(LoadChanges changes) {
+        if (loadChanges == null)
+            loadChanges = changes;
+        else
+            loadChanges.addAll(changes);
+    }
+
+    /**
+     * Returns the current generation of an entity, or 0 if it doesn't exist.
+     * Callers should hold whatever lock guards reads.
+     * 
+     * @param name the entity's name
+     * @param group true if the entity is a group
+     * @return the entity's generation
+     */
+    protected long getGeneration(String name, boolean group) {
+        PermissionEntity entity = (group ? getGroups() : getPlayers()).get(name.toLowerCase());
+        return entity == null ? 0L : entity.getGeneration();
+    }
+
+    /**
+     * Returns and clears the changes found by all loads since the last call.
+     * 
+     * @return the accumulated changes, or null if there have been no loads
+     *   since the last call
+     */
+    public synchronized LoadChanges takeLoadChanges() {
+        LoadChanges result = loadChanges;
+        loadChanges = null;
+        return result;
+    }
+
+    public boolean isSnapshotReads() {
+        return snapshotReads;
+    }
+
+    /**
+     * Enable or disable snapshot reads. When enabled, reads are served from an
+     * immutable copy of the in-memory state rather than the state itself, so
+     * subclasses may perform them without locking. The copy is rebuilt by a
+     * background thread after each change, sharing unchanged entities with
+     * the previous copy. Until the rebuild is done, reads fall back to the
+     * in-memory state. Disable to stop the background thread.
+     * 
+     * @param snapshotReads true to enable snapshot reads
+     */
+    public synchronized void setSnapshotReads(boolean snapshotReads) {
+        this.snapshotReads = snapshotReads;
+        if (snapshotReads) {
+            if (snapshotExecutor == null) {
+                snapshotExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "zPermissions snapshot");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            scheduleSnapshot();
+        }
+        else {
+            if (snapshotExecutor != null) {
+                snapshotExecutor.shutdown();
+                snapshotExecutor = null;
+            }
+            snapshot = null;
+        }
+    }
+
+    // Note that the in-memory state has changed. Subclasses should call this
+    // after each mutation, before allowing readers back in.
+    protected void invalidateSnapshot() {
+        modCount.incrementAndGet();
+        if (snapshotReads)
+            scheduleSnapshot();
+    }
+
+    // Queue a snapshot rebuild, unless one is already queued
+    private synchronized void scheduleSnapshot() {
+        if (snapshotExecutor != null && snapshotPending.compareAndSet(false, true)) {
+            try {
+                snapshotExecutor.execute(snapshotTask);
+            }
+            catch (RejectedExecutionException e) {
+                snapshotPending.set(false);
+            }
+        }
+    }
+
+    /**
+     * Set the listener to be notified of changes to memberships and temporary
+     * permissions. Loading (or re-loading) the in-memory state is not
+     * reported.
+     * 
+     * @param expirationListener the listener, or null
+     */
+    public void setExpirationListener(ExpirationListener expirationListener) {
+        this.expirationListener = expirationListener;
+    }
+
+    // Notify listener, if any, of a membership change
+    private void fireMembershipChanged(Membership membership, Date expiration) {
+        ExpirationListener listener = expirationListener;
+        if (listener != null)
+            listener.membershipChanged(membership.getMember(), membership.getGroup().getName(), expiration);
+    }
+
+    // Notify listener, if any, of a change to a temporary permission
+    private void firePermissionChanged(Entry entry, Date expiration) {
+        ExpirationListener listener = expirationListener;
+        if (listener != null)
+            listener.permissionChanged(entry.getEntity().getName(), entry.getEntity().isGroup(),
+                    entry.getRegion() == null ? null : entry.getRegion().getName(),
+                    entry.getWorld() == null ? null : entry.getWorld().getName(),
+                    entry.getPermission(), expiration);
+    }
+
+    /**
+     * Returns an immutable, point-in-time copy of the in-memory state. Unlike
+     * regular reads, all reads against the returned DAO see the same state,
+     * and they may be performed from any thread without blocking writers.
+     * This works whether or not snapshot reads are enabled. If the current
+     * copy is out of date, it is rebuilt on the calling thread, so this is
+     * best called from background threads.
+     * 
+     * @return read-only DAO over the current state
+     */
+    public abstract ReadOnlyPermissionDao getReadOnlySnapshot();
+
+    // Returns the current snapshot if it is up-to-date, null otherwise
+    protected ReadOnlyPermissionDao getSnapshot() {
+        SnapshotDao current = snapshot;
+        if (current != null && current.getModCount() == modCount.get())
+            return current;
+        return null;
+    }
+
+    // Bring the snapshot up-to-date. Writers must be excluded while this runs.
+    protected ReadOnlyPermissionDao updateSnapshot() {
+        long currentModCount = modCount.get();
+        SnapshotDao previous = snapshot;
+        if (previous != null && previous.getModCount() == currentModCount)
+            return previous;
+
+        SnapshotDao current = new SnapshotDao(createSnapshot(memoryState, previous == null ? null : previous.getMemoryState()), currentModCount);
+        snapshot = current;
+        return current;
+    }
+
     protected Map<String, PermissionRegion> getRegions() {
         return memoryState.getRegions();
     }
@@ -90,6 +461,10 @@ public abstract class BaseMemoryPermissionDao implements PermissionDao {
         return memoryState.getReverseMembershipMap();
     }
 
+    protected Map<String, List<String>> getAncestryMap() {
+        return memoryState.getAncestryMap();
+    }
+
     protected PermissionRegion getRegion(String region, boolean create) {
         PermissionRegion permissionRegion = null;
         if (region != null) {
@@ -100,6 +475,7 @@ public abstract class BaseMemoryPermissionDao implements PermissionDao {
                     permissionRegion = new PermissionRegion();
                     permissionRegion.setName(region);
                     getRegions().put(region, permissionRegion);
+                    regionNames = null;
                     createRegion(permissionRegion);
                 }
                 else {
@@ -156,8 +532,11 @@ public abstract class BaseMemoryPermissionDao implements PermissionDao {
             entity.setName(lname);
             entity.setGroup(group);
             entity.setDisplayName(name);
-            if (group)
+            touch(entity);
+            if (group) {
                 getGroups().put(lname, entity);
+                getAncestryMap().put(lname, calculateAncestry(entity));
+            }
             else
                 getPlayers().put(lname, entity);
             createEntity(entity);
@@ -176,38 +555,39 @@ public abstract class BaseMemoryPermissionDao implements PermissionDao {
 
     @Override
     public Boolean getPermission(String name, boolean group, String region, String world, String permission) {
-        PermissionEntity entity = getEntity(name, group, false);
+        return getPermission(memoryState, name, group, region, world, permission);
+    }
+
+    private static Boolean getPermission(MemoryState memoryState, String name, boolean group, String region, String world, String permission) {
+        PermissionEntity entity = findEntity(memoryState, name, group);
         if (entity == null)
             return null;
-    
-        PermissionRegion permissionRegion;
-        try {
-            permissionRegion = getRegion(region, false);
-        }
-        catch (IllegalArgumentException e) {
-            return null;
-        }
-    
-        PermissionWorld permissionWorld;
-        try {
-            permissionWorld = getWorld(world, false);
-        }
-        catch (IllegalArgumentException e) {
-            return null;
+
+        if (region != null) {
+            region = region.toLowerCase();
+            if (!memoryState.getRegions().containsKey(region))
+                return null;
         }
-    
-        for (Entry entry : entity.getPermissions()) {
-            if (entry.getPermission().equalsIgnoreCase(permission) &&
-                (permissionRegion == null ? entry.getRegion() == null : permissionRegion.equals(entry.getRegion())) &&
-                (permissionWorld == null ? entry.getWorld() == null : permissionWorld.equals(entry.getWorld()))) {
-                return entry.isValue();
-            }
+
+        if (world != null) {
+            world = world.toLowerCase();
+            if (!memoryState.getWorlds().containsKey(world))
+                return null;
         }
+
+        Entry entry = entity.getScopedPermission(region, world, permission);
+        if (entry != null)
+            return entry.isValue();
         return null;
     }
 
     @Override
     public void setPermission(String name, boolean group, String region, String world, String permission, boolean value) {
+        setPermission(name, group, region, world, permission, value, null);
+    }
+
+    @Override
+    public void setPermission(String name, boolean group, String region, String world, String permission, boolean value, Date expiration) {
         PermissionEntity owner;
         if (group) {
             owner = getGroup(name);
@@ -222,16 +602,10 @@ public abstract class BaseMemoryPermissionDao implements PermissionDao {
     
         permission = permission.toLowerCase();
     
-        Entry found = null;
-        for (Entry entry : owner.getPermissions()) {
-            if (permission.equals(entry.getPermission()) &&
-                    (permissionRegion == null ? entry.getRegion() == null : permissionRegion.equals(entry.getRegion())) &&
-                    (permissionWorld == null ? entry.getWorld() == null : permissionWorld.equals(entry.getWorld()))) {
-                found = entry;
-                break;
-            }
-        }
+        Entry found = owner.getScopedPermission(permissionRegion == null ? null : permissionRegion.getName(),
+                permissionWorld == null ? null : permissionWorld.getName(), permission);
     
+        Date oldExpiration = null;
         if (found == null) {
             found = new Entry();
             found.setEntity(owner);
@@ -240,10 +614,26 @@ public abstract class BaseMemoryPermissionDao implements PermissionDao {
             found.setPermission(permission);
             
             owner.getPermissions().add(found);
+            owner.addScopedPermission(found);
+            retainRegionAndWorld(found);
         }
+        else {
+            oldExpiration = found.getExpiration();
+            // A temporary grant remembers the permanent value it overrides.
+            // Overriding another temporary grant keeps the permanent value
+            // that one remembered.
+            if (expiration != null && oldExpiration == null)
+                found.setPreviousValue(found.isValue());
+        }
+        if (expiration == null)
+            found.setPreviousValue(null);
     
         found.setValue(value);
+        found.setExpiration(expiration == null ? null : new Date(expiration.getTime()));
+        touch(owner);
         createOrUpdateEntry(found);
+        if (expiration != null || oldExpiration != null)
+            firePermissionChanged(found, found.getExpiration());
     }
 
     protected abstract void createOrUpdateEntry(Entry entry);
@@ -272,22 +662,70 @@ public abstract class BaseMemoryPermissionDao implements PermissionDao {
 
         permission = permission.toLowerCase();
 
-        for (Iterator<Entry> i = entity.getPermissions().iterator(); i.hasNext();) {
-            Entry entry = i.next();
-            if (entry.getPermission().equals(permission) &&
-                    (permissionRegion == null ? entry.getRegion() == null : permissionRegion.equals(entry.getRegion())) &&
-                    (permissionWorld == null ? entry.getWorld() == null : permissionWorld.equals(entry.getWorld()))) {
-                i.remove();
-                deleteEntry(entry);
-                cleanWorldsAndRegions();
-                return true;
-            }
+        Entry entry = entity.getScopedPermission(permissionRegion == null ? null : permissionRegion.getName(),
+                permissionWorld == null ? null : permissionWorld.getName(), permission);
+        if (entry != null) {
+            entity.getPermissions().remove(entry);
+            entity.removeScopedPermission(entry);
+            touch(entity);
+            deleteEntry(entry);
+            releaseRegionsAndWorlds(Collections.singleton(entry));
+            if (entry.getExpiration() != null)
+                firePermissionChanged(entry, null);
+            return true;
         }
         return false;
     }
 
     protected abstract void deleteEntry(Entry entry);
 
+    @Override
+    public int purgeExpiredPermissions(String name, boolean group) {
+        if (name == null) {
+            int count = 0;
+            for (PermissionEntity entity : getPlayers().values())
+                count += purgeExpiredPermissions(entity);
+            for (PermissionEntity entity : getGroups().values())
+                count += purgeExpiredPermissions(entity);
+            return count;
+        }
+
+        PermissionEntity entity = getEntity(name, group, false);
+        return entity == null ? 0 : purgeExpiredPermissions(entity);
+    }
+
+    // Drop an entity's expired temporary entries, restoring any permanent
+    // values they overrode
+    private int purgeExpiredPermissions(PermissionEntity entity) {
+        long now = System.currentTimeMillis();
+        List<Entry> expired = new ArrayList<Entry>();
+        for (Entry entry : entity.getPermissions()) {
+            if (entry.getExpiration() != null && entry.getExpiration().getTime() <= now)
+                expired.add(entry);
+        }
+        if (expired.isEmpty())
+            return 0;
+
+        List<Entry> deleted = new ArrayList<Entry>();
+        for (Entry entry : expired) {
+            if (entry.getPreviousValue() != null) {
+                entry.setValue(entry.getPreviousValue());
+                entry.setExpiration(null);
+                entry.setPreviousValue(null);
+                createOrUpdateEntry(entry);
+            }
+            else {
+                entity.getPermissions().remove(entry);
+                entity.removeScopedPermission(entry);
+                deleteEntry(entry);
+                deleted.add(entry);
+            }
+        }
+        releaseRegionsAndWorlds(deleted);
+        touch(entity);
+        return expired.size();
+    }
+
     @Override
     public void addMember(String groupName, String member, Date expiration) {
         member = member.toLowerCase();
@@ -311,8 +749,10 @@ public abstract class BaseMemoryPermissionDao implements PermissionDao {
             rememberMembership(found);
         }
         found.setExpiration(expiration);
+        touch(group);
 
         createOrUpdateMembership(found);
+        fireMembershipChanged(found, expiration);
     }
 
     protected abstract void createOrUpdateMembership(Membership membership);
@@ -326,8 +766,10 @@ public abstract class BaseMemoryPermissionDao implements PermissionDao {
             Membership membership = i.next();
             if (membership.getMember().equals(member)) {
                 i.remove();
+                touch(group);
                 deleteMembership(membership);
                 forgetMembership(membership);
+                fireMembershipChanged(membership, null);
                 return true;
             }
         }
@@ -336,8 +778,12 @@ public abstract class BaseMemoryPermissionDao implements PermissionDao {
 
     @Override
     public List<Membership> getGroups(String member) {
+        return getGroups(memoryState, member);
+    }
+
+    private static List<Membership> getGroups(MemoryState memoryState, String member) {
         List<Membership> result = new ArrayList<Membership>();
-        Set<Membership> memberships = getReverseMembershipMap().get(member.toLowerCase());
+        Set<Membership> memberships = memoryState.getReverseMembershipMap().get(member.toLowerCase());
         if (memberships != null) {
             result.addAll(memberships);
             Collections.sort(result, MEMBERSHIP_GROUP_PRIORITY_COMPARATOR);
@@ -347,7 +793,11 @@ public abstract class BaseMemoryPermissionDao implements PermissionDao {
 
     @Override
     public List<Membership> getMembers(String group) {
-        PermissionEntity groupEntity = getEntity(group, true, false);
+        return getMembers(memoryState, group);
+    }
+
+    private static List<Membership> getMembers(MemoryState memoryState, String group) {
+        PermissionEntity groupEntity = findEntity(memoryState, group, true);
         if (groupEntity == null)
             return new ArrayList<Membership>(); // compat with AvajePermissionDao
     
@@ -358,18 +808,19 @@ public abstract class BaseMemoryPermissionDao implements PermissionDao {
 
     @Override
     public PermissionEntity getEntity(String name, boolean group) {
-        if (group)
-            return getGroups().get(name.toLowerCase());
-        else
-            return getPlayers().get(name.toLowerCase());
+        return findEntity(memoryState, name, group);
     }
 
     @Override
     public List<PermissionEntity> getEntities(boolean group) {
+        return getEntities(memoryState, group);
+    }
+
+    private static List<PermissionEntity> getEntities(MemoryState memoryState, boolean group) {
         if (group)
-            return new ArrayList<PermissionEntity>(getGroups().values());
+            return new ArrayList<PermissionEntity>(memoryState.getGroups().values());
         else
-            return new ArrayList<PermissionEntity>(getPlayers().values());
+            return new ArrayList<PermissionEntity>(memoryState.getPlayers().values());
     }
 
     @Override
@@ -385,7 +836,9 @@ public abstract class BaseMemoryPermissionDao implements PermissionDao {
             for (Membership membership : memberships) {
                 if (!membership.getGroup().equals(group)) {
                     membership.getGroup().getMemberships().remove(membership);
+                    touch(membership.getGroup());
                     deleteMembership(membership);
+                    fireMembershipChanged(membership, null);
                 }
                 else {
                     found = membership;
@@ -401,11 +854,13 @@ public abstract class BaseMemoryPermissionDao implements PermissionDao {
             group.getMemberships().add(found);
         }
         found.setExpiration(expiration);
+        touch(group);
 
         createOrUpdateMembership(found);
         
         getReverseMembershipMap().remove(playerName);
         rememberMembership(found);
+        fireMembershipChanged(found, expiration);
     }
 
     @Override
@@ -436,21 +891,15 @@ public abstract class BaseMemoryPermissionDao implements PermissionDao {
             order += 100;
 
             // Check for a cycle
-            Deque<PermissionEntity> toCheck = new LinkedList<PermissionEntity>();
-            toCheck.add(parent);
-            while (!toCheck.isEmpty()) {
-                PermissionEntity check = toCheck.removeFirst();
-
-                if (group.equals(check)) {
-                    throw new DaoException("This would result in an inheritance cycle!");
-                }
-                
-                toCheck.addAll(check.getParents());
+            if (getAncestryMap().get(parent.getName()).contains(group.getDisplayName())) {
+                throw new DaoException("This would result in an inheritance cycle!");
             }
             
             dest.add(i);
         }
 
+        touch(group);
+
         // Don't use parent field anymore
         group.setParent(null);
         setEntityParent(group, null);
@@ -471,6 +920,7 @@ public abstract class BaseMemoryPermissionDao implements PermissionDao {
         for (Inheritance i : toAdd) {
             group.getInheritancesAsChild().add(i);
             i.getParent().getInheritancesAsParent().add(i);
+            touch(i.getParent());
             createOrUpdateInheritance(i);
         }
 
@@ -478,6 +928,7 @@ public abstract class BaseMemoryPermissionDao implements PermissionDao {
         for (Inheritance i : toDelete) {
             group.getInheritancesAsChild().remove(i);
             i.getParent().getInheritancesAsParent().remove(i);
+            touch(i.getParent());
             deleteInheritance(i);
         }
 
@@ -485,6 +936,8 @@ public abstract class BaseMemoryPermissionDao implements PermissionDao {
         for (Inheritance i : toUpdate) {
             createOrUpdateInheritance(i);
         }
+
+        updateAncestry(memoryState, group);
     }
 
     protected abstract void setEntityParent(PermissionEntity entity, PermissionEntity parent);
@@ -498,46 +951,53 @@ public abstract class BaseMemoryPermissionDao implements PermissionDao {
         PermissionEntity group = getGroup(groupName);
     
         group.setPriority(priority);
-        
+        touch(group);
+
         setEntityPriority(group, priority);
     }
 
     protected abstract void setEntityPriority(PermissionEntity entity, int priority);
 
-    private void cleanWorldsAndRegions() {
-        // Easier to just see what is used
-        Set<PermissionRegion> usedRegions = new HashSet<PermissionRegion>();
-        Set<PermissionWorld> usedWorlds = new HashSet<PermissionWorld>();
-        
-        List<PermissionEntity> entities = new ArrayList<PermissionEntity>();
-        entities.addAll(getGroups().values());
-        entities.addAll(getPlayers().values());
-        
-        for (PermissionEntity entity : entities) {
-            for (Entry entry : entity.getPermissions()) {
-                if (entry.getRegion() != null)
-                    usedRegions.add(entry.getRegion());
-                if (entry.getWorld() != null)
-                    usedWorlds.add(entry.getWorld());
+    // Note that an entry now refers to its region and world
+    protected static void retainRegionAndWorld(Entry entry) {
+        if (entry.getRegion() != null)
+            entry.getRegion().setReferenceCount(entry.getRegion().getReferenceCount() + 1);
+        if (entry.getWorld() != null)
+            entry.getWorld().setReferenceCount(entry.getWorld().getReferenceCount() + 1);
+    }
+
+    // Note that an entry no longer refers to its region and world. Any that
+    // are now unused are forgotten and added to the given sets.
+    private void releaseRegionAndWorld(Entry entry, Set<PermissionRegion> regionsToDelete, Set<PermissionWorld> worldsToDelete) {
+        PermissionRegion region = entry.getRegion();
+        if (region != null) {
+            region.setReferenceCount(region.getReferenceCount() - 1);
+            if (region.getReferenceCount() <= 0) {
+                getRegions().remove(region.getName());
+                regionNames = null;
+                regionsToDelete.add(region);
             }
         }
-        
-        // Determine what needs to be deleted
-        Set<PermissionRegion> regionsToDelete = new HashSet<PermissionRegion>(getRegions().values());
-        regionsToDelete.removeAll(usedRegions);
-        Set<PermissionWorld> worldsToDelete = new HashSet<PermissionWorld>(getWorlds().values());
-        worldsToDelete.removeAll(usedWorlds);
-        
-        // Re-build lists
-        getRegions().clear();
-        for (PermissionRegion region : usedRegions) {
-            getRegions().put(region.getName(), region);
+        PermissionWorld world = entry.getWorld();
+        if (world != null) {
+            world.setReferenceCount(world.getReferenceCount() - 1);
+            if (world.getReferenceCount() <= 0) {
+                getWorlds().remove(world.getName());
+                worldsToDelete.add(world);
+            }
         }
-        getWorlds().clear();
-        for (PermissionWorld world : usedWorlds) {
-            getWorlds().put(world.getName(), world);
+    }
+
+    // Release the regions and worlds of the given entries, deleting the ones
+    // no longer in use
+    private void releaseRegionsAndWorlds(Collection<Entry> entries) {
+        Set<PermissionRegion> regionsToDelete = new HashSet<PermissionRegion>();
+        Set<PermissionWorld> worldsToDelete = new HashSet<PermissionWorld>();
+
+        for (Entry entry : entries) {
+            releaseRegionAndWorld(entry, regionsToDelete, worldsToDelete);
         }
-        
+
         // Tell underlying DAO about deleted regions/worlds
         if (!regionsToDelete.isEmpty())
             deleteRegions(regionsToDelete);
@@ -559,19 +1019,31 @@ public abstract class BaseMemoryPermissionDao implements PermissionDao {
                 // Break parent/child relationship (in memory)
                 for (Inheritance i : entity.getInheritancesAsChild()) {
                     i.getParent().getInheritancesAsParent().remove(i);
+                    touch(i.getParent());
                 }
                 entity.getInheritancesAsChild().clear(); // meh, don't really have to
+                Set<PermissionEntity> children = entity.getChildrenNew();
                 for (Inheritance i : entity.getInheritancesAsParent()) {
                     i.getChild().getInheritancesAsChild().remove(i);
+                    touch(i.getChild());
                 }
                 entity.getInheritancesAsParent().clear(); // meh, don't really have to
                 // NB database relationships will be deleted by deleteEntity
     
                 // Delete group's entity
+                touch(entity);
                 getGroups().remove(entity.getName());
+                getAncestryMap().remove(entity.getName());
+                for (PermissionEntity child : children) {
+                    updateAncestry(memoryState, child);
+                }
                 deleteEntity(entity);
-                cleanWorldsAndRegions();
+                releaseRegionsAndWorlds(entity.getPermissions());
+                fireTemporaryPermissionsRemoved(entity);
                 forgetMembershipGroup(entity);
+                for (Membership membership : entity.getMemberships()) {
+                    fireMembershipChanged(membership, null);
+                }
                 return true;
             }
         }
@@ -586,7 +1058,9 @@ public abstract class BaseMemoryPermissionDao implements PermissionDao {
             if (memberships != null) {
                 for (Membership membership : memberships) {
                     membership.getGroup().getMemberships().remove(membership);
+                    touch(membership.getGroup());
                     deleteMembership(membership);
+                    fireMembershipChanged(membership, null);
                 }
     
                 getReverseMembershipMap().remove(name);
@@ -598,7 +1072,8 @@ public abstract class BaseMemoryPermissionDao implements PermissionDao {
                 // Delete player's entity
                 getPlayers().remove(entity.getName());
                 deleteEntity(entity);
-                cleanWorldsAndRegions();
+                releaseRegionsAndWorlds(entity.getPermissions());
+                fireTemporaryPermissionsRemoved(entity);
             }
             
             return found || entity != null;
@@ -608,42 +1083,77 @@ public abstract class BaseMemoryPermissionDao implements PermissionDao {
     }
 
     protected abstract void deleteEntity(PermissionEntity entity);
+
+    private void fireTemporaryPermissionsRemoved(PermissionEntity entity) {
+        for (Entry entry : entity.getPermissions()) {
+            if (entry.getExpiration() != null)
+                firePermissionChanged(entry, null);
+        }
+    }
     
     protected abstract void deleteMembership(Membership membership);
 
     @Override
     public List<String> getAncestry(String groupName) {
-        PermissionEntity group = getEntity(groupName, true, false);
-        if (group == null) // NB only time this will be null is if the default group doesn't exist
+        return getAncestry(memoryState, groupName);
+    }
+
+    private static List<String> getAncestry(MemoryState memoryState, String groupName) {
+        List<String> ancestry = memoryState.getAncestryMap().get(groupName.toLowerCase());
+        if (ancestry == null) // NB only time this will be null is if the default group doesn't exist
             return new ArrayList<String>();
-    
-        // Build list of group ancestors
-        Set<String> ancestry = new LinkedHashSet<String>();
-        ancestry.add(group.getDisplayName());
-        Deque<PermissionEntity> toAdd = new LinkedList<PermissionEntity>(group.getParents());
-        while (!toAdd.isEmpty()) {
-            group = toAdd.removeFirst();
-            ancestry.add(group.getDisplayName());
-            
-            toAdd.addAll(group.getParents());
-        }
-        
-        // Reverse list (will be applying farthest ancestors first)
-        List<String> ancestryList = new ArrayList<String>(ancestry);
-        Collections.reverse(ancestryList);
-    
-        return ancestryList;
+        return new ArrayList<String>(ancestry);
     }
 
     @Override
     public List<Entry> getEntries(String name, boolean group) {
-        PermissionEntity entity = getEntity(name, group, false);
+        return getEntries(memoryState, name, group);
+    }
+
+    private static List<Entry> getEntries(MemoryState memoryState, String name, boolean group) {
+        PermissionEntity entity = findEntity(memoryState, name, group);
         if (entity == null) // NB special consideration for non-existent default group
             return Collections.emptyList();
     
         return new ArrayList<Entry>(entity.getPermissions());
     }
 
+    @Override
+    public List<Entry> getEntries(String name, boolean group, String world, Set<String> regions) {
+        return getEntries(memoryState, name, group, world, regions);
+    }
+
+    private static List<Entry> getEntries(MemoryState memoryState, String name, boolean group, String world, Set<String> regions) {
+        PermissionEntity entity = findEntity(memoryState, name, group);
+        if (entity == null) // NB special consideration for non-existent default group
+            return Collections.emptyList();
+
+        return entity.getScopedPermissions(world, regions);
+    }
+
+    @Override
+    public Set<String> getRegionNames() {
+        Set<String> result = regionNames;
+        if (result == null) {
+            result = Collections.unmodifiableSet(new HashSet<String>(getRegions().keySet()));
+            regionNames = result;
+        }
+        return result;
+    }
+
+    @Override
+    public Set<String> getRegionNames(String name, boolean group) {
+        return getRegionNames(memoryState, name, group);
+    }
+
+    private static Set<String> getRegionNames(MemoryState memoryState, String name, boolean group) {
+        PermissionEntity entity = findEntity(memoryState, name, group);
+        if (entity == null)
+            return Collections.emptySet();
+
+        return entity.getRegionNames();
+    }
+
     @Override
     public boolean createGroup(String name) {
         PermissionEntity group = getEntity(name, true, false); // so we know it was created
@@ -657,11 +1167,15 @@ public abstract class BaseMemoryPermissionDao implements PermissionDao {
 
     @Override
     public List<String> getEntityNames(boolean group) {
+        return getEntityNames(memoryState, group);
+    }
+
+    private static List<String> getEntityNames(MemoryState memoryState, boolean group) {
         Collection<PermissionEntity> entities;
         if (group)
-            entities = getGroups().values();
+            entities = memoryState.getGroups().values();
         else
-            entities = getPlayers().values();
+            entities = memoryState.getPlayers().values();
         List<String> result = new ArrayList<String>(entities.size());
         for (PermissionEntity entity : entities) {
             result.add(entity.getDisplayName());
@@ -671,7 +1185,11 @@ public abstract class BaseMemoryPermissionDao implements PermissionDao {
 
     @Override
     public Object getMetadata(String name, boolean group, String metadataName) {
-        PermissionEntity entity = getEntity(name, group, false);
+        return getMetadata(memoryState, name, group, metadataName);
+    }
+
+    private static Object getMetadata(MemoryState memoryState, String name, boolean group, String metadataName) {
+        PermissionEntity entity = findEntity(memoryState, name, group);
         if (entity == null)
             return null;
 
@@ -706,6 +1224,7 @@ public abstract class BaseMemoryPermissionDao implements PermissionDao {
         }
         
         found.setValue(value);
+        touch(owner);
         createOrUpdateMetadata(found);
     }
 
@@ -724,6 +1243,7 @@ public abstract class BaseMemoryPermissionDao implements PermissionDao {
             if (em.getName().equals(metadataName)) {
                 i.remove();
                 entity.getMetadataMap().remove(metadataName);
+                touch(entity);
                 deleteMetadata(em);
                 return true;
             }
@@ -733,6 +1253,24 @@ public abstract class BaseMemoryPermissionDao implements PermissionDao {
 
     protected abstract void deleteMetadata(EntityMetadata metadata);
 
+    @Override
+    public long getGroupGeneration(String groupName) {
+        return getGroupGeneration(memoryState, groupName);
+    }
+
+    private static long getGroupGeneration(MemoryState memoryState, String groupName) {
+        PermissionEntity group = memoryState.getGroups().get(groupName.toLowerCase());
+        if (group == null)
+            return 0L; // Generations start at 1, so this never matches a group that existed
+        return group.getGeneration();
+    }
+
+    // Assign a new generation to an entity. Should be called whenever anything
+    // about the entity changes (including its memberships and metadata).
+    protected static void touch(PermissionEntity entity) {
+        entity.setGeneration(generationCounter.incrementAndGet());
+    }
+
     protected void rememberMembership(Membership membership) {
         Set<Membership> memberships = getReverseMembershipMap().get(membership.getMember());
         if (memberships == null) {
@@ -760,6 +1298,14 @@ public abstract class BaseMemoryPermissionDao implements PermissionDao {
         }
     }
 
+    // Look up an entity without creating it
+    private static PermissionEntity findEntity(MemoryState memoryState, String name, boolean group) {
+        if (group)
+            return memoryState.getGroups().get(name.toLowerCase());
+        else
+            return memoryState.getPlayers().get(name.toLowerCase());
+    }
+
     protected static PermissionEntity getEntity(MemoryState memoryState, String name, boolean group) {
         String lname = name.toLowerCase();
         PermissionEntity entity;
@@ -772,6 +1318,7 @@ public abstract class BaseMemoryPermissionDao implements PermissionDao {
             entity.setName(lname);
             entity.setGroup(group);
             entity.setDisplayName(name);
+            touch(entity);
             if (group)
                 memoryState.getGroups().put(lname, entity);
             else
@@ -811,6 +1358,386 @@ public abstract class BaseMemoryPermissionDao implements PermissionDao {
         memberships.add(membership);
     }
 
+    // Build list of a group's ancestors, farthest ancestors first
+    private static List<String> calculateAncestry(PermissionEntity group) {
+        Set<String> ancestry = new LinkedHashSet<String>();
+        ancestry.add(group.getDisplayName());
+        Deque<PermissionEntity> toAdd = new LinkedList<PermissionEntity>(group.getParents());
+        while (!toAdd.isEmpty()) {
+            group = toAdd.removeFirst();
+            // If already seen, its ancestors have already been queued
+            if (ancestry.add(group.getDisplayName()))
+                toAdd.addAll(group.getParents());
+        }
+
+        // Reverse list (will be applying farthest ancestors first)
+        List<String> ancestryList = new ArrayList<String>(ancestry);
+        Collections.reverse(ancestryList);
+
+        return Collections.unmodifiableList(ancestryList);
+    }
+
+    // Re-calculate ancestry of a group and all of its descendants
+    protected static void updateAncestry(MemoryState memoryState, PermissionEntity group) {
+        Set<PermissionEntity> seen = new HashSet<PermissionEntity>();
+        Deque<PermissionEntity> toUpdate = new LinkedList<PermissionEntity>();
+        toUpdate.add(group);
+        while (!toUpdate.isEmpty()) {
+            group = toUpdate.removeFirst();
+            if (seen.add(group)) {
+                memoryState.getAncestryMap().put(group.getName(), calculateAncestry(group));
+                toUpdate.addAll(group.getChildrenNew());
+            }
+        }
+    }
+
+    // Calculate ancestry of all groups in the current state, e.g. after
+    // inheritances were restored directly rather than through setParents()
+    protected void rebuildAncestry() {
+        rebuildAncestry(memoryState);
+    }
+
+    // Calculate ancestry of all groups. Should be called after loading.
+    protected static void rebuildAncestry(MemoryState memoryState) {
+        memoryState.getAncestryMap().clear();
+        for (PermissionEntity group : memoryState.getGroups().values()) {
+            memoryState.getAncestryMap().put(group.getName(), calculateAncestry(group));
+        }
+    }
+
+    // Record entities that were added, removed, or differ in anything other
+    // than their memberships and children
+    private static void diffEntities(Map<String, PermissionEntity> previous, Map<String, PermissionEntity> current, LoadChanges changes) {
+        for (Map.Entry<String, PermissionEntity> me : current.entrySet()) {
+            PermissionEntity entity = me.getValue();
+            PermissionEntity old = previous.get(me.getKey());
+            if (old == null || !sameContent(old, entity)) {
+                if (entity.isGroup())
+                    changes.addGroup(entity.getName());
+                else
+                    changes.addPlayer(entity.getName());
+            }
+            else if (sameRelations(old, entity)) {
+                // Completely identical
+                entity.setGeneration(old.getGeneration());
+            }
+        }
+        for (PermissionEntity old : previous.values()) {
+            if (!current.containsKey(old.getName())) {
+                if (old.isGroup())
+                    changes.addGroup(old.getName());
+                else
+                    changes.addPlayer(old.getName());
+            }
+        }
+    }
+
+    // Record members whose memberships were added, removed or changed expiration
+    private static void diffMemberships(Map<String, Set<Membership>> previous, Map<String, Set<Membership>> current, LoadChanges changes) {
+        for (Map.Entry<String, Set<Membership>> me : current.entrySet()) {
+            if (!membershipContent(me.getValue()).equals(membershipContent(previous.get(me.getKey()))))
+                changes.addPlayer(me.getKey());
+        }
+        for (Map.Entry<String, Set<Membership>> me : previous.entrySet()) {
+            if (!current.containsKey(me.getKey()) && !me.getValue().isEmpty())
+                changes.addPlayer(me.getKey());
+        }
+    }
+
+    // Compare everything that affects resolution or metadata lookups
+    private static boolean sameContent(PermissionEntity a, PermissionEntity b) {
+        if (!a.getDisplayName().equals(b.getDisplayName()) || a.getPriority() != b.getPriority())
+            return false;
+
+        if (!permissionContent(a).equals(permissionContent(b)))
+            return false;
+
+        Map<String, Object> metadataA = new HashMap<String, Object>();
+        for (EntityMetadata em : a.getMetadata())
+            metadataA.put(em.getName(), em.getValue());
+        Map<String, Object> metadataB = new HashMap<String, Object>();
+        for (EntityMetadata em : b.getMetadata())
+            metadataB.put(em.getName(), em.getValue());
+        if (!metadataA.equals(metadataB))
+            return false;
+
+        return inheritanceContent(a.getInheritancesAsChild(), true).equals(inheritanceContent(b.getInheritancesAsChild(), true));
+    }
+
+    // Compare the remaining state kept with an entity, so it's safe to treat
+    // them as the same generation
+    private static boolean sameRelations(PermissionEntity a, PermissionEntity b) {
+        return (a.getId() == null ? b.getId() == null : a.getId().equals(b.getId())) &&
+                inheritanceContent(a.getInheritancesAsParent(), false).equals(inheritanceContent(b.getInheritancesAsParent(), false)) &&
+                membershipContent(a.getMemberships()).equals(membershipContent(b.getMemberships()));
+    }
+
+    private static Map<String, String> permissionContent(PermissionEntity entity) {
+        Map<String, String> result = new HashMap<String, String>();
+        for (Entry e : entity.getPermissions()) {
+            result.put((e.getRegion() == null ? "" : e.getRegion().getName()) + "/" + (e.getWorld() == null ? "" : e.getWorld().getName()) + ":" + e.getPermission(),
+                    e.isValue() + (e.getExpiration() == null ? "" : "@" + e.getExpiration().getTime()));
+        }
+        return result;
+    }
+
+    private static Map<String, Integer> inheritanceContent(Collection<Inheritance> inheritances, boolean parents) {
+        Map<String, Integer> result = new HashMap<String, Integer>();
+        for (Inheritance i : inheritances) {
+            result.put((parents ? i.getParent() : i.getChild()).getName(), i.getOrdering());
+        }
+        return result;
+    }
+
+    private static Map<String, Long> membershipContent(Collection<Membership> memberships) {
+        Map<String, Long> result = new HashMap<String, Long>();
+        if (memberships != null) {
+            for (Membership membership : memberships) {
+                result.put(membership.getGroup().getName() + "/" + membership.getMember(),
+                        membership.getExpiration() == null ? null : membership.getExpiration().getTime());
+            }
+        }
+        return result;
+    }
+
+    // Create a read-only copy of the given state. Entities that haven't changed
+    // since the previous snapshot (if any) are shared with it.
+    private static MemoryState createSnapshot(MemoryState current, MemoryState previous) {
+        MemoryState snapshot = new MemoryState();
+        snapshot.getRegions().putAll(current.getRegions());
+        snapshot.getWorlds().putAll(current.getWorlds());
+        snapshot.getAncestryMap().putAll(current.getAncestryMap()); // NB values are immutable
+
+        copyEntities(current.getPlayers(), previous == null ? null : previous.getPlayers(), snapshot.getPlayers(), null);
+
+        // Remember which groups were copied so their memberships can be re-indexed
+        List<PermissionEntity> copiedGroups = new ArrayList<PermissionEntity>();
+        Set<String> staleMembers = copyEntities(current.getGroups(), previous == null ? null : previous.getGroups(), snapshot.getGroups(), copiedGroups);
+
+        Map<String, Set<Membership>> reverseMembershipMap = snapshot.getReverseMembershipMap();
+        if (previous != null) {
+            reverseMembershipMap.putAll(previous.getReverseMembershipMap());
+            // Start stale members over with memberships of unchanged groups
+            for (String member : staleMembers) {
+                Set<Membership> memberships = new HashSet<Membership>();
+                Set<Membership> oldMemberships = reverseMembershipMap.get(member);
+                if (oldMemberships != null) {
+                    for (Membership membership : oldMemberships) {
+                        if (snapshot.getGroups().get(membership.getGroup().getName()) == membership.getGroup())
+                            memberships.add(membership);
+                    }
+                }
+                reverseMembershipMap.put(member, memberships);
+            }
+        }
+        for (PermissionEntity group : copiedGroups) {
+            for (Membership membership : group.getMemberships()) {
+                Set<Membership> memberships = reverseMembershipMap.get(membership.getMember());
+                if (memberships == null) {
+                    memberships = new HashSet<Membership>();
+                    reverseMembershipMap.put(membership.getMember(), memberships);
+                }
+                memberships.add(membership);
+            }
+        }
+
+        return snapshot;
+    }
+
+    // Copy entities into dest, re-using those from previous whose generation
+    // is unchanged. Returns the members of any groups that were copied or
+    // dropped.
+    private static Set<String> copyEntities(Map<String, PermissionEntity> current, Map<String, PermissionEntity> previous, Map<String, PermissionEntity> dest, List<PermissionEntity> copied) {
+        Set<String> staleMembers = new HashSet<String>();
+        for (Map.Entry<String, PermissionEntity> me : current.entrySet()) {
+            PermissionEntity entity = me.getValue();
+            PermissionEntity old = previous == null ? null : previous.get(me.getKey());
+            if (old != null && old.getGeneration() == entity.getGeneration()) {
+                dest.put(me.getKey(), old);
+            }
+            else {
+                PermissionEntity copy = copyEntity(entity);
+                dest.put(me.getKey(), copy);
+                if (copied != null)
+                    copied.add(copy);
+                for (Membership membership : copy.getMemberships())
+                    staleMembers.add(membership.getMember());
+                if (old != null) {
+                    for (Membership membership : old.getMemberships())
+                        staleMembers.add(membership.getMember());
+                }
+            }
+        }
+        if (previous != null) {
+            for (Map.Entry<String, PermissionEntity> me : previous.entrySet()) {
+                if (!current.containsKey(me.getKey())) {
+                    for (Membership membership : me.getValue().getMemberships())
+                        staleMembers.add(membership.getMember());
+                }
+            }
+        }
+        return staleMembers;
+    }
+
+    // Make a detached copy of an entity, its entries, metadata, parents and memberships
+    private static PermissionEntity copyEntity(PermissionEntity entity) {
+        PermissionEntity copy = new PermissionEntity();
+        copy.setId(entity.getId());
+        copy.setName(entity.getName());
+        copy.setGroup(entity.isGroup());
+        copy.setDisplayName(entity.getDisplayName());
+        copy.setPriority(entity.getPriority());
+        copy.setGeneration(entity.getGeneration());
+
+        for (Entry entry : entity.getPermissions()) {
+            Entry newEntry = new Entry();
+            newEntry.setEntity(copy);
+            newEntry.setRegion(entry.getRegion());
+            newEntry.setWorld(entry.getWorld());
+            newEntry.setPermission(entry.getPermission());
+            newEntry.setValue(entry.isValue());
+            newEntry.setExpiration(entry.getExpiration());
+            newEntry.setPreviousValue(entry.getPreviousValue());
+            copy.getPermissions().add(newEntry);
+        }
+        copy.updateScopedPermissions();
+
+        for (EntityMetadata em : entity.getMetadata()) {
+            EntityMetadata newMetadata = new EntityMetadata();
+            newMetadata.setEntity(copy);
+            newMetadata.setName(em.getName());
+            newMetadata.setValue(em.getValue());
+            copy.getMetadata().add(newMetadata);
+        }
+        copy.updateMetadataMap();
+
+        // NB parents and children are only named, never linked to live entities
+        for (Inheritance inheritance : entity.getInheritancesAsChild()) {
+            Inheritance newInheritance = new Inheritance();
+            newInheritance.setChild(copy);
+            newInheritance.setParent(copyName(inheritance.getParent()));
+            newInheritance.setOrdering(inheritance.getOrdering());
+            copy.getInheritancesAsChild().add(newInheritance);
+        }
+        for (Inheritance inheritance : entity.getInheritancesAsParent()) {
+            Inheritance newInheritance = new Inheritance();
+            newInheritance.setChild(copyName(inheritance.getChild()));
+            newInheritance.setParent(copy);
+            newInheritance.setOrdering(inheritance.getOrdering());
+            copy.getInheritancesAsParent().add(newInheritance);
+        }
+
+        for (Membership membership : entity.getMemberships()) {
+            Membership newMembership = new Membership();
+            newMembership.setMember(membership.getMember());
+            newMembership.setGroup(copy);
+            newMembership.setExpiration(membership.getExpiration());
+            copy.getMemberships().add(newMembership);
+        }
+
+        return copy;
+    }
+
+    // Make a copy of an entity holding nothing but its name
+    private static PermissionEntity copyName(PermissionEntity entity) {
+        PermissionEntity copy = new PermissionEntity();
+        copy.setId(entity.getId());
+        copy.setName(entity.getName());
+        copy.setGroup(entity.isGroup());
+        copy.setDisplayName(entity.getDisplayName());
+        return copy;
+    }
+
+    // Read-only view of a snapshot
+    private static class SnapshotDao implements ReadOnlyPermissionDao {
+
+        private final MemoryState memoryState;
+
+        private final long modCount;
+
+        private final Set<String> regionNames;
+
+        public SnapshotDao(MemoryState memoryState, long modCount) {
+            this.memoryState = memoryState;
+            this.modCount = modCount;
+            regionNames = Collections.unmodifiableSet(new HashSet<String>(memoryState.getRegions().keySet()));
+        }
+
+        public MemoryState getMemoryState() {
+            return memoryState;
+        }
+
+        public long getModCount() {
+            return modCount;
+        }
+
+        @Override
+        public Boolean getPermission(String name, boolean group, String region, String world, String permission) {
+            return BaseMemoryPermissionDao.getPermission(memoryState, name, group, region, world, permission);
+        }
+
+        @Override
+        public List<Membership> getGroups(String member) {
+            return BaseMemoryPermissionDao.getGroups(memoryState, member);
+        }
+
+        @Override
+        public List<Membership> getMembers(String group) {
+            return BaseMemoryPermissionDao.getMembers(memoryState, group);
+        }
+
+        @Override
+        public PermissionEntity getEntity(String name, boolean group) {
+            return findEntity(memoryState, name, group);
+        }
+
+        @Override
+        public List<PermissionEntity> getEntities(boolean group) {
+            return BaseMemoryPermissionDao.getEntities(memoryState, group);
+        }
+
+        @Override
+        public List<String> getAncestry(String groupName) {
+            return BaseMemoryPermissionDao.getAncestry(memoryState, groupName);
+        }
+
+        @Override
+        public List<Entry> getEntries(String name, boolean group) {
+            return BaseMemoryPermissionDao.getEntries(memoryState, name, group);
+        }
+
+        @Override
+        public List<Entry> getEntries(String name, boolean group, String world, Set<String> regions) {
+            return BaseMemoryPermissionDao.getEntries(memoryState, name, group, world, regions);
+        }
+
+        @Override
+        public Set<String> getRegionNames(String name, boolean group) {
+            return BaseMemoryPermissionDao.getRegionNames(memoryState, name, group);
+        }
+
+        @Override
+        public Set<String> getRegionNames() {
+            return regionNames;
+        }
+
+        @Override
+        public List<String> getEntityNames(boolean group) {
+            return BaseMemoryPermissionDao.getEntityNames(memoryState, group);
+        }
+
+        @Override
+        public Object getMetadata(String name, boolean group, String metadataName) {
+            return BaseMemoryPermissionDao.getMetadata(memoryState, name, group, metadataName);
+        }
+
+        @Override
+        public long getGroupGeneration(String groupName) {
+            return BaseMemoryPermissionDao.getGroupGeneration(memoryState, groupName);
+        }
+
+    }
+
     protected static class MemoryState {
         
         private final Map<String, PermissionRegion> regions = new HashMap<String, PermissionRegion>();
@@ -823,6 +1750,9 @@ public abstract class BaseMemoryPermissionDao implements PermissionDao {
 
         private final Map<String, Set<Membership>> reverseMembershipMap = new HashMap<String, Set<Membership>>();
 
+        // Lowercase group name -> ancestry (display names, farthest ancestor first)
+        private final Map<String, List<String>> ancestryMap = new HashMap<String, List<String>>();
+
         public Map<String, PermissionRegion> getRegions() {
             return regions;
         }
@@ -843,6 +1773,10 @@ public abstract class BaseMemoryPermissionDao implements PermissionDao {
             return reverseMembershipMap;
         }
 
+        public Map<String, List<String>> getAncestryMap() {
+            return ancestryMap;
+        }
+
     }
 
 }
@@ -0,0 +1,467 @@
+/*
+ * Copyright 2012 Allan Saddi <allan@saddi.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.zPermissions.dao;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.tyrannyofheaven.bukkit.zPermissions.dao.BaseMemoryPermissionDao.MemoryState;
+import org.tyrannyofheaven.bukkit.zPermissions.model.EntityMetadata;
+import org.tyrannyofheaven.bukkit.zPermissions.model.Entry;
+import org.tyrannyofheaven.bukkit.zPermissions.model.Inheritance;
+import org.tyrannyofheaven.bukkit.zPermissions.model.Membership;
+import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionEntity;
+
+/**
+ * Compact binary alternative to the YAML save file. All names (players,
+ * groups, permissions, worlds, regions, members, metadata) are stored once
+ * in a string dictionary and referred to by index. Numbers are
+ * variable-length encoded.
+ *
+ * <p>Layout: magic, version, dictionary, players, groups. Each entity is its
+ * name, permissions and metadata. Groups are followed by their priority,
+ * parents (in order) and members.
+ *
+ * @author asaddi
+ */
+class BinarySnapshotFormat {
+
+    private static final int MAGIC = 0x7a504442; // "zPDB"
+
+    private static final byte VERSION = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int VALUE_FLAG = 1;
+
+    private static final int EXPIRATION_FLAG = 2;
+
+    private static final int PREVIOUS_FLAG = 4;
+
+    private static final int PREVIOUS_VALUE_FLAG = 8;
+
+    private static final byte STRING_VALUE = 0;
+
+    private static final byte INTEGER_VALUE = 1;
+
+    private static final byte REAL_VALUE = 2;
+
+    private static final byte BOOLEAN_VALUE = 3;
+
+    private BinarySnapshotFormat() {
+        throw new AssertionError("Don't instantiate me!");
+    }
+
+    /**
+     * Encode the given entities. Only reads them, so the caller need only
+     * exclude writers.
+     *
+     * @param players all players
+     * @param groups all groups
+     * @return buffers to be written out, in order
+     */
+    static ByteBuffer[] encode(Collection<PermissionEntity> players, Collection<PermissionEntity> groups) {
+        return encode(players, groups, true);
+    }
+
+    /**
+     * Encode the given entities, optionally leaving out group members (e.g.
+     * when they are stored elsewhere).
+     *
+     * @param players all players
+     * @param groups all groups
+     * @param memberships true if group members should be included
+     * @return buffers to be written out, in order
+     */
+    static ByteBuffer[] encode(Collection<PermissionEntity> players, Collection<PermissionEntity> groups, boolean memberships) {
+        Encoder body = new Encoder();
+
+        body.writeVarInt(players.size());
+        for (PermissionEntity player : players) {
+            encodeEntity(player, body);
+        }
+
+        body.writeVarInt(groups.size());
+        for (PermissionEntity group : groups) {
+            encodeEntity(group, body);
+            body.writeVarInt(zigZag(group.getPriority()));
+
+            List<PermissionEntity> parents = group.getParents();
+            body.writeVarInt(parents.size());
+            for (PermissionEntity parent : parents) {
+                body.writeString(parent.getDisplayName());
+            }
+
+            if (!memberships) {
+                body.writeVarInt(0);
+                continue;
+            }
+            body.writeVarInt(group.getMemberships().size());
+            for (Membership membership : group.getMemberships()) {
+                body.writeString(membership.getMember());
+                body.writeDate(membership.getExpiration());
+            }
+        }
+
+        Encoder header = new Encoder();
+        header.writeInt(MAGIC);
+        header.writeByte(VERSION);
+        header.writeVarInt(body.strings.size());
+        for (String s : body.strings) {
+            byte[] bytes = s.getBytes(UTF8);
+            header.writeVarInt(bytes.length);
+            header.writeBytes(bytes);
+        }
+
+        return new ByteBuffer[] { header.toByteBuffer(), body.toByteBuffer() };
+    }
+
+    private static void encodeEntity(PermissionEntity entity, Encoder out) {
+        out.writeString(entity.getDisplayName());
+
+        out.writeVarInt(entity.getPermissions().size());
+        for (Entry e : entity.getPermissions()) {
+            out.writeNullableString(e.getRegion() == null ? null : e.getRegion().getName());
+            out.writeNullableString(e.getWorld() == null ? null : e.getWorld().getName());
+            out.writeString(e.getPermission());
+            out.writeByte((e.isValue() ? VALUE_FLAG : 0) | (e.getExpiration() != null ? EXPIRATION_FLAG : 0) |
+                    (e.getPreviousValue() != null ? PREVIOUS_FLAG | (e.getPreviousValue() ? PREVIOUS_VALUE_FLAG : 0) : 0));
+            if (e.getExpiration() != null)
+                out.writeVarLong(e.getExpiration().getTime());
+        }
+
+        out.writeVarInt(entity.getMetadata().size());
+        for (EntityMetadata em : entity.getMetadata()) {
+            out.writeString(em.getName());
+            Object value = em.getValue();
+            if (value instanceof String) {
+                out.writeByte(STRING_VALUE);
+                out.writeString((String)value);
+            }
+            else if (value instanceof Long) {
+                out.writeByte(INTEGER_VALUE);
+                out.writeVarLong(zigZag((Long)value));
+            }
+            else if (value instanceof Double) {
+                out.writeByte(REAL_VALUE);
+                out.writeVarLong(Double.doubleToLongBits((Double)value));
+            }
+            else {
+                out.writeByte(BOOLEAN_VALUE);
+                out.writeByte(Boolean.TRUE.equals(value) ? 1 : 0);
+            }
+        }
+    }
+
+    /**
+     * Write encoded buffers to a file.
+     *
+     * @param buffers the encoded buffers
+     * @param file the file to write
+     * @return number of bytes written
+     * @throws IOException
+     */
+    static long write(ByteBuffer[] buffers, File file) throws IOException {
+        long written = 0L;
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            FileChannel channel = out.getChannel();
+            long remaining = 0L;
+            for (ByteBuffer buffer : buffers)
+                remaining += buffer.remaining();
+            while (written < remaining)
+                written += channel.write(buffers);
+        }
+        finally {
+            out.close();
+        }
+        return written;
+    }
+
+    /**
+     * Read a file written by {@link #write(ByteBuffer[], File)}.
+     *
+     * @param file the file to read
+     * @return buffer holding the file's contents
+     * @throws IOException
+     */
+    static ByteBuffer read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("File too large: " + file);
+            ByteBuffer buffer = ByteBuffer.allocate((int)size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0)
+                    throw new IOException("Unexpected end of file: " + file);
+            }
+            buffer.flip();
+            return buffer;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Decode a snapshot into a fresh MemoryState. Ancestry is not calculated.
+     *
+     * @param buffer the encoded snapshot
+     * @param memoryState the state to fill
+     * @throws IOException if the snapshot is malformed
+     */
+    static void decode(ByteBuffer buffer, MemoryState memoryState) throws IOException {
+        try {
+            if (buffer.getInt() != MAGIC)
+                throw new IOException("Not a zPermissions binary snapshot");
+            byte version = buffer.get();
+            if (version != VERSION)
+                throw new IOException("Unsupported binary snapshot version " + version);
+
+            String[] strings = new String[readVarInt(buffer)];
+            for (int i = 0; i < strings.length; i++) {
+                int length = readVarInt(buffer);
+                strings[i] = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, UTF8);
+                buffer.position(buffer.position() + length);
+            }
+
+            int count = readVarInt(buffer);
+            for (int i = 0; i < count; i++) {
+                decodeEntity(buffer, strings, memoryState, false);
+            }
+
+            count = readVarInt(buffer);
+            for (int i = 0; i < count; i++) {
+                PermissionEntity group = decodeEntity(buffer, strings, memoryState, true);
+                group.setPriority(unZigZag(readVarInt(buffer)));
+
+                int parents = readVarInt(buffer);
+                for (int j = 0; j < parents; j++) {
+                    PermissionEntity parent = BaseMemoryPermissionDao.getEntity(memoryState, strings[readVarInt(buffer)], true);
+
+                    Inheritance inheritance = new Inheritance();
+                    inheritance.setChild(group);
+                    inheritance.setParent(parent);
+                    inheritance.setOrdering(j * 100);
+
+                    group.getInheritancesAsChild().add(inheritance);
+                    parent.getInheritancesAsParent().add(inheritance);
+                }
+
+                int members = readVarInt(buffer);
+                for (int j = 0; j < members; j++) {
+                    Membership membership = new Membership();
+                    membership.setMember(strings[readVarInt(buffer)]);
+                    membership.setGroup(group);
+                    membership.setExpiration(readDate(buffer));
+                    group.getMemberships().add(membership);
+
+                    BaseMemoryPermissionDao.rememberMembership(memoryState, membership);
+                }
+            }
+        }
+        catch (BufferUnderflowException e) {
+            throw new IOException("Truncated binary snapshot");
+        }
+        catch (IndexOutOfBoundsException e) {
+            throw new IOException("Malformed binary snapshot");
+        }
+    }
+
+    private static PermissionEntity decodeEntity(ByteBuffer buffer, String[] strings, MemoryState memoryState, boolean group) {
+        PermissionEntity entity = BaseMemoryPermissionDao.getEntity(memoryState, strings[readVarInt(buffer)], group);
+
+        int count = readVarInt(buffer);
+        for (int i = 0; i < count; i++) {
+            String region = readNullableString(buffer, strings);
+            String world = readNullableString(buffer, strings);
+
+            Entry entry = new Entry();
+            entry.setRegion(region == null ? null : BaseMemoryPermissionDao.getRegion(memoryState, region));
+            entry.setWorld(world == null ? null : BaseMemoryPermissionDao.getWorld(memoryState, world));
+            entry.setPermission(strings[readVarInt(buffer)]);
+            int flags = buffer.get();
+            entry.setValue((flags & VALUE_FLAG) != 0);
+            if ((flags & EXPIRATION_FLAG) != 0)
+                entry.setExpiration(new Date(readVarLong(buffer)));
+            if ((flags & PREVIOUS_FLAG) != 0)
+                entry.setPreviousValue((flags & PREVIOUS_VALUE_FLAG) != 0);
+
+            entry.setEntity(entity);
+            if (entity.getPermissions().add(entry))
+                BaseMemoryPermissionDao.retainRegionAndWorld(entry);
+        }
+        entity.updateScopedPermissions();
+
+        count = readVarInt(buffer);
+        for (int i = 0; i < count; i++) {
+            EntityMetadata em = new EntityMetadata();
+            em.setName(strings[readVarInt(buffer)]);
+            byte type = buffer.get();
+            if (type == STRING_VALUE)
+                em.setValue(strings[readVarInt(buffer)]);
+            else if (type == INTEGER_VALUE)
+                em.setValue(unZigZag(readVarLong(buffer)));
+            else if (type == REAL_VALUE)
+                em.setValue(Double.longBitsToDouble(readVarLong(buffer)));
+            else
+                em.setValue(buffer.get() != 0);
+            em.setEntity(entity);
+            entity.getMetadata().add(em);
+        }
+        entity.updateMetadataMap();
+
+        return entity;
+    }
+
+    private static String readNullableString(ByteBuffer buffer, String[] strings) {
+        int index = readVarInt(buffer);
+        return index == 0 ? null : strings[index - 1];
+    }
+
+    private static Date readDate(ByteBuffer buffer) {
+        long value = readVarLong(buffer);
+        return value == 0L ? null : new Date(value - 1L);
+    }
+
+    private static int readVarInt(ByteBuffer buffer) {
+        return (int)readVarLong(buffer);
+    }
+
+    private static long readVarLong(ByteBuffer buffer) {
+        long result = 0L;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            result |= (long)(b & 0x7f) << shift;
+            shift += 7;
+        }
+        while ((b & 0x80) != 0);
+        return result;
+    }
+
+    private static int zigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1L);
+    }
+
+    // Growable byte buffer that also interns strings into a dictionary
+    private static class Encoder {
+
+        private byte[] data = new byte[8192];
+
+        private int size;
+
+        private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+
+        private final List<String> strings = new ArrayList<String>();
+
+        private void ensure(int extra) {
+            if (size + extra > data.length) {
+                byte[] newData = new byte[Math.max(data.length * 2, size + extra)];
+                System.arraycopy(data, 0, newData, 0, size);
+                data = newData;
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            data[size++] = (byte)b;
+        }
+
+        void writeBytes(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, data, size, bytes.length);
+            size += bytes.length;
+        }
+
+        void writeInt(int value) {
+            writeByte(value >>> 24);
+            writeByte(value >>> 16);
+            writeByte(value >>> 8);
+            writeByte(value);
+        }
+
+        void writeVarInt(int value) {
+            writeVarLong(value & 0xffffffffL);
+        }
+
+        void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7fL) != 0L) {
+                data[size++] = (byte)((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            data[size++] = (byte)value;
+        }
+
+        void writeString(String value) {
+            writeVarInt(intern(value));
+        }
+
+        // Index 0 means null, so the others are shifted by 1
+        void writeNullableString(String value) {
+            writeVarInt(value == null ? 0 : intern(value) + 1);
+        }
+
+        // Dates are shifted by 1 for the same reason
+        void writeDate(Date value) {
+            writeVarLong(value == null ? 0L : value.getTime() + 1L);
+        }
+
+        private int intern(String value) {
+            Integer index = indexes.get(value);
+            if (index == null) {
+                index = strings.size();
+                strings.add(value);
+                indexes.put(value, index);
+            }
+            return index;
+        }
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(data, 0, size);
+        }
+
+    }
+
+}
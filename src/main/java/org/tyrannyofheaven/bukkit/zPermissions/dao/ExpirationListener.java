@@ -0,0 +1,53 @@
+/*
+ * Copyright 2012 Allan Saddi <allan@saddi.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.zPermissions.dao;
+
+import java.util.Date;
+
+/**
+ * Notified by {@link BaseMemoryPermissionDao} whenever something that can
+ * expire &mdash; a membership or a temporary permission &mdash; is added,
+ * removed, or has its expiration changed. Called while the DAO is being
+ * modified, so implementations must not call back into the DAO.
+ * 
+ * @author asaddi
+ */
+public interface ExpirationListener {
+
+    /**
+     * Called when a membership changes.
+     * 
+     * @param member the member's name, in lowercase
+     * @param group the group's name, in lowercase
+     * @param expiration the membership's new expiration, or null if the
+     *   membership was removed or no longer expires
+     */
+    public void membershipChanged(String member, String group, Date expiration);
+
+    /**
+     * Called when a permission entry that expires (or used to) changes.
+     * 
+     * @param name the owning entity's name, in lowercase
+     * @param group true if the owner is a group
+     * @param region the region name, in lowercase, or null
+     * @param world the world name, or null
+     * @param permission the permission, in lowercase
+     * @param expiration the entry's new expiration, or null if the entry was
+     *   removed or no longer expires
+     */
+    public void permissionChanged(String name, boolean group, String region, String world, String permission, Date expiration);
+
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2012 Allan Saddi <allan@saddi.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.zPermissions.dao;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * KeyValueStore kept in a single table of an embedded database (e.g. SQLite
+ * or H2) accessed through JDBC. Each key is a primary key lookup, so each
+ * change costs a single index update. Not thread-safe, callers must
+ * serialize access.
+ *
+ * @author asaddi
+ */
+public class JdbcKeyValueStore implements KeyValueStore {
+
+    private static final String TABLE_NAME = "zperms_store";
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+
+    private final Connection connection;
+
+    public JdbcKeyValueStore(String driver, String url) throws IOException {
+        try {
+            if (driver != null)
+                Class.forName(driver);
+            connection = DriverManager.getConnection(url);
+        }
+        catch (ClassNotFoundException e) {
+            throw new IOException("JDBC driver not found (is its jar on the classpath?): " + driver);
+        }
+        catch (SQLException e) {
+            throw toIOException(e);
+        }
+
+        try {
+            Statement stmt = connection.createStatement();
+            try {
+                stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (k VARCHAR(255) NOT NULL PRIMARY KEY, v BLOB NOT NULL)");
+            }
+            finally {
+                stmt.close();
+            }
+            connection.setAutoCommit(false);
+        }
+        catch (SQLException e) {
+            close();
+            throw toIOException(e);
+        }
+    }
+
+    @Override
+    public void scan(String fromKey, String toKey, Visitor visitor) throws IOException {
+        try {
+            PreparedStatement stmt = connection.prepareStatement("SELECT k, v FROM " + TABLE_NAME + " WHERE k >= ? AND k < ? ORDER BY k");
+            try {
+                stmt.setString(1, fromKey);
+                stmt.setString(2, toKey);
+                ResultSet rs = stmt.executeQuery();
+                try {
+                    while (rs.next()) {
+                        visitor.visit(rs.getString(1), rs.getBytes(2));
+                    }
+                }
+                finally {
+                    rs.close();
+                }
+            }
+            finally {
+                stmt.close();
+            }
+            connection.commit(); // end read transaction
+        }
+        catch (SQLException e) {
+            throw toIOException(e);
+        }
+    }
+
+    @Override
+    public void write(Map<String, byte[]> changes) throws IOException {
+        try {
+            PreparedStatement update = connection.prepareStatement("UPDATE " + TABLE_NAME + " SET v = ? WHERE k = ?");
+            PreparedStatement insert = connection.prepareStatement("INSERT INTO " + TABLE_NAME + " (k, v) VALUES (?, ?)");
+            PreparedStatement delete = connection.prepareStatement("DELETE FROM " + TABLE_NAME + " WHERE k = ?");
+            try {
+                for (Map.Entry<String, byte[]> me : changes.entrySet()) {
+                    if (me.getValue() == null) {
+                        delete.setString(1, me.getKey());
+                        delete.executeUpdate();
+                    }
+                    else {
+                        // Portable upsert
+                        update.setBytes(1, me.getValue());
+                        update.setString(2, me.getKey());
+                        if (update.executeUpdate() == 0) {
+                            insert.setString(1, me.getKey());
+                            insert.setBytes(2, me.getValue());
+                            insert.executeUpdate();
+                        }
+                    }
+                }
+                connection.commit();
+            }
+            finally {
+                update.close();
+                insert.close();
+                delete.close();
+            }
+        }
+        catch (SQLException e) {
+            try {
+                connection.rollback();
+            }
+            catch (SQLException e2) {
+                logger.log(Level.WARNING, "Error rolling back", e2);
+            }
+            throw toIOException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            connection.close();
+        }
+        catch (SQLException e) {
+            logger.log(Level.WARNING, "Error closing connection", e);
+        }
+    }
+
+    private static IOException toIOException(SQLException e) {
+        IOException ioe = new IOException(e.getMessage());
+        ioe.initCause(e);
+        return ioe;
+    }
+
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2012 Allan Saddi <allan@saddi.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.zPermissions.dao;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Minimal ordered key-value store used by {@link StoredMemoryPermissionDao}.
+ *
+ * @author asaddi
+ */
+public interface KeyValueStore {
+
+    /**
+     * Visit all keys in the given range, in order.
+     *
+     * @param fromKey first key (inclusive)
+     * @param toKey last key (exclusive)
+     * @param visitor the visitor
+     * @throws IOException
+     */
+    public void scan(String fromKey, String toKey, Visitor visitor) throws IOException;
+
+    /**
+     * Apply a batch of changes as a single commit.
+     *
+     * @param changes new values by key, a null value deletes the key
+     * @throws IOException
+     */
+    public void write(Map<String, byte[]> changes) throws IOException;
+
+    /**
+     * Release any resources held by the store.
+     */
+    public void close();
+
+    public static interface Visitor {
+
+        public void visit(String key, byte[] value) throws IOException;
+
+    }
+
+}
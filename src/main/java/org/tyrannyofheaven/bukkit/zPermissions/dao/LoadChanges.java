@@ -0,0 +1,76 @@
+/*
+ * Copyright 2013 Allan Saddi <allan@saddi.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.zPermissions.dao;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Names of the groups and players that differ between successive loads of
+ * the permissions store. A player is considered changed if their own
+ * permissions or metadata changed, or if any of their memberships did.
+ * 
+ * @author asaddi
+ */
+public class LoadChanges {
+
+    private final Set<String> groups = new HashSet<String>();
+
+    private final Set<String> players = new HashSet<String>();
+
+    /**
+     * Returns the names of changed groups (including created and deleted
+     * groups), in lowercase.
+     * 
+     * @return the changed groups
+     */
+    public Set<String> getGroups() {
+        return Collections.unmodifiableSet(groups);
+    }
+
+    /**
+     * Returns the names of changed players, in lowercase.
+     * 
+     * @return the changed players
+     */
+    public Set<String> getPlayers() {
+        return Collections.unmodifiableSet(players);
+    }
+
+    public boolean isEmpty() {
+        return groups.isEmpty() && players.isEmpty();
+    }
+
+    void addGroup(String name) {
+        groups.add(name.toLowerCase());
+    }
+
+    void addPlayer(String name) {
+        players.add(name.toLowerCase());
+    }
+
+    void addAll(LoadChanges other) {
+        groups.addAll(other.groups);
+        players.addAll(other.players);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LoadChanges[groups=%s, players=%s]", groups, players);
+    }
+
+}
@@ -15,10 +15,14 @@
  */
 package org.tyrannyofheaven.bukkit.zPermissions.dao;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.Writer;
 import java.util.ArrayList;
@@ -29,6 +33,9 @@ import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -54,8 +61,20 @@ public class MemoryPermissionDao extends BaseMemoryPermissionDao {
 
     private Logger logger = Logger.getLogger(getClass().getName());
 
+    // Readers (resolution, lookups, saving) may proceed concurrently
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
     private boolean dirty;
 
+    // Journal of changes since the last save, null if not journaling
+    private volatile PermissionJournal journal;
+
+    // Guards the in-memory state. Readers (resolution, lookups, capturing
+    // state for saves) may proceed concurrently.
+    protected ReadWriteLock getLock() {
+        return lock;
+    }
+
     public synchronized boolean isDirty() {
         return dirty;
     }
@@ -73,139 +92,524 @@ public class MemoryPermissionDao extends BaseMemoryPermissionDao {
     }
 
     @Override
-    public synchronized Boolean getPermission(String name, boolean group, String region, String world, String permission) {
-        return super.getPermission(name, group, region, world, permission);
+    public ReadOnlyPermissionDao getReadOnlySnapshot() {
+        ReadOnlyPermissionDao snapshot = getSnapshot();
+        if (snapshot == null) {
+            lock.readLock().lock();
+            try {
+                snapshot = updateSnapshot();
+            }
+            finally {
+                lock.readLock().unlock();
+            }
+        }
+        return snapshot;
+    }
+
+    // Returns an up-to-date snapshot if snapshot reads are enabled and one
+    // has been built since the last change, null otherwise. Readers never
+    // build snapshots themselves, they just take the read lock instead.
+    private ReadOnlyPermissionDao readSnapshot() {
+        if (!isSnapshotReads())
+            return null;
+        return getSnapshot();
     }
 
     @Override
-    public synchronized void setPermission(String name, boolean group, String region, String world, String permission, boolean value) {
-        super.setPermission(name, group, region, world, permission, value);
+    public Boolean getPermission(String name, boolean group, String region, String world, String permission) {
+        ReadOnlyPermissionDao snapshot = readSnapshot();
+        if (snapshot != null)
+            return snapshot.getPermission(name, group, region, world, permission);
+        lock.readLock().lock();
+        try {
+            return super.getPermission(name, group, region, world, permission);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
     }
 
     @Override
-    public synchronized boolean unsetPermission(String name, boolean group, String region, String world, String permission) {
-        return super.unsetPermission(name, group, region, world, permission);
+    public void setPermission(String name, boolean group, String region, String world, String permission, boolean value, Date expiration) {
+        lock.writeLock().lock();
+        try {
+            super.setPermission(name, group, region, world, permission, value, expiration);
+        }
+        finally {
+            invalidateSnapshot();
+            lock.writeLock().unlock();
+        }
     }
 
     @Override
-    public synchronized void addMember(String groupName, String member, Date expiration) {
-        super.addMember(groupName, member, expiration);
+    public boolean unsetPermission(String name, boolean group, String region, String world, String permission) {
+        lock.writeLock().lock();
+        try {
+            return super.unsetPermission(name, group, region, world, permission);
+        }
+        finally {
+            invalidateSnapshot();
+            lock.writeLock().unlock();
+        }
     }
 
     @Override
-    public synchronized boolean removeMember(String groupName, String member) {
-        return super.removeMember(groupName, member);
+    public int purgeExpiredPermissions(String name, boolean group) {
+        lock.writeLock().lock();
+        try {
+            return super.purgeExpiredPermissions(name, group);
+        }
+        finally {
+            invalidateSnapshot();
+            lock.writeLock().unlock();
+        }
     }
 
     @Override
-    public synchronized List<Membership> getGroups(String member) {
-        return super.getGroups(member);
+    public void addMember(String groupName, String member, Date expiration) {
+        lock.writeLock().lock();
+        try {
+            super.addMember(groupName, member, expiration);
+        }
+        finally {
+            invalidateSnapshot();
+            lock.writeLock().unlock();
+        }
     }
 
     @Override
-    public synchronized List<Membership> getMembers(String group) {
-        return super.getMembers(group);
+    public boolean removeMember(String groupName, String member) {
+        lock.writeLock().lock();
+        try {
+            return super.removeMember(groupName, member);
+        }
+        finally {
+            invalidateSnapshot();
+            lock.writeLock().unlock();
+        }
     }
 
     @Override
-    public synchronized PermissionEntity getEntity(String name, boolean group) {
-        return super.getEntity(name, group);
+    public List<Membership> getGroups(String member) {
+        ReadOnlyPermissionDao snapshot = readSnapshot();
+        if (snapshot != null)
+            return snapshot.getGroups(member);
+        lock.readLock().lock();
+        try {
+            return super.getGroups(member);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
     }
 
     @Override
-    public synchronized List<PermissionEntity> getEntities(boolean group) {
-        return super.getEntities(group);
+    public List<Membership> getMembers(String group) {
+        ReadOnlyPermissionDao snapshot = readSnapshot();
+        if (snapshot != null)
+            return snapshot.getMembers(group);
+        lock.readLock().lock();
+        try {
+            return super.getMembers(group);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public PermissionEntity getEntity(String name, boolean group) {
+        ReadOnlyPermissionDao snapshot = readSnapshot();
+        if (snapshot != null)
+            return snapshot.getEntity(name, group);
+        lock.readLock().lock();
+        try {
+            return super.getEntity(name, group);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<PermissionEntity> getEntities(boolean group) {
+        ReadOnlyPermissionDao snapshot = readSnapshot();
+        if (snapshot != null)
+            return snapshot.getEntities(group);
+        lock.readLock().lock();
+        try {
+            return super.getEntities(group);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void setGroup(String playerName, String groupName, Date expiration) {
+        lock.writeLock().lock();
+        try {
+            super.setGroup(playerName, groupName, expiration);
+        }
+        finally {
+            invalidateSnapshot();
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void setParent(String groupName, String parentName) {
+        lock.writeLock().lock();
+        try {
+            super.setParent(groupName, parentName);
+        }
+        finally {
+            invalidateSnapshot();
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void setPriority(String groupName, int priority) {
+        lock.writeLock().lock();
+        try {
+            super.setPriority(groupName, priority);
+        }
+        finally {
+            invalidateSnapshot();
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean deleteEntity(String name, boolean group) {
+        lock.writeLock().lock();
+        try {
+            return super.deleteEntity(name, group);
+        }
+        finally {
+            invalidateSnapshot();
+            lock.writeLock().unlock();
+        }
     }
 
     @Override
-    public synchronized void setGroup(String playerName, String groupName, Date expiration) {
-        super.setGroup(playerName, groupName, expiration);
+    public List<String> getAncestry(String groupName) {
+        ReadOnlyPermissionDao snapshot = readSnapshot();
+        if (snapshot != null)
+            return snapshot.getAncestry(groupName);
+        lock.readLock().lock();
+        try {
+            return super.getAncestry(groupName);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
     }
 
     @Override
-    public synchronized void setParent(String groupName, String parentName) {
-        super.setParent(groupName, parentName);
+    public List<Entry> getEntries(String name, boolean group) {
+        ReadOnlyPermissionDao snapshot = readSnapshot();
+        if (snapshot != null)
+            return snapshot.getEntries(name, group);
+        lock.readLock().lock();
+        try {
+            return super.getEntries(name, group);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
     }
 
     @Override
-    public synchronized void setPriority(String groupName, int priority) {
-        super.setPriority(groupName, priority);
+    public List<Entry> getEntries(String name, boolean group, String world, Set<String> regions) {
+        ReadOnlyPermissionDao snapshot = readSnapshot();
+        if (snapshot != null)
+            return snapshot.getEntries(name, group, world, regions);
+        lock.readLock().lock();
+        try {
+            return super.getEntries(name, group, world, regions);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
     }
 
     @Override
-    public synchronized boolean deleteEntity(String name, boolean group) {
-        return super.deleteEntity(name, group);
+    public Set<String> getRegionNames() {
+        ReadOnlyPermissionDao snapshot = readSnapshot();
+        if (snapshot != null)
+            return snapshot.getRegionNames();
+        lock.readLock().lock();
+        try {
+            return super.getRegionNames();
+        }
+        finally {
+            lock.readLock().unlock();
+        }
     }
 
     @Override
-    public synchronized List<String> getAncestry(String groupName) {
-        return super.getAncestry(groupName);
+    public Set<String> getRegionNames(String name, boolean group) {
+        ReadOnlyPermissionDao snapshot = readSnapshot();
+        if (snapshot != null)
+            return snapshot.getRegionNames(name, group);
+        lock.readLock().lock();
+        try {
+            return super.getRegionNames(name, group);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
     }
 
     @Override
-    public synchronized List<Entry> getEntries(String name, boolean group) {
-        return super.getEntries(name, group);
+    public boolean createGroup(String name) {
+        lock.writeLock().lock();
+        try {
+            return super.createGroup(name);
+        }
+        finally {
+            invalidateSnapshot();
+            lock.writeLock().unlock();
+        }
     }
 
     @Override
-    public synchronized boolean createGroup(String name) {
-        return super.createGroup(name);
+    public List<String> getEntityNames(boolean group) {
+        ReadOnlyPermissionDao snapshot = readSnapshot();
+        if (snapshot != null)
+            return snapshot.getEntityNames(group);
+        lock.readLock().lock();
+        try {
+            return super.getEntityNames(group);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
     }
 
     @Override
-    public synchronized List<String> getEntityNames(boolean group) {
-        return super.getEntityNames(group);
+    public Object getMetadata(String name, boolean group, String metadataName) {
+        ReadOnlyPermissionDao snapshot = readSnapshot();
+        if (snapshot != null)
+            return snapshot.getMetadata(name, group, metadataName);
+        lock.readLock().lock();
+        try {
+            return super.getMetadata(name, group, metadataName);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
     }
 
     @Override
-    public synchronized Object getMetadata(String name, boolean group, String metadataName) {
-        return super.getMetadata(name, group, metadataName);
+    public void setMetadata(String name, boolean group, String metadataName, Object value) {
+        lock.writeLock().lock();
+        try {
+            super.setMetadata(name, group, metadataName, value);
+        }
+        finally {
+            invalidateSnapshot();
+            lock.writeLock().unlock();
+        }
     }
 
     @Override
-    public synchronized void setMetadata(String name, boolean group, String metadataName, Object value) {
-        super.setMetadata(name, group, metadataName, value);
+    public boolean unsetMetadata(String name, boolean group, String metadataName) {
+        lock.writeLock().lock();
+        try {
+            return super.unsetMetadata(name, group, metadataName);
+        }
+        finally {
+            invalidateSnapshot();
+            lock.writeLock().unlock();
+        }
     }
 
     @Override
-    public synchronized boolean unsetMetadata(String name, boolean group, String metadataName) {
-        return super.unsetMetadata(name, group, metadataName);
+    public void setParents(String groupName, List<String> parentNames) {
+        lock.writeLock().lock();
+        try {
+            super.setParents(groupName, parentNames);
+        }
+        finally {
+            invalidateSnapshot();
+            lock.writeLock().unlock();
+        }
     }
 
     @Override
-    public synchronized void setParents(String groupName, List<String> parentNames) {
-        super.setParents(groupName, parentNames);
+    public long getGroupGeneration(String groupName) {
+        ReadOnlyPermissionDao snapshot = readSnapshot();
+        if (snapshot != null)
+            return snapshot.getGroupGeneration(groupName);
+        lock.readLock().lock();
+        try {
+            return super.getGroupGeneration(groupName);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Apply the changes recorded in a journal (and in any records set aside by
+     * an incomplete save) to the loaded state. Should be called after
+     * {@link #load(File)} and before {@link #openJournal(File)}.
+     * 
+     * @param journalFile the journal file
+     * @return the number of changes applied
+     * @throws IOException
+     */
+    public int replayJournal(File journalFile) throws IOException {
+        lock.writeLock().lock();
+        try {
+            return PermissionJournal.replay(PermissionJournal.getRotatedFile(journalFile), this) +
+                    PermissionJournal.replay(journalFile, this);
+        }
+        finally {
+            invalidateSnapshot();
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Start recording all changes to a journal. Once journaling, each
+     * {@link #save(File)} folds the journal into the saved file and starts
+     * a new one.
+     * 
+     * @param journalFile the journal file, appended to if it exists
+     * @throws IOException
+     */
+    public void openJournal(File journalFile) throws IOException {
+        openJournal(new PermissionJournal(journalFile));
+    }
+
+    // For testing
+    void openJournal(PermissionJournal newJournal) {
+        lock.writeLock().lock();
+        try {
+            closeJournal();
+            journal = newJournal;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Current journal, null if not journaling
+    PermissionJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Write out changes recorded since the last flush.
+     * 
+     * @throws IOException if recording any of them failed
+     */
+    public void flushJournal() throws IOException {
+        PermissionJournal current = journal;
+        if (current != null)
+            current.flush();
+    }
+
+    /**
+     * Stop journaling. Nothing is flushed.
+     */
+    public void closeJournal() {
+        PermissionJournal current = journal;
+        if (current != null) {
+            current.close();
+            journal = null;
+        }
     }
 
     /**
      * Save state of entire system to filesyste.
      * 
      * @param file the file to save to
+     * @return number of bytes written, or -1 if nothing was saved
      * @throws IOException
      */
-    public void save(File file) throws IOException {
-        if (!isDirty()) return;
+    public long save(File file) throws IOException {
+        return save(file, false);
+    }
 
-        Map<String, Object> dump;
-        synchronized (this) {
-            dump = dump();
-        }
+    /**
+     * Save state of entire system to filesystem in the compact binary format.
+     * Much faster to save and load than YAML, but not human-readable.
+     * 
+     * @param file the file to save to
+     * @return number of bytes written, or -1 if nothing was saved
+     * @throws IOException
+     */
+    public long saveBinary(File file) throws IOException {
+        return save(file, true);
+    }
 
-        File newFile = new File(file.getParentFile(), file.getName() + ".new");
+    private long save(File file, boolean binary) throws IOException {
+        if (!isDirty()) return -1L;
 
-        // Write out file
-        DumperOptions options = new DumperOptions();
-        options.setDefaultFlowStyle(DumperOptions.FlowStyle.BLOCK);
-        Yaml yaml = new Yaml(new SafeConstructor(), new Representer(), options);
-        Writer out = new FileWriter(newFile);
+        // Capture a consistent view. Only entities changed since the last
+        // view are copied, so writers are only held up briefly. The view is
+        // immutable, so it is written out without holding the lock.
+        ReadOnlyPermissionDao view;
+        PermissionJournal currentJournal = journal;
+        lock.readLock().lock();
         try {
-            out.write("# DO NOT EDIT -- file is written to periodically!\n");
-            yaml.dump(dump, out);
+            view = updateSnapshot();
+            // Journal must be rotated at the exact point the state is captured
+            if (currentJournal != null)
+                currentJournal.rotate();
+            // Writers are excluded, so no change slips between view and flag
+            clearDirty();
         }
         finally {
-            out.close();
+            lock.readLock().unlock();
+        }
+
+        boolean saved = false;
+        try {
+            long written = write(view.getEntities(false), view.getEntities(true), file, binary);
+            saved = written >= 0L;
+            return written;
+        }
+        finally {
+            if (saved) {
+                // Changes up to the rotation are now safely in file
+                if (currentJournal != null)
+                    currentJournal.deleteRotated();
+            }
+            else {
+                setDirty();
+            }
         }
+    }
 
+    // Write entities out to a new file, then swap it with the old one
+    private long write(Collection<PermissionEntity> players, Collection<PermissionEntity> groups, File file, boolean binary) throws IOException {
+        File newFile = new File(file.getParentFile(), file.getName() + ".new");
+
+        // Write out file
+        long written;
+        if (binary)
+            written = BinarySnapshotFormat.write(BinarySnapshotFormat.encode(players, groups), newFile);
+        else
+            written = writeYaml(players, groups, newFile);
+
+        return replaceFile(newFile, file) ? written : -1L;
+    }
+
+    /**
+     * Replace a file with a newly-written one, keeping the old one as a
+     * backup (the file's name suffixed with "~").
+     * 
+     * @param newFile the newly-written file
+     * @param file the file to replace
+     * @return true if successful
+     */
+    protected boolean replaceFile(File newFile, File file) {
         File backupFile = new File(file.getParentFile(), file.getName() + "~");
 
         // Delete old backup (might be necessary on some platforms)
@@ -217,16 +621,16 @@ public class MemoryPermissionDao extends BaseMemoryPermissionDao {
         // Back up old config
         if (file.exists() && !file.renameTo(backupFile)) {
             logger.log(Level.SEVERE, String.format("Error renaming %s to %s", file, backupFile));
-            return; // no backup, abort
+            return false; // no backup, abort
         }
 
         // Rename new file to config
         if (!newFile.renameTo(file)) {
             logger.log(Level.SEVERE, String.format("Error renaming %s to %s", newFile, file));
-            return;
+            return false;
         }
 
-        clearDirty();
+        return true;
     }
 
     /**
@@ -235,75 +639,163 @@ public class MemoryPermissionDao extends BaseMemoryPermissionDao {
      * @param file the file to load from
      * @throws IOException 
      */
-    @SuppressWarnings("unchecked")
     public void load(File file) throws IOException {
+        Map<String, Object> input = readYaml(file);
+        if (input != null) {
+            load(input);
+            clearDirty();
+        }
+    }
+
+    /**
+     * Parse a YAML file. Safe to call from any thread.
+     * 
+     * @param file the file to parse
+     * @return the top-level map, or null if the file is empty
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    protected static Map<String, Object> readYaml(File file) throws IOException {
         Yaml yaml = new Yaml(new SafeConstructor());
         Reader in = new FileReader(file);
-        Map<String, Object> input = null;
         try {
-            input = (Map<String, Object>)yaml.load(in);
+            return (Map<String, Object>)yaml.load(in);
         }
         finally {
             in.close();
         }
-        if (input != null) {
-            load(input);
-            clearDirty();
+    }
+
+    /**
+     * Load state of entire system from a file written by
+     * {@link #saveBinary(File)}.
+     * 
+     * @param file the file to load from
+     * @throws IOException
+     */
+    public void loadBinary(File file) throws IOException {
+        MemoryState memoryState = new MemoryState();
+        BinarySnapshotFormat.decode(BinarySnapshotFormat.read(file), memoryState);
+        replaceMemoryState(memoryState);
+        clearDirty();
+    }
+
+    /**
+     * Install a freshly loaded state, calculating its ancestry first.
+     * 
+     * @param memoryState the loaded state
+     */
+    protected void replaceMemoryState(MemoryState memoryState) {
+        rebuildAncestry(memoryState);
+
+        lock.writeLock().lock();
+        try {
+            reloadMemoryState(memoryState);
+        }
+        finally {
+            lock.writeLock().unlock();
         }
     }
 
-    // Dump state of entire system to (YAML-friendly) map
-    private Map<String, Object> dump() {
-        // Players first
-        List<Map<String, Object>> players = new ArrayList<Map<String, Object>>();
-        for (PermissionEntity player : getPlayers().values()) {
-            Map<String, Object> playerMap = new LinkedHashMap<String, Object>();
-            playerMap.put("name", player.getDisplayName());
-            playerMap.put("permissions", dumpPermissions(player));
-            playerMap.put("metadata", dumpMetadata(player));
-            players.add(playerMap);
-        }
-
-        // Groups next
-        List<Map<String, Object>> groups = new ArrayList<Map<String, Object>>();
-        for (PermissionEntity group : getGroups().values()) {
-            Map<String, Object> groupMap = new LinkedHashMap<String, Object>();
-            groupMap.put("name", group.getDisplayName());
-            groupMap.put("permissions", dumpPermissions(group));
-            groupMap.put("metadata", dumpMetadata(group));
-            groupMap.put("priority", group.getPriority());
-            List<PermissionEntity> parents = group.getParents();
-            if (!parents.isEmpty()) {
-                List<String> parentNames = new ArrayList<String>(parents.size());
-                for (PermissionEntity parent : parents)
-                    parentNames.add(parent.getDisplayName());
-                groupMap.put("parents", parentNames);
+    // Stream state of entire system as YAML, one entity at a time. The
+    // result is the same as dumping everything at once, but only a single
+    // entity's (YAML-friendly) map exists at any time.
+    private long writeYaml(final Collection<PermissionEntity> players, final Collection<PermissionEntity> groups, File file) throws IOException {
+        return writeYaml(file, new YamlContent() {
+            @Override
+            public void write(Yaml yaml, Writer out) throws IOException {
+                writeYamlSequence("players", players, true, yaml, out);
+                writeYamlSequence("groups", groups, true, yaml, out);
             }
-            // Permanent members
-            List<String> members = new ArrayList<String>();
-            List<Map<String, Object>> tempMembers = new ArrayList<Map<String, Object>>();
-            for (Membership membership : group.getMemberships()) {
-                if (membership.getExpiration() == null) {
-                    members.add(membership.getMember());
-                }
-                else {
-                    Map<String, Object> tempMemberMap = new HashMap<String, Object>();
-                    tempMemberMap.put("member", membership.getMember());
-                    tempMemberMap.put("expiration", membership.getExpiration());
-
-                    tempMembers.add(tempMemberMap);
-                }
-            }
-            groupMap.put("members", members);
-            groupMap.put("tempmembers", tempMembers);
-            
-            groups.add(groupMap);
+        });
+    }
+
+    /**
+     * Write a YAML save file.
+     * 
+     * @param file the file to write
+     * @param content writes the file's top-level mapping
+     * @return number of bytes written
+     * @throws IOException
+     */
+    protected static long writeYaml(File file, YamlContent content) throws IOException {
+        DumperOptions options = new DumperOptions();
+        options.setDefaultFlowStyle(DumperOptions.FlowStyle.BLOCK);
+        Yaml yaml = new Yaml(new SafeConstructor(), new Representer(), options);
+        CountingOutputStream counter = new CountingOutputStream(new FileOutputStream(file));
+        Writer out = new BufferedWriter(new OutputStreamWriter(counter));
+        try {
+            out.write("# DO NOT EDIT -- file is written to periodically!\n");
+            content.write(yaml, out);
         }
+        finally {
+            out.close();
+        }
+        return counter.getCount();
+    }
 
-        Map<String, Object> result = new LinkedHashMap<String, Object>();
-        result.put("players", players);
-        result.put("groups", groups);
-        return result;
+    /**
+     * Write a top-level key whose value is a list of entities, one entity at
+     * a time.
+     * 
+     * @param key the key
+     * @param entities the entities
+     * @param memberships true if group members should be included
+     * @param yaml the Yaml instance given to {@link YamlContent}
+     * @param out the Writer given to {@link YamlContent}
+     * @throws IOException
+     */
+    protected void writeYamlSequence(String key, Collection<PermissionEntity> entities, boolean memberships, Yaml yaml, Writer out) throws IOException {
+        if (entities.isEmpty()) {
+            out.write(key + ": []\n");
+            return;
+        }
+        out.write(key + ":\n");
+        for (PermissionEntity entity : entities) {
+            // Block sequences inside mappings aren't indented, so each
+            // single-item list continues the one above
+            yaml.dump(Collections.singletonList(dumpEntity(entity, memberships)), out);
+        }
+    }
+
+    // Dump a single player or group to (YAML-friendly) map
+    private Map<String, Object> dumpEntity(PermissionEntity entity, boolean memberships) {
+        Map<String, Object> entityMap = new LinkedHashMap<String, Object>();
+        entityMap.put("name", entity.getDisplayName());
+        entityMap.put("permissions", dumpPermissions(entity));
+        entityMap.put("temppermissions", dumpTempPermissions(entity));
+        entityMap.put("metadata", dumpMetadata(entity));
+        if (!entity.isGroup())
+            return entityMap;
+
+        entityMap.put("priority", entity.getPriority());
+        List<PermissionEntity> parents = entity.getParents();
+        if (!parents.isEmpty()) {
+            List<String> parentNames = new ArrayList<String>(parents.size());
+            for (PermissionEntity parent : parents)
+                parentNames.add(parent.getDisplayName());
+            entityMap.put("parents", parentNames);
+        }
+        if (!memberships)
+            return entityMap;
+        // Permanent members
+        List<String> members = new ArrayList<String>();
+        List<Map<String, Object>> tempMembers = new ArrayList<Map<String, Object>>();
+        for (Membership membership : entity.getMemberships()) {
+            if (membership.getExpiration() == null) {
+                members.add(membership.getMember());
+            }
+            else {
+                Map<String, Object> tempMemberMap = new HashMap<String, Object>();
+                tempMemberMap.put("member", membership.getMember());
+                tempMemberMap.put("expiration", membership.getExpiration());
+
+                tempMembers.add(tempMemberMap);
+            }
+        }
+        entityMap.put("members", members);
+        entityMap.put("tempmembers", tempMembers);
+        return entityMap;
     }
 
     // Load state of entire system from (YAML-friendly) map
@@ -312,84 +804,109 @@ public class MemoryPermissionDao extends BaseMemoryPermissionDao {
         MemoryState memoryState = new MemoryState();
 
         for (Map<String, Object> playerMap : (List<Map<String, Object>>)input.get("players")) {
-            String name = (String)playerMap.get("name");
-            Map<String, Boolean> permissions = (Map<String, Boolean>)playerMap.get("permissions");
-            PermissionEntity player = getEntity(memoryState, name, false);
-            loadPermissions(memoryState, permissions, player);
-            Map<String, Object> metadata = (Map<String, Object>)playerMap.get("metadata");
-            if (metadata == null) // backwards compat
-                metadata = Collections.emptyMap();
-            loadMetadata(metadata, player);
+            loadPlayer(memoryState, playerMap);
         }
         
         for (Map<String, Object> groupMap : (List<Map<String, Object>>)input.get("groups")) {
-            String name = (String)groupMap.get("name");
-            Map<String, Boolean> permissions = (Map<String, Boolean>)groupMap.get("permissions");
-            Number priority = (Number)groupMap.get("priority");
-            String parent = (String)groupMap.get("parent");
-            List<String> parents = (List<String>)groupMap.get("parents");
-            List<String> members = (List<String>)groupMap.get("members");
-            List<Map<String, Object>> tempMembers = (List<Map<String, Object>>)groupMap.get("tempmembers");
-            if (tempMembers == null) // backwards compat
-                tempMembers = Collections.emptyList();
-            Map<String, Object> metadata = (Map<String, Object>)groupMap.get("metadata");
-            if (metadata == null) // backwards compat
-                metadata = Collections.emptyMap();
-
-            PermissionEntity group = getEntity(memoryState, name, true);
-            loadPermissions(memoryState, permissions, group);
-            loadMetadata(metadata, group);
-            group.setPriority(priority.intValue());
-            if (parent != null) {
-                // Backwards compatibility
-                PermissionEntity parentEntity = getEntity(memoryState, parent, true);
+            loadGroup(memoryState, groupMap);
+        }
+        
+        replaceMemoryState(memoryState);
+    }
 
+    /**
+     * Load a player from (YAML-friendly) map into a state being loaded.
+     * 
+     * @param memoryState the state being loaded
+     * @param playerMap the player's map
+     */
+    @SuppressWarnings("unchecked")
+    protected void loadPlayer(MemoryState memoryState, Map<String, Object> playerMap) {
+        String name = (String)playerMap.get("name");
+        Map<String, Boolean> permissions = (Map<String, Boolean>)playerMap.get("permissions");
+        PermissionEntity player = getEntity(memoryState, name, false);
+        loadPermissions(memoryState, permissions, player);
+        loadTempPermissions(memoryState, (List<Map<String, Object>>)playerMap.get("temppermissions"), player);
+        Map<String, Object> metadata = (Map<String, Object>)playerMap.get("metadata");
+        if (metadata == null) // backwards compat
+            metadata = Collections.emptyMap();
+        loadMetadata(metadata, player);
+    }
+
+    /**
+     * Load a group (and any members) from (YAML-friendly) map into a state
+     * being loaded.
+     * 
+     * @param memoryState the state being loaded
+     * @param groupMap the group's map
+     */
+    @SuppressWarnings("unchecked")
+    protected void loadGroup(MemoryState memoryState, Map<String, Object> groupMap) {
+        String name = (String)groupMap.get("name");
+        Map<String, Boolean> permissions = (Map<String, Boolean>)groupMap.get("permissions");
+        Number priority = (Number)groupMap.get("priority");
+        String parent = (String)groupMap.get("parent");
+        List<String> parents = (List<String>)groupMap.get("parents");
+        List<String> members = (List<String>)groupMap.get("members");
+        if (members == null) // stored elsewhere
+            members = Collections.emptyList();
+        List<Map<String, Object>> tempMembers = (List<Map<String, Object>>)groupMap.get("tempmembers");
+        if (tempMembers == null) // backwards compat
+            tempMembers = Collections.emptyList();
+        Map<String, Object> metadata = (Map<String, Object>)groupMap.get("metadata");
+        if (metadata == null) // backwards compat
+            metadata = Collections.emptyMap();
+
+        PermissionEntity group = getEntity(memoryState, name, true);
+        loadPermissions(memoryState, permissions, group);
+        loadTempPermissions(memoryState, (List<Map<String, Object>>)groupMap.get("temppermissions"), group);
+        loadMetadata(metadata, group);
+        group.setPriority(priority.intValue());
+        if (parent != null) {
+            // Backwards compatibility
+            PermissionEntity parentEntity = getEntity(memoryState, parent, true);
+
+            Inheritance i = new Inheritance();
+            i.setChild(group);
+            i.setParent(parentEntity);
+            i.setOrdering(0);
+
+            // Add to maps
+            group.getInheritancesAsChild().add(i);
+            parentEntity.getInheritancesAsParent().add(i);
+        }
+        else if (parents != null) {
+            int order = 0;
+            for (String p : parents) {
+                PermissionEntity parentEntity = getEntity(memoryState, p, true);
+                
                 Inheritance i = new Inheritance();
                 i.setChild(group);
                 i.setParent(parentEntity);
-                i.setOrdering(0);
-
+                i.setOrdering(order);
+                order += 100;
+                
                 // Add to maps
                 group.getInheritancesAsChild().add(i);
                 parentEntity.getInheritancesAsParent().add(i);
             }
-            else if (parents != null) {
-                int order = 0;
-                for (String p : parents) {
-                    PermissionEntity parentEntity = getEntity(memoryState, p, true);
-                    
-                    Inheritance i = new Inheritance();
-                    i.setChild(group);
-                    i.setParent(parentEntity);
-                    i.setOrdering(order);
-                    order += 100;
-                    
-                    // Add to maps
-                    group.getInheritancesAsChild().add(i);
-                    parentEntity.getInheritancesAsParent().add(i);
-                }
-            }
-            for (String member : members) {
-                Membership membership = new Membership();
-                membership.setMember(member.toLowerCase());
-                membership.setGroup(group);
-                group.getMemberships().add(membership);
-                
-                rememberMembership(memoryState, membership);
-            }
-            for (Map<String, Object> tempMemberMap : tempMembers) {
-                Membership membership = new Membership();
-                membership.setMember(((String)tempMemberMap.get("member")).toLowerCase());
-                membership.setGroup(group);
-                membership.setExpiration((Date)tempMemberMap.get("expiration"));
-                group.getMemberships().add(membership);
-                
-                rememberMembership(memoryState, membership);
-            }
         }
-        
-        synchronized (this) {
-            setMemoryState(memoryState);
+        for (String member : members) {
+            Membership membership = new Membership();
+            membership.setMember(member.toLowerCase());
+            membership.setGroup(group);
+            group.getMemberships().add(membership);
+            
+            rememberMembership(memoryState, membership);
+        }
+        for (Map<String, Object> tempMemberMap : tempMembers) {
+            Membership membership = new Membership();
+            membership.setMember(((String)tempMemberMap.get("member")).toLowerCase());
+            membership.setGroup(group);
+            membership.setExpiration((Date)tempMemberMap.get("expiration"));
+            group.getMemberships().add(membership);
+            
+            rememberMembership(memoryState, membership);
         }
     }
 
@@ -397,6 +914,7 @@ public class MemoryPermissionDao extends BaseMemoryPermissionDao {
     private Map<String, Boolean> dumpPermissions(PermissionEntity entity) {
         Map<String, Boolean> result = new HashMap<String, Boolean>();
         for (Entry e : entity.getPermissions()) {
+            if (e.getExpiration() != null) continue; // see dumpTempPermissions
             QualifiedPermission wp = new QualifiedPermission(e.getRegion() == null ? null : e.getRegion().getName(),
                     e.getWorld() == null ? null : e.getWorld().getName(), e.getPermission());
             result.put(wp.toString(), e.isValue());
@@ -416,8 +934,53 @@ public class MemoryPermissionDao extends BaseMemoryPermissionDao {
             entry.setValue(me.getValue());
 
             entry.setEntity(entity);
-            entity.getPermissions().add(entry);
+            if (entity.getPermissions().add(entry))
+                retainRegionAndWorld(entry);
         }
+
+        entity.updateScopedPermissions();
+    }
+
+    // Create a list that describes temporary permissions for a PermissionEntity
+    private List<Map<String, Object>> dumpTempPermissions(PermissionEntity entity) {
+        List<Map<String, Object>> result = new ArrayList<Map<String, Object>>();
+        for (Entry e : entity.getPermissions()) {
+            if (e.getExpiration() == null) continue;
+            QualifiedPermission wp = new QualifiedPermission(e.getRegion() == null ? null : e.getRegion().getName(),
+                    e.getWorld() == null ? null : e.getWorld().getName(), e.getPermission());
+            Map<String, Object> tempPermissionMap = new LinkedHashMap<String, Object>();
+            tempPermissionMap.put("permission", wp.toString());
+            tempPermissionMap.put("value", e.isValue());
+            tempPermissionMap.put("expiration", e.getExpiration());
+            if (e.getPreviousValue() != null)
+                tempPermissionMap.put("previous", e.getPreviousValue());
+            result.add(tempPermissionMap);
+        }
+        return result;
+    }
+
+    // Load temporary permissions for a PermissionEntity from a list
+    private void loadTempPermissions(MemoryState memoryState, List<Map<String, Object>> input, PermissionEntity entity) {
+        if (input == null) // backwards compat
+            return;
+
+        for (Map<String, Object> tempPermissionMap : input) {
+            Entry entry = new Entry();
+
+            QualifiedPermission wp = new QualifiedPermission((String)tempPermissionMap.get("permission"));
+            entry.setRegion(wp.getRegion() == null ? null : getRegion(memoryState, wp.getRegion()));
+            entry.setWorld(wp.getWorld() == null ? null : getWorld(memoryState, wp.getWorld()));
+            entry.setPermission(wp.getPermission().toLowerCase());
+            entry.setValue((Boolean)tempPermissionMap.get("value"));
+            entry.setExpiration((Date)tempPermissionMap.get("expiration"));
+            entry.setPreviousValue((Boolean)tempPermissionMap.get("previous"));
+
+            entry.setEntity(entity);
+            if (entity.getPermissions().add(entry))
+                retainRegionAndWorld(entry);
+        }
+
+        entity.updateScopedPermissions();
     }
 
     private Map<String, Object> dumpMetadata(PermissionEntity entity) {
@@ -458,31 +1021,49 @@ public class MemoryPermissionDao extends BaseMemoryPermissionDao {
     @Override
     protected void createEntity(PermissionEntity entity) {
         setDirty();
+        PermissionJournal current = journal;
+        if (current != null)
+            current.writeEntity(entity);
     }
 
     @Override
     protected void createOrUpdateEntry(Entry entry) {
         setDirty();
+        PermissionJournal current = journal;
+        if (current != null)
+            current.writeEntry(entry);
     }
 
     @Override
     protected void deleteEntry(Entry entry) {
         setDirty();
+        PermissionJournal current = journal;
+        if (current != null)
+            current.writeDeleteEntry(entry);
     }
 
     @Override
     protected void createOrUpdateMembership(Membership membership) {
         setDirty();
+        PermissionJournal current = journal;
+        if (current != null)
+            current.writeMembership(membership);
     }
 
     @Override
     protected void deleteEntity(PermissionEntity entity) {
         setDirty();
+        PermissionJournal current = journal;
+        if (current != null)
+            current.writeDeleteEntity(entity);
     }
 
     @Override
     protected void deleteMembership(Membership membership) {
         setDirty();
+        PermissionJournal current = journal;
+        if (current != null)
+            current.writeDeleteMembership(membership);
     }
 
     @Override
@@ -493,6 +1074,9 @@ public class MemoryPermissionDao extends BaseMemoryPermissionDao {
     @Override
     protected void setEntityPriority(PermissionEntity entity, int priority) {
         setDirty();
+        PermissionJournal current = journal;
+        if (current != null)
+            current.writePriority(entity, priority);
     }
 
     @Override
@@ -508,21 +1092,76 @@ public class MemoryPermissionDao extends BaseMemoryPermissionDao {
     @Override
     protected void createOrUpdateMetadata(EntityMetadata metadata) {
         setDirty();
+        PermissionJournal current = journal;
+        if (current != null)
+            current.writeMetadata(metadata);
     }
 
     @Override
     protected void deleteMetadata(EntityMetadata metadata) {
         setDirty();
+        PermissionJournal current = journal;
+        if (current != null)
+            current.writeDeleteMetadata(metadata);
     }
 
     @Override
     protected void createOrUpdateInheritance(Inheritance inheritance) {
         setDirty();
+        PermissionJournal current = journal;
+        if (current != null)
+            current.writeInheritance(inheritance);
     }
 
     @Override
     protected void deleteInheritance(Inheritance inheritance) {
         setDirty();
+        PermissionJournal current = journal;
+        if (current != null)
+            current.writeDeleteInheritance(inheritance);
+    }
+
+    /**
+     * Writes the content of a YAML save file.
+     */
+    protected interface YamlContent {
+
+        /**
+         * Write the file's top-level mapping.
+         * 
+         * @param yaml Yaml instance to dump values with
+         * @param out the output
+         * @throws IOException
+         */
+        public void write(Yaml yaml, Writer out) throws IOException;
+
+    }
+
+    // Counts bytes written through it
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        public CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
     }
 
 }
@@ -18,10 +18,6 @@ package org.tyrannyofheaven.bukkit.zPermissions.dao;
 import java.util.Date;
 import java.util.List;
 
-import org.tyrannyofheaven.bukkit.zPermissions.model.Entry;
-import org.tyrannyofheaven.bukkit.zPermissions.model.Membership;
-import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionEntity;
-
 /**
  * Data access object for zPermissions. This isn't actually a pure DAO as it
  * contains some business logic &mdash; {@link #setGroup(String, String, Date)} being the
@@ -34,27 +30,23 @@ import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionEntity;
  * 
  * @author asaddi
  */
-public interface PermissionDao {
-
-    public Boolean getPermission(String name, boolean group, String region, String world, String permission);
+public interface PermissionDao extends ReadOnlyPermissionDao {
 
     public void setPermission(String name, boolean group, String region, String world, String permission, boolean value);
 
+    // Expiration is null for a permanent entry
+    public void setPermission(String name, boolean group, String region, String world, String permission, boolean value, Date expiration);
+
     public boolean unsetPermission(String name, boolean group, String region, String world, String permission);
 
+    // Drops expired temporary entries, restoring the permanent values they
+    // overrode. A null name purges every player and group.
+    public int purgeExpiredPermissions(String name, boolean group);
+
     public void addMember(String groupName, String member, Date expiration);
     
     public boolean removeMember(String groupName, String member);
 
-    // NB: Resolver critical path
-    public List<Membership> getGroups(String member);
-
-    public List<Membership> getMembers(String group);
-
-    public PermissionEntity getEntity(String name, boolean group);
-
-    public List<PermissionEntity> getEntities(boolean group);
-
     public void setGroup(String playerName, String groupName, Date expiration);
 
     // Technically deprecated
@@ -66,18 +58,8 @@ public interface PermissionDao {
 
     public boolean deleteEntity(String name, boolean group);
 
-    // NB: Resolver critical path
-    public List<String> getAncestry(String groupName);
-
-    // NB: Resolver critical path
-    public List<Entry> getEntries(String name, boolean group);
-
     public boolean createGroup(String name);
     
-    public List<String> getEntityNames(boolean group);
-
-    public Object getMetadata(String name, boolean group, String metadataName);
-
     public void setMetadata(String name, boolean group, String metadataName, Object value);
 
     public boolean unsetMetadata(String name, boolean group, String metadataName);
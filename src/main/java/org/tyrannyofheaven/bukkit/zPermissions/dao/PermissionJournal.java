@@ -0,0 +1,582 @@
+/*
+ * Copyright 2012 Allan Saddi <allan@saddi.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.zPermissions.dao;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.tyrannyofheaven.bukkit.zPermissions.model.EntityMetadata;
+import org.tyrannyofheaven.bukkit.zPermissions.model.Entry;
+import org.tyrannyofheaven.bukkit.zPermissions.model.Inheritance;
+import org.tyrannyofheaven.bukkit.zPermissions.model.Membership;
+import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionEntity;
+
+/**
+ * Append-only log of changes made to a {@link MemoryPermissionDao} since it
+ * was last saved. Each record describes the final state of a single thing
+ * (a permission, membership, metadata value, etc.) rather than how it
+ * changed, so replaying records that the loaded data already reflects is
+ * harmless.
+ *
+ * <p>Records are length-prefixed, so a record torn by a crash is detected
+ * and discarded on replay.
+ *
+ * @author asaddi
+ */
+class PermissionJournal {
+
+    private static final byte ENTITY = 1;
+
+    private static final byte DELETE_ENTITY = 2;
+
+    private static final byte ENTRY = 3;
+
+    private static final byte DELETE_ENTRY = 4;
+
+    private static final byte MEMBERSHIP = 5;
+
+    private static final byte DELETE_MEMBERSHIP = 6;
+
+    private static final byte PRIORITY = 7;
+
+    private static final byte INHERITANCE = 8;
+
+    private static final byte DELETE_INHERITANCE = 9;
+
+    private static final byte METADATA = 10;
+
+    private static final byte DELETE_METADATA = 11;
+
+    private static final byte STRING_VALUE = 0;
+
+    private static final byte INTEGER_VALUE = 1;
+
+    private static final byte REAL_VALUE = 2;
+
+    private static final byte BOOLEAN_VALUE = 3;
+
+    private static final Logger logger = Logger.getLogger(PermissionJournal.class.getName());
+
+    private final File file;
+
+    private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream();
+
+    private final DataOutputStream record = new DataOutputStream(recordBuffer);
+
+    private DataOutputStream out;
+
+    // First write error since the last flush, if any
+    private IOException failure;
+
+    PermissionJournal(File file) throws IOException {
+        this.file = file;
+        open();
+    }
+
+    // Name of the file holding records that are being folded into a save
+    static File getRotatedFile(File file) {
+        return new File(file.getParentFile(), file.getName() + ".old");
+    }
+
+    private void open() throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    }
+
+    synchronized void writeEntity(PermissionEntity entity) {
+        try {
+            record.writeByte(ENTITY);
+            record.writeUTF(entity.getDisplayName());
+            record.writeBoolean(entity.isGroup());
+            append();
+        }
+        catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    synchronized void writeDeleteEntity(PermissionEntity entity) {
+        try {
+            record.writeByte(DELETE_ENTITY);
+            record.writeUTF(entity.getName());
+            record.writeBoolean(entity.isGroup());
+            append();
+        }
+        catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    synchronized void writeEntry(Entry entry) {
+        try {
+            record.writeByte(ENTRY);
+            writeEntryKey(entry);
+            record.writeBoolean(entry.isValue());
+            writeDate(entry.getExpiration());
+            append();
+        }
+        catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    synchronized void writeDeleteEntry(Entry entry) {
+        try {
+            record.writeByte(DELETE_ENTRY);
+            writeEntryKey(entry);
+            append();
+        }
+        catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    synchronized void writeMembership(Membership membership) {
+        try {
+            record.writeByte(MEMBERSHIP);
+            record.writeUTF(membership.getGroup().getDisplayName());
+            record.writeUTF(membership.getMember());
+            writeDate(membership.getExpiration());
+            append();
+        }
+        catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    synchronized void writeDeleteMembership(Membership membership) {
+        try {
+            record.writeByte(DELETE_MEMBERSHIP);
+            record.writeUTF(membership.getGroup().getName());
+            record.writeUTF(membership.getMember());
+            append();
+        }
+        catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    synchronized void writePriority(PermissionEntity entity, int priority) {
+        try {
+            record.writeByte(PRIORITY);
+            record.writeUTF(entity.getName());
+            record.writeInt(priority);
+            append();
+        }
+        catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    synchronized void writeInheritance(Inheritance inheritance) {
+        try {
+            record.writeByte(INHERITANCE);
+            record.writeUTF(inheritance.getChild().getName());
+            record.writeUTF(inheritance.getParent().getName());
+            record.writeInt(inheritance.getOrdering());
+            append();
+        }
+        catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    synchronized void writeDeleteInheritance(Inheritance inheritance) {
+        try {
+            record.writeByte(DELETE_INHERITANCE);
+            record.writeUTF(inheritance.getChild().getName());
+            record.writeUTF(inheritance.getParent().getName());
+            append();
+        }
+        catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    synchronized void writeMetadata(EntityMetadata metadata) {
+        try {
+            record.writeByte(METADATA);
+            record.writeUTF(metadata.getEntity().getDisplayName());
+            record.writeBoolean(metadata.getEntity().isGroup());
+            record.writeUTF(metadata.getName());
+            Object value = metadata.getValue();
+            if (value instanceof String) {
+                record.writeByte(STRING_VALUE);
+                record.writeUTF((String)value);
+            }
+            else if (value instanceof Long) {
+                record.writeByte(INTEGER_VALUE);
+                record.writeLong((Long)value);
+            }
+            else if (value instanceof Double) {
+                record.writeByte(REAL_VALUE);
+                record.writeDouble((Double)value);
+            }
+            else {
+                record.writeByte(BOOLEAN_VALUE);
+                record.writeBoolean((Boolean)value);
+            }
+            append();
+        }
+        catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    synchronized void writeDeleteMetadata(EntityMetadata metadata) {
+        try {
+            record.writeByte(DELETE_METADATA);
+            record.writeUTF(metadata.getEntity().getName());
+            record.writeBoolean(metadata.getEntity().isGroup());
+            record.writeUTF(metadata.getName());
+            append();
+        }
+        catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Write out all records appended so far.
+     *
+     * @throws IOException if this or any previous append failed
+     */
+    synchronized void flush() throws IOException {
+        if (failure != null) {
+            IOException e = failure;
+            failure = null;
+            throw e;
+        }
+        out.flush();
+    }
+
+    /**
+     * Set aside the records appended so far and start a fresh journal. The
+     * set-aside records are kept until {@link #deleteRotated()} is called,
+     * and are picked up by the next rotation if that never happens. Writers
+     * must be excluded while this runs. If the records can't be set aside,
+     * the journal is reopened as it was, so nothing appended later is lost.
+     *
+     * @throws IOException
+     */
+    synchronized void rotate() throws IOException {
+        try {
+            out.close();
+            failure = null; // a save is about to capture everything anyway
+
+            File rotated = getRotatedFile(file);
+            if (rotated.exists()) {
+                // Previous save never completed, keep its records too
+                InputStream in = new FileInputStream(file);
+                try {
+                    OutputStream os = new FileOutputStream(rotated, true);
+                    try {
+                        byte[] buffer = new byte[8192];
+                        int len;
+                        while ((len = in.read(buffer)) > 0)
+                            os.write(buffer, 0, len);
+                    }
+                    finally {
+                        os.close();
+                    }
+                }
+                finally {
+                    in.close();
+                }
+                if (!file.delete())
+                    throw new IOException("Error deleting " + file);
+            }
+            else if (file.exists() && !renameTo(file, rotated)) {
+                throw new IOException(String.format("Error renaming %s to %s", file, rotated));
+            }
+        }
+        finally {
+            // Always leave a writable journal behind
+            open();
+        }
+    }
+
+    // Separate so tests can make it fail
+    boolean renameTo(File from, File to) {
+        return from.renameTo(to);
+    }
+
+    /**
+     * Discard the records set aside by {@link #rotate()}, once they have been
+     * safely saved.
+     */
+    synchronized void deleteRotated() {
+        File rotated = getRotatedFile(file);
+        if (rotated.exists() && !rotated.delete())
+            logger.log(Level.WARNING, "Error deleting " + rotated);
+    }
+
+    synchronized void close() {
+        try {
+            out.close();
+        }
+        catch (IOException e) {
+            logger.log(Level.WARNING, "Error closing " + file, e);
+        }
+    }
+
+    private void writeEntryKey(Entry entry) throws IOException {
+        record.writeUTF(entry.getEntity().getDisplayName());
+        record.writeBoolean(entry.getEntity().isGroup());
+        writeString(entry.getRegion() == null ? null : entry.getRegion().getName());
+        writeString(entry.getWorld() == null ? null : entry.getWorld().getName());
+        record.writeUTF(entry.getPermission());
+    }
+
+    private void writeString(String value) throws IOException {
+        record.writeBoolean(value != null);
+        if (value != null)
+            record.writeUTF(value);
+    }
+
+    private void writeDate(Date value) throws IOException {
+        record.writeBoolean(value != null);
+        if (value != null)
+            record.writeLong(value.getTime());
+    }
+
+    // Append the buffered record as a single length-prefixed unit
+    private void append() throws IOException {
+        try {
+            if (failure == null) {
+                out.writeInt(recordBuffer.size());
+                recordBuffer.writeTo(out);
+            }
+        }
+        finally {
+            recordBuffer.reset();
+        }
+    }
+
+    private void fail(IOException e) {
+        recordBuffer.reset();
+        if (failure == null)
+            failure = e;
+    }
+
+    /**
+     * Apply the records of a journal file to a DAO. A torn record at the end
+     * of the file (and anything after it) is discarded.
+     *
+     * @param file the journal file
+     * @param dao the DAO to apply records to. Caller should hold its write lock.
+     * @return the number of records applied
+     * @throws IOException
+     */
+    static int replay(File file, MemoryPermissionDao dao) throws IOException {
+        if (!file.exists())
+            return 0;
+
+        int count = 0;
+        long goodLength = 0L;
+        boolean torn = false;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                byte[] data;
+                try {
+                    int length = in.readInt();
+                    if (length < 0) {
+                        torn = true;
+                        break;
+                    }
+                    data = new byte[length];
+                    in.readFully(data);
+                }
+                catch (EOFException e) {
+                    // Either the clean end of the file or a torn record
+                    torn = goodLength != file.length();
+                    break;
+                }
+
+                try {
+                    apply(new DataInputStream(new ByteArrayInputStream(data)), dao);
+                    count++;
+                }
+                catch (DaoException e) {
+                    logger.log(Level.WARNING, "Skipping journal record: " + e.getMessage());
+                }
+                catch (IllegalArgumentException e) {
+                    logger.log(Level.WARNING, "Skipping journal record: " + e.getMessage());
+                }
+                catch (IOException e) {
+                    logger.log(Level.WARNING, "Skipping malformed journal record: " + e.getMessage());
+                }
+                goodLength += 4 + data.length;
+            }
+        }
+        finally {
+            in.close();
+        }
+
+        if (torn) {
+            logger.log(Level.WARNING, String.format("Discarding incomplete record at end of %s", file));
+            // Truncate so records appended later aren't hidden behind it
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(goodLength);
+            }
+            finally {
+                raf.close();
+            }
+        }
+
+        dao.rebuildAncestry();
+        return count;
+    }
+
+    private static void apply(DataInputStream in, MemoryPermissionDao dao) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+        case ENTITY: {
+            String name = in.readUTF();
+            boolean group = in.readBoolean();
+            dao.getEntity(name, group, true);
+            break;
+        }
+        case DELETE_ENTITY: {
+            String name = in.readUTF();
+            boolean group = in.readBoolean();
+            dao.deleteEntity(name, group);
+            break;
+        }
+        case ENTRY: {
+            String name = in.readUTF();
+            boolean group = in.readBoolean();
+            String region = readString(in);
+            String world = readString(in);
+            String permission = in.readUTF();
+            boolean value = in.readBoolean();
+            Date expiration = readDate(in);
+            dao.setPermission(name, group, region, world, permission, value, expiration);
+            break;
+        }
+        case DELETE_ENTRY: {
+            String name = in.readUTF();
+            boolean group = in.readBoolean();
+            String region = readString(in);
+            String world = readString(in);
+            String permission = in.readUTF();
+            dao.unsetPermission(name, group, region, world, permission);
+            break;
+        }
+        case MEMBERSHIP: {
+            String groupName = in.readUTF();
+            String member = in.readUTF();
+            Date expiration = readDate(in);
+            dao.addMember(groupName, member, expiration);
+            break;
+        }
+        case DELETE_MEMBERSHIP: {
+            String groupName = in.readUTF();
+            String member = in.readUTF();
+            dao.removeMember(groupName, member);
+            break;
+        }
+        case PRIORITY: {
+            String groupName = in.readUTF();
+            int priority = in.readInt();
+            dao.setPriority(groupName, priority);
+            break;
+        }
+        case INHERITANCE:
+        case DELETE_INHERITANCE: {
+            String childName = in.readUTF();
+            String parentName = in.readUTF();
+            PermissionEntity child = dao.getEntity(childName, true, false);
+            PermissionEntity parent = dao.getEntity(parentName, true, false);
+            if (child == null || parent == null)
+                throw new MissingGroupException(child == null ? childName : parentName);
+            // Restore the inheritance exactly as recorded. setParents() would
+            // renumber orderings. Ancestry is rebuilt once replay is done.
+            for (Iterator<Inheritance> i = child.getInheritancesAsChild().iterator(); i.hasNext();) {
+                Inheritance inheritance = i.next();
+                if (inheritance.getParent().equals(parent)) {
+                    i.remove();
+                    parent.getInheritancesAsParent().remove(inheritance);
+                }
+            }
+            if (type == INHERITANCE) {
+                Inheritance inheritance = new Inheritance();
+                inheritance.setChild(child);
+                inheritance.setParent(parent);
+                inheritance.setOrdering(in.readInt());
+                child.getInheritancesAsChild().add(inheritance);
+                parent.getInheritancesAsParent().add(inheritance);
+            }
+            BaseMemoryPermissionDao.touch(child);
+            BaseMemoryPermissionDao.touch(parent);
+            dao.setDirty();
+            break;
+        }
+        case METADATA: {
+            String name = in.readUTF();
+            boolean group = in.readBoolean();
+            String metadataName = in.readUTF();
+            Object value;
+            byte valueType = in.readByte();
+            if (valueType == STRING_VALUE)
+                value = in.readUTF();
+            else if (valueType == INTEGER_VALUE)
+                value = in.readLong();
+            else if (valueType == REAL_VALUE)
+                value = in.readDouble();
+            else
+                value = in.readBoolean();
+            dao.setMetadata(name, group, metadataName, value);
+            break;
+        }
+        case DELETE_METADATA: {
+            String name = in.readUTF();
+            boolean group = in.readBoolean();
+            String metadataName = in.readUTF();
+            dao.unsetMetadata(name, group, metadataName);
+            break;
+        }
+        default:
+            throw new IOException("Unknown record type " + type);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static Date readDate(DataInputStream in) throws IOException {
+        return in.readBoolean() ? new Date(in.readLong()) : null;
+    }
+
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2012 Allan Saddi <allan@saddi.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.zPermissions.dao;
+
+import java.util.List;
+import java.util.Set;
+
+import org.tyrannyofheaven.bukkit.zPermissions.model.Entry;
+import org.tyrannyofheaven.bukkit.zPermissions.model.Membership;
+import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionEntity;
+
+/**
+ * The read-only half of {@link PermissionDao}. Read-only snapshots (see
+ * {@link BaseMemoryPermissionDao#getReadOnlySnapshot()}) only implement this.
+ * 
+ * @author asaddi
+ */
+public interface ReadOnlyPermissionDao {
+
+    public Boolean getPermission(String name, boolean group, String region, String world, String permission);
+
+    // NB: Resolver critical path
+    public List<Membership> getGroups(String member);
+
+    public List<Membership> getMembers(String group);
+
+    public PermissionEntity getEntity(String name, boolean group);
+
+    public List<PermissionEntity> getEntities(boolean group);
+
+    // NB: Resolver critical path
+    public List<String> getAncestry(String groupName);
+
+    // NB: Resolver critical path
+    public List<Entry> getEntries(String name, boolean group);
+
+    // NB: Resolver critical path
+    public List<Entry> getEntries(String name, boolean group, String world, Set<String> regions);
+
+    // NB: Resolver critical path
+    public Set<String> getRegionNames(String name, boolean group);
+
+    // Names of all regions referenced by any entry
+    public Set<String> getRegionNames();
+
+    public List<String> getEntityNames(boolean group);
+
+    public Object getMetadata(String name, boolean group, String metadataName);
+
+    // NB: Resolver critical path
+    public long getGroupGeneration(String groupName);
+
+}
@@ -0,0 +1,503 @@
+/*
+ * Copyright 2012 Allan Saddi <allan@saddi.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.zPermissions.dao;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.tyrannyofheaven.bukkit.zPermissions.model.EntityMetadata;
+import org.tyrannyofheaven.bukkit.zPermissions.model.Entry;
+import org.tyrannyofheaven.bukkit.zPermissions.model.Inheritance;
+import org.tyrannyofheaven.bukkit.zPermissions.model.Membership;
+import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionEntity;
+import org.yaml.snakeyaml.Yaml;
+
+/**
+ * Flat-file based PermissionDao that spreads its data over many small files
+ * so saves only rewrite the files that changed. All groups are kept in one
+ * file (without their members). Players and memberships are hashed by
+ * player name into a fixed number of shard files.
+ *
+ * @author asaddi
+ */
+public class ShardedMemoryPermissionDao extends MemoryPermissionDao {
+
+    private static final String GROUPS_FILENAME = "groups.yml";
+
+    private static final String SHARD_FILENAME_FORMAT = "players-%03d.yml";
+
+    private static final String SHARD_FILENAME_PREFIX = "players-";
+
+    private static final String SHARD_FILENAME_SUFFIX = ".yml";
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+
+    private final int shardCount;
+
+    // Shards changed since the last save
+    private final Set<Integer> dirtyShards = new HashSet<Integer>(); // synchronized on this
+
+    private boolean groupsDirty; // synchronized on this
+
+    // Shard files that no longer belong to any shard, deleted on next save
+    private final Set<File> staleFiles = new HashSet<File>(); // synchronized on this
+
+    public ShardedMemoryPermissionDao(int shardCount) {
+        if (shardCount < 1)
+            throw new IllegalArgumentException("shardCount must be positive");
+        this.shardCount = shardCount;
+    }
+
+    /**
+     * Returns whether the given directory holds sharded data.
+     *
+     * @param directory the directory
+     * @return true if it does
+     */
+    public static boolean exists(File directory) {
+        return new File(directory, GROUPS_FILENAME).exists();
+    }
+
+    // Shard a player (or member) belongs in
+    private int shardOf(String name) {
+        return (name.toLowerCase().hashCode() & 0x7fffffff) % shardCount;
+    }
+
+    private File getShardFile(File directory, int shard) {
+        return new File(directory, String.format(SHARD_FILENAME_FORMAT, shard));
+    }
+
+    private synchronized void markShard(String name) {
+        dirtyShards.add(shardOf(name));
+    }
+
+    private synchronized void markGroups() {
+        groupsDirty = true;
+    }
+
+    private void markEntity(PermissionEntity entity) {
+        if (entity.isGroup())
+            markGroups();
+        else
+            markShard(entity.getName());
+    }
+
+    /**
+     * Mark everything as changed, e.g. so all files are written after
+     * loading from another format.
+     */
+    public synchronized void markAllDirty() {
+        for (int i = 0; i < shardCount; i++)
+            dirtyShards.add(i);
+        groupsDirty = true;
+        setDirty();
+    }
+
+    /**
+     * Load state of entire system from a directory written by
+     * {@link #saveShards(File)}. Shard files are parsed in parallel.
+     *
+     * @param directory the directory to load from
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    public void loadShards(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null)
+            throw new IOException("Error listing " + directory);
+        final List<File> shardFiles = new ArrayList<File>();
+        for (File file : files) {
+            if (file.getName().startsWith(SHARD_FILENAME_PREFIX) && file.getName().endsWith(SHARD_FILENAME_SUFFIX))
+                shardFiles.add(file);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), shardFiles.size())));
+        try {
+            List<Future<Map<String, Object>>> shards = new ArrayList<Future<Map<String, Object>>>(shardFiles.size());
+            for (final File file : shardFiles) {
+                shards.add(executor.submit(new Callable<Map<String, Object>>() {
+                    @Override
+                    public Map<String, Object> call() throws Exception {
+                        return readYaml(file);
+                    }
+                }));
+            }
+
+            MemoryState memoryState = new MemoryState();
+
+            // Groups first, memberships refer to them
+            Map<String, Object> groupsInput = readYaml(new File(directory, GROUPS_FILENAME));
+            if (groupsInput != null) {
+                for (Map<String, Object> groupMap : (List<Map<String, Object>>)groupsInput.get("groups")) {
+                    loadGroup(memoryState, groupMap);
+                }
+            }
+
+            Set<Integer> misplaced = new HashSet<Integer>();
+            Set<File> stale = new HashSet<File>();
+            for (int i = 0; i < shardFiles.size(); i++) {
+                File file = shardFiles.get(i);
+                Map<String, Object> input = shards.get(i).get();
+                Integer fileShard = getShardIndex(directory, file);
+                if (fileShard == null)
+                    stale.add(file); // left over from a larger shard count
+                if (input == null)
+                    continue;
+
+                List<Map<String, Object>> players = (List<Map<String, Object>>)input.get("players");
+                if (players != null) {
+                    for (Map<String, Object> playerMap : players) {
+                        loadPlayer(memoryState, playerMap);
+                        checkShard(fileShard, (String)playerMap.get("name"), misplaced);
+                    }
+                }
+
+                List<Map<String, Object>> memberships = (List<Map<String, Object>>)input.get("memberships");
+                if (memberships != null) {
+                    for (Map<String, Object> membershipMap : memberships) {
+                        String member = ((String)membershipMap.get("member")).toLowerCase();
+                        String groupName = (String)membershipMap.get("group");
+                        PermissionEntity group = memoryState.getGroups().get(groupName.toLowerCase());
+                        if (group == null) {
+                            logger.log(Level.WARNING, String.format("Ignoring membership of %s in missing group %s", member, groupName));
+                            continue;
+                        }
+
+                        Membership membership = new Membership();
+                        membership.setMember(member);
+                        membership.setGroup(group);
+                        membership.setExpiration((Date)membershipMap.get("expiration"));
+                        group.getMemberships().add(membership);
+
+                        rememberMembership(memoryState, membership);
+                        checkShard(fileShard, member, misplaced);
+                    }
+                }
+            }
+
+            replaceMemoryState(memoryState);
+
+            synchronized (this) {
+                dirtyShards.clear();
+                dirtyShards.addAll(misplaced);
+                groupsDirty = false;
+                staleFiles.clear();
+                staleFiles.addAll(stale);
+            }
+            if (misplaced.isEmpty() && stale.isEmpty())
+                clearDirty();
+            else
+                setDirty(); // e.g. shard count changed
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading " + directory);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            throw new DaoException(e.getCause());
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    // Index of the shard the given file holds, or null if it isn't one of ours
+    private Integer getShardIndex(File directory, File file) {
+        String name = file.getName();
+        try {
+            int shard = Integer.parseInt(name.substring(SHARD_FILENAME_PREFIX.length(), name.length() - SHARD_FILENAME_SUFFIX.length()));
+            if (shard >= 0 && shard < shardCount && file.equals(getShardFile(directory, shard)))
+                return shard;
+        }
+        catch (NumberFormatException e) {
+            // not ours
+        }
+        return null;
+    }
+
+    // If a name was loaded from the wrong shard file (e.g. the number of shards
+    // changed), both its proper shard and the one it came from must be
+    // rewritten
+    private void checkShard(Integer fileShard, String name, Set<Integer> misplaced) {
+        int shard = shardOf(name);
+        if (fileShard == null || fileShard != shard) {
+            misplaced.add(shard);
+            if (fileShard != null)
+                misplaced.add(fileShard);
+        }
+    }
+
+    /**
+     * Save changed shards to the given directory.
+     *
+     * @param directory the directory to save to
+     * @return number of bytes written, or -1 if nothing was saved
+     * @throws IOException
+     */
+    public long saveShards(File directory) throws IOException {
+        if (!isDirty()) return -1L;
+
+        // Capture a consistent view along with the shards it covers
+        ReadOnlyPermissionDao view;
+        Set<Integer> shards;
+        boolean groups;
+        Set<File> stale;
+        PermissionJournal currentJournal = getJournal();
+        getLock().readLock().lock();
+        try {
+            view = updateSnapshot();
+            if (currentJournal != null)
+                currentJournal.rotate();
+            synchronized (this) {
+                shards = new HashSet<Integer>(dirtyShards);
+                dirtyShards.clear();
+                groups = groupsDirty;
+                groupsDirty = false;
+                stale = new HashSet<File>(staleFiles);
+            }
+            clearDirty();
+        }
+        finally {
+            getLock().readLock().unlock();
+        }
+
+        if (!directory.exists() && !directory.mkdirs()) {
+            restoreDirty(shards, groups);
+            throw new IOException("Error creating " + directory);
+        }
+
+        // Bucket what needs writing
+        final Map<Integer, List<PermissionEntity>> players = new LinkedHashMap<Integer, List<PermissionEntity>>();
+        final Map<Integer, List<Membership>> memberships = new LinkedHashMap<Integer, List<Membership>>();
+        for (Integer shard : shards) {
+            players.put(shard, new ArrayList<PermissionEntity>());
+            memberships.put(shard, new ArrayList<Membership>());
+        }
+        if (!shards.isEmpty()) {
+            for (PermissionEntity player : view.getEntities(false)) {
+                List<PermissionEntity> bucket = players.get(shardOf(player.getName()));
+                if (bucket != null)
+                    bucket.add(player);
+            }
+        }
+        final List<PermissionEntity> groupEntities = view.getEntities(true);
+        if (!shards.isEmpty()) {
+            for (PermissionEntity group : groupEntities) {
+                for (Membership membership : group.getMemberships()) {
+                    List<Membership> bucket = memberships.get(shardOf(membership.getMember()));
+                    if (bucket != null)
+                        bucket.add(membership);
+                }
+            }
+        }
+
+        long written = 0L;
+        IOException failure = null;
+        if (groups) {
+            try {
+                written += writeFile(new File(directory, GROUPS_FILENAME), new YamlContent() {
+                    @Override
+                    public void write(Yaml yaml, Writer out) throws IOException {
+                        writeYamlSequence("groups", groupEntities, false, yaml, out);
+                    }
+                });
+            }
+            catch (IOException e) {
+                failure = e;
+                markGroups();
+            }
+        }
+        for (final Integer shard : shards) {
+            try {
+                written += writeFile(getShardFile(directory, shard), new YamlContent() {
+                    @Override
+                    public void write(Yaml yaml, Writer out) throws IOException {
+                        writeYamlSequence("players", players.get(shard), false, yaml, out);
+                        writeMemberships(memberships.get(shard), yaml, out);
+                    }
+                });
+            }
+            catch (IOException e) {
+                if (failure == null)
+                    failure = e;
+                synchronized (this) {
+                    dirtyShards.add(shard);
+                }
+            }
+        }
+
+        if (failure != null) {
+            // Rotated journal records stay until everything is written
+            setDirty();
+            throw failure;
+        }
+        if (currentJournal != null)
+            currentJournal.deleteRotated();
+
+        // Everything that was in them has been written elsewhere by now
+        for (File file : stale) {
+            if (file.exists() && !file.delete())
+                logger.log(Level.WARNING, "Error deleting " + file);
+            new File(file.getParentFile(), file.getName() + "~").delete(); // backup, if any
+        }
+        synchronized (this) {
+            staleFiles.removeAll(stale);
+        }
+
+        return written;
+    }
+
+    // Put back what a failed save took
+    private void restoreDirty(Set<Integer> shards, boolean groups) {
+        synchronized (this) {
+            dirtyShards.addAll(shards);
+            if (groups)
+                groupsDirty = true;
+        }
+        setDirty();
+    }
+
+    private long writeFile(File file, YamlContent content) throws IOException {
+        File newFile = new File(file.getParentFile(), file.getName() + ".new");
+        long written = writeYaml(newFile, content);
+        if (!replaceFile(newFile, file))
+            throw new IOException("Error replacing " + file);
+        return written;
+    }
+
+    private void writeMemberships(Collection<Membership> memberships, Yaml yaml, Writer out) throws IOException {
+        if (memberships.isEmpty()) {
+            out.write("memberships: []\n");
+            return;
+        }
+        out.write("memberships:\n");
+        for (Membership membership : memberships) {
+            Map<String, Object> membershipMap = new LinkedHashMap<String, Object>();
+            membershipMap.put("member", membership.getMember());
+            membershipMap.put("group", membership.getGroup().getDisplayName());
+            if (membership.getExpiration() != null)
+                membershipMap.put("expiration", membership.getExpiration());
+            yaml.dump(Collections.singletonList(membershipMap), out);
+        }
+    }
+
+    @Override
+    public int replayJournal(File journalFile) throws IOException {
+        int replayed = super.replayJournal(journalFile);
+        // Replay doesn't go through every hook (e.g. inheritances)
+        if (replayed > 0)
+            markAllDirty();
+        return replayed;
+    }
+
+    @Override
+    protected void createEntity(PermissionEntity entity) {
+        super.createEntity(entity);
+        markEntity(entity);
+    }
+
+    @Override
+    protected void createOrUpdateEntry(Entry entry) {
+        super.createOrUpdateEntry(entry);
+        markEntity(entry.getEntity());
+    }
+
+    @Override
+    protected void deleteEntry(Entry entry) {
+        super.deleteEntry(entry);
+        markEntity(entry.getEntity());
+    }
+
+    @Override
+    protected void createOrUpdateMembership(Membership membership) {
+        super.createOrUpdateMembership(membership);
+        markShard(membership.getMember());
+    }
+
+    @Override
+    protected void deleteEntity(PermissionEntity entity) {
+        super.deleteEntity(entity);
+        markEntity(entity);
+        if (entity.isGroup()) {
+            // Its memberships go without individual deleteMembership calls
+            for (Membership membership : entity.getMemberships()) {
+                markShard(membership.getMember());
+            }
+        }
+    }
+
+    @Override
+    protected void deleteMembership(Membership membership) {
+        super.deleteMembership(membership);
+        markShard(membership.getMember());
+    }
+
+    @Override
+    protected void setEntityParent(PermissionEntity entity, PermissionEntity parent) {
+        super.setEntityParent(entity, parent);
+        markGroups();
+    }
+
+    @Override
+    protected void setEntityPriority(PermissionEntity entity, int priority) {
+        super.setEntityPriority(entity, priority);
+        markGroups();
+    }
+
+    @Override
+    protected void createOrUpdateMetadata(EntityMetadata metadata) {
+        super.createOrUpdateMetadata(metadata);
+        markEntity(metadata.getEntity());
+    }
+
+    @Override
+    protected void deleteMetadata(EntityMetadata metadata) {
+        super.deleteMetadata(metadata);
+        markEntity(metadata.getEntity());
+    }
+
+    @Override
+    protected void createOrUpdateInheritance(Inheritance inheritance) {
+        super.createOrUpdateInheritance(inheritance);
+        markGroups();
+    }
+
+    @Override
+    protected void deleteInheritance(Inheritance inheritance) {
+        super.deleteInheritance(inheritance);
+        markGroups();
+    }
+
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright 2012 Allan Saddi <allan@saddi.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.zPermissions.dao;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.tyrannyofheaven.bukkit.zPermissions.model.EntityMetadata;
+import org.tyrannyofheaven.bukkit.zPermissions.model.Entry;
+import org.tyrannyofheaven.bukkit.zPermissions.model.Inheritance;
+import org.tyrannyofheaven.bukkit.zPermissions.model.Membership;
+import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionEntity;
+
+/**
+ * PermissionDao that serves everything from memory, like MemoryPermissionDao,
+ * but persists each changed group, player, or membership as its own record
+ * in a {@link KeyValueStore}. Changes are batched and written by
+ * {@link #flush(KeyValueStore)}, so persisting a change never rewrites
+ * anything but the records it touched.
+ *
+ * <p>Keys are <code>g:&lt;group&gt;</code> and <code>p:&lt;player&gt;</code>
+ * (the binary snapshot format of that single entity, without members) and
+ * <code>m:&lt;member&gt;:&lt;group&gt;</code> (the membership's expiration,
+ * if any).
+ *
+ * @author asaddi
+ */
+public class StoredMemoryPermissionDao extends MemoryPermissionDao {
+
+    private static final String GROUP_PREFIX = "g:";
+
+    private static final String PLAYER_PREFIX = "p:";
+
+    private static final String MEMBERSHIP_PREFIX = "m:";
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+
+    // Keys changed since the last flush
+    private Set<String> dirtyKeys = new HashSet<String>(); // synchronized on this
+
+    // End of the key range starting with prefix
+    private static String rangeEnd(String prefix) {
+        return prefix.substring(0, prefix.length() - 1) + (char)(prefix.charAt(prefix.length() - 1) + 1);
+    }
+
+    private static String entityKey(PermissionEntity entity) {
+        return (entity.isGroup() ? GROUP_PREFIX : PLAYER_PREFIX) + entity.getName().toLowerCase();
+    }
+
+    private static String membershipKey(Membership membership) {
+        return MEMBERSHIP_PREFIX + membership.getMember().toLowerCase() + ":" + membership.getGroup().getName().toLowerCase();
+    }
+
+    private synchronized void markKey(String key) {
+        dirtyKeys.add(key);
+    }
+
+    /**
+     * Mark every record as changed, e.g. so all are written after loading
+     * from another format.
+     */
+    public void markAllDirty() {
+        getLock().readLock().lock();
+        try {
+            synchronized (this) {
+                for (PermissionEntity player : getPlayers().values())
+                    dirtyKeys.add(entityKey(player));
+                for (PermissionEntity group : getGroups().values()) {
+                    dirtyKeys.add(entityKey(group));
+                    for (Membership membership : group.getMemberships())
+                        dirtyKeys.add(membershipKey(membership));
+                }
+            }
+            setDirty();
+        }
+        finally {
+            getLock().readLock().unlock();
+        }
+    }
+
+    /**
+     * Load state of entire system from the store. Each key range (groups,
+     * players, memberships) is read in one ordered scan.
+     *
+     * @param store the store to load from
+     * @return the number of records loaded
+     * @throws IOException
+     */
+    public int loadStore(KeyValueStore store) throws IOException {
+        final MemoryState memoryState = new MemoryState();
+        final int[] count = new int[1];
+
+        KeyValueStore.Visitor entityVisitor = new KeyValueStore.Visitor() {
+            @Override
+            public void visit(String key, byte[] value) throws IOException {
+                BinarySnapshotFormat.decode(ByteBuffer.wrap(value), memoryState);
+                count[0]++;
+            }
+        };
+        store.scan(GROUP_PREFIX, rangeEnd(GROUP_PREFIX), entityVisitor);
+        store.scan(PLAYER_PREFIX, rangeEnd(PLAYER_PREFIX), entityVisitor);
+
+        // Groups must all be known by now
+        store.scan(MEMBERSHIP_PREFIX, rangeEnd(MEMBERSHIP_PREFIX), new KeyValueStore.Visitor() {
+            @Override
+            public void visit(String key, byte[] value) throws IOException {
+                count[0]++;
+                int sep = key.indexOf(':', MEMBERSHIP_PREFIX.length());
+                if (sep < 0) {
+                    logger.log(Level.WARNING, "Ignoring malformed membership key " + key);
+                    return;
+                }
+                String member = key.substring(MEMBERSHIP_PREFIX.length(), sep);
+                String groupName = key.substring(sep + 1);
+                PermissionEntity group = memoryState.getGroups().get(groupName);
+                if (group == null) {
+                    logger.log(Level.WARNING, String.format("Ignoring membership of %s in missing group %s", member, groupName));
+                    return;
+                }
+
+                Membership membership = new Membership();
+                membership.setMember(member);
+                membership.setGroup(group);
+                membership.setExpiration(value.length >= 8 ? new Date(ByteBuffer.wrap(value).getLong()) : null);
+                group.getMemberships().add(membership);
+
+                rememberMembership(memoryState, membership);
+            }
+        });
+
+        replaceMemoryState(memoryState);
+
+        synchronized (this) {
+            dirtyKeys.clear();
+        }
+        clearDirty();
+
+        return count[0];
+    }
+
+    /**
+     * Write all records changed since the last flush to the store as a
+     * single batch.
+     *
+     * @param store the store to write to
+     * @return number of bytes written, or -1 if nothing was written
+     * @throws IOException
+     */
+    public long flush(KeyValueStore store) throws IOException {
+        if (!isDirty()) return -1L;
+
+        // Encode current values while writers are excluded. Only changed
+        // records are encoded, so writers are only held up briefly.
+        Set<String> keys;
+        Map<String, byte[]> changes = new LinkedHashMap<String, byte[]>();
+        getLock().readLock().lock();
+        try {
+            synchronized (this) {
+                keys = dirtyKeys;
+                dirtyKeys = new HashSet<String>();
+            }
+            clearDirty();
+            for (String key : keys) {
+                changes.put(key, encode(key));
+            }
+        }
+        finally {
+            getLock().readLock().unlock();
+        }
+
+        long written = 0L;
+        for (byte[] value : changes.values()) {
+            if (value != null)
+                written += value.length;
+        }
+
+        try {
+            store.write(changes);
+        }
+        catch (IOException e) {
+            synchronized (this) {
+                dirtyKeys.addAll(keys);
+            }
+            setDirty();
+            throw e;
+        }
+        return written;
+    }
+
+    // Current value of a record, null if it no longer exists
+    private byte[] encode(String key) {
+        if (key.startsWith(MEMBERSHIP_PREFIX)) {
+            int sep = key.indexOf(':', MEMBERSHIP_PREFIX.length());
+            String member = key.substring(MEMBERSHIP_PREFIX.length(), sep);
+            String groupName = key.substring(sep + 1);
+            Set<Membership> memberships = getReverseMembershipMap().get(member);
+            if (memberships != null) {
+                for (Membership membership : memberships) {
+                    if (membership.getGroup().getName().equalsIgnoreCase(groupName)) {
+                        if (membership.getExpiration() == null)
+                            return new byte[0];
+                        return ByteBuffer.allocate(8).putLong(membership.getExpiration().getTime()).array();
+                    }
+                }
+            }
+            return null;
+        }
+
+        boolean group = key.startsWith(GROUP_PREFIX);
+        PermissionEntity entity = (group ? getGroups() : getPlayers()).get(key.substring(group ? GROUP_PREFIX.length() : PLAYER_PREFIX.length()));
+        if (entity == null)
+            return null;
+
+        List<PermissionEntity> entities = Collections.singletonList(entity);
+        List<PermissionEntity> none = Collections.emptyList();
+        ByteBuffer[] buffers = group ? BinarySnapshotFormat.encode(none, entities, false) : BinarySnapshotFormat.encode(entities, none);
+
+        int length = 0;
+        for (ByteBuffer buffer : buffers)
+            length += buffer.remaining();
+        ByteBuffer result = ByteBuffer.allocate(length);
+        for (ByteBuffer buffer : buffers)
+            result.put(buffer);
+        return result.array();
+    }
+
+    @Override
+    protected void createEntity(PermissionEntity entity) {
+        super.createEntity(entity);
+        markKey(entityKey(entity));
+    }
+
+    @Override
+    protected void createOrUpdateEntry(Entry entry) {
+        super.createOrUpdateEntry(entry);
+        markKey(entityKey(entry.getEntity()));
+    }
+
+    @Override
+    protected void deleteEntry(Entry entry) {
+        super.deleteEntry(entry);
+        markKey(entityKey(entry.getEntity()));
+    }
+
+    @Override
+    protected void createOrUpdateMembership(Membership membership) {
+        super.createOrUpdateMembership(membership);
+        markKey(membershipKey(membership));
+    }
+
+    @Override
+    protected void deleteEntity(PermissionEntity entity) {
+        super.deleteEntity(entity);
+        markKey(entityKey(entity));
+        if (entity.isGroup()) {
+            // Its memberships go without individual deleteMembership calls
+            for (Membership membership : entity.getMemberships()) {
+                markKey(membershipKey(membership));
+            }
+            // Neither do its children's inheritances. Groups are few, so
+            // just rewrite them all.
+            for (PermissionEntity group : getGroups().values()) {
+                markKey(entityKey(group));
+            }
+        }
+    }
+
+    @Override
+    protected void deleteMembership(Membership membership) {
+        super.deleteMembership(membership);
+        markKey(membershipKey(membership));
+    }
+
+    @Override
+    protected void setEntityParent(PermissionEntity entity, PermissionEntity parent) {
+        super.setEntityParent(entity, parent);
+        markKey(entityKey(entity));
+    }
+
+    @Override
+    protected void setEntityPriority(PermissionEntity entity, int priority) {
+        super.setEntityPriority(entity, priority);
+        markKey(entityKey(entity));
+    }
+
+    @Override
+    protected void createOrUpdateMetadata(EntityMetadata metadata) {
+        super.createOrUpdateMetadata(metadata);
+        markKey(entityKey(metadata.getEntity()));
+    }
+
+    @Override
+    protected void deleteMetadata(EntityMetadata metadata) {
+        super.deleteMetadata(metadata);
+        markKey(entityKey(metadata.getEntity()));
+    }
+
+    @Override
+    protected void createOrUpdateInheritance(Inheritance inheritance) {
+        super.createOrUpdateInheritance(inheritance);
+        markKey(entityKey(inheritance.getChild()));
+    }
+
+    @Override
+    protected void deleteInheritance(Inheritance inheritance) {
+        super.deleteInheritance(inheritance);
+        markKey(entityKey(inheritance.getChild()));
+    }
+
+}
@@ -70,11 +70,12 @@ public class ZPermissionsPlayerListener implements Listener {
         // NB eventCause is null because it's a given that the player's permissions has changed on join
         // (ignore the fact that it actually changed on login for now)
         core.setBukkitPermissions(event.getPlayer(), event.getPlayer().getLocation(), true, null); // Does this need to be forced again?
+        final String playerName = event.getPlayer().getName();
         // Wait for next tick...
         Bukkit.getScheduler().scheduleSyncDelayedTask(plugin, new Runnable() {
             @Override
             public void run() {
-                core.refreshExpirations();
+                core.refreshExpirations(playerName);
             }
         });
     }
@@ -83,11 +84,12 @@ public class ZPermissionsPlayerListener implements Listener {
     public void onPlayerQuit(PlayerQuitEvent event) {
         debug(plugin, "%s quitting", event.getPlayer().getName());
         core.removeBukkitPermissions(event.getPlayer(), false); // They're leaving, no need to recalc
+        final String playerName = event.getPlayer().getName();
         // Wait for next tick...
         Bukkit.getScheduler().scheduleSyncDelayedTask(plugin, new Runnable() {
             @Override
             public void run() {
-                core.refreshExpirations();
+                core.refreshExpirations(playerName);
             }
         });
     }
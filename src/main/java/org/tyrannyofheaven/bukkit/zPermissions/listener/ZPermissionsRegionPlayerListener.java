@@ -15,10 +15,21 @@
  */
 package org.tyrannyofheaven.bukkit.zPermissions.listener;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.player.PlayerMoveEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.event.player.PlayerRespawnEvent;
 import org.bukkit.event.player.PlayerTeleportEvent;
 import org.tyrannyofheaven.bukkit.zPermissions.RefreshCause;
@@ -28,18 +39,75 @@ import org.tyrannyofheaven.bukkit.zPermissions.ZPermissionsCore;
  * Additional player events to listen on if (WorldGuard) region support is
  * enabled.
  * 
+ * <p>When sampling, movement only records each player's latest location.
+ * {@link #processMoves()} should then be called periodically to check them
+ * all at once. Teleports and respawns are always checked immediately.
+ * 
  * @author asaddi
  */
 public class ZPermissionsRegionPlayerListener implements Listener {
 
+    // Order pending moves by world then chunk, so neighboring lookups are
+    // done together
+    private static final Comparator<Map.Entry<String, Location>> LOCATION_ORDER = new Comparator<Map.Entry<String, Location>>() {
+        @Override
+        public int compare(Map.Entry<String, Location> a, Map.Entry<String, Location> b) {
+            Location la = a.getValue();
+            Location lb = b.getValue();
+            int result = la.getWorld().getName().compareTo(lb.getWorld().getName());
+            if (result != 0) return result;
+            result = compareInts(la.getBlockX() >> 4, lb.getBlockX() >> 4);
+            if (result != 0) return result;
+            return compareInts(la.getBlockZ() >> 4, lb.getBlockZ() >> 4);
+        }
+    };
+
     private final ZPermissionsCore core;
 
+    private boolean sampling;
+
+    // Player name -> latest location not yet checked
+    private final Map<String, Location> pendingMoves = new HashMap<String, Location>();
+
     public ZPermissionsRegionPlayerListener(ZPermissionsCore plugin) {
         this.core = plugin;
     }
 
+    /**
+     * Set whether movement should be sampled. Any pending moves are checked
+     * if sampling is disabled.
+     * 
+     * @param sampling true if movement should be sampled
+     */
+    public void setSampling(boolean sampling) {
+        this.sampling = sampling;
+        if (!sampling)
+            processMoves();
+    }
+
+    /**
+     * Check the latest location of each player that moved since the last
+     * call.
+     */
+    public void processMoves() {
+        if (pendingMoves.isEmpty()) return;
+
+        List<Map.Entry<String, Location>> moves = new ArrayList<Map.Entry<String, Location>>(pendingMoves.entrySet());
+        pendingMoves.clear();
+        Collections.sort(moves, LOCATION_ORDER);
+
+        for (Map.Entry<String, Location> me : moves) {
+            Player player = Bukkit.getPlayerExact(me.getKey());
+            if (player != null) {
+                // Conditionally update if containing regions changed
+                core.setBukkitPermissions(player, me.getValue(), false, RefreshCause.MOVEMENT);
+            }
+        }
+    }
+
     @EventHandler(priority=EventPriority.MONITOR, ignoreCancelled=true)
     public void onPlayerTeleport(PlayerTeleportEvent event) {
+        pendingMoves.remove(event.getPlayer().getName()); // superseded
         // Conditionally update if world or region changed
         core.setBukkitPermissions(event.getPlayer(), event.getTo(), false, RefreshCause.MOVEMENT);
     }
@@ -50,15 +118,30 @@ public class ZPermissionsRegionPlayerListener implements Listener {
         if (event.getFrom().getBlockX() != event.getTo().getBlockX() ||
                 event.getFrom().getBlockY() != event.getTo().getBlockY() ||
                 event.getFrom().getBlockZ() != event.getTo().getBlockZ()) {
-            // Conditionally update if containing regions changed
-            core.setBukkitPermissions(event.getPlayer(), event.getTo(), false, RefreshCause.MOVEMENT);
+            if (sampling) {
+                pendingMoves.put(event.getPlayer().getName(), event.getTo());
+            }
+            else {
+                // Conditionally update if containing regions changed
+                core.setBukkitPermissions(event.getPlayer(), event.getTo(), false, RefreshCause.MOVEMENT);
+            }
         }
     }
 
     @EventHandler(priority=EventPriority.MONITOR, ignoreCancelled=true)
     public void onPlayerRespawn(PlayerRespawnEvent event) {
+        pendingMoves.remove(event.getPlayer().getName()); // superseded
         // Conditionally update if respawning in a different world or region
         core.setBukkitPermissions(event.getPlayer(), event.getRespawnLocation(), false, RefreshCause.MOVEMENT);
     }
 
+    @EventHandler(priority=EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        pendingMoves.remove(event.getPlayer().getName());
+    }
+
+    private static int compareInts(int a, int b) {
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
 }
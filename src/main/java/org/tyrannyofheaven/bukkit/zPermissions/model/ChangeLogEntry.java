@@ -0,0 +1,99 @@
+/*
+ * Copyright 2013 Allan Saddi <allan@saddi.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.zPermissions.model;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+/**
+ * Notes that an entity was modified by a particular server. Other servers
+ * poll for entries past the last id they've seen, plus any logged recently
+ * (ids are only roughly in insertion order).
+ * 
+ * @author asaddi
+ */
+@Entity
+@Table(name="change_log")
+public class ChangeLogEntry {
+
+    private Long id;
+
+    private String server;
+
+    private String name;
+
+    private boolean group;
+
+    private Date changed;
+
+    @Id
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    @Column(length=36, nullable=false)
+    public String getServer() {
+        return server;
+    }
+
+    public void setServer(String server) {
+        this.server = server;
+    }
+
+    @Column(nullable=false)
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    @Column(name="is_group", nullable=false)
+    public boolean isGroup() {
+        return group;
+    }
+
+    public void setGroup(boolean group) {
+        this.group = group;
+    }
+
+    @Column(nullable=false)
+    @Temporal(TemporalType.TIMESTAMP)
+    public Date getChanged() {
+        return changed;
+    }
+
+    public void setChanged(Date changed) {
+        this.changed = changed;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ChangeLogEntry[%d, %s, %s, %s]", getId(), getServer(), getName(), isGroup());
+    }
+
+}
@@ -15,12 +15,16 @@
  */
 package org.tyrannyofheaven.bukkit.zPermissions.model;
 
+import java.util.Date;
+
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Id;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
 import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
 import javax.persistence.UniqueConstraint;
 
 import com.avaje.ebean.annotation.CacheStrategy;
@@ -48,6 +52,10 @@ public class Entry {
     
     private boolean value;
 
+    private Date expiration;
+
+    private Boolean previousValue;
+
     @Id
     public Long getId() {
         return id;
@@ -105,6 +113,26 @@ public class Entry {
         this.value = value;
     }
 
+    // Null for permanent entries
+    @Temporal(TemporalType.TIMESTAMP)
+    public Date getExpiration() {
+        return expiration;
+    }
+
+    public void setExpiration(Date expiration) {
+        this.expiration = expiration;
+    }
+
+    // Value of the permanent entry overridden by this temporary one, null if
+    // there was none. Restored once this one expires.
+    public Boolean getPreviousValue() {
+        return previousValue;
+    }
+
+    public void setPreviousValue(Boolean previousValue) {
+        this.previousValue = previousValue;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj == this) return true;
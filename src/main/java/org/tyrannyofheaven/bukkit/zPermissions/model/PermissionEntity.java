@@ -76,6 +76,14 @@ public class PermissionEntity {
     @Transient
     private final Map<String, EntityMetadata> metadataMap = new HashMap<String, EntityMetadata>();
 
+    @Transient
+    private long generation;
+
+    // Entries keyed by world name, region name (null for universal), then
+    // lowercased permission
+    @Transient
+    private final Map<String, Map<String, Map<String, Entry>>> scopedPermissions = new HashMap<String, Map<String, Map<String, Entry>>>();
+
     @Id
     public Long getId() {
         return id;
@@ -204,6 +212,122 @@ public class PermissionEntity {
         }
     }
 
+    public void updateScopedPermissions() {
+        scopedPermissions.clear();
+        for (Entry e : getPermissions()) {
+            addScopedPermission(e);
+        }
+    }
+
+    public void addScopedPermission(Entry entry) {
+        String world = entry.getWorld() == null ? null : entry.getWorld().getName();
+        String region = entry.getRegion() == null ? null : entry.getRegion().getName();
+
+        Map<String, Map<String, Entry>> regionMap = scopedPermissions.get(world);
+        if (regionMap == null) {
+            regionMap = new HashMap<String, Map<String, Entry>>();
+            scopedPermissions.put(world, regionMap);
+        }
+        Map<String, Entry> entries = regionMap.get(region);
+        if (entries == null) {
+            entries = new HashMap<String, Entry>();
+            regionMap.put(region, entries);
+        }
+        entries.put(entry.getPermission().toLowerCase(), entry);
+    }
+
+    public void removeScopedPermission(Entry entry) {
+        String world = entry.getWorld() == null ? null : entry.getWorld().getName();
+        String region = entry.getRegion() == null ? null : entry.getRegion().getName();
+
+        Map<String, Map<String, Entry>> regionMap = scopedPermissions.get(world);
+        if (regionMap == null) return;
+        Map<String, Entry> entries = regionMap.get(region);
+        if (entries == null) return;
+        entries.remove(entry.getPermission().toLowerCase());
+        if (entries.isEmpty()) {
+            regionMap.remove(region);
+            if (regionMap.isEmpty())
+                scopedPermissions.remove(world);
+        }
+    }
+
+    /**
+     * Retrieve only those entries that apply to the given world and regions,
+     * ordered universal, world-specific, universal region-specific, then
+     * region- and world-specific.
+     * 
+     * @param world the world name (may be null)
+     * @param regions the region names
+     * @return the applicable entries
+     */
+    @Transient
+    public List<Entry> getScopedPermissions(String world, Set<String> regions) {
+        List<Entry> result = new ArrayList<Entry>();
+        Map<String, Map<String, Entry>> universal = scopedPermissions.get(null);
+        Map<String, Map<String, Entry>> worldSpecific = world == null ? null : scopedPermissions.get(world);
+        addScopedPermissions(result, universal, null);
+        addScopedPermissions(result, worldSpecific, null);
+        for (String region : regions) {
+            addScopedPermissions(result, universal, region);
+        }
+        for (String region : regions) {
+            addScopedPermissions(result, worldSpecific, region);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the names of all regions referenced by this entity's entries,
+     * regardless of world.
+     * 
+     * @return the region names
+     */
+    @Transient
+    public Set<String> getRegionNames() {
+        Set<String> result = new HashSet<String>();
+        for (Map<String, Map<String, Entry>> regionMap : scopedPermissions.values()) {
+            for (String region : regionMap.keySet()) {
+                if (region != null)
+                    result.add(region);
+            }
+        }
+        return result;
+    }
+
+    private static void addScopedPermissions(List<Entry> result, Map<String, Map<String, Entry>> regionMap, String region) {
+        if (regionMap == null) return;
+        Map<String, Entry> entries = regionMap.get(region);
+        if (entries != null)
+            result.addAll(entries.values());
+    }
+
+    /**
+     * Look up a single entry by its scope and permission.
+     * 
+     * @param region the region name (may be null)
+     * @param world the world name (may be null)
+     * @param permission the permission
+     * @return the matching entry or null
+     */
+    @Transient
+    public Entry getScopedPermission(String region, String world, String permission) {
+        Map<String, Map<String, Entry>> regionMap = scopedPermissions.get(world);
+        if (regionMap == null) return null;
+        Map<String, Entry> entries = regionMap.get(region);
+        if (entries == null) return null;
+        return entries.get(permission.toLowerCase());
+    }
+
+    @Transient
+    public long getGeneration() {
+        return generation;
+    }
+
+    public void setGeneration(long generation) {
+        this.generation = generation;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj == this) return true;
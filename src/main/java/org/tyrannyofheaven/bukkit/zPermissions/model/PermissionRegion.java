@@ -18,6 +18,7 @@ package org.tyrannyofheaven.bukkit.zPermissions.model;
 import javax.persistence.Entity;
 import javax.persistence.Id;
 import javax.persistence.Table;
+import javax.persistence.Transient;
 import javax.persistence.UniqueConstraint;
 
 import com.avaje.ebean.annotation.CacheStrategy;
@@ -37,6 +38,9 @@ public class PermissionRegion {
     
     private String name;
 
+    @Transient
+    private int referenceCount;
+
     @Id
     public Long getId() {
         return id;
@@ -54,6 +58,16 @@ public class PermissionRegion {
         this.name = name;
     }
 
+    // Number of in-memory entries referring to this region
+    @Transient
+    public int getReferenceCount() {
+        return referenceCount;
+    }
+
+    public void setReferenceCount(int referenceCount) {
+        this.referenceCount = referenceCount;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj == this) return true;
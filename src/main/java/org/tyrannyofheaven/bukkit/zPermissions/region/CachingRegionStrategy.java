@@ -0,0 +1,338 @@
+/*
+ * Copyright 2013 Allan Saddi <allan@saddi.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.zPermissions.region;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.world.WorldUnloadEvent;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * RegionStrategy decorator that memoizes the regions of each block. Blocks
+ * are grouped into chunk sections (16x16x16 cells), which only hold the
+ * blocks actually looked up. Cells are evicted in least-recently-used order
+ * and expire after a while. Everything is discarded as soon as the underlying
+ * RegionStrategy reports a new {@link RegionStrategy#getRevision() revision},
+ * so redefined regions are normally picked up without waiting for expiry.
+ * Equal region sets are interned, so comparing the regions of two nearby
+ * locations is usually an identity check.
+ * 
+ * <p>Like the region plugins themselves, should only be used from the main
+ * thread.
+ * 
+ * @author asaddi
+ */
+public class CachingRegionStrategy implements RegionStrategy, Listener {
+
+    // Bound on interned sets, in case regions are very fragmented
+    private static final int MAX_INTERNED_SETS = 4096;
+
+    private final Plugin plugin;
+
+    private final RegionStrategy delegate;
+
+    private final long expiration;
+
+    private final Map<CellKey, Cell> cells;
+
+    private final Map<Set<String>, Set<String>> internedSets = new HashMap<Set<String>, Set<String>>();
+
+    // Re-used for lookups to avoid allocation
+    private final CellKey probe = new CellKey();
+
+    // Revision of the underlying RegionStrategy that cells were filled from
+    private long revision;
+
+    private long hits;
+
+    private long misses;
+
+    /**
+     * Create a caching RegionStrategy.
+     * 
+     * @param plugin the plugin
+     * @param delegate the RegionStrategy to cache
+     * @param maxCells maximum number of cells to hold
+     * @param expiration how long cells are kept, in milliseconds
+     */
+    public CachingRegionStrategy(Plugin plugin, RegionStrategy delegate, final int maxCells, long expiration) {
+        if (maxCells < 1)
+            throw new IllegalArgumentException("maxCells must be positive");
+        this.plugin = plugin;
+        this.delegate = delegate;
+        this.expiration = expiration;
+        this.revision = delegate.getRevision();
+        this.cells = new LinkedHashMap<CellKey, Cell>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CellKey, Cell> eldest) {
+                return size() > maxCells;
+            }
+        };
+    }
+
+    /**
+     * Returns the RegionStrategy being cached.
+     * 
+     * @return the underlying RegionStrategy
+     */
+    public RegionStrategy getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public String getName() {
+        return delegate.getName();
+    }
+
+    @Override
+    public boolean isPresent() {
+        return delegate.isPresent();
+    }
+
+    @Override
+    public void init() {
+        delegate.init();
+        Bukkit.getPluginManager().registerEvents(this, plugin);
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return delegate.isEnabled();
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+        invalidate();
+    }
+
+    @Override
+    public long getRevision() {
+        return delegate.getRevision();
+    }
+
+    @Override
+    public Set<String> getRegions(Location location) {
+        long currentRevision = delegate.getRevision();
+        if (currentRevision != revision) {
+            clear();
+            revision = currentRevision;
+        }
+
+        int x = location.getBlockX();
+        int y = location.getBlockY();
+        int z = location.getBlockZ();
+
+        probe.set(location.getWorld().getName(), x >> 4, y >> 4, z >> 4);
+        Cell cell = cells.get(probe);
+        long now = System.currentTimeMillis();
+        if (cell != null && now - cell.getCreated() >= expiration) {
+            cells.remove(probe);
+            cell = null;
+        }
+        if (cell == null) {
+            cell = new Cell(now);
+            cells.put(probe.copy(), cell);
+        }
+
+        int index = ((y & 15) << 8) | ((z & 15) << 4) | (x & 15);
+        Set<String> regions = cell.get(index);
+        if (regions == null) {
+            misses++;
+            regions = intern(delegate.getRegions(location));
+            cell.set(index, regions);
+        }
+        else
+            hits++;
+        return regions;
+    }
+
+    /**
+     * Forget everything cached. Should be called whenever region definitions
+     * change.
+     */
+    @Override
+    public void invalidate() {
+        clear();
+        delegate.invalidate();
+        revision = delegate.getRevision();
+    }
+
+    /**
+     * Forget everything cached for the given world.
+     * 
+     * @param worldName the name of the world
+     */
+    public void invalidate(String worldName) {
+        for (Iterator<CellKey> i = cells.keySet().iterator(); i.hasNext();) {
+            if (i.next().getWorldName().equals(worldName))
+                i.remove();
+        }
+    }
+
+    /**
+     * Returns the number of lookups answered from the cache.
+     * 
+     * @return the number of hits
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups passed on to the underlying RegionStrategy.
+     * 
+     * @return the number of misses
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    @EventHandler(priority=EventPriority.MONITOR, ignoreCancelled=true)
+    public void onWorldUnload(WorldUnloadEvent event) {
+        invalidate(event.getWorld().getName());
+    }
+
+    private void clear() {
+        cells.clear();
+        internedSets.clear();
+    }
+
+    // Returns the canonical, unmodifiable instance of the given set
+    private Set<String> intern(Set<String> regions) {
+        if (regions.isEmpty())
+            return Collections.emptySet();
+        Set<String> interned = internedSets.get(regions);
+        if (interned == null) {
+            if (internedSets.size() >= MAX_INTERNED_SETS)
+                internedSets.clear();
+            interned = Collections.unmodifiableSet(new HashSet<String>(regions));
+            internedSets.put(interned, interned);
+        }
+        return interned;
+    }
+
+    private static class CellKey {
+
+        private String worldName;
+
+        private int x;
+
+        private int y;
+
+        private int z;
+
+        public void set(String worldName, int x, int y, int z) {
+            this.worldName = worldName;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+
+        public CellKey copy() {
+            CellKey key = new CellKey();
+            key.set(worldName, x, y, z);
+            return key;
+        }
+
+        public String getWorldName() {
+            return worldName;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) return true;
+            if (!(obj instanceof CellKey)) return false;
+            CellKey o = (CellKey)obj;
+            return x == o.x && y == o.y && z == o.z && worldName.equals(o.worldName);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = 17;
+            result = 37 * result + worldName.hashCode();
+            result = 37 * result + x;
+            result = 37 * result + y;
+            result = 37 * result + z;
+            return result;
+        }
+
+    }
+
+    private static class Cell {
+
+        private static final int INITIAL_CAPACITY = 8;
+
+        private final long created;
+
+        // Known blocks, sorted by index within the cell (0 to 4095), and
+        // their region sets. Grown as blocks are looked up.
+        private short[] indexes = new short[INITIAL_CAPACITY];
+
+        private Object[] regions = new Object[INITIAL_CAPACITY];
+
+        private int size;
+
+        public Cell(long created) {
+            this.created = created;
+        }
+
+        public long getCreated() {
+            return created;
+        }
+
+        // Returns the region set of the block, null if not yet known
+        @SuppressWarnings("unchecked")
+        public Set<String> get(int index) {
+            int pos = Arrays.binarySearch(indexes, 0, size, (short)index);
+            return pos < 0 ? null : (Set<String>)regions[pos];
+        }
+
+        public void set(int index, Set<String> regionSet) {
+            int pos = Arrays.binarySearch(indexes, 0, size, (short)index);
+            if (pos >= 0) {
+                regions[pos] = regionSet;
+                return;
+            }
+
+            pos = -pos - 1;
+            if (size == indexes.length) {
+                indexes = Arrays.copyOf(indexes, size * 2);
+                regions = Arrays.copyOf(regions, size * 2);
+            }
+            System.arraycopy(indexes, pos, indexes, pos + 1, size - pos);
+            System.arraycopy(regions, pos, regions, pos + 1, size - pos);
+            indexes[pos] = (short)index;
+            regions[pos] = regionSet;
+            size++;
+        }
+
+    }
+
+}
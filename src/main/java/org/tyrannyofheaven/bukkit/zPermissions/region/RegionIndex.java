@@ -0,0 +1,215 @@
+/*
+ * Copyright 2013 Allan Saddi <allan@saddi.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.zPermissions.region;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable spatial index of region bounding boxes. Each world is divided
+ * into columns of 256x256 blocks and each region is filed under every column
+ * its bounding box touches. Regions spanning too many columns are kept in a
+ * separate list that is always scanned. Point queries are answered by
+ * scanning a single column.
+ * 
+ * <p>Bounding boxes are inclusive, in block coordinates. Region plugins with
+ * non-cuboid regions must check the candidates returned by
+ * {@link #query(String, int, int, int)} themselves.
+ * 
+ * @author asaddi
+ */
+public class RegionIndex<T> {
+
+    // log2 of column width, in blocks
+    private static final int COLUMN_SHIFT = 8;
+
+    // Regions touching more columns than this are scanned linearly
+    private static final int MAX_COLUMNS_PER_REGION = 1024;
+
+    private final Map<String, WorldIndex<T>> worlds;
+
+    private final int size;
+
+    private RegionIndex(Map<String, WorldIndex<T>> worlds, int size) {
+        this.worlds = worlds;
+        this.size = size;
+    }
+
+    /**
+     * Retrieve all regions whose bounding box contains the given point.
+     * 
+     * @param worldName the name of the world
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @param z the z coordinate
+     * @return the matching regions, possibly empty. Never null.
+     */
+    public List<T> query(String worldName, int x, int y, int z) {
+        WorldIndex<T> worldIndex = worlds.get(worldName);
+        if (worldIndex == null)
+            return Collections.emptyList();
+
+        List<T> result = null;
+        List<Entry<T>> column = worldIndex.columns.get(columnKey(x >> COLUMN_SHIFT, z >> COLUMN_SHIFT));
+        if (column != null)
+            result = collect(column, x, y, z, result);
+        result = collect(worldIndex.large, x, y, z, result);
+
+        if (result == null)
+            return Collections.emptyList();
+        return result;
+    }
+
+    /**
+     * Returns the number of regions in this index.
+     * 
+     * @return the number of regions
+     */
+    public int size() {
+        return size;
+    }
+
+    private static <T> List<T> collect(List<Entry<T>> entries, int x, int y, int z, List<T> result) {
+        for (Entry<T> entry : entries) {
+            if (entry.contains(x, y, z)) {
+                if (result == null)
+                    result = new ArrayList<T>(2);
+                result.add(entry.region);
+            }
+        }
+        return result;
+    }
+
+    private static long columnKey(int cx, int cz) {
+        return ((long)cx << 32) | (cz & 0xffffffffL);
+    }
+
+    /**
+     * Builder for {@link RegionIndex}.
+     */
+    public static class Builder<T> {
+
+        private final Map<String, WorldIndex<T>> worlds = new HashMap<String, WorldIndex<T>>();
+
+        private int size;
+
+        /**
+         * Add a region to the index.
+         * 
+         * @param worldName the name of the region's world
+         * @param region the region
+         * @param minX minimum x coordinate, inclusive
+         * @param minY minimum y coordinate, inclusive
+         * @param minZ minimum z coordinate, inclusive
+         * @param maxX maximum x coordinate, inclusive
+         * @param maxY maximum y coordinate, inclusive
+         * @param maxZ maximum z coordinate, inclusive
+         * @return this builder
+         */
+        public Builder<T> add(String worldName, T region, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+            if (worldName == null)
+                throw new IllegalArgumentException("worldName cannot be null");
+
+            // Be forgiving of swapped corners
+            Entry<T> entry = new Entry<T>(region, Math.min(minX, maxX), Math.min(minY, maxY), Math.min(minZ, maxZ),
+                    Math.max(minX, maxX), Math.max(minY, maxY), Math.max(minZ, maxZ));
+
+            WorldIndex<T> worldIndex = worlds.get(worldName);
+            if (worldIndex == null) {
+                worldIndex = new WorldIndex<T>();
+                worlds.put(worldName, worldIndex);
+            }
+
+            int minCx = entry.minX >> COLUMN_SHIFT;
+            int maxCx = entry.maxX >> COLUMN_SHIFT;
+            int minCz = entry.minZ >> COLUMN_SHIFT;
+            int maxCz = entry.maxZ >> COLUMN_SHIFT;
+            if ((long)(maxCx - minCx + 1) * (maxCz - minCz + 1) > MAX_COLUMNS_PER_REGION) {
+                worldIndex.large.add(entry);
+            }
+            else {
+                for (int cx = minCx; cx <= maxCx; cx++) {
+                    for (int cz = minCz; cz <= maxCz; cz++) {
+                        Long key = columnKey(cx, cz);
+                        List<Entry<T>> column = worldIndex.columns.get(key);
+                        if (column == null) {
+                            column = new ArrayList<Entry<T>>(2);
+                            worldIndex.columns.put(key, column);
+                        }
+                        column.add(entry);
+                    }
+                }
+            }
+
+            size++;
+            return this;
+        }
+
+        /**
+         * Create the index. This builder should not be used afterwards.
+         * 
+         * @return the new index
+         */
+        public RegionIndex<T> build() {
+            return new RegionIndex<T>(worlds, size);
+        }
+
+    }
+
+    private static class WorldIndex<T> {
+
+        private final Map<Long, List<Entry<T>>> columns = new HashMap<Long, List<Entry<T>>>();
+
+        private final List<Entry<T>> large = new ArrayList<Entry<T>>();
+
+    }
+
+    private static class Entry<T> {
+
+        private final T region;
+
+        private final int minX;
+
+        private final int minY;
+
+        private final int minZ;
+
+        private final int maxX;
+
+        private final int maxY;
+
+        private final int maxZ;
+
+        public Entry(T region, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+            this.region = region;
+            this.minX = minX;
+            this.minY = minY;
+            this.minZ = minZ;
+            this.maxX = maxX;
+            this.maxY = maxY;
+            this.maxZ = maxZ;
+        }
+
+        public boolean contains(int x, int y, int z) {
+            return x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ;
+        }
+
+    }
+
+}
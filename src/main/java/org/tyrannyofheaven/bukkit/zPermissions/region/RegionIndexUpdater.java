@@ -0,0 +1,262 @@
+/*
+ * Copyright 2013 Allan Saddi <allan@saddi.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.zPermissions.region;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+import org.tyrannyofheaven.bukkit.zPermissions.dao.PermissionDao;
+
+/**
+ * Keeps the {@link RegionIndex} of a RegionStrategy up to date. The index is
+ * rebuilt right away only when the set of regions referenced by zPermissions
+ * changes. Redefined regions are picked up by a periodic check, which gathers
+ * bounding boxes on the main thread (region plugins aren't thread-safe),
+ * builds the new index asynchronously and swaps it in on the main thread.
+ * Nothing is built if no bounding box changed.
+ *
+ * <p>Apart from the asynchronous build, should only be used from the main
+ * thread.
+ *
+ * @author asaddi
+ */
+abstract class RegionIndexUpdater<T> {
+
+    private final Plugin plugin;
+
+    private final PermissionDao dao;
+
+    private final long checkInterval;
+
+    private RegionIndex<T> regionIndex;
+
+    private Set<String> indexedRegionNames;
+
+    private List<Bounds<T>> indexedBounds;
+
+    // Incremented whenever the index is replaced or discarded
+    private long revision;
+
+    private boolean building;
+
+    private int checkTaskId = -1;
+
+    /**
+     * Create an updater.
+     *
+     * @param plugin the plugin
+     * @param dao the DAO, source of referenced region names
+     * @param checkInterval how often to check for redefined regions, in ticks
+     */
+    RegionIndexUpdater(Plugin plugin, PermissionDao dao, long checkInterval) {
+        this.plugin = plugin;
+        this.dao = dao;
+        this.checkInterval = checkInterval;
+    }
+
+    /**
+     * Gather the bounding boxes of the given regions from the region plugin.
+     * Called from the main thread.
+     *
+     * @param regionNames names of the regions referenced by zPermissions
+     * @param bounds the list to add bounding boxes to
+     */
+    protected abstract void collectBounds(Set<String> regionNames, List<Bounds<T>> bounds);
+
+    /**
+     * Retrieve the current index, rebuilding it first if the referenced
+     * regions changed.
+     *
+     * @return the index
+     */
+    public RegionIndex<T> getRegionIndex() {
+        Set<String> regionNames = dao.getRegionNames();
+        if (regionIndex == null || !regionNames.equals(indexedRegionNames)) {
+            List<Bounds<T>> bounds = gatherBounds(regionNames);
+            install(regionNames, bounds, build(bounds));
+        }
+        else {
+            indexedRegionNames = regionNames; // identity check next time
+        }
+        return regionIndex;
+    }
+
+    /**
+     * Returns a number that changes whenever the index is replaced or
+     * discarded. The index is discarded first if the referenced regions
+     * changed.
+     *
+     * @return the revision of the index
+     */
+    public long getRevision() {
+        if (regionIndex != null) {
+            Set<String> regionNames = dao.getRegionNames();
+            if (regionNames.equals(indexedRegionNames))
+                indexedRegionNames = regionNames; // identity check next time
+            else
+                invalidate(); // rebuilt on next use
+        }
+        return revision;
+    }
+
+    /**
+     * Start checking for redefined regions.
+     */
+    public void start() {
+        if (checkTaskId > -1) return;
+        checkTaskId = Bukkit.getScheduler().scheduleSyncRepeatingTask(plugin, new Runnable() {
+            @Override
+            public void run() {
+                check();
+            }
+        }, checkInterval, checkInterval);
+    }
+
+    /**
+     * Stop checking for redefined regions and discard the index.
+     */
+    public void stop() {
+        if (checkTaskId > -1) {
+            Bukkit.getScheduler().cancelTask(checkTaskId);
+            checkTaskId = -1;
+        }
+        invalidate();
+    }
+
+    /**
+     * Discard the index. It will be rebuilt on next use.
+     */
+    public void invalidate() {
+        regionIndex = null;
+        indexedRegionNames = null;
+        indexedBounds = null;
+        building = false; // any build in progress is stale
+        revision++;
+    }
+
+    // Rebuild the index in the background if any bounding box changed
+    private void check() {
+        if (regionIndex == null || building) return;
+
+        final Set<String> regionNames = indexedRegionNames;
+        final List<Bounds<T>> bounds = gatherBounds(regionNames);
+        if (bounds.equals(indexedBounds)) return;
+
+        building = true;
+        final long buildRevision = revision;
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, new Runnable() {
+            @Override
+            public void run() {
+                final RegionIndex<T> newIndex = build(bounds);
+                if (!plugin.isEnabled()) return;
+                Bukkit.getScheduler().runTask(plugin, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (revision != buildRevision) return; // superseded
+                        building = false;
+                        install(regionNames, bounds, newIndex);
+                    }
+                });
+            }
+        });
+    }
+
+    private List<Bounds<T>> gatherBounds(Set<String> regionNames) {
+        List<Bounds<T>> bounds = new ArrayList<Bounds<T>>();
+        if (!regionNames.isEmpty())
+            collectBounds(regionNames, bounds);
+        return bounds;
+    }
+
+    private void install(Set<String> regionNames, List<Bounds<T>> bounds, RegionIndex<T> newIndex) {
+        regionIndex = newIndex;
+        indexedRegionNames = regionNames;
+        indexedBounds = bounds;
+        revision++;
+    }
+
+    private static <T> RegionIndex<T> build(List<Bounds<T>> bounds) {
+        RegionIndex.Builder<T> builder = new RegionIndex.Builder<T>();
+        for (Bounds<T> b : bounds) {
+            builder.add(b.worldName, b.region, b.minX, b.minY, b.minZ, b.maxX, b.maxY, b.maxZ);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Bounding box of a region, as captured from the region plugin. Regions
+     * are compared by identity, so a region replaced by the region plugin
+     * counts as a change even if its bounds stayed the same.
+     */
+    static class Bounds<T> {
+
+        private final String worldName;
+
+        private final T region;
+
+        private final int minX;
+
+        private final int minY;
+
+        private final int minZ;
+
+        private final int maxX;
+
+        private final int maxY;
+
+        private final int maxZ;
+
+        public Bounds(String worldName, T region, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+            this.worldName = worldName;
+            this.region = region;
+            this.minX = minX;
+            this.minY = minY;
+            this.minZ = minZ;
+            this.maxX = maxX;
+            this.maxY = maxY;
+            this.maxZ = maxZ;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) return true;
+            if (!(obj instanceof Bounds)) return false;
+            Bounds<?> o = (Bounds<?>)obj;
+            return region == o.region && worldName.equals(o.worldName) &&
+                    minX == o.minX && minY == o.minY && minZ == o.minZ &&
+                    maxX == o.maxX && maxY == o.maxY && maxZ == o.maxZ;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = 17;
+            result = 37 * result + worldName.hashCode();
+            result = 37 * result + System.identityHashCode(region);
+            result = 37 * result + minX;
+            result = 37 * result + minY;
+            result = 37 * result + minZ;
+            result = 37 * result + maxX;
+            result = 37 * result + maxY;
+            result = 37 * result + maxZ;
+            return result;
+        }
+
+    }
+
+}
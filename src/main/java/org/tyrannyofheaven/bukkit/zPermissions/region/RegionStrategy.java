@@ -66,6 +66,23 @@ public interface RegionStrategy {
      */
     public void shutdown();
 
+    /**
+     * Discard anything remembered about region definitions, e.g. after a
+     * refresh. Subsequent calls to {@link #getRegions(Location)} should
+     * reflect the current definitions.
+     */
+    public void invalidate();
+
+    /**
+     * Returns a number that changes whenever the results of
+     * {@link #getRegions(Location)} may have changed, e.g. because regions
+     * were redefined or zPermissions started referencing other regions.
+     * Callers caching results should discard them when it changes.
+     * 
+     * @return the current revision
+     */
+    public long getRevision();
+
     // Service
 
     /**
@@ -16,6 +16,8 @@
 package org.tyrannyofheaven.bukkit.zPermissions.region;
 
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import org.bukkit.Bukkit;
@@ -26,12 +28,18 @@ import org.bukkit.event.server.PluginEnableEvent;
 import org.bukkit.plugin.Plugin;
 import org.tyrannyofheaven.bukkit.util.ToHLoggingUtils;
 import org.tyrannyofheaven.bukkit.zPermissions.ZPermissionsCore;
+import org.tyrannyofheaven.bukkit.zPermissions.dao.PermissionDao;
 
 import com.bekvon.bukkit.residence.Residence;
 import com.bekvon.bukkit.residence.protection.ClaimedResidence;
+import com.bekvon.bukkit.residence.protection.CuboidArea;
+import com.bekvon.bukkit.residence.protection.ResidenceManager;
 
 /**
- * RegionStrategy implementation for Residence.
+ * RegionStrategy implementation for Residence. The areas of residences that
+ * are (or contain subzones that are) referenced by zPermissions are kept in a
+ * {@link RegionIndex}, maintained by a {@link RegionIndexUpdater}. Residence is
+ * only consulted for locations within one of them.
  *
  * @author asaddi
  */
@@ -39,15 +47,26 @@ public class ResidenceRegionStrategy implements RegionStrategy, Listener {
 
     private static final String RM_PLUGIN_NAME = "Residence";
 
+    // How often to check for redefined residences, in ticks
+    private static final long INDEX_CHECK_INTERVAL = 100L;
+
     private final Plugin plugin;
 
     private final ZPermissionsCore core;
 
+    private final RegionIndexUpdater<ClaimedResidence> indexUpdater;
+
     private boolean enabled;
 
-    public ResidenceRegionStrategy(Plugin plugin, ZPermissionsCore core) {
+    public ResidenceRegionStrategy(Plugin plugin, ZPermissionsCore core, PermissionDao dao) {
         this.plugin = plugin;
         this.core = core;
+        this.indexUpdater = new RegionIndexUpdater<ClaimedResidence>(plugin, dao, INDEX_CHECK_INTERVAL) {
+            @Override
+            protected void collectBounds(Set<String> regionNames, List<Bounds<ClaimedResidence>> bounds) {
+                collectResidenceBounds(regionNames, bounds);
+            }
+        };
     }
 
     @Override
@@ -63,7 +82,10 @@ public class ResidenceRegionStrategy implements RegionStrategy, Listener {
     @Override
     public void init() {
         detectResidencePlugin();
-        if (!isEnabled()) {
+        if (isEnabled()) {
+            indexUpdater.start();
+        }
+        else {
             // Not yet loaded, listen for its enable event
             Bukkit.getPluginManager().registerEvents(this, plugin);
         }
@@ -77,10 +99,26 @@ public class ResidenceRegionStrategy implements RegionStrategy, Listener {
     @Override
     public void shutdown() {
         enabled = false;
+        indexUpdater.stop();
+    }
+
+    @Override
+    public void invalidate() {
+        indexUpdater.invalidate();
+    }
+
+    @Override
+    public long getRevision() {
+        return indexUpdater.getRevision();
     }
 
     @Override
     public Set<String> getRegions(Location location) {
+        if (indexUpdater.getRegionIndex().query(location.getWorld().getName(),
+                location.getBlockX(), location.getBlockY(), location.getBlockZ()).isEmpty())
+            return Collections.emptySet();
+
+        // Let Residence pick the innermost subzone
         ClaimedResidence res = Residence.getResidenceManager().getByLoc(location);
         if (res != null) {
             return Collections.singleton(res.getName().toLowerCase());
@@ -93,12 +131,37 @@ public class ResidenceRegionStrategy implements RegionStrategy, Listener {
         if (!isEnabled() && RM_PLUGIN_NAME.equals(event.getPlugin().getName())) {
             detectResidencePlugin();
             if (isEnabled()) {
+                indexUpdater.start();
                 ToHLoggingUtils.log(plugin, "%s region support enabled.", getName());
                 core.refreshPlayers();
             }
         }
     }
 
+    // Gather areas of referenced residences
+    private void collectResidenceBounds(Set<String> regionNames, List<RegionIndexUpdater.Bounds<ClaimedResidence>> bounds) {
+        // Names of top-level residences, subzones are named parent.child
+        Set<String> topLevelNames = new HashSet<String>();
+        for (String regionName : regionNames) {
+            int dot = regionName.indexOf('.');
+            topLevelNames.add(dot < 0 ? regionName : regionName.substring(0, dot));
+        }
+
+        ResidenceManager rm = Residence.getResidenceManager();
+        for (String name : rm.getResidenceList()) {
+            if (!topLevelNames.contains(name.toLowerCase())) continue;
+            ClaimedResidence res = rm.getByName(name);
+            if (res == null) continue;
+            for (CuboidArea area : res.getAreaArray()) {
+                Location low = area.getLowLoc();
+                Location high = area.getHighLoc();
+                bounds.add(new RegionIndexUpdater.Bounds<ClaimedResidence>(low.getWorld().getName(), res,
+                        low.getBlockX(), low.getBlockY(), low.getBlockZ(),
+                        high.getBlockX(), high.getBlockY(), high.getBlockZ()));
+            }
+        }
+    }
+
     private void detectResidencePlugin() {
         Plugin plugin = Bukkit.getPluginManager().getPlugin(RM_PLUGIN_NAME);
         enabled = plugin != null && plugin.isEnabled();
@@ -17,24 +17,33 @@ package org.tyrannyofheaven.bukkit.zPermissions.region;
 
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import org.bukkit.Bukkit;
 import org.bukkit.Location;
+import org.bukkit.World;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
 import org.bukkit.event.server.PluginEnableEvent;
 import org.bukkit.plugin.Plugin;
 import org.tyrannyofheaven.bukkit.util.ToHLoggingUtils;
 import org.tyrannyofheaven.bukkit.zPermissions.ZPermissionsCore;
+import org.tyrannyofheaven.bukkit.zPermissions.dao.PermissionDao;
 
+import com.sk89q.worldedit.BlockVector;
+import com.sk89q.worldguard.bukkit.BukkitUtil;
 import com.sk89q.worldguard.bukkit.WorldGuardPlugin;
-import com.sk89q.worldguard.protection.ApplicableRegionSet;
 import com.sk89q.worldguard.protection.managers.RegionManager;
+import com.sk89q.worldguard.protection.regions.ProtectedCuboidRegion;
 import com.sk89q.worldguard.protection.regions.ProtectedRegion;
 
 /**
- * RegionStrategy implementation for WorldGuard.
+ * RegionStrategy implementation for WorldGuard. Only regions referenced by
+ * zPermissions are considered. Their bounding boxes are kept in a
+ * {@link RegionIndex}, which is rebuilt when the referenced regions change.
+ * Redefined regions are picked up in the background by a
+ * {@link RegionIndexUpdater}.
  * 
  * @author asaddi
  */
@@ -42,15 +51,28 @@ public class WorldGuardRegionStrategy implements RegionStrategy, Listener {
 
     private static final String RM_PLUGIN_NAME = "WorldGuard";
 
+    private static final String GLOBAL_REGION = "__global__"; // NB: Hardcoded and not available as constant in WorldGuard
+
+    // How often to check for redefined regions, in ticks
+    private static final long INDEX_CHECK_INTERVAL = 100L;
+
     private final Plugin plugin;
 
     private final ZPermissionsCore core;
 
+    private final RegionIndexUpdater<ProtectedRegion> indexUpdater;
+
     private WorldGuardPlugin worldGuardPlugin;
 
-    public WorldGuardRegionStrategy(Plugin plugin, ZPermissionsCore core) {
+    public WorldGuardRegionStrategy(Plugin plugin, ZPermissionsCore core, PermissionDao dao) {
         this.plugin = plugin;
         this.core = core;
+        this.indexUpdater = new RegionIndexUpdater<ProtectedRegion>(plugin, dao, INDEX_CHECK_INTERVAL) {
+            @Override
+            protected void collectBounds(Set<String> regionNames, List<Bounds<ProtectedRegion>> bounds) {
+                collectRegionBounds(regionNames, bounds);
+            }
+        };
     }
 
     @Override
@@ -66,7 +88,10 @@ public class WorldGuardRegionStrategy implements RegionStrategy, Listener {
     @Override
     public void init() {
         detectWorldGuardPlugin();
-        if (!isEnabled()) {
+        if (isEnabled()) {
+            indexUpdater.start();
+        }
+        else {
             // Not yet loaded, listen for its enable event
             Bukkit.getPluginManager().registerEvents(this, plugin);
         }
@@ -80,19 +105,29 @@ public class WorldGuardRegionStrategy implements RegionStrategy, Listener {
     @Override
     public void shutdown() {
         worldGuardPlugin = null;
+        indexUpdater.stop();
+    }
+
+    @Override
+    public void invalidate() {
+        indexUpdater.invalidate();
+    }
+
+    @Override
+    public long getRevision() {
+        return indexUpdater.getRevision();
     }
 
     @Override
     public Set<String> getRegions(Location location) {
         if (isEnabled()) {
-            RegionManager rm = worldGuardPlugin.getRegionManager(location.getWorld());
-            if (rm != null) {
-                ApplicableRegionSet ars = rm.getApplicableRegions(location);
-
+            List<ProtectedRegion> candidates = indexUpdater.getRegionIndex().query(location.getWorld().getName(),
+                    location.getBlockX(), location.getBlockY(), location.getBlockZ());
+            if (!candidates.isEmpty()) {
                 Set<String> result = new HashSet<String>();
-                for (ProtectedRegion pr : ars) {
-                    // Ignore global region
-                    if (!"__global__".equals(pr.getId())) // NB: Hardcoded and not available as constant in WorldGuard
+                for (ProtectedRegion pr : candidates) {
+                    // Bounding box is exact for cuboids, anything else needs checking
+                    if (pr instanceof ProtectedCuboidRegion || pr.contains(BukkitUtil.toVector(location)))
                         result.add(pr.getId().toLowerCase());
                 }
                 return result;
@@ -101,11 +136,30 @@ public class WorldGuardRegionStrategy implements RegionStrategy, Listener {
         return Collections.emptySet();
     }
 
+    // Gather bounding boxes of referenced regions
+    private void collectRegionBounds(Set<String> regionNames, List<RegionIndexUpdater.Bounds<ProtectedRegion>> bounds) {
+        for (World world : Bukkit.getWorlds()) {
+            RegionManager rm = worldGuardPlugin.getRegionManager(world);
+            if (rm == null) continue;
+            for (String regionName : regionNames) {
+                ProtectedRegion pr = rm.getRegion(regionName);
+                // Ignore global region
+                if (pr == null || GLOBAL_REGION.equals(pr.getId())) continue;
+                BlockVector min = pr.getMinimumPoint();
+                BlockVector max = pr.getMaximumPoint();
+                bounds.add(new RegionIndexUpdater.Bounds<ProtectedRegion>(world.getName(), pr,
+                        min.getBlockX(), min.getBlockY(), min.getBlockZ(),
+                        max.getBlockX(), max.getBlockY(), max.getBlockZ()));
+            }
+        }
+    }
+
     @EventHandler
     public void onPluginEnable(PluginEnableEvent event) {
         if (!isEnabled() && RM_PLUGIN_NAME.equals(event.getPlugin().getName())) {
             detectWorldGuardPlugin();
             if (isEnabled()) {
+                indexUpdater.start();
                 ToHLoggingUtils.log(plugin, "%s region support enabled.", getName());
                 core.refreshPlayers();
             }
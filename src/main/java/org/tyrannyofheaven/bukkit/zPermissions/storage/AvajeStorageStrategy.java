@@ -15,17 +15,20 @@
  */
 package org.tyrannyofheaven.bukkit.zPermissions.storage;
 
+import static org.tyrannyofheaven.bukkit.util.ToHLoggingUtils.debug;
 import static org.tyrannyofheaven.bukkit.util.ToHLoggingUtils.log;
 
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 
 import org.bukkit.Bukkit;
 import org.bukkit.plugin.Plugin;
 import org.tyrannyofheaven.bukkit.util.transaction.AsyncTransactionStrategy;
 import org.tyrannyofheaven.bukkit.util.transaction.RetryingAvajeTransactionStrategy;
+import org.tyrannyofheaven.bukkit.util.transaction.TransactionCallback;
 import org.tyrannyofheaven.bukkit.util.transaction.TransactionCallbackWithoutResult;
 import org.tyrannyofheaven.bukkit.util.transaction.TransactionStrategy;
 import org.tyrannyofheaven.bukkit.zPermissions.dao.AvajePermissionDao2;
@@ -38,6 +41,12 @@ import org.tyrannyofheaven.bukkit.zPermissions.dao.PermissionDao;
  */
 public class AvajeStorageStrategy implements StorageStrategy {
 
+    // How long change log entries are kept around
+    private static final long CHANGE_LOG_RETENTION = 60L * 60L * 1000L;
+
+    // How often to prune the change log, in ticks
+    private static final long CHANGE_LOG_PRUNE_INTERVAL = 10L * 60L * 20L;
+
     private final PermissionDao dao;
 
     private final AsyncTransactionStrategy transactionStrategy;
@@ -48,6 +57,11 @@ public class AvajeStorageStrategy implements StorageStrategy {
 
     private final ExecutorService executorService;
 
+    // Set while a poll is queued or running
+    private final AtomicBoolean polling = new AtomicBoolean();
+
+    private int pruneTaskId = -1;
+
     public AvajeStorageStrategy(Plugin plugin, int maxRetries) {
         // Following will be used to actually execute async
         executorService = Executors.newSingleThreadExecutor();
@@ -65,10 +79,28 @@ public class AvajeStorageStrategy implements StorageStrategy {
         long start = System.currentTimeMillis();
         refreshInternal(); // synchronously
         log(plugin, "Finished initial load (%d ms).", System.currentTimeMillis() - start);
+
+        // Every server writes the change log, so every server prunes it,
+        // whether or not it polls
+        pruneTaskId = Bukkit.getScheduler().scheduleSyncRepeatingTask(plugin, new Runnable() {
+            @Override
+            public void run() {
+                executorService.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        pruneChangeLog();
+                    }
+                });
+            }
+        }, CHANGE_LOG_PRUNE_INTERVAL, CHANGE_LOG_PRUNE_INTERVAL);
     }
 
     @Override
     public void shutdown() {
+        if (pruneTaskId > -1) {
+            Bukkit.getScheduler().cancelTask(pruneTaskId);
+            pruneTaskId = -1;
+        }
         executorService.shutdown();
         try {
             long timeout = 60L;
@@ -98,6 +130,56 @@ public class AvajeStorageStrategy implements StorageStrategy {
         });
     }
 
+    /**
+     * Apply changes made by other servers, as recorded in the change log. Runs
+     * after any pending writes. Does nothing if a poll is already pending.
+     * 
+     * @param finishTask task to run in the main thread if anything changed
+     */
+    public void poll(final Runnable finishTask) {
+        if (!polling.compareAndSet(false, true))
+            return;
+
+        executorService.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    boolean changed = retryingTransactionStrategy.execute(new TransactionCallback<Boolean>() {
+                        @Override
+                        public Boolean doInTransaction() throws Exception {
+                            return ((AvajePermissionDao2)dao).poll();
+                        }
+                    });
+
+                    if (changed && finishTask != null)
+                        Bukkit.getScheduler().scheduleSyncDelayedTask(plugin, finishTask);
+                }
+                catch (Exception e) {
+                    log(plugin, Level.WARNING, "Error polling change log:", e);
+                }
+                finally {
+                    polling.set(false);
+                }
+            }
+        });
+    }
+
+    private void pruneChangeLog() {
+        try {
+            int deleted = retryingTransactionStrategy.execute(new TransactionCallback<Integer>() {
+                @Override
+                public Integer doInTransaction() throws Exception {
+                    return ((AvajePermissionDao2)dao).pruneChangeLog(CHANGE_LOG_RETENTION);
+                }
+            });
+            debug(plugin, "Pruned %d change log entries", deleted);
+        }
+        catch (Exception e) {
+            // Most likely another server pruning at the same time
+            debug(plugin, "Exception pruning change log: %s", e);
+        }
+    }
+
     private void refreshInternal() {
         retryingTransactionStrategy.execute(new TransactionCallbackWithoutResult() {
             @Override
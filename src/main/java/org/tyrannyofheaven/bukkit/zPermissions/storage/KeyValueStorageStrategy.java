@@ -0,0 +1,96 @@
+/*
+ * Copyright 2012 Allan Saddi <allan@saddi.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.zPermissions.storage;
+
+import static org.tyrannyofheaven.bukkit.util.ToHLoggingUtils.log;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.bukkit.plugin.Plugin;
+import org.tyrannyofheaven.bukkit.zPermissions.dao.JdbcKeyValueStore;
+import org.tyrannyofheaven.bukkit.zPermissions.dao.KeyValueStore;
+import org.tyrannyofheaven.bukkit.zPermissions.dao.StoredMemoryPermissionDao;
+
+/**
+ * StorageStrategy for StoredMemoryPermissionDao, backed by an embedded
+ * database. Reads are served from memory. Changes are committed to the store
+ * in batches shortly after they are made, each one only updating the records
+ * it touched. An existing flat-file save file is converted on first use and
+ * then renamed out of the way.
+ *
+ * @author asaddi
+ */
+public class KeyValueStorageStrategy extends MemoryStorageStrategy {
+
+    private final StoredMemoryPermissionDao dao;
+
+    private final File yamlFile;
+
+    private final String driver;
+
+    private final String url;
+
+    private final int commitDelay;
+
+    private volatile KeyValueStore store;
+
+    public KeyValueStorageStrategy(Plugin plugin, File yamlFile, String driver, String url, int commitDelay) {
+        this(plugin, yamlFile, driver, url, commitDelay, new StoredMemoryPermissionDao());
+    }
+
+    private KeyValueStorageStrategy(Plugin plugin, File yamlFile, String driver, String url, int commitDelay, StoredMemoryPermissionDao dao) {
+        super(plugin, yamlFile, null, false, null, 0, dao);
+        this.dao = dao;
+        this.yamlFile = yamlFile;
+        this.driver = driver;
+        this.url = url;
+        this.commitDelay = commitDelay;
+    }
+
+    @Override
+    protected void load() throws IOException {
+        store = new JdbcKeyValueStore(driver, url);
+        if (dao.loadStore(store) == 0 && yamlFile.exists()) {
+            log(getPlugin(), "Converting %s to embedded store", yamlFile.getName());
+            dao.load(yamlFile);
+            dao.markAllDirty();
+            dao.flush(store);
+            setConverted(yamlFile);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        if (store != null) {
+            store.close();
+            store = null;
+        }
+    }
+
+    @Override
+    protected long saveDao() throws IOException {
+        if (store == null) return -1L; // never opened
+        return dao.flush(store);
+    }
+
+    @Override
+    protected int getSaveDelay() {
+        return commitDelay;
+    }
+
+}
@@ -17,9 +17,11 @@ package org.tyrannyofheaven.bukkit.zPermissions.storage;
 
 import static org.tyrannyofheaven.bukkit.util.ToHLoggingUtils.debug;
 import static org.tyrannyofheaven.bukkit.util.ToHLoggingUtils.log;
+import static org.tyrannyofheaven.bukkit.util.ToHLoggingUtils.warn;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
@@ -33,7 +35,12 @@ import org.tyrannyofheaven.bukkit.zPermissions.dao.MemoryPermissionDao;
 import org.tyrannyofheaven.bukkit.zPermissions.dao.PermissionDao;
 
 /**
- * StorageStrategy for MemoryPermissionDao.
+ * StorageStrategy for MemoryPermissionDao. Saves either as YAML or in the
+ * binary format. If only the file of the other format exists, it is
+ * converted and then renamed out of the way. Optionally journals changes,
+ * in which case each transaction only appends its changes to the journal
+ * and the full save (which folds the journal back into the save file)
+ * happens much less often.
  * 
  * @author asaddi
  */
@@ -41,12 +48,23 @@ public class MemoryStorageStrategy implements StorageStrategy, TransactionStrate
 
     private static final int SAVE_DELAY = 200; // 10 seconds
 
-    private final MemoryPermissionDao dao = new MemoryPermissionDao();
+    private final MemoryPermissionDao dao;
 
     private final Plugin plugin;
 
     private final File saveFile;
 
+    // Save file in the format not being used, null if none
+    private final File otherFile;
+
+    private final boolean binary;
+
+    // Journal file, null if not journaling
+    private final File journalFile;
+
+    // Delay between the first journaled change and the next full save, in ticks
+    private final int compactionDelay;
+
     private boolean initialized;
 
     private int saveTask = -1; // NB synchronized on this
@@ -54,26 +72,83 @@ public class MemoryStorageStrategy implements StorageStrategy, TransactionStrate
     private final Lock saveLock = new ReentrantLock();
 
     public MemoryStorageStrategy(Plugin plugin, File saveFile) {
+        this(plugin, saveFile, null, false, null, 0);
+    }
+
+    public MemoryStorageStrategy(Plugin plugin, File yamlFile, File binaryFile, boolean binary, File journalFile, int compactionDelay) {
+        this(plugin, yamlFile, binaryFile, binary, journalFile, compactionDelay, new MemoryPermissionDao());
+    }
+
+    protected MemoryStorageStrategy(Plugin plugin, File yamlFile, File binaryFile, boolean binary, File journalFile, int compactionDelay, MemoryPermissionDao dao) {
+        this.dao = dao;
         this.plugin = plugin;
-        this.saveFile = saveFile;
+        this.saveFile = binary ? binaryFile : yamlFile;
+        this.otherFile = binary ? yamlFile : binaryFile;
+        this.binary = binary;
+        this.journalFile = journalFile;
+        this.compactionDelay = compactionDelay;
     }
 
     @Override
     public void init() {
+        try {
+            load();
+            if (journalFile != null) {
+                int replayed = dao.replayJournal(journalFile);
+                if (replayed > 0)
+                    log(plugin, "Replayed %d change%s from permissions journal", replayed, replayed == 1 ? "" : "s");
+                dao.openJournal(journalFile);
+            }
+            initialized = true;
+        }
+        catch (IOException e) {
+            log(plugin, Level.SEVERE, "Error loading permissions database:", e);
+        }
+    }
+
+    /**
+     * Load the DAO from its save file, converting from the other format if
+     * necessary.
+     * 
+     * @throws IOException
+     */
+    protected void load() throws IOException {
         if (saveFile.exists()) {
-            try {
+            if (binary)
+                dao.loadBinary(saveFile);
+            else
                 dao.load(saveFile);
-                initialized = true;
+        }
+        else if (otherFile != null && otherFile.exists()) {
+            log(plugin, "Converting %s to %s", otherFile.getName(), saveFile.getName());
+            if (binary) {
+                dao.load(otherFile);
+                dao.setDirty();
+                dao.saveBinary(saveFile);
             }
-            catch (IOException e) {
-                log(plugin, Level.SEVERE, "Error loading permissions database:", e);
+            else {
+                dao.loadBinary(otherFile);
+                dao.setDirty();
+                dao.save(saveFile);
             }
-        }
-        else {
-            initialized = true;
+            setConverted(otherFile);
         }
     }
 
+    /**
+     * Rename a file that has been converted so it is never mistaken for
+     * current data.
+     * 
+     * @param file the converted file
+     */
+    protected void setConverted(File file) {
+        File convertedFile = new File(file.getParentFile(), file.getName() + ".converted");
+        if (convertedFile.exists())
+            convertedFile.delete();
+        if (!file.renameTo(convertedFile))
+            warn(plugin, "Error renaming %s to %s", file, convertedFile);
+    }
+
     @Override
     public void shutdown() {
         if (!initialized) return; // if didn't load properly DON'T overwrite
@@ -89,6 +164,7 @@ public class MemoryStorageStrategy implements StorageStrategy, TransactionStrate
 
         debug(plugin, "Saving permissions database one last time...");
         save();
+        dao.closeJournal();
     }
 
     @Override
@@ -121,9 +197,19 @@ public class MemoryStorageStrategy implements StorageStrategy, TransactionStrate
             T result = callback.doInTransaction();
             // Schedule a save if dirty and no pending save
             if (dao.isDirty()) {
+                int delay = getSaveDelay();
+                if (journalFile != null) {
+                    try {
+                        dao.flushJournal();
+                        delay = compactionDelay;
+                    }
+                    catch (IOException e) {
+                        log(plugin, Level.SEVERE, "Error writing permissions journal, will save entire database:", e);
+                    }
+                }
                 synchronized (this) {
                     if (saveTask < 0) {
-                        saveTask = Bukkit.getScheduler().runTaskLaterAsynchronously(plugin, this, SAVE_DELAY).getTaskId();
+                        saveTask = Bukkit.getScheduler().runTaskLaterAsynchronously(plugin, this, delay).getTaskId();
                         if (saveTask < 0)
                             log(plugin, Level.SEVERE, "Error scheduling permissions database save task");
                     }
@@ -152,11 +238,38 @@ public class MemoryStorageStrategy implements StorageStrategy, TransactionStrate
         save();
     }
 
+    /**
+     * Save the DAO, if it has changed.
+     * 
+     * @return number of bytes written, or -1 if nothing was saved
+     * @throws IOException
+     */
+    protected long saveDao() throws IOException {
+        return binary ? dao.saveBinary(saveFile) : dao.save(saveFile);
+    }
+
+    /**
+     * Returns the number of ticks between a change and the save that
+     * includes it, when not journaling.
+     * 
+     * @return the delay in ticks
+     */
+    protected int getSaveDelay() {
+        return SAVE_DELAY;
+    }
+
+    protected Plugin getPlugin() {
+        return plugin;
+    }
+
     private void save() {
         try {
             saveLock.lock();
             try {
-                dao.save(saveFile);
+                long start = System.nanoTime();
+                long written = saveDao();
+                if (written >= 0L)
+                    debug(plugin, "Saved permissions database (%d bytes) in %d ms", written, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
             }
             finally {
                 saveLock.unlock();
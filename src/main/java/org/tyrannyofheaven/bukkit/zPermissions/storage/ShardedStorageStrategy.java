@@ -0,0 +1,71 @@
+/*
+ * Copyright 2012 Allan Saddi <allan@saddi.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.zPermissions.storage;
+
+import static org.tyrannyofheaven.bukkit.util.ToHLoggingUtils.log;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.bukkit.plugin.Plugin;
+import org.tyrannyofheaven.bukkit.zPermissions.dao.ShardedMemoryPermissionDao;
+
+/**
+ * StorageStrategy for ShardedMemoryPermissionDao. Each save only rewrites the
+ * shard files that changed. An existing single save file is converted on
+ * first use and then renamed out of the way.
+ *
+ * @author asaddi
+ */
+public class ShardedStorageStrategy extends MemoryStorageStrategy {
+
+    private final ShardedMemoryPermissionDao dao;
+
+    private final File yamlFile;
+
+    private final File shardDirectory;
+
+    public ShardedStorageStrategy(Plugin plugin, File yamlFile, File shardDirectory, int shardCount, File journalFile, int compactionDelay) {
+        this(plugin, yamlFile, shardDirectory, journalFile, compactionDelay, new ShardedMemoryPermissionDao(shardCount));
+    }
+
+    private ShardedStorageStrategy(Plugin plugin, File yamlFile, File shardDirectory, File journalFile, int compactionDelay, ShardedMemoryPermissionDao dao) {
+        super(plugin, yamlFile, null, false, journalFile, compactionDelay, dao);
+        this.dao = dao;
+        this.yamlFile = yamlFile;
+        this.shardDirectory = shardDirectory;
+    }
+
+    @Override
+    protected void load() throws IOException {
+        if (ShardedMemoryPermissionDao.exists(shardDirectory)) {
+            dao.loadShards(shardDirectory);
+        }
+        else if (yamlFile.exists()) {
+            log(getPlugin(), "Converting %s to shards in %s", yamlFile.getName(), shardDirectory.getName());
+            dao.load(yamlFile);
+            dao.markAllDirty();
+            dao.saveShards(shardDirectory);
+            setConverted(yamlFile);
+        }
+    }
+
+    @Override
+    protected long saveDao() throws IOException {
+        return dao.saveShards(shardDirectory);
+    }
+
+}
@@ -17,11 +17,13 @@ package org.tyrannyofheaven.bukkit.zPermissions.util;
 
 import static org.tyrannyofheaven.bukkit.util.ToHLoggingUtils.debug;
 
-import java.util.Comparator;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
-import java.util.PriorityQueue;
-import java.util.Queue;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -31,20 +33,37 @@ import java.util.concurrent.TimeUnit;
 import org.bukkit.Bukkit;
 import org.bukkit.entity.Player;
 import org.bukkit.plugin.Plugin;
+import org.tyrannyofheaven.bukkit.util.transaction.TransactionCallback;
+import org.tyrannyofheaven.bukkit.zPermissions.QualifiedPermission;
 import org.tyrannyofheaven.bukkit.zPermissions.ZPermissionsCore;
+import org.tyrannyofheaven.bukkit.zPermissions.dao.BaseMemoryPermissionDao;
+import org.tyrannyofheaven.bukkit.zPermissions.dao.ExpirationListener;
+import org.tyrannyofheaven.bukkit.zPermissions.dao.ReadOnlyPermissionDao;
+import org.tyrannyofheaven.bukkit.zPermissions.model.Entry;
 import org.tyrannyofheaven.bukkit.zPermissions.model.Membership;
+import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionEntity;
 import org.tyrannyofheaven.bukkit.zPermissions.storage.StorageStrategy;
 
-public class ExpirationRefreshHandler implements Runnable {
+/**
+ * Refreshes online players when their temporary memberships or temporary
+ * permissions expire. Expiring group permissions refresh every player
+ * affected by the group. Pending expirations are kept in a
+ * {@link TimingWheel}, which is updated incrementally: when a player joins or
+ * leaves (see {@link #rescan(String)}) and when the DAO reports a change. A
+ * full {@link #rescan()} is only needed after (re-)loading the permissions
+ * store.
+ * 
+ * @author asaddi
+ */
+public class ExpirationRefreshHandler implements ExpirationListener {
 
-    private static final Comparator<Membership> MEMBERSHIP_EXPIRATION_COMPARATOR = new Comparator<Membership>() {
-        @Override
-        public int compare(Membership a, Membership b) {
-            return a.getExpiration().compareTo(b.getExpiration());
-        }
-    };
+    private static final long TICK_DURATION = 1000L; // ms
 
-    private static final long FUDGE = 1000L;
+    private static final int WHEEL_SIZE = 64;
+
+    private static final int WHEEL_LEVELS = 4; // 64^4 seconds, about 194 days
+
+    private static final String PERMISSION_GRANT_PREFIX = "permission:";
 
     private final ZPermissionsCore core;
 
@@ -54,10 +73,26 @@ public class ExpirationRefreshHandler implements Runnable {
 
     private final ScheduledExecutorService executorService;
 
-    private final Queue<Membership> membershipQueue = new PriorityQueue<Membership>(11, MEMBERSHIP_EXPIRATION_COMPARATOR); // synchronized on this
+    private final TimingWheel<ExpirationKey> timingWheel = new TimingWheel<ExpirationKey>(TICK_DURATION, WHEEL_SIZE, WHEEL_LEVELS, System.currentTimeMillis()); // synchronized on this
+
+    // Lowercase player name -> player's pending expirations
+    private final Map<String, Set<ExpirationKey>> playerExpirations = new HashMap<String, Set<ExpirationKey>>(); // synchronized on this
+
+    // Pending expirations of group permissions
+    private final Set<ExpirationKey> groupExpirations = new HashSet<ExpirationKey>(); // synchronized on this
+
+    // Lowercase names of online players
+    private final Set<String> onlinePlayers = new HashSet<String>(); // synchronized on this
 
     private ScheduledFuture<?> scheduledFuture; // synchronized on this
 
+    private final Runnable tickTask = new Runnable() {
+        @Override
+        public void run() {
+            tick();
+        }
+    };
+
     public ExpirationRefreshHandler(ZPermissionsCore core, StorageStrategy storageStrategy, Plugin plugin) {
         this.core = core;
         this.storageStrategy = storageStrategy;
@@ -66,77 +101,315 @@ public class ExpirationRefreshHandler implements Runnable {
         executorService = Executors.newSingleThreadScheduledExecutor();
     }
 
-    public synchronized void rescan() {
-        membershipQueue.clear();
-        Date now = new Date();
+    /**
+     * Rebuild expirations for all online players and all groups. Should be
+     * called from the main thread.
+     */
+    public void rescan() {
+        // Temporary permissions that expired while nobody was watching
+        purgeExpiredPermissions(null, false);
+
+        // Read from the DAO first, never while holding our own lock. Read from
+        // a snapshot, since the live groups' permissions may be modified
+        // while we iterate them.
+        ReadOnlyPermissionDao dao = ((BaseMemoryPermissionDao)storageStrategy.getDao()).getReadOnlySnapshot();
+        Map<String, List<Membership>> memberships = new HashMap<String, List<Membership>>();
+        List<Entry> entries = new ArrayList<Entry>();
         for (Player player : Bukkit.getOnlinePlayers()) {
-            for (Membership membership : storageStrategy.getDao().getGroups(player.getName())) {
-                if (membership.getExpiration() != null && membership.getExpiration().after(now)) {
-                    membershipQueue.add(membership);
-                }
+            memberships.put(player.getName().toLowerCase(), dao.getGroups(player.getName()));
+            entries.addAll(dao.getEntries(player.getName(), false));
+        }
+        for (PermissionEntity group : dao.getEntities(true)) {
+            entries.addAll(group.getPermissions());
+        }
+
+        synchronized (this) {
+            for (String playerName : new HashSet<String>(playerExpirations.keySet())) {
+                clearExpirations(playerName);
+            }
+            for (ExpirationKey key : groupExpirations) {
+                timingWheel.cancel(key);
+            }
+            groupExpirations.clear();
+            onlinePlayers.clear();
+            onlinePlayers.addAll(memberships.keySet());
+
+            Date now = new Date();
+            for (List<Membership> playerMemberships : memberships.values()) {
+                addMembershipExpirations(playerMemberships, now);
+            }
+            addPermissionExpirations(entries, now);
+
+            debug(plugin, "Potential future expirations: %d", timingWheel.size());
+            startTicking();
+        }
+    }
+
+    /**
+     * Rebuild expirations for a single player. If the player is online, their
+     * memberships and permissions are re-read. Otherwise, their expirations
+     * are dropped. Should be called from the main thread.
+     * 
+     * @param playerName the player's name
+     */
+    public void rescan(String playerName) {
+        String lname = playerName.toLowerCase();
+        List<Membership> memberships = null;
+        List<Entry> entries = null;
+        if (Bukkit.getPlayerExact(playerName) != null) {
+            memberships = storageStrategy.getDao().getGroups(playerName);
+            entries = storageStrategy.getDao().getEntries(playerName, false);
+        }
+
+        synchronized (this) {
+            clearExpirations(lname);
+            if (memberships != null) {
+                onlinePlayers.add(lname);
+                Date now = new Date();
+                addMembershipExpirations(memberships, now);
+                addPermissionExpirations(entries, now);
+            }
+            else {
+                onlinePlayers.remove(lname);
             }
+
+            debug(plugin, "Potential future expirations: %d", timingWheel.size());
+            startTicking();
         }
+    }
 
-        debug(plugin, "Potential future expirations: %s", membershipQueue);
+    @Override
+    public synchronized void membershipChanged(String member, String group, Date expiration) {
+        if (!onlinePlayers.contains(member))
+            return; // Picked up when they join
 
-        // Queue up task
-        run();
+        ExpirationKey key = new ExpirationKey(member, false, membershipGrant(group));
+        if (expiration != null)
+            addExpiration(key, expiration);
+        else
+            removeExpiration(key);
+        startTicking();
     }
 
     @Override
-    public synchronized void run() {
-        Set<String> toRefresh = new LinkedHashSet<String>();
+    public synchronized void permissionChanged(String name, boolean group, String region, String world, String permission, Date expiration) {
+        if (!group && !onlinePlayers.contains(name))
+            return; // Picked up when they join
 
-        // Gather up memberships that have already expired
-        Date now = new Date();
-        Membership next = membershipQueue.peek();
-        while (next != null && !next.getExpiration().after(now)) {
-            membershipQueue.remove();
+        ExpirationKey key = new ExpirationKey(name, group, permissionGrant(region, world, permission));
+        if (expiration != null)
+            addExpiration(key, expiration);
+        else
+            removeExpiration(key);
+        startTicking();
+    }
 
-            toRefresh.add(next.getMember());
+    // Advance the wheel and refresh anyone whose memberships or permissions expired
+    private void tick() {
+        Set<String> toRefresh = new LinkedHashSet<String>();
+        final Set<String> groupsToRefresh = new LinkedHashSet<String>();
+        final Set<String> playersToPurge = new LinkedHashSet<String>();
+        final Set<String> groupsToPurge = new LinkedHashSet<String>();
+        synchronized (this) {
+            for (ExpirationKey key : timingWheel.advance(System.currentTimeMillis())) {
+                removeFromIndex(key);
+                if (key.isGroup())
+                    groupsToRefresh.add(key.getName());
+                else
+                    toRefresh.add(key.getName());
+                if (key.isPermission())
+                    (key.isGroup() ? groupsToPurge : playersToPurge).add(key.getName());
+            }
 
-            now = new Date();
-            next = membershipQueue.peek();
+            // Stop ticking once there's nothing left to expire
+            if (timingWheel.isEmpty() && scheduledFuture != null) {
+                scheduledFuture.cancel(false);
+                scheduledFuture = null;
+                debug(plugin, "No future expirations");
+            }
+        }
+
+        if (!toRefresh.isEmpty()) {
+            debug(plugin, "Refreshing expired players: %s", toRefresh);
+            core.refreshPlayers(toRefresh);
+        }
+        if (!groupsToRefresh.isEmpty() || !playersToPurge.isEmpty() || !groupsToPurge.isEmpty()) {
+            if (!groupsToRefresh.isEmpty())
+                debug(plugin, "Refreshing players affected by expired groups: %s", groupsToRefresh);
+            // DAO writes and the group membership index are only safe from
+            // the main thread
+            Bukkit.getScheduler().scheduleSyncDelayedTask(plugin, new Runnable() {
+                @Override
+                public void run() {
+                    // Expired entries are already ignored by the resolver,
+                    // so order doesn't matter
+                    for (String player : playersToPurge) {
+                        purgeExpiredPermissions(player, false);
+                    }
+                    for (String group : groupsToPurge) {
+                        purgeExpiredPermissions(group, true);
+                    }
+                    for (String group : groupsToRefresh) {
+                        core.refreshAffectedPlayers(group);
+                    }
+                }
+            });
         }
+    }
+
+    // Drop expired temporary permissions of a player or group (or everyone,
+    // if name is null) from the DAO, restoring any permanent values they
+    // overrode. Should be called from the main thread.
+    private void purgeExpiredPermissions(final String name, final boolean group) {
+        int count = storageStrategy.getRetryingTransactionStrategy().execute(new TransactionCallback<Integer>() {
+            @Override
+            public Integer doInTransaction() throws Exception {
+                return storageStrategy.getDao().purgeExpiredPermissions(name, group);
+            }
+        });
+        if (count > 0)
+            debug(plugin, "Purged %d expired temporary permission(s)", count);
+    }
 
-        debug(plugin, "Refreshing expired players: %s", toRefresh);
-        core.refreshPlayers(toRefresh);
+    private void startTicking() {
+        if (!timingWheel.isEmpty() && scheduledFuture == null)
+            scheduledFuture = executorService.scheduleAtFixedRate(tickTask, TICK_DURATION, TICK_DURATION, TimeUnit.MILLISECONDS);
+    }
 
-        // Cancel previous task
-        if (scheduledFuture != null) {
-            scheduledFuture.cancel(false);
-            scheduledFuture = null;
+    private void addMembershipExpirations(List<Membership> memberships, Date now) {
+        for (Membership membership : memberships) {
+            if (membership.getExpiration() != null && membership.getExpiration().after(now)) {
+                addExpiration(new ExpirationKey(membership.getMember().toLowerCase(), false, membershipGrant(membership.getGroup().getName())),
+                        membership.getExpiration());
+            }
         }
+    }
 
-        // Schedule new task
-        if (next != null) {
-            now = new Date();
-            long delay = next.getExpiration().getTime() - now.getTime();
+    private void addPermissionExpirations(List<Entry> entries, Date now) {
+        for (Entry entry : entries) {
+            if (entry.getExpiration() != null && entry.getExpiration().after(now)) {
+                addExpiration(new ExpirationKey(entry.getEntity().getName(), entry.getEntity().isGroup(),
+                        permissionGrant(entry.getRegion() == null ? null : entry.getRegion().getName(),
+                                entry.getWorld() == null ? null : entry.getWorld().getName(),
+                                entry.getPermission())),
+                        entry.getExpiration());
+            }
+        }
+    }
 
-            if (delay < 0L)
-                delay = 0L; // Weird...
+    private void addExpiration(ExpirationKey key, Date expiration) {
+        // Wheel stops being advanced when it runs empty, so catch it up
+        timingWheel.schedule(key, expiration.getTime(), System.currentTimeMillis());
 
-            debug(plugin, "Next expiration is %dms away", delay);
+        if (key.isGroup()) {
+            groupExpirations.add(key);
+        }
+        else {
+            Set<ExpirationKey> keys = playerExpirations.get(key.getName());
+            if (keys == null) {
+                keys = new HashSet<ExpirationKey>();
+                playerExpirations.put(key.getName(), keys);
+            }
+            keys.add(key);
+        }
+    }
 
-            final Runnable realThis = this;
-            scheduledFuture = executorService.schedule(new Runnable() {
-                @Override
-                public void run() {
-                    debug(plugin, "Expiring...");
-                    Bukkit.getScheduler().scheduleSyncDelayedTask(plugin, realThis);
-                }
-            }, delay + FUDGE, TimeUnit.MILLISECONDS);
+    private void removeExpiration(ExpirationKey key) {
+        if (timingWheel.cancel(key))
+            removeFromIndex(key);
+    }
+
+    private void clearExpirations(String playerName) {
+        Set<ExpirationKey> keys = playerExpirations.remove(playerName);
+        if (keys != null) {
+            for (ExpirationKey key : keys) {
+                timingWheel.cancel(key);
+            }
         }
-        else
-            debug(plugin, "No future expirations");
+    }
+
+    private void removeFromIndex(ExpirationKey key) {
+        if (key.isGroup()) {
+            groupExpirations.remove(key);
+        }
+        else {
+            Set<ExpirationKey> keys = playerExpirations.get(key.getName());
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty())
+                    playerExpirations.remove(key.getName());
+            }
+        }
+    }
+
+    private static String membershipGrant(String group) {
+        return "member:" + group.toLowerCase();
+    }
+
+    private static String permissionGrant(String region, String world, String permission) {
+        return PERMISSION_GRANT_PREFIX + new QualifiedPermission(region, world, permission).toString().toLowerCase();
     }
 
     public void shutdown() {
-        if (scheduledFuture != null) {
-            scheduledFuture.cancel(false);
-            scheduledFuture = null;
+        synchronized (this) {
+            if (scheduledFuture != null) {
+                scheduledFuture.cancel(false);
+                scheduledFuture = null;
+            }
         }
         executorService.shutdownNow();
     }
 
+    // Key for an expiring grant's timer: the owning player or group (in
+    // lowercase) and what was granted
+    private static class ExpirationKey {
+
+        private final String name;
+
+        private final boolean group;
+
+        private final String grant;
+
+        public ExpirationKey(String name, boolean group, String grant) {
+            this.name = name.toLowerCase();
+            this.group = group;
+            this.grant = grant;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isGroup() {
+            return group;
+        }
+
+        public boolean isPermission() {
+            return grant.startsWith(PERMISSION_GRANT_PREFIX);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) return true;
+            if (!(obj instanceof ExpirationKey)) return false;
+            ExpirationKey o = (ExpirationKey)obj;
+            return name.equals(o.name) && group == o.group && grant.equals(o.grant);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = 17;
+            result = 37 * result + name.hashCode();
+            result = 37 * result + (group ? 1 : 0);
+            result = 37 * result + grant.hashCode();
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return (group ? "group " : "player ") + name + "/" + grant;
+        }
+
+    }
+
 }
@@ -123,6 +123,9 @@ public class ModelDumper {
     // Dump permissions for a player or group
     private void dumpPermissions(final PrintWriter out, PermissionEntity entity) {
         for (Entry e : Utils.sortPermissions(entity.getPermissions())) {
+            // Temporary permissions aren't dumped, but the permanent values
+            // they override are
+            if (e.getExpiration() != null && e.getPreviousValue() == null) continue;
             out.println(String.format("permissions %s %s set %s %s",
                     (entity.isGroup() ? "group" : "player"),
                     quoteArgForCommand(entity.getDisplayName()),
@@ -130,7 +133,7 @@ public class ModelDumper {
                             (e.getRegion() == null ? "" : e.getRegion().getName() + "/"),
                             (e.getWorld() == null ? "" : e.getWorld().getName() + ":"),
                             e.getPermission())),
-                    e.isValue()));
+                    e.getExpiration() == null ? e.isValue() : e.getPreviousValue()));
         }
     }
 
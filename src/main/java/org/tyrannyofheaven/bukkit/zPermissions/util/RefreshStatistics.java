@@ -0,0 +1,138 @@
+/*
+ * Copyright 2012 Allan Saddi <allan@saddi.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.zPermissions.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing how much work player permission refreshes are doing.
+ * 
+ * @author asaddi
+ */
+public class RefreshStatistics {
+
+    private final AtomicLong refreshes = new AtomicLong();
+
+    private final AtomicLong unchangedRefreshes = new AtomicLong();
+
+    private final AtomicLong asyncRefreshes = new AtomicLong();
+
+    private final AtomicLong staleResults = new AtomicLong();
+
+    private final AtomicInteger queueDepth = new AtomicInteger();
+
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+    private final AtomicLong drains = new AtomicLong();
+
+    private final AtomicLong lastDrainTime = new AtomicLong();
+
+    /**
+     * Record a forced update of a player's permissions.
+     * 
+     * @param changed true if the player's effective permissions changed
+     */
+    public void recordRefresh(boolean changed) {
+        refreshes.incrementAndGet();
+        if (!changed)
+            unchangedRefreshes.incrementAndGet();
+    }
+
+    /**
+     * Record a refresh handed off to the resolver pool.
+     */
+    public void recordAsyncRefresh() {
+        asyncRefreshes.incrementAndGet();
+    }
+
+    /**
+     * Record an asynchronously resolved result that was discarded because it
+     * was superseded before it could be applied.
+     */
+    public void recordStaleResult() {
+        staleResults.incrementAndGet();
+    }
+
+    /**
+     * Record the number of players waiting for a bulk refresh.
+     * 
+     * @param depth the current queue depth
+     */
+    public void setQueueDepth(int depth) {
+        queueDepth.set(depth);
+        int max;
+        while (depth > (max = maxQueueDepth.get())) {
+            if (maxQueueDepth.compareAndSet(max, depth))
+                break;
+        }
+    }
+
+    /**
+     * Record the time taken for the bulk refresh queue to empty, measured
+     * from when it was last empty.
+     * 
+     * @param millis the drain time in milliseconds
+     */
+    public void recordDrain(long millis) {
+        drains.incrementAndGet();
+        lastDrainTime.set(millis);
+    }
+
+    public long getRefreshes() {
+        return refreshes.get();
+    }
+
+    // Refreshes that turned out to be no-ops
+    public long getUnchangedRefreshes() {
+        return unchangedRefreshes.get();
+    }
+
+    public long getAsyncRefreshes() {
+        return asyncRefreshes.get();
+    }
+
+    public long getStaleResults() {
+        return staleResults.get();
+    }
+
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    public long getDrains() {
+        return drains.get();
+    }
+
+    public long getLastDrainTime() {
+        return lastDrainTime.get();
+    }
+
+    public void reset() {
+        refreshes.set(0L);
+        unchangedRefreshes.set(0L);
+        asyncRefreshes.set(0L);
+        staleResults.set(0L);
+        maxQueueDepth.set(queueDepth.get()); // current depth is still accurate
+        drains.set(0L);
+        lastDrainTime.set(0L);
+    }
+
+}
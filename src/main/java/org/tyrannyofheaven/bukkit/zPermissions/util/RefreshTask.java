@@ -22,9 +22,8 @@ import static org.tyrannyofheaven.bukkit.util.ToHStringUtils.delimitedString;
 
 import java.util.Collection;
 import java.util.LinkedHashSet;
-import java.util.LinkedList;
-import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.bukkit.Bukkit;
 import org.bukkit.plugin.Plugin;
@@ -33,7 +32,9 @@ import org.tyrannyofheaven.bukkit.zPermissions.ZPermissionsCore;
 
 /**
  * Periodically calls {@link ZPermissionsCore#refreshPlayer(String, RefreshCause)} on the
- * given queue of players.
+ * given queue of players. Each run refreshes as many players as are expected
+ * to fit within the time budget, based on the measured cost of previous
+ * refreshes. At least one player is refreshed per run.
  * 
  * @author asaddi
  */
@@ -45,10 +46,16 @@ public class RefreshTask implements Runnable {
 
     private int delay;
 
-    private final Queue<String> playersToRefresh = new LinkedList<String>(); // synchronized on this
+    private long budget; // nanoseconds
+
+    private final Set<String> playersToRefresh = new LinkedHashSet<String>(); // synchronized on this
 
     private int taskId = -1; // synchronized on this
 
+    private long averageCost; // nanoseconds, synchronized on this
+
+    private long drainStart; // synchronized on this
+
     public RefreshTask(ZPermissionsCore core, Plugin plugin) {
         this.core = core;
         this.plugin = plugin;
@@ -60,22 +67,31 @@ public class RefreshTask implements Runnable {
         this.delay = delay;
     }
 
+    /**
+     * Set the amount of time each run may spend refreshing players. 0 means
+     * only refresh a single player per run.
+     * 
+     * @param budget the time budget in milliseconds
+     */
+    public synchronized void setBudget(int budget) {
+        if (budget < 0)
+            budget = 0;
+        this.budget = TimeUnit.MILLISECONDS.toNanos(budget);
+    }
+
     public synchronized void start(Collection<String> playerNames) {
         if (playerNames == null || playerNames.isEmpty())
             return; // Nothing to do
 
-        // Build a set to maintain uniqueness
-        Set<String> nextPlayersToRefresh = new LinkedHashSet<String>(playersToRefresh);
-        
-        // Remember who to refresh
+        if (playersToRefresh.isEmpty())
+            drainStart = System.nanoTime();
+
+        // Remember who to refresh (set maintains uniqueness)
         for (String playerName : playerNames) {
             // Canonicalize
-            nextPlayersToRefresh.add(playerName.toLowerCase());
+            playersToRefresh.add(playerName.toLowerCase());
         }
-
-        // Replace queue with set
-        playersToRefresh.clear();
-        playersToRefresh.addAll(nextPlayersToRefresh);
+        core.getRefreshStatistics().setQueueDepth(playersToRefresh.size());
 
         // Schedule task if not already scheduled
         if (taskId < 0) {
@@ -102,19 +118,42 @@ public class RefreshTask implements Runnable {
     public synchronized void run() {
         taskId = -1;
 
-        if (!playersToRefresh.isEmpty()) {
-            String playerToRefresh = playersToRefresh.remove();
+        long start = System.nanoTime();
+        int count = 0;
+        while (!playersToRefresh.isEmpty()) {
+            // Stop if the next player isn't expected to fit
+            if (count > 0 && (System.nanoTime() - start) + averageCost > budget)
+                break;
+
+            // NB Don't hold an iterator across refreshPlayer()
+            String playerToRefresh = playersToRefresh.iterator().next();
+            playersToRefresh.remove(playerToRefresh);
 
-            // Refresh single player
+            long before = System.nanoTime();
             core.refreshPlayer(playerToRefresh, RefreshCause.GROUP_CHANGE); // NB Assumes all who call start() are doing so for group- or server-wide changes
+            updateAverageCost(System.nanoTime() - before);
+            count++;
         }
-        
-        // Schedule next player
+        core.getRefreshStatistics().setQueueDepth(playersToRefresh.size());
+        debug(plugin, "Refreshed %d player(s) in %d ms", count, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        // Schedule next batch
         if (!playersToRefresh.isEmpty()) {
             scheduleTask();
         }
+        else {
+            long drainTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - drainStart);
+            core.getRefreshStatistics().recordDrain(drainTime);
+            debug(plugin, "Done doing background refresh! (%d ms)", drainTime);
+        }
+    }
+
+    // Exponentially-weighted moving average of the cost of a single refresh
+    private void updateAverageCost(long cost) {
+        if (averageCost == 0L)
+            averageCost = cost;
         else
-            debug(plugin, "Done doing background refresh!");
+            averageCost += (cost - averageCost) / 8;
     }
 
 }
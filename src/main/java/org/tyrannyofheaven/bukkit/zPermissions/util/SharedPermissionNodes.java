@@ -0,0 +1,152 @@
+/*
+ * Copyright 2012 Allan Saddi <allan@saddi.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.zPermissions.util;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.Bukkit;
+import org.bukkit.permissions.Permission;
+import org.bukkit.permissions.PermissionDefault;
+
+/**
+ * Manages dynamic permissions shared by players with identical effective
+ * permissions. Each distinct set of resolved permissions (compared by
+ * content, including order) is registered once and reference counted by the
+ * players using it. A node is unregistered once its last player releases it.
+ *
+ * <p>Should only be used from the main thread.
+ *
+ * @author asaddi
+ */
+public class SharedPermissionNodes {
+
+    private final String prefix;
+
+    private final Map<List<Map.Entry<String, Boolean>>, Node> nodesByContent = new HashMap<List<Map.Entry<String, Boolean>>, Node>();
+
+    // Lowercase player name -> node
+    private final Map<String, Node> nodesByPlayer = new HashMap<String, Node>();
+
+    private long nextId;
+
+    public SharedPermissionNodes(String prefix) {
+        this.prefix = prefix;
+    }
+
+    /**
+     * Retrieve the name of the shared node holding the given permissions,
+     * registering it if necessary. Any node the player previously held is
+     * released.
+     *
+     * @param playerName the player's name
+     * @param permissions the player's effective permissions
+     * @return the name of the shared node
+     */
+    public String acquire(String playerName, Map<String, Boolean> permissions) {
+        String lname = playerName.toLowerCase();
+        List<Map.Entry<String, Boolean>> content = toContent(permissions);
+
+        Node current = nodesByPlayer.get(lname);
+        if (current != null && current.getContent().equals(content))
+            return current.getName();
+
+        Node node = nodesByContent.get(content);
+        if (node == null) {
+            node = new Node(prefix + nextId++, content);
+            Bukkit.getPluginManager().addPermission(new Permission(node.getName(), PermissionDefault.FALSE, new LinkedHashMap<String, Boolean>(permissions)));
+            nodesByContent.put(content, node);
+        }
+        node.retain();
+        nodesByPlayer.put(lname, node);
+
+        if (current != null)
+            release(current);
+        return node.getName();
+    }
+
+    /**
+     * Release the player's shared node, if any.
+     *
+     * @param playerName the player's name
+     */
+    public void release(String playerName) {
+        Node node = nodesByPlayer.remove(playerName.toLowerCase());
+        if (node != null)
+            release(node);
+    }
+
+    /**
+     * Returns the number of shared nodes currently registered.
+     *
+     * @return the number of shared nodes
+     */
+    public int getNodeCount() {
+        return nodesByContent.size();
+    }
+
+    private void release(Node node) {
+        if (node.release() <= 0) {
+            nodesByContent.remove(node.getContent());
+            Bukkit.getPluginManager().removePermission(node.getName());
+        }
+    }
+
+    // Ordered, immutable copy of the permissions, suitable as a map key
+    private static List<Map.Entry<String, Boolean>> toContent(Map<String, Boolean> permissions) {
+        List<Map.Entry<String, Boolean>> content = new ArrayList<Map.Entry<String, Boolean>>(permissions.size());
+        for (Map.Entry<String, Boolean> me : permissions.entrySet()) {
+            content.add(new AbstractMap.SimpleImmutableEntry<String, Boolean>(me.getKey(), me.getValue()));
+        }
+        return content;
+    }
+
+    private static class Node {
+
+        private final String name;
+
+        private final List<Map.Entry<String, Boolean>> content;
+
+        private int refCount;
+
+        public Node(String name, List<Map.Entry<String, Boolean>> content) {
+            this.name = name;
+            this.content = content;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public List<Map.Entry<String, Boolean>> getContent() {
+            return content;
+        }
+
+        public void retain() {
+            refCount++;
+        }
+
+        public int release() {
+            return --refCount;
+        }
+
+    }
+
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2012 Allan Saddi <allan@saddi.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.zPermissions.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Hierarchical timing wheel. Timers are keyed, so scheduling a key again
+ * replaces its previous deadline. Scheduling and cancelling are O(1); each
+ * timer is moved down at most once per level before it expires.
+ * 
+ * <p>Timers never expire early, but may expire up to one tick late. Not
+ * thread-safe.
+ * 
+ * @author asaddi
+ */
+public class TimingWheel<K> {
+
+    private final long tickDuration;
+
+    private final int wheelSize;
+
+    // [level][slot], slots at level n span wheelSize^n ticks
+    private final List<List<Set<K>>> wheels;
+
+    // Timers too far in the future for the top level
+    private final Set<K> overflow = new HashSet<K>();
+
+    private final Map<K, Timer<K>> timers = new HashMap<K, Timer<K>>();
+
+    // Next tick to be processed
+    private long currentTick;
+
+    /**
+     * Create a timing wheel.
+     * 
+     * @param tickDuration duration of a tick, in milliseconds
+     * @param wheelSize number of slots in each level
+     * @param levels number of levels
+     * @param now the current time, in milliseconds
+     */
+    public TimingWheel(long tickDuration, int wheelSize, int levels, long now) {
+        if (tickDuration < 1L)
+            throw new IllegalArgumentException("tickDuration must be positive");
+        if (wheelSize < 2)
+            throw new IllegalArgumentException("wheelSize must be at least 2");
+        if (levels < 1)
+            throw new IllegalArgumentException("levels must be positive");
+
+        this.tickDuration = tickDuration;
+        this.wheelSize = wheelSize;
+
+        wheels = new ArrayList<List<Set<K>>>(levels);
+        for (int i = 0; i < levels; i++) {
+            List<Set<K>> slots = new ArrayList<Set<K>>(wheelSize);
+            for (int j = 0; j < wheelSize; j++) {
+                slots.add(new HashSet<K>());
+            }
+            wheels.add(slots);
+        }
+
+        currentTick = now / tickDuration;
+    }
+
+    /**
+     * Schedule a timer, replacing any existing timer with the same key.
+     * Deadlines in the past expire on the next call to {@link #advance(long)}.
+     * 
+     * @param key the timer's key
+     * @param deadline the deadline, in milliseconds
+     */
+    public void schedule(K key, long deadline) {
+        cancel(key);
+        Timer<K> timer = new Timer<K>(Math.max(deadline / tickDuration, currentTick));
+        timers.put(key, timer);
+        place(key, timer);
+    }
+
+    /**
+     * Schedule a timer, replacing any existing timer with the same key. If
+     * no other timers are pending, the wheel is first moved ahead to the
+     * current time, since it may not have been advanced for a while. Without
+     * this, the next {@link #advance(long)} would have to step through every
+     * tick that passed in the meantime.
+     * 
+     * @param key the timer's key
+     * @param deadline the deadline, in milliseconds
+     * @param now the current time, in milliseconds
+     */
+    public void schedule(K key, long deadline, long now) {
+        cancel(key);
+        if (timers.isEmpty())
+            advance(now); // only jumps ahead, nothing to expire
+        schedule(key, deadline);
+    }
+
+    /**
+     * Cancel a timer.
+     * 
+     * @param key the timer's key
+     * @return true if the timer was pending
+     */
+    public boolean cancel(K key) {
+        Timer<K> timer = timers.remove(key);
+        if (timer == null)
+            return false;
+        timer.bucket.remove(key);
+        return true;
+    }
+
+    public boolean contains(K key) {
+        return timers.containsKey(key);
+    }
+
+    public boolean isEmpty() {
+        return timers.isEmpty();
+    }
+
+    public int size() {
+        return timers.size();
+    }
+
+    /**
+     * Advance the wheel to the given time, expiring all timers whose
+     * deadline has passed.
+     * 
+     * @param now the current time, in milliseconds
+     * @return keys of the expired timers
+     */
+    public Collection<K> advance(long now) {
+        List<K> expired = new ArrayList<K>();
+        long nowTick = now / tickDuration;
+
+        if (timers.isEmpty()) {
+            // Nothing to cascade, just jump ahead
+            if (nowTick > currentTick)
+                currentTick = nowTick;
+            return expired;
+        }
+
+        while (currentTick < nowTick) {
+            cascade(currentTick);
+
+            // Everything left in this level 0 slot is due
+            Set<K> bucket = wheels.get(0).get(slot(currentTick, 0));
+            for (K key : bucket) {
+                timers.remove(key);
+                expired.add(key);
+            }
+            bucket.clear();
+
+            currentTick++;
+        }
+        return expired;
+    }
+
+    // Move timers down from the higher-level slots that begin at tick,
+    // starting from the top
+    private void cascade(long tick) {
+        long span = 1L;
+        int levels = wheels.size();
+        for (int level = 0; level < levels; level++) {
+            span *= wheelSize;
+        }
+        if (tick % span == 0L)
+            redistribute(overflow);
+
+        for (int level = levels - 1; level > 0; level--) {
+            span /= wheelSize;
+            if (tick % span == 0L)
+                redistribute(wheels.get(level).get(slot(tick, level)));
+        }
+    }
+
+    private void redistribute(Set<K> bucket) {
+        if (bucket.isEmpty())
+            return;
+        List<K> keys = new ArrayList<K>(bucket);
+        bucket.clear();
+        for (K key : keys) {
+            place(key, timers.get(key));
+        }
+    }
+
+    // Put timer into the lowest level that can hold it
+    private void place(K key, Timer<K> timer) {
+        long delta = timer.tick - currentTick;
+        long span = wheelSize; // ticks covered by this level
+        for (int level = 0; level < wheels.size(); level++) {
+            if (delta < span) {
+                timer.bucket = wheels.get(level).get(slot(timer.tick, level));
+                timer.bucket.add(key);
+                return;
+            }
+            span *= wheelSize;
+        }
+        timer.bucket = overflow;
+        overflow.add(key);
+    }
+
+    private int slot(long tick, int level) {
+        for (int i = 0; i < level; i++) {
+            tick /= wheelSize;
+        }
+        return (int)(tick % wheelSize);
+    }
+
+    private static class Timer<K> {
+
+        private final long tick;
+
+        private Set<K> bucket;
+
+        public Timer(long tick) {
+            this.tick = tick;
+        }
+
+    }
+
+}
@@ -429,6 +429,62 @@ public class Utils {
         }
     }
 
+    /**
+     * Bring a permission's children in line with the given map, preserving
+     * order. Where possible, only the entries that differ are touched.
+     * 
+     * @param children the children to update
+     * @param newChildren the desired children
+     * @return false if the children were already identical, true otherwise
+     */
+    public static boolean updateChildren(Map<String, Boolean> children, Map<String, Boolean> newChildren) {
+        // Compare in order, since Bukkit applies children in order
+        if (children.size() == newChildren.size()) {
+            boolean same = true;
+            Iterator<Map.Entry<String, Boolean>> i = newChildren.entrySet().iterator();
+            for (Map.Entry<String, Boolean> me : children.entrySet()) {
+                if (!me.equals(i.next())) {
+                    same = false;
+                    break;
+                }
+            }
+            if (same) return false;
+        }
+
+        // Removals and in-place updates leave the remaining entries in order,
+        // and additions are appended. Only use them if the result would be
+        // ordered the same as newChildren.
+        boolean inOrder = true;
+        Iterator<String> i = newChildren.keySet().iterator();
+        for (String key : children.keySet()) {
+            if (newChildren.containsKey(key) && !key.equals(i.next())) {
+                inOrder = false;
+                break;
+            }
+        }
+        if (inOrder) {
+            while (i.hasNext()) {
+                if (children.containsKey(i.next())) {
+                    inOrder = false;
+                    break;
+                }
+            }
+        }
+
+        if (inOrder) {
+            children.keySet().retainAll(newChildren.keySet());
+            for (Map.Entry<String, Boolean> me : newChildren.entrySet()) {
+                if (!me.getValue().equals(children.get(me.getKey())))
+                    children.put(me.getKey(), me.getValue());
+            }
+        }
+        else {
+            children.clear();
+            children.putAll(newChildren);
+        }
+        return true;
+    }
+
     public static void validatePlayer(PermissionDao dao, String defaultGroup, String playerName, List<String> header) {
         if (dao.getGroups(playerName).isEmpty() &&
                 dao.getEntity(playerName, false) == null) {
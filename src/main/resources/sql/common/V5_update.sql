@@ -0,0 +1,2 @@
+ALTER TABLE ${Entry} ADD expiration TIMESTAMP;
+ALTER TABLE ${Entry} ADD previous_value BOOL;
@@ -0,0 +1,10 @@
+CREATE TABLE ${ChangeLogEntry} (
+  id BIGINT,
+  server VARCHAR(36) NOT NULL,
+  name VARCHAR(255) NOT NULL,
+  is_group BOOL NOT NULL,
+  changed TIMESTAMP NOT NULL,
+  PRIMARY KEY (id)
+);
+CREATE SEQUENCE ${ChangeLogEntry}_seq;
+CREATE INDEX ix_${ChangeLogEntry}_changed ON ${ChangeLogEntry} (changed);
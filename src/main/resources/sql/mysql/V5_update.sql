@@ -0,0 +1,2 @@
+ALTER TABLE ${Entry} ADD expiration DATETIME;
+ALTER TABLE ${Entry} ADD previous_value TINYINT(1);
@@ -0,0 +1,9 @@
+CREATE TABLE ${ChangeLogEntry} (
+  id BIGINT NOT NULL AUTO_INCREMENT,
+  server VARCHAR(36) NOT NULL,
+  name VARCHAR(255) NOT NULL,
+  is_group TINYINT(1) NOT NULL,
+  changed DATETIME NOT NULL,
+  PRIMARY KEY (id)
+);
+CREATE INDEX ix_${ChangeLogEntry}_changed ON ${ChangeLogEntry} (changed);
@@ -3,8 +3,11 @@ package org.tyrannyofheaven.bukkit.zPermissions;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
@@ -15,6 +18,7 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.tyrannyofheaven.bukkit.zPermissions.dao.PermissionDao;
+import org.tyrannyofheaven.bukkit.zPermissions.model.Entry;
 import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionEntity;
 import org.tyrannyofheaven.bukkit.zPermissions.util.Utils;
 
@@ -34,6 +38,8 @@ public abstract class AbstractResolverTest {
 
     private static final String TEST_REGION = "MyRegion";
 
+    private static final long ONE_DAY = 24L * 60L * 60L * 1000L;
+
     protected PermissionDao dao;
 
     protected PermissionsResolver resolver;
@@ -1283,4 +1289,206 @@ public abstract class AbstractResolverTest {
         assertPermission(permissions, "basic.perm2");
     }
 
+    @Test
+    public void testCachedGroupChanges() {
+        // Set up groups
+        assertTrue(createGroup(TEST_GROUP1));
+        assertTrue(createGroup(TEST_GROUP2));
+        setPermissions(TEST_GROUP1, true, "basic.perm1");
+
+        begin();
+        try {
+            getDao().setParent(TEST_GROUP2, TEST_GROUP1);
+            getDao().addMember(TEST_GROUP2, TEST_PLAYER, null);
+            getDao().addMember(TEST_GROUP2, TEST_PLAYER + "2", null);
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        Map<String, Boolean> permissions;
+        permissions = resolve(TEST_PLAYER, TEST_WORLD1);
+        assertPermission(permissions, "basic.perm1");
+
+        // Change ancestor's permission, both players share the same groups
+        setPermissionsFalse(TEST_GROUP1, true, "basic.perm1");
+        permissions = resolve(TEST_PLAYER, TEST_WORLD1);
+        assertPermission(permissions, "basic.perm1", false);
+        permissions = resolve(TEST_PLAYER + "2", TEST_WORLD1);
+        assertPermission(permissions, "basic.perm1", false);
+
+        // Player-specific permissions shouldn't leak into the other player
+        setPermissions(TEST_PLAYER, false, "basic.perm1");
+        permissions = resolve(TEST_PLAYER, TEST_WORLD1);
+        assertPermission(permissions, "basic.perm1");
+        permissions = resolve(TEST_PLAYER + "2", TEST_WORLD1);
+        assertPermission(permissions, "basic.perm1", false);
+
+        // Change inheritance
+        setPermissions(TEST_GROUP1, true, "basic.perm2");
+        permissions = resolve(TEST_PLAYER + "2", TEST_WORLD1);
+        assertPermission(permissions, "basic.perm2");
+        begin();
+        try {
+            getDao().setParent(TEST_GROUP2, null);
+            commit();
+        }
+        finally {
+            end();
+        }
+        permissions = resolve(TEST_PLAYER + "2", TEST_WORLD1);
+        assertPermission(permissions, "group.Group1", false);
+        assertPermission(permissions, "basic.perm2", false);
+    }
+
+    @Test
+    public void testTemporaryPermissions() {
+        createGroup(TEST_GROUP1);
+        setPermissions(TEST_GROUP1, true, "basic.perm1");
+        long now = System.currentTimeMillis();
+        begin();
+        try {
+            getDao().addMember(TEST_GROUP1, TEST_PLAYER, null);
+            getDao().setPermission(TEST_GROUP1, true, null, null, "basic.perm2", true, new Date(now + ONE_DAY));
+            getDao().setPermission(TEST_PLAYER, false, null, null, "basic.perm3", true, new Date(now - ONE_DAY));
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        Map<String, Boolean> permissions;
+        permissions = resolve(TEST_PLAYER, TEST_WORLD1);
+        assertPermission(permissions, "basic.perm1");
+        assertPermission(permissions, "basic.perm2");
+        assertPermission(permissions, "basic.perm3", false);
+
+        // Cached group resolution must not outlive the temporary permission
+        getResolver().setClockOffset(2L * ONE_DAY);
+        permissions = resolve(TEST_PLAYER, TEST_WORLD1);
+        assertPermission(permissions, "basic.perm1");
+        assertPermission(permissions, "basic.perm2", false);
+    }
+
+    @Test
+    public void testTemporaryOverride() {
+        createGroup(TEST_GROUP1);
+        setPermissions(TEST_GROUP1, true, "basic.perm1");
+        setPermissions(TEST_PLAYER, false, "basic.perm2");
+        long now = System.currentTimeMillis();
+        begin();
+        try {
+            getDao().addMember(TEST_GROUP1, TEST_PLAYER, null);
+            // Temporarily override both permanent entries
+            getDao().setPermission(TEST_GROUP1, true, null, null, "basic.perm1", false, new Date(now + ONE_DAY));
+            getDao().setPermission(TEST_PLAYER, false, null, null, "basic.perm2", false, new Date(now + ONE_DAY));
+            // Nothing to override
+            getDao().setPermission(TEST_PLAYER, false, null, null, "basic.perm3", true, new Date(now + ONE_DAY));
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        Map<String, Boolean> permissions;
+        permissions = resolve(TEST_PLAYER, TEST_WORLD1);
+        assertPermission(permissions, "basic.perm1", false);
+        assertPermission(permissions, "basic.perm2", false);
+        assertPermission(permissions, "basic.perm3");
+
+        // Permanent values are back once expired, even before purging
+        getResolver().setClockOffset(2L * ONE_DAY);
+        permissions = resolve(TEST_PLAYER, TEST_WORLD1);
+        assertPermission(permissions, "basic.perm1");
+        assertPermission(permissions, "basic.perm2");
+        assertPermission(permissions, "basic.perm3", false);
+        getResolver().setClockOffset(0L);
+
+        // Move the expirations into the past. The overridden permanent values
+        // are still remembered.
+        begin();
+        try {
+            getDao().setPermission(TEST_GROUP1, true, null, null, "basic.perm1", false, new Date(now - ONE_DAY));
+            getDao().setPermission(TEST_PLAYER, false, null, null, "basic.perm2", false, new Date(now - ONE_DAY));
+            getDao().setPermission(TEST_PLAYER, false, null, null, "basic.perm3", true, new Date(now - ONE_DAY));
+            commit();
+        }
+        finally {
+            end();
+        }
+        permissions = resolve(TEST_PLAYER, TEST_WORLD1);
+        assertPermission(permissions, "basic.perm1");
+        assertPermission(permissions, "basic.perm2");
+        assertPermission(permissions, "basic.perm3", false);
+
+        // Purging restores them for good
+        begin();
+        try {
+            assertEquals(1, getDao().purgeExpiredPermissions(TEST_GROUP1, true));
+            assertEquals(2, getDao().purgeExpiredPermissions(null, false));
+            assertEquals(0, getDao().purgeExpiredPermissions(null, false));
+            commit();
+        }
+        finally {
+            end();
+        }
+        permissions = resolve(TEST_PLAYER, TEST_WORLD1);
+        assertPermission(permissions, "basic.perm1");
+        assertPermission(permissions, "basic.perm2");
+        assertPermission(permissions, "basic.perm3", false);
+
+        begin();
+        try {
+            assertEquals(Boolean.TRUE, getDao().getPermission(TEST_GROUP1, true, null, null, "basic.perm1"));
+            assertEquals(Boolean.TRUE, getDao().getPermission(TEST_PLAYER, false, null, null, "basic.perm2"));
+            assertNull(getDao().getPermission(TEST_PLAYER, false, null, null, "basic.perm3"));
+            for (Entry e : getDao().getEntries(TEST_PLAYER, false)) {
+                assertNull(e.getExpiration());
+                assertNull(e.getPreviousValue());
+            }
+            commit();
+        }
+        finally {
+            end();
+        }
+    }
+
+    @Test
+    public void testRegionNames() {
+        createGroup(TEST_GROUP1);
+        createGroup(TEST_GROUP2);
+        setPermissions(TEST_GROUP1, true, "basic.perm1");
+        begin();
+        try {
+            getDao().addMember(TEST_GROUP2, TEST_PLAYER, null);
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        // Nothing region-specific
+        Set<String> regionNames = getResolver().resolvePlayer(TEST_PLAYER, TEST_WORLD1.toLowerCase(), new HashSet<String>()).getRegionNames();
+        assertTrue(regionNames.isEmpty());
+
+        // From an ancestor, regardless of world
+        setPermissions(TEST_GROUP1, true, TEST_REGION + "/" + TEST_WORLD2 + ":basic.perm2");
+        begin();
+        try {
+            getDao().setParent(TEST_GROUP2, TEST_GROUP1);
+            commit();
+        }
+        finally {
+            end();
+        }
+        regionNames = getResolver().resolvePlayer(TEST_PLAYER, TEST_WORLD1.toLowerCase(), new HashSet<String>()).getRegionNames();
+        assertEquals(Collections.singleton(TEST_REGION.toLowerCase()), regionNames);
+
+        // And from the player
+        setPermissions(TEST_PLAYER, false, TEST_REGION + "2/basic.perm3");
+        regionNames = getResolver().resolvePlayer(TEST_PLAYER, TEST_WORLD1.toLowerCase(), new HashSet<String>()).getRegionNames();
+        assertEquals(new HashSet<String>(Arrays.asList(TEST_REGION.toLowerCase(), TEST_REGION.toLowerCase() + "2")), regionNames);
+    }
+
 }
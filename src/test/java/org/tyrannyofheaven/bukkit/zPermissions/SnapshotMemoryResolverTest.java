@@ -0,0 +1,31 @@
+package org.tyrannyofheaven.bukkit.zPermissions;
+
+import java.util.Collections;
+
+import org.tyrannyofheaven.bukkit.zPermissions.dao.MemoryPermissionDao;
+
+public class SnapshotMemoryResolverTest extends AbstractResolverTest {
+
+    public SnapshotMemoryResolverTest() {
+        MemoryPermissionDao memoryDao = new MemoryPermissionDao();
+        memoryDao.setSnapshotReads(true);
+        dao = memoryDao;
+        resolver = new PermissionsResolver(dao);
+        resolver.setDefaultGroup(TEST_GROUP1);
+        resolver.setGroupPermissionFormats(Collections.singleton("group.%s"));
+        resolver.setAssignedGroupPermissionFormats(Collections.singleton("assignedgroup.%s"));
+    }
+
+    @Override
+    protected void begin() {
+    }
+
+    @Override
+    protected void commit() {
+    }
+
+    @Override
+    protected void end() {
+    }
+
+}
@@ -20,10 +20,17 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.Set;
 
 import org.junit.Test;
+import org.tyrannyofheaven.bukkit.zPermissions.model.Entry;
 import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionEntity;
 import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionRegion;
 import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionWorld;
@@ -37,6 +44,8 @@ public abstract class AbstractDaoTest {
 
     private static final String TEST_GROUP2 = "Group2";
 
+    private static final String TEST_GROUP3 = "Group3";
+
     private static final String TEST_PERMISSION = "foo.bar";
 
     private static final String TEST_METADATA = "my_metadata";
@@ -769,4 +778,431 @@ public abstract class AbstractDaoTest {
         return null;
     }
 
+    @Test
+    public void testAncestry() {
+        begin();
+        try {
+            // Group3 -> Group2 -> Group1
+            assertTrue(getDao().createGroup(TEST_GROUP1));
+            assertTrue(getDao().createGroup(TEST_GROUP2));
+            assertTrue(getDao().createGroup(TEST_GROUP3));
+            getDao().setParent(TEST_GROUP3, TEST_GROUP2);
+            getDao().setParent(TEST_GROUP2, TEST_GROUP1);
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        begin();
+        try {
+            assertEquals(Arrays.asList(TEST_GROUP1, TEST_GROUP2, TEST_GROUP3), getDao().getAncestry(TEST_GROUP3));
+            assertEquals(Arrays.asList(TEST_GROUP1), getDao().getAncestry(TEST_GROUP1));
+
+            // Re-parenting a group should update its descendants
+            getDao().setParent(TEST_GROUP2, null);
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        begin();
+        try {
+            assertEquals(Arrays.asList(TEST_GROUP2, TEST_GROUP3), getDao().getAncestry(TEST_GROUP3));
+
+            // As should deleting one
+            getDao().setParents(TEST_GROUP2, Arrays.asList(TEST_GROUP1));
+            assertTrue(getDao().deleteEntity(TEST_GROUP2, true));
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        begin();
+        try {
+            assertEquals(Arrays.asList(TEST_GROUP3), getDao().getAncestry(TEST_GROUP3));
+            assertTrue(getDao().getAncestry(TEST_GROUP2).isEmpty());
+
+            // Clean up
+            assertTrue(getDao().deleteEntity(TEST_GROUP1, true));
+            assertTrue(getDao().deleteEntity(TEST_GROUP3, true));
+            commit();
+        }
+        finally {
+            end();
+        }
+    }
+
+    @Test
+    public void testScopedEntries() {
+        final String TEST_WORLD = "myworld";
+        final String TEST_OTHER_WORLD = "otherworld";
+        final String TEST_REGION = "myregion";
+
+        begin();
+        try {
+            getDao().setPermission(TEST_PLAYER, false, null, null, "universal", true);
+            getDao().setPermission(TEST_PLAYER, false, null, TEST_WORLD, "world", true);
+            getDao().setPermission(TEST_PLAYER, false, null, TEST_OTHER_WORLD, "otherworld", true);
+            getDao().setPermission(TEST_PLAYER, false, TEST_REGION, null, "region", true);
+            getDao().setPermission(TEST_PLAYER, false, TEST_REGION, TEST_WORLD, "regionworld", true);
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        begin();
+        try {
+            Set<String> regions = Collections.singleton(TEST_REGION);
+            assertEquals(Arrays.asList("universal", "world", "region", "regionworld"),
+                    getPermissionNames(getDao().getEntries(TEST_PLAYER, false, TEST_WORLD, regions)));
+            assertEquals(Arrays.asList("universal", "otherworld", "region"),
+                    getPermissionNames(getDao().getEntries(TEST_PLAYER, false, TEST_OTHER_WORLD, regions)));
+            assertEquals(Arrays.asList("universal", "world"),
+                    getPermissionNames(getDao().getEntries(TEST_PLAYER, false, TEST_WORLD, Collections.<String>emptySet())));
+
+            assertTrue(getDao().unsetPermission(TEST_PLAYER, false, null, TEST_WORLD, "world"));
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        begin();
+        try {
+            assertEquals(Arrays.asList("universal"),
+                    getPermissionNames(getDao().getEntries(TEST_PLAYER, false, TEST_WORLD, Collections.<String>emptySet())));
+
+            // Clean up
+            assertTrue(getDao().deleteEntity(TEST_PLAYER, false));
+            commit();
+        }
+        finally {
+            end();
+        }
+    }
+
+    @Test
+    public void testPermissionLookup() {
+        final String TEST_WORLD = "myworld";
+        final String TEST_REGION = "myregion";
+
+        begin();
+        try {
+            assertTrue(getDao().createGroup(TEST_GROUP1));
+            getDao().setPermission(TEST_GROUP1, true, null, null, TEST_PERMISSION, true);
+            getDao().setPermission(TEST_GROUP1, true, null, TEST_WORLD, TEST_PERMISSION, false);
+            getDao().setPermission(TEST_GROUP1, true, TEST_REGION, TEST_WORLD, TEST_PERMISSION, true);
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        begin();
+        try {
+            // Lookups are case-insensitive and distinguish scope
+            assertEquals(Boolean.TRUE, getDao().getPermission(TEST_GROUP1, true, null, null, TEST_PERMISSION.toUpperCase()));
+            assertEquals(Boolean.FALSE, getDao().getPermission(TEST_GROUP1, true, null, TEST_WORLD.toUpperCase(), TEST_PERMISSION));
+            assertEquals(Boolean.TRUE, getDao().getPermission(TEST_GROUP1, true, TEST_REGION, TEST_WORLD, TEST_PERMISSION));
+            assertNull(getDao().getPermission(TEST_GROUP1, true, TEST_REGION, null, TEST_PERMISSION));
+
+            // Overwriting should not create a new entry
+            getDao().setPermission(TEST_GROUP1, true, null, TEST_WORLD, TEST_PERMISSION.toUpperCase(), true);
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        begin();
+        try {
+            assertEquals(Boolean.TRUE, getDao().getPermission(TEST_GROUP1, true, null, TEST_WORLD, TEST_PERMISSION));
+            assertEquals(3, getDao().getEntries(TEST_GROUP1, true).size());
+
+            assertTrue(getDao().unsetPermission(TEST_GROUP1, true, null, TEST_WORLD, TEST_PERMISSION.toUpperCase()));
+            assertFalse(getDao().unsetPermission(TEST_GROUP1, true, null, TEST_WORLD, TEST_PERMISSION));
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        begin();
+        try {
+            assertNull(getDao().getPermission(TEST_GROUP1, true, null, TEST_WORLD, TEST_PERMISSION));
+            assertEquals(2, getDao().getEntries(TEST_GROUP1, true).size());
+
+            // Clean up
+            assertTrue(getDao().deleteEntity(TEST_GROUP1, true));
+            commit();
+        }
+        finally {
+            end();
+        }
+    }
+
+    @Test
+    public void testSharedWorldAndRegion() {
+        final String TEST_WORLD = "myworld";
+        final String TEST_REGION = "myregion";
+
+        begin();
+        try {
+            assertTrue(getDao().createGroup(TEST_GROUP1));
+            getDao().setPermission(TEST_GROUP1, true, TEST_REGION, TEST_WORLD, TEST_PERMISSION, true);
+            getDao().setPermission(TEST_PLAYER, false, TEST_REGION, TEST_WORLD, TEST_PERMISSION, true);
+            getDao().setPermission(TEST_PLAYER, false, null, TEST_WORLD, TEST_PERMISSION, true);
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        begin();
+        try {
+            // Still used by the group
+            assertTrue(getDao().deleteEntity(TEST_PLAYER, false));
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        begin();
+        try {
+            assertNotNull(getWorld(TEST_WORLD));
+            assertNotNull(getRegion(TEST_REGION));
+            assertEquals(Collections.singleton(TEST_REGION), getDao().getRegionNames());
+
+            // No longer used by anything
+            assertTrue(getDao().unsetPermission(TEST_GROUP1, true, TEST_REGION, TEST_WORLD, TEST_PERMISSION));
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        begin();
+        try {
+            assertNull(getWorld(TEST_WORLD));
+            assertNull(getRegion(TEST_REGION));
+            assertTrue(getDao().getRegionNames().isEmpty());
+
+            // Clean up
+            assertTrue(getDao().deleteEntity(TEST_GROUP1, true));
+            commit();
+        }
+        finally {
+            end();
+        }
+    }
+
+    @Test
+    public void testReadOnlySnapshot() {
+        begin();
+        try {
+            assertTrue(getDao().createGroup(TEST_GROUP1));
+            assertTrue(getDao().createGroup(TEST_GROUP2));
+            getDao().setParent(TEST_GROUP1, TEST_GROUP2);
+            getDao().setPermission(TEST_GROUP1, true, null, null, TEST_PERMISSION, true);
+            getDao().addMember(TEST_GROUP1, TEST_PLAYER, null);
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        ReadOnlyPermissionDao snapshot = ((BaseMemoryPermissionDao)getDao()).getReadOnlySnapshot();
+
+        begin();
+        try {
+            getDao().setPermission(TEST_GROUP1, true, null, null, TEST_PERMISSION, false);
+            getDao().setPermission(TEST_GROUP2, true, null, null, TEST_PERMISSION, true);
+            assertTrue(getDao().removeMember(TEST_GROUP1, TEST_PLAYER));
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        // Snapshot is unaffected by later changes
+        assertEquals(Boolean.TRUE, snapshot.getPermission(TEST_GROUP1, true, null, null, TEST_PERMISSION));
+        assertEquals(Collections.singletonList(TEST_GROUP1), Utils.toGroupNames(snapshot.getGroups(TEST_PLAYER)));
+
+        // ...including its parent links, which never lead back to live state
+        PermissionEntity parent = snapshot.getEntity(TEST_GROUP1, true).getParents().get(0);
+        assertEquals(TEST_GROUP2.toLowerCase(), parent.getName());
+        assertTrue(parent.getPermissions().isEmpty());
+
+        // ...and can't be modified
+        assertFalse(snapshot instanceof PermissionDao);
+
+        // A fresh one sees the changes
+        snapshot = ((BaseMemoryPermissionDao)getDao()).getReadOnlySnapshot();
+        assertEquals(Boolean.FALSE, snapshot.getPermission(TEST_GROUP1, true, null, null, TEST_PERMISSION));
+        assertTrue(snapshot.getGroups(TEST_PLAYER).isEmpty());
+
+        begin();
+        try {
+            // Clean up
+            assertTrue(getDao().deleteEntity(TEST_GROUP1, true));
+            assertTrue(getDao().deleteEntity(TEST_GROUP2, true));
+            commit();
+        }
+        finally {
+            end();
+        }
+    }
+
+    @Test
+    public void testMembershipListener() {
+        final List<String> changes = new ArrayList<String>();
+        ((BaseMemoryPermissionDao)getDao()).setExpirationListener(new ExpirationListener() {
+            @Override
+            public void membershipChanged(String member, String group, Date expiration) {
+                changes.add(member + "/" + group + "/" + (expiration == null ? null : expiration.getTime()));
+            }
+
+            @Override
+            public void permissionChanged(String name, boolean group, String region, String world, String permission, Date expiration) {
+                fail("No permissions changed");
+            }
+        });
+        final String player = TEST_PLAYER.toLowerCase();
+        final String group1 = TEST_GROUP1.toLowerCase();
+        final String group2 = TEST_GROUP2.toLowerCase();
+
+        begin();
+        try {
+            assertTrue(getDao().createGroup(TEST_GROUP1));
+            assertTrue(getDao().createGroup(TEST_GROUP2));
+            getDao().addMember(TEST_GROUP1, TEST_PLAYER, new Date(1000L));
+            getDao().addMember(TEST_GROUP2, TEST_PLAYER, null);
+            commit();
+        }
+        finally {
+            end();
+        }
+        assertEquals(Arrays.asList(player + "/" + group1 + "/1000", player + "/" + group2 + "/null"), changes);
+        changes.clear();
+
+        begin();
+        try {
+            // Replaces all memberships
+            getDao().setGroup(TEST_PLAYER, TEST_GROUP2, new Date(2000L));
+            commit();
+        }
+        finally {
+            end();
+        }
+        assertEquals(Arrays.asList(player + "/" + group1 + "/null", player + "/" + group2 + "/2000"), changes);
+        changes.clear();
+
+        begin();
+        try {
+            getDao().addMember(TEST_GROUP1, TEST_PLAYER, null);
+            assertTrue(getDao().deleteEntity(TEST_GROUP1, true));
+            assertTrue(getDao().removeMember(TEST_GROUP2, TEST_PLAYER));
+            assertFalse(getDao().removeMember(TEST_GROUP2, TEST_PLAYER));
+            commit();
+        }
+        finally {
+            end();
+        }
+        assertEquals(Arrays.asList(player + "/" + group1 + "/null", player + "/" + group1 + "/null", player + "/" + group2 + "/null"), changes);
+        changes.clear();
+
+        begin();
+        try {
+            // Clean up
+            assertTrue(getDao().deleteEntity(TEST_GROUP2, true));
+            commit();
+        }
+        finally {
+            end();
+        }
+        assertTrue(changes.isEmpty());
+        ((BaseMemoryPermissionDao)getDao()).setExpirationListener(null);
+    }
+
+    @Test
+    public void testTemporaryPermissions() {
+        final List<String> changes = new ArrayList<String>();
+        ((BaseMemoryPermissionDao)getDao()).setExpirationListener(new ExpirationListener() {
+            @Override
+            public void membershipChanged(String member, String group, Date expiration) {
+                fail("No memberships changed");
+            }
+
+            @Override
+            public void permissionChanged(String name, boolean group, String region, String world, String permission, Date expiration) {
+                changes.add(name + "/" + group + "/" + region + "/" + world + "/" + permission + "/" + (expiration == null ? null : expiration.getTime()));
+            }
+        });
+        final String player = TEST_PLAYER.toLowerCase();
+        final String TEST_WORLD = "myworld";
+
+        begin();
+        try {
+            getDao().setPermission(TEST_PLAYER, false, null, null, "basic.perm1", true);
+            getDao().setPermission(TEST_PLAYER, false, null, TEST_WORLD, "basic.perm2", false, new Date(1000L));
+            commit();
+        }
+        finally {
+            end();
+        }
+        assertEquals(Arrays.asList(player + "/false/null/" + TEST_WORLD + "/basic.perm2/1000"), changes);
+        changes.clear();
+
+        begin();
+        try {
+            Entry found = null;
+            for (Entry e : getDao().getEntries(TEST_PLAYER, false)) {
+                if (e.getPermission().equals("basic.perm1"))
+                    assertNull(e.getExpiration());
+                else
+                    found = e;
+            }
+            assertNotNull(found);
+            assertEquals("basic.perm2", found.getPermission());
+            assertFalse(found.isValue());
+            assertEquals(new Date(1000L), found.getExpiration());
+            commit();
+        }
+        finally {
+            end();
+        }
+
+        begin();
+        try {
+            // Making it permanent is reported, unsetting a permanent one isn't
+            getDao().setPermission(TEST_PLAYER, false, null, TEST_WORLD, "basic.perm2", true);
+            assertTrue(getDao().unsetPermission(TEST_PLAYER, false, null, null, "basic.perm1"));
+            getDao().setPermission(TEST_PLAYER, false, null, null, "basic.perm1", true, new Date(2000L));
+            assertTrue(getDao().deleteEntity(TEST_PLAYER, false));
+            commit();
+        }
+        finally {
+            end();
+        }
+        assertEquals(Arrays.asList(player + "/false/null/" + TEST_WORLD + "/basic.perm2/null",
+                player + "/false/null/null/basic.perm1/2000",
+                player + "/false/null/null/basic.perm1/null"), changes);
+        changes.clear();
+
+        ((BaseMemoryPermissionDao)getDao()).setExpirationListener(null);
+    }
+
+    private static List<String> getPermissionNames(List<Entry> entries) {
+        List<String> result = new ArrayList<String>(entries.size());
+        for (Entry e : entries) {
+            result.add(e.getPermission());
+        }
+        return result;
+    }
+
 }
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2012 Allan Saddi <allan@saddi.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.zPermissions.dao;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+/**
+ * Measures DAO read throughput with 1, 4 and 16 reader threads while a
+ * single writer continuously modifies permissions. Each reader count is run
+ * twice: once with every DAO call serialized on a single monitor (how the
+ * DAO used to synchronize) and once relying on the DAO's read/write lock
+ * alone. Only meaningful on a multi-core machine. Not run as part of the
+ * normal build (name doesn't end in Test). Run it explicitly with
+ * <code>mvn test -Dtest=MemoryDaoContentionBenchmark</code>.
+ *
+ * @author asaddi
+ */
+public class MemoryDaoContentionBenchmark {
+
+    private static final int GROUPS = 50;
+
+    private static final int PERMISSIONS_PER_GROUP = 200;
+
+    private static final int WORLDS = 4;
+
+    private static final long DURATION = 2000L; // ms
+
+    private static final int[] READER_COUNTS = { 1, 4, 16 };
+
+    @Test
+    public void benchmark() throws InterruptedException {
+        PermissionDao dao = new MemoryPermissionDao();
+        for (int i = 0; i < GROUPS; i++) {
+            String group = "group" + i;
+            dao.createGroup(group);
+            for (int j = 0; j < PERMISSIONS_PER_GROUP; j++) {
+                dao.setPermission(group, true, null, j % WORLDS == 0 ? null : "world" + (j % WORLDS), "perm." + j, true);
+            }
+            dao.setMetadata(group, true, "prefix", "[" + group + "]");
+        }
+
+        System.out.println(String.format("%d CPU(s)", Runtime.getRuntime().availableProcessors()));
+        run(dao, READER_COUNTS[0], null); // warm up
+        run(dao, READER_COUNTS[0], new Object());
+        for (int readers : READER_COUNTS) {
+            long monitorReads = run(dao, readers, new Object());
+            long lockReads = run(dao, readers, null);
+            System.out.println(String.format("%2d reader(s): monitor %,d reads/sec, read/write lock %,d reads/sec",
+                    readers, monitorReads * 1000L / DURATION, lockReads * 1000L / DURATION));
+            assertTrue(monitorReads > 0L);
+            assertTrue(lockReads > 0L);
+        }
+    }
+
+    // If monitor is non-null, all DAO calls are serialized on it
+    private long run(final PermissionDao dao, int readers, final Object monitor) throws InterruptedException {
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicLong reads = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final Set<String> regions = Collections.emptySet();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < readers; i++) {
+            final int offset = i;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    awaitQuietly(start);
+                    long count = 0L;
+                    int n = offset;
+                    while (!done.get()) {
+                        String group = "group" + (n++ % GROUPS);
+                        if (monitor == null) {
+                            read(dao, group, regions);
+                        }
+                        else {
+                            synchronized (monitor) {
+                                read(dao, group, regions);
+                            }
+                        }
+                        count++;
+                    }
+                    reads.addAndGet(count);
+                }
+            });
+        }
+
+        // Single writer, roughly what command usage and auto-refresh look like
+        threads.add(new Thread() {
+            @Override
+            public void run() {
+                awaitQuietly(start);
+                int n = 0;
+                while (!done.get()) {
+                    if (monitor == null) {
+                        write(dao, n);
+                    }
+                    else {
+                        synchronized (monitor) {
+                            write(dao, n);
+                        }
+                    }
+                    n++;
+                    try {
+                        Thread.sleep(1L);
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        });
+
+        for (Thread t : threads) {
+            t.start();
+        }
+        start.countDown();
+        Thread.sleep(DURATION);
+        done.set(true);
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        return reads.get();
+    }
+
+    private static void read(PermissionDao dao, String group, Set<String> regions) {
+        dao.getEntries(group, true, "world1", regions);
+        dao.getMetadata(group, true, "prefix");
+        dao.getAncestry(group);
+    }
+
+    private static void write(PermissionDao dao, int n) {
+        dao.setPermission("group" + (n % GROUPS), true, null, null, "benchmark.write", n % 2 == 0);
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
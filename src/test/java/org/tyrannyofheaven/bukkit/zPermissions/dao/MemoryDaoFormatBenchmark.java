@@ -0,0 +1,97 @@
+/*
+ * Copyright 2012 Allan Saddi <allan@saddi.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.zPermissions.dao;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Compares save and load times of the YAML and binary formats for a large
+ * database. Not run as part of the normal build (name doesn't end in Test).
+ * Run it explicitly with
+ * <code>mvn test -Dtest=MemoryDaoFormatBenchmark</code>.
+ *
+ * @author asaddi
+ */
+public class MemoryDaoFormatBenchmark {
+
+    private static final int GROUPS = 50;
+
+    private static final int PERMISSIONS_PER_GROUP = 200;
+
+    private static final int PLAYERS = 80000;
+
+    private static final int WORLDS = 4;
+
+    private static final int ROUNDS = 3;
+
+    @Test
+    public void benchmark() throws IOException {
+        MemoryPermissionDao source = new MemoryPermissionDao();
+        for (int i = 0; i < GROUPS; i++) {
+            String group = "group" + i;
+            source.createGroup(group);
+            for (int j = 0; j < PERMISSIONS_PER_GROUP; j++) {
+                source.setPermission(group, true, null, j % WORLDS == 0 ? null : "world" + (j % WORLDS), "perm." + j, true);
+            }
+            source.setMetadata(group, true, "prefix", "[" + group + "]");
+        }
+        for (int i = 0; i < PLAYERS; i++) {
+            String player = "player" + i;
+            source.addMember("group" + (i % GROUPS), player, null);
+            if (i % 10 == 0)
+                source.setPermission(player, false, null, null, "player.perm", true);
+        }
+
+        File yamlFile = File.createTempFile("zPermissions", ".yml");
+        File binaryFile = File.createTempFile("zPermissions", ".dat");
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                MemoryPermissionDao dao = new MemoryPermissionDao();
+
+                long start = System.nanoTime();
+                source.setDirty();
+                source.save(yamlFile);
+                long saved = System.nanoTime();
+                dao.load(yamlFile);
+                long loaded = System.nanoTime();
+                System.out.println(String.format("YAML:   save %,5d ms, load %,5d ms, %,11d bytes",
+                        (saved - start) / 1000000L, (loaded - saved) / 1000000L, yamlFile.length()));
+                assertEquals(PLAYERS, dao.getReverseMembershipMap().size());
+
+                dao = new MemoryPermissionDao();
+                start = System.nanoTime();
+                source.setDirty();
+                source.saveBinary(binaryFile);
+                saved = System.nanoTime();
+                dao.loadBinary(binaryFile);
+                loaded = System.nanoTime();
+                System.out.println(String.format("Binary: save %,5d ms, load %,5d ms, %,11d bytes",
+                        (saved - start) / 1000000L, (loaded - saved) / 1000000L, binaryFile.length()));
+                assertEquals(PLAYERS, dao.getReverseMembershipMap().size());
+            }
+        }
+        finally {
+            yamlFile.delete();
+            binaryFile.delete();
+        }
+    }
+
+}
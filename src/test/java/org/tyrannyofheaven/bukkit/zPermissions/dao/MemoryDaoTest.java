@@ -15,6 +15,26 @@
  */
 package org.tyrannyofheaven.bukkit.zPermissions.dao;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+import org.tyrannyofheaven.bukkit.zPermissions.model.Entry;
+import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionEntity;
 import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionRegion;
 import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionWorld;
 
@@ -46,4 +66,431 @@ public class MemoryDaoTest extends AbstractDaoTest {
         return ((MemoryPermissionDao)getDao()).getRegion(name);
     }
 
+    @Test
+    public void testLoadChanges() throws IOException {
+        MemoryPermissionDao source = new MemoryPermissionDao();
+        source.createGroup("Parent");
+        source.createGroup("Child");
+        source.createGroup("Other");
+        source.setParent("Child", "Parent");
+        source.setPermission("Player1", false, null, null, "basic.perm", true);
+        source.addMember("Other", "Player2", null);
+
+        MemoryPermissionDao dao = new MemoryPermissionDao();
+        File file = File.createTempFile("zPermissions", ".yml");
+        try {
+            source.save(file);
+            dao.load(file);
+            assertNull(dao.takeLoadChanges()); // first load
+
+            // Nothing changed
+            source.setDirty();
+            source.save(file);
+            dao.load(file);
+            assertTrue(dao.takeLoadChanges().isEmpty());
+            assertNull(dao.takeLoadChanges());
+
+            source.setPermission("Parent", true, null, null, "basic.perm", true);
+            source.addMember("Other", "Player3", null);
+            source.setMetadata("Player1", false, "prefix", "[P1]");
+            source.save(file);
+            dao.load(file);
+            LoadChanges changes = dao.takeLoadChanges();
+            assertEquals(Collections.singleton("parent"), changes.getGroups());
+            assertEquals(new HashSet<String>(Arrays.asList("player1", "player3")), changes.getPlayers());
+
+            // Changes accumulate until taken
+            assertTrue(source.deleteEntity("Other", true));
+            source.save(file);
+            dao.load(file);
+            source.setParent("Child", null);
+            source.save(file);
+            dao.load(file);
+            changes = dao.takeLoadChanges();
+            assertEquals(new HashSet<String>(Arrays.asList("other", "child")), changes.getGroups());
+            assertEquals(new HashSet<String>(Arrays.asList("player2", "player3")), changes.getPlayers());
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testSave() throws IOException {
+        MemoryPermissionDao source = new MemoryPermissionDao();
+        source.createGroup("Group1");
+        source.addMember("Group1", "Player1", new Date(1000000L));
+        source.setPermission("Player1", false, null, "World1", "basic.perm", true);
+        source.setPermission("Player1", false, null, null, "temp.perm", false);
+        source.setPermission("Player1", false, null, null, "temp.perm", true, new Date(1000000L));
+
+        MemoryPermissionDao dao = new MemoryPermissionDao();
+        File file = File.createTempFile("zPermissions", ".yml");
+        try {
+            long written = source.save(file);
+            assertEquals(file.length(), written);
+            assertEquals(-1L, source.save(file)); // nothing changed
+
+            dao.load(file);
+            assertEquals(Boolean.TRUE, dao.getPermission("Player1", false, null, "World1", "basic.perm"));
+            assertEquals(new Date(1000000L), dao.getGroups("Player1").get(0).getExpiration());
+            Entry temp = dao.getEntity("Player1", false).getScopedPermission(null, null, "temp.perm");
+            assertEquals(new Date(1000000L), temp.getExpiration());
+            assertEquals(Boolean.FALSE, temp.getPreviousValue());
+
+            // Empty lists
+            assertTrue(source.deleteEntity("Group1", true));
+            assertTrue(source.deleteEntity("Player1", false));
+            source.save(file);
+            dao.load(file);
+            assertTrue(dao.getEntities(false).isEmpty());
+            assertTrue(dao.getEntities(true).isEmpty());
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testBinaryFormat() throws IOException {
+        MemoryPermissionDao source = new MemoryPermissionDao();
+        source.createGroup("Parent");
+        source.createGroup("Other");
+        source.createGroup("Child");
+        source.setParents("Child", Arrays.asList("Other", "Parent"));
+        source.setPriority("Child", -5);
+        source.setPermission("Child", true, "Region1", "World1", "basic.perm", true);
+        source.setPermission("Child", true, null, "World1", "negated.perm", false);
+        source.setPermission("Child", true, null, "World1", "negated.perm", true, new Date(3000000L));
+        source.setPermission("Player1", false, null, null, "temp.perm", true, new Date(1000000L));
+        source.addMember("Child", "Player1", null);
+        source.addMember("Other", "Player2", new Date(2000000L));
+        source.setMetadata("Player1", false, "prefix", "[P1]");
+        source.setMetadata("Child", true, "weight", -5L);
+        source.setMetadata("Child", true, "ratio", 0.5);
+        source.setMetadata("Child", true, "flag", true);
+
+        MemoryPermissionDao dao = new MemoryPermissionDao();
+        File file = File.createTempFile("zPermissions", ".dat");
+        try {
+            source.saveBinary(file);
+            dao.loadBinary(file);
+        }
+        finally {
+            file.delete();
+        }
+
+        assertEquals(Arrays.asList("Parent", "Other", "Child"), dao.getAncestry("Child"));
+        assertEquals(-5, dao.getEntity("Child", true).getPriority());
+        assertEquals(Boolean.TRUE, dao.getPermission("Child", true, "Region1", "World1", "basic.perm"));
+        Entry temp = dao.getEntity("Child", true).getScopedPermission(null, "world1", "negated.perm");
+        assertTrue(temp.isValue());
+        assertEquals(new Date(3000000L), temp.getExpiration());
+        assertEquals(Boolean.FALSE, temp.getPreviousValue());
+        assertEquals(new Date(1000000L), dao.getEntries("Player1", false).get(0).getExpiration());
+        assertNull(dao.getEntries("Player1", false).get(0).getPreviousValue());
+        assertEquals(1, dao.getGroups("Player1").size());
+        assertNull(dao.getGroups("Player1").get(0).getExpiration());
+        assertEquals(new Date(2000000L), dao.getGroups("Player2").get(0).getExpiration());
+        assertEquals("[P1]", dao.getMetadata("Player1", false, "prefix"));
+        assertEquals(-5L, dao.getMetadata("Child", true, "weight"));
+        assertEquals(0.5, dao.getMetadata("Child", true, "ratio"));
+        assertEquals(Boolean.TRUE, dao.getMetadata("Child", true, "flag"));
+        assertEquals(Collections.singleton("region1"), dao.getRegionNames());
+    }
+
+    @Test
+    public void testJournal() throws IOException {
+        File file = File.createTempFile("zPermissions", ".yml");
+        File journalFile = new File(file.getParentFile(), file.getName() + ".journal");
+        try {
+            MemoryPermissionDao source = new MemoryPermissionDao();
+            source.openJournal(journalFile);
+            source.createGroup("Parent");
+            source.createGroup("Child");
+            source.setParents("Child", Arrays.asList("Parent"));
+            source.setPermission("Child", true, "Region1", "World1", "basic.perm", true);
+            source.addMember("Child", "Player1", null);
+            source.save(file); // folds journal into file
+
+            source.createGroup("Other");
+            source.setParents("Child", Arrays.asList("Other", "Parent"));
+            source.setPriority("Other", 10);
+            source.setPermission("Player2", false, null, null, "player.perm", false);
+            source.setMetadata("Player2", false, "prefix", "[P2]");
+            source.setMetadata("Child", true, "weight", 5L);
+            source.unsetPermission("Child", true, "Region1", "World1", "basic.perm");
+            source.setGroup("Player1", "Other", null);
+            source.flushJournal();
+            source.closeJournal();
+
+            MemoryPermissionDao dao = new MemoryPermissionDao();
+            dao.load(file);
+            assertEquals(11, dao.replayJournal(journalFile));
+            assertEquals(Arrays.asList("Parent", "Other", "Child"), dao.getAncestry("Child"));
+            assertEquals(10, dao.getEntity("Other", true).getPriority());
+            assertEquals(Boolean.FALSE, dao.getPermission("Player2", false, null, null, "player.perm"));
+            assertEquals("[P2]", dao.getMetadata("Player2", false, "prefix"));
+            assertEquals(5L, dao.getMetadata("Child", true, "weight"));
+            assertNull(dao.getPermission("Child", true, "Region1", "World1", "basic.perm"));
+            assertNull(dao.getRegion("Region1"));
+            assertEquals(1, dao.getGroups("Player1").size());
+            assertEquals("other", dao.getGroups("Player1").get(0).getGroup().getName());
+
+            // Replaying again changes nothing
+            dao.replayJournal(journalFile);
+            assertEquals(Arrays.asList("Parent", "Other", "Child"), dao.getAncestry("Child"));
+            assertEquals(1, dao.getGroups("Player1").size());
+        }
+        finally {
+            file.delete();
+            journalFile.delete();
+            PermissionJournal.getRotatedFile(journalFile).delete();
+        }
+    }
+
+    @Test
+    public void testJournalRotateFailure() throws IOException {
+        File file = File.createTempFile("zPermissions", ".yml");
+        file.delete();
+        File journalFile = new File(file.getParentFile(), file.getName() + ".journal");
+        final boolean[] renameFails = { true };
+        try {
+            MemoryPermissionDao source = new MemoryPermissionDao();
+            source.openJournal(new PermissionJournal(journalFile) {
+                @Override
+                boolean renameTo(File from, File to) {
+                    return !renameFails[0] && super.renameTo(from, to);
+                }
+            });
+            source.createGroup("Group1");
+            source.flushJournal();
+            try {
+                source.save(file);
+                fail("save should fail when the journal can't be rotated");
+            }
+            catch (IOException e) {
+                // expected
+            }
+            assertFalse(file.exists());
+            assertTrue(source.isDirty());
+
+            // Journal is still open and still holds the earlier record
+            source.setPermission("Group1", true, null, null, "basic.perm", true);
+            source.flushJournal();
+
+            MemoryPermissionDao dao = new MemoryPermissionDao();
+            assertEquals(2, dao.replayJournal(journalFile));
+            assertEquals(Boolean.TRUE, dao.getPermission("Group1", true, null, null, "basic.perm"));
+
+            // Next rotation picks everything up
+            renameFails[0] = false;
+            source.save(file);
+            source.closeJournal();
+            assertEquals(0L, journalFile.length());
+            assertFalse(PermissionJournal.getRotatedFile(journalFile).exists());
+
+            dao = new MemoryPermissionDao();
+            dao.load(file);
+            assertEquals(Boolean.TRUE, dao.getPermission("Group1", true, null, null, "basic.perm"));
+        }
+        finally {
+            file.delete();
+            journalFile.delete();
+            PermissionJournal.getRotatedFile(journalFile).delete();
+        }
+    }
+
+    @Test
+    public void testShards() throws IOException {
+        File directory = File.createTempFile("zPermissions", ".shards");
+        directory.delete();
+        try {
+            ShardedMemoryPermissionDao source = new ShardedMemoryPermissionDao(4);
+            source.createGroup("Parent");
+            source.createGroup("Child");
+            source.setParents("Child", Arrays.asList("Parent"));
+            source.setPermission("Child", true, "Region1", "World1", "basic.perm", true);
+            for (int i = 0; i < 20; i++) {
+                source.addMember("Child", "Player" + i, null);
+                source.setPermission("Player" + i, false, null, null, "player.perm", true);
+            }
+            long written = source.saveShards(directory);
+            assertTrue(written > 0L);
+            assertEquals(-1L, source.saveShards(directory)); // nothing changed
+
+            // Only the player's shard is rewritten
+            source.setMetadata("Player1", false, "prefix", "[P1]");
+            assertTrue(source.saveShards(directory) < written);
+
+            ShardedMemoryPermissionDao dao = new ShardedMemoryPermissionDao(4);
+            dao.loadShards(directory);
+            assertEquals(Arrays.asList("Parent", "Child"), dao.getAncestry("Child"));
+            assertEquals(20, dao.getMembers("Child").size());
+            assertEquals(Boolean.TRUE, dao.getPermission("Player7", false, null, null, "player.perm"));
+            assertEquals("[P1]", dao.getMetadata("Player1", false, "prefix"));
+
+            // Deleting a group removes its memberships from every shard
+            dao.deleteEntity("Child", true);
+            dao.saveShards(directory);
+
+            // Reshard
+            ShardedMemoryPermissionDao resharded = new ShardedMemoryPermissionDao(2);
+            resharded.loadShards(directory);
+            assertTrue(resharded.isDirty());
+            resharded.saveShards(directory);
+            assertFalse(new File(directory, "players-002.yml").exists());
+            assertFalse(new File(directory, "players-003.yml").exists());
+
+            dao = new ShardedMemoryPermissionDao(2);
+            dao.loadShards(directory);
+            assertNull(dao.getEntity("Child", true));
+            assertTrue(dao.getGroups("Player3").isEmpty());
+            assertEquals(20, dao.getEntities(false).size());
+            assertEquals("[P1]", dao.getMetadata("Player1", false, "prefix"));
+        }
+        finally {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files)
+                    file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testStoredDao() throws IOException {
+        final TreeMap<String, byte[]> data = new TreeMap<String, byte[]>();
+        final int[] commits = new int[1];
+        KeyValueStore store = new KeyValueStore() {
+            @Override
+            public void scan(String fromKey, String toKey, Visitor visitor) throws IOException {
+                for (Map.Entry<String, byte[]> me : data.subMap(fromKey, toKey).entrySet())
+                    visitor.visit(me.getKey(), me.getValue());
+            }
+            @Override
+            public void write(Map<String, byte[]> changes) throws IOException {
+                for (Map.Entry<String, byte[]> me : changes.entrySet()) {
+                    if (me.getValue() == null)
+                        data.remove(me.getKey());
+                    else
+                        data.put(me.getKey(), me.getValue());
+                }
+                commits[0]++;
+            }
+            @Override
+            public void close() {
+            }
+        };
+
+        StoredMemoryPermissionDao source = new StoredMemoryPermissionDao();
+        source.createGroup("Parent");
+        source.createGroup("Child");
+        source.setParents("Child", Arrays.asList("Parent"));
+        source.setPriority("Child", 5);
+        source.setPermission("Child", true, "Region1", "World1", "basic.perm", true);
+        source.addMember("Child", "Player1", null);
+        source.addMember("Parent", "Player2", new Date(1000000L));
+        source.setMetadata("Player1", false, "prefix", "[P1]");
+        assertTrue(source.flush(store) > 0L);
+        assertEquals(1, commits[0]);
+        assertEquals(-1L, source.flush(store)); // nothing changed
+        assertEquals(5, data.size());
+
+        // Only the touched record is written
+        byte[] parent = data.get("g:parent");
+        source.setPermission("Child", true, null, null, "other.perm", false);
+        source.flush(store);
+        assertSame(parent, data.get("g:parent"));
+
+        StoredMemoryPermissionDao dao = new StoredMemoryPermissionDao();
+        assertEquals(5, dao.loadStore(store));
+        assertEquals(Arrays.asList("Parent", "Child"), dao.getAncestry("Child"));
+        assertEquals(5, dao.getEntity("Child", true).getPriority());
+        assertEquals(Boolean.TRUE, dao.getPermission("Child", true, "Region1", "World1", "basic.perm"));
+        assertEquals(Boolean.FALSE, dao.getPermission("Child", true, null, null, "other.perm"));
+        assertEquals("[P1]", dao.getMetadata("Player1", false, "prefix"));
+        assertNull(dao.getGroups("Player1").get(0).getExpiration());
+        assertEquals(new Date(1000000L), dao.getGroups("Player2").get(0).getExpiration());
+
+        // Deleting a group removes its memberships and its children's links
+        dao.deleteEntity("Parent", true);
+        dao.flush(store);
+        assertFalse(data.containsKey("g:parent"));
+        assertFalse(data.containsKey("m:player2:parent"));
+
+        dao = new StoredMemoryPermissionDao();
+        dao.loadStore(store);
+        assertNull(dao.getEntity("Parent", true));
+        assertEquals(Arrays.asList("Child"), dao.getAncestry("Child"));
+        assertTrue(dao.getGroups("Player2").isEmpty());
+    }
+
+    @Test
+    public void testStoredDaoJdbc() throws IOException {
+        // Same portable SQL as with SQLite, against the driver available to tests
+        KeyValueStore store = new JdbcKeyValueStore("org.h2.Driver", "jdbc:h2:mem:testStoredDaoJdbc");
+        try {
+            StoredMemoryPermissionDao source = new StoredMemoryPermissionDao();
+            source.createGroup("Group1");
+            source.setPermission("Group1", true, null, null, "basic.perm", true);
+            source.addMember("Group1", "Player1", null);
+            assertTrue(source.flush(store) > 0L);
+
+            // Update and delete existing records
+            source.setPermission("Group1", true, null, null, "basic.perm", false);
+            source.removeMember("Group1", "Player1");
+            source.flush(store);
+
+            StoredMemoryPermissionDao dao = new StoredMemoryPermissionDao();
+            assertEquals(1, dao.loadStore(store));
+            assertEquals(Boolean.FALSE, dao.getPermission("Group1", true, null, null, "basic.perm"));
+            assertTrue(dao.getGroups("Player1").isEmpty());
+        }
+        finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testReplaceEntities() {
+        MemoryPermissionDao dao = (MemoryPermissionDao)getDao();
+        dao.createGroup("Parent");
+        dao.createGroup("Child");
+        dao.setParent("Child", "Parent");
+        dao.addMember("Child", "Player1", null);
+        dao.setPermission("Player2", false, "region1", "world1", "basic.perm", true);
+        assertNull(dao.takeLoadChanges());
+
+        // Same data as seen by another server, with some changes
+        MemoryPermissionDao other = new MemoryPermissionDao();
+        other.createGroup("Parent");
+        other.createGroup("Child");
+        other.createGroup("New");
+        other.setParent("Child", "New");
+        other.setPermission("Child", true, null, null, "child.perm", true);
+        other.addMember("Child", "Player3", null);
+
+        Map<String, PermissionEntity> players = new HashMap<String, PermissionEntity>();
+        players.put("player2", null);
+        Map<String, PermissionEntity> groups = new HashMap<String, PermissionEntity>();
+        groups.put("child", other.getEntity("Child", true));
+        groups.put("parent", null);
+        dao.replaceEntities(players, groups);
+
+        assertNull(dao.getEntity("Player2", false));
+        assertNull(dao.getRegion("region1"));
+        assertNull(dao.getWorld("world1"));
+        assertNull(dao.getEntity("Parent", true));
+        assertEquals(Arrays.asList("New", "Child"), dao.getAncestry("Child"));
+        assertEquals(Boolean.TRUE, dao.getPermission("Child", true, null, null, "child.perm"));
+        assertTrue(dao.getGroups("Player1").isEmpty());
+        assertEquals(1, dao.getGroups("Player3").size());
+
+        LoadChanges changes = dao.takeLoadChanges();
+        assertEquals(new HashSet<String>(Arrays.asList("child", "parent")), changes.getGroups());
+        assertEquals(new HashSet<String>(Arrays.asList("player1", "player2", "player3")), changes.getPlayers());
+    }
+
 }
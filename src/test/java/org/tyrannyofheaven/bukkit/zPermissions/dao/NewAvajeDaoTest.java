@@ -15,6 +15,17 @@
  */
 package org.tyrannyofheaven.bukkit.zPermissions.dao;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+import org.tyrannyofheaven.bukkit.zPermissions.model.ChangeLogEntry;
 import org.tyrannyofheaven.bukkit.zPermissions.model.EntityMetadata;
 import org.tyrannyofheaven.bukkit.zPermissions.model.Entry;
 import org.tyrannyofheaven.bukkit.zPermissions.model.Inheritance;
@@ -30,6 +41,10 @@ import com.avaje.ebean.config.ServerConfig;
 
 public class NewAvajeDaoTest extends AbstractDaoTest {
 
+    private static final String CHANGE_LOG_GROUP = "ChangeLogGroup";
+
+    private static final String CHANGE_LOG_PLAYER = "ChangeLogPlayer";
+
     private static EbeanServer ebeanServer;
 
     public NewAvajeDaoTest() {
@@ -59,6 +74,7 @@ public class NewAvajeDaoTest extends AbstractDaoTest {
                 config.addClass(Entry.class);
                 config.addClass(Membership.class);
                 config.addClass(EntityMetadata.class);
+                config.addClass(ChangeLogEntry.class);
 
                 ebeanServer = EbeanServerFactory.create(config);
             }
@@ -96,4 +112,126 @@ public class NewAvajeDaoTest extends AbstractDaoTest {
         return getEbeanServer().find(PermissionRegion.class).where().eq("name", name).findUnique();
     }
 
+    // Log a change as if by another server
+    private void logChange(long id, String name, boolean group, Date changed) {
+        begin();
+        try {
+            getEbeanServer().createSqlUpdate("INSERT INTO change_log (id, server, name, is_group, changed) VALUES (:id, 'other', :name, :group, :changed)")
+                    .setParameter("id", id)
+                    .setParameter("name", name)
+                    .setParameter("group", group)
+                    .setParameter("changed", changed)
+                    .execute();
+            commit();
+        }
+        finally {
+            end();
+        }
+    }
+
+    private boolean poll(AvajePermissionDao2 dao) {
+        begin();
+        try {
+            boolean result = dao.poll();
+            commit();
+            return result;
+        }
+        finally {
+            end();
+        }
+    }
+
+    @Test
+    public void testChangeLog() {
+        // Two servers sharing the database
+        AvajePermissionDao2 writer = (AvajePermissionDao2)getDao();
+        AvajePermissionDao2 reader = new AvajePermissionDao2(getEbeanServer(), null);
+        writer.setChangeLog(true);
+        reader.setChangeLog(true);
+        begin();
+        try {
+            writer.load();
+            reader.load();
+            commit();
+        }
+        finally {
+            end();
+        }
+        reader.takeLoadChanges();
+
+        try {
+            begin();
+            try {
+                writer.createGroup(CHANGE_LOG_GROUP);
+                writer.setPermission(CHANGE_LOG_GROUP, true, null, null, "basic.perm1", true);
+                commit();
+            }
+            finally {
+                end();
+            }
+            assertNull(reader.getEntity(CHANGE_LOG_GROUP, true));
+
+            // Only the changed group is re-read
+            assertTrue(poll(reader));
+            assertEquals(Boolean.TRUE, reader.getPermission(CHANGE_LOG_GROUP, true, null, null, "basic.perm1"));
+            LoadChanges changes = reader.takeLoadChanges();
+            assertEquals(Collections.singleton(CHANGE_LOG_GROUP.toLowerCase()), changes.getGroups());
+            assertTrue(changes.getPlayers().isEmpty());
+            assertFalse(poll(reader));
+            // Nothing new for the writer, it logged the change itself
+            assertFalse(poll(writer));
+
+            // Change a player behind the change log's back, then log it out of
+            // order, leaving a gap
+            writer.setChangeLog(false);
+            begin();
+            try {
+                writer.setPermission(CHANGE_LOG_PLAYER, false, null, null, "basic.perm2", true);
+                commit();
+            }
+            finally {
+                end();
+            }
+            List<ChangeLogEntry> last = getEbeanServer().find(ChangeLogEntry.class).orderBy("id desc").setMaxRows(1).findList();
+            long base = last.get(0).getId() + 1000L;
+            Date old = new Date(System.currentTimeMillis() - 3600000L);
+            logChange(base + 10L, CHANGE_LOG_PLAYER, false, new Date());
+            assertTrue(poll(reader));
+            assertEquals(Boolean.TRUE, reader.getPermission(CHANGE_LOG_PLAYER, false, null, null, "basic.perm2"));
+
+            // While waiting on the gap, it's still picked up however old it is
+            logChange(base + 1L, CHANGE_LOG_GROUP, true, old);
+            assertTrue(poll(reader));
+            assertFalse(poll(reader));
+
+            // Once the wait is over, the gap is skipped. Old entries that show up
+            // in it are ignored...
+            reader.setChangeLogGapTimeout(0L);
+            assertFalse(poll(reader));
+            assertFalse(poll(reader));
+            logChange(base + 5L, CHANGE_LOG_GROUP, true, old);
+            assertFalse(poll(reader));
+
+            // ...but recently logged ones aren't, since ids are only roughly
+            // in order
+            logChange(base + 6L, CHANGE_LOG_GROUP, true, new Date());
+            assertTrue(poll(reader));
+            assertFalse(poll(reader));
+        }
+        finally {
+            writer.setChangeLog(false);
+            begin();
+            try {
+                writer.deleteEntity(CHANGE_LOG_GROUP, true);
+                writer.deleteEntity(CHANGE_LOG_PLAYER, false);
+                assertTrue(writer.pruneChangeLog(-60000L) >= 6); // everything
+                assertEquals(0, getEbeanServer().find(ChangeLogEntry.class).findRowCount());
+                commit();
+            }
+            finally {
+                end();
+            }
+        }
+    }
+
 }
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2011, 2012 Allan Saddi <allan@saddi.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.zPermissions.dao;
+
+import static org.junit.Assert.assertNotNull;
+
+import org.junit.Test;
+import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionRegion;
+import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionWorld;
+
+public class SnapshotMemoryDaoTest extends AbstractDaoTest {
+
+    public SnapshotMemoryDaoTest() {
+        MemoryPermissionDao dao = new MemoryPermissionDao();
+        dao.setSnapshotReads(true);
+        setDao(dao);
+    }
+
+    @Override
+    protected void begin() {
+    }
+    
+    @Override
+    protected void commit() {
+    }
+    
+    @Override
+    protected void end() {
+    }
+
+    @Override
+    protected PermissionWorld getWorld(String name) {
+        return ((MemoryPermissionDao)getDao()).getWorld(name);
+    }
+
+    @Override
+    protected PermissionRegion getRegion(String name) {
+        return ((MemoryPermissionDao)getDao()).getRegion(name);
+    }
+
+    @Test
+    public void testBackgroundSnapshot() throws InterruptedException {
+        MemoryPermissionDao dao = (MemoryPermissionDao)getDao();
+        dao.createGroup("Group1");
+
+        // Rebuilt off the writer's (and readers') threads
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (dao.getSnapshot() == null && System.currentTimeMillis() < deadline)
+            Thread.sleep(10L);
+        assertNotNull(dao.getSnapshot());
+        assertNotNull(dao.getSnapshot().getEntity("Group1", true));
+
+        dao.deleteEntity("Group1", true);
+    }
+
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2013 Allan Saddi <allan@saddi.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.zPermissions.region;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.junit.Test;
+
+public class CachingRegionStrategyTest {
+
+    private final World world = world("world");
+
+    private final World nether = world("nether");
+
+    private final TestRegionStrategy delegate = new TestRegionStrategy();
+
+    private static World world(final String name) {
+        return (World)Proxy.newProxyInstance(World.class.getClassLoader(), new Class<?>[] { World.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ("getName".equals(method.getName()))
+                    return name;
+                else if ("hashCode".equals(method.getName()))
+                    return System.identityHashCode(proxy);
+                else if ("equals".equals(method.getName()))
+                    return proxy == args[0];
+                else if ("toString".equals(method.getName()))
+                    return name;
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private static Set<String> set(String... names) {
+        Set<String> result = new HashSet<String>();
+        Collections.addAll(result, names);
+        return result;
+    }
+
+    private CachingRegionStrategy create(int maxCells, long expiration) {
+        return new CachingRegionStrategy(null, delegate, maxCells, expiration);
+    }
+
+    @Test
+    public void testHit() {
+        CachingRegionStrategy cache = create(16, 60000L);
+
+        Set<String> regions = cache.getRegions(new Location(world, 5.5, 64.0, 5.5));
+        assertEquals(set("spawn"), regions);
+        assertEquals(1, delegate.lookups);
+
+        // Same block
+        assertSame(regions, cache.getRegions(new Location(world, 5.1, 64.9, 5.9)));
+        assertEquals(1, delegate.lookups);
+        assertEquals(1L, cache.getHits());
+        assertEquals(1L, cache.getMisses());
+
+        // Equal sets are interned
+        assertSame(regions, cache.getRegions(new Location(world, 6.0, 64.0, 5.0)));
+        assertEquals(2, delegate.lookups);
+        assertEquals(1L, cache.getHits());
+        assertEquals(2L, cache.getMisses());
+    }
+
+    @Test
+    public void testMiss() {
+        CachingRegionStrategy cache = create(2, 60000L);
+
+        assertEquals(set("spawn"), cache.getRegions(new Location(world, 0.0, 64.0, 0.0)));
+        assertEquals(set(), cache.getRegions(new Location(world, 100.0, 64.0, 0.0))); // other cell
+        assertEquals(set(), cache.getRegions(new Location(nether, 0.0, 64.0, 0.0))); // other world
+        assertEquals(set("spawn"), cache.getRegions(new Location(world, -1.0, 64.0, -1.0))); // negative coordinates
+        assertEquals(4, delegate.lookups);
+        assertEquals(0L, cache.getHits());
+
+        // Only 2 cells held, least recently used went first
+        cache.getRegions(new Location(nether, 0.0, 64.0, 0.0));
+        assertEquals(1L, cache.getHits());
+        cache.getRegions(new Location(world, 0.0, 64.0, 0.0));
+        assertEquals(1L, cache.getHits());
+        assertEquals(5, delegate.lookups);
+    }
+
+    @Test
+    public void testManyBlocks() {
+        CachingRegionStrategy cache = create(16, 60000L);
+
+        // Every block of a cell, in random order, with lookups in between
+        List<Integer> indexes = new ArrayList<Integer>();
+        for (int i = 0; i < 16 * 16 * 16; i++)
+            indexes.add(i);
+        Collections.shuffle(indexes, new Random(42L));
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i : indexes) {
+                int x = 16 + (i & 15);
+                int y = 64 + (i >> 8);
+                int z = 16 + ((i >> 4) & 15);
+                assertEquals(delegate.regionsAt(world.getName(), x, y, z), cache.getRegions(new Location(world, x, y, z)));
+            }
+        }
+        assertEquals(16 * 16 * 16, delegate.lookups);
+        assertEquals(16L * 16 * 16, cache.getHits());
+    }
+
+    @Test
+    public void testInvalidation() {
+        CachingRegionStrategy cache = create(16, 60000L);
+        Location location = new Location(world, 0.0, 64.0, 0.0);
+        Location netherLocation = new Location(nether, 0.0, 64.0, 0.0);
+
+        assertEquals(set("spawn"), cache.getRegions(location));
+        cache.getRegions(netherLocation);
+        assertEquals(2, delegate.lookups);
+
+        // Underlying regions changed
+        delegate.regionName = "newspawn";
+        delegate.revision++;
+        assertEquals(set("newspawn"), cache.getRegions(location));
+        cache.getRegions(netherLocation);
+        assertEquals(4, delegate.lookups);
+
+        // Explicit invalidation
+        cache.invalidate();
+        assertTrue(delegate.invalidated);
+        cache.getRegions(location);
+        assertEquals(5, delegate.lookups);
+
+        // Single world
+        cache.getRegions(netherLocation);
+        assertEquals(6, delegate.lookups);
+        cache.invalidate(nether.getName());
+        cache.getRegions(location);
+        assertEquals(6, delegate.lookups);
+        cache.getRegions(netherLocation);
+        assertEquals(7, delegate.lookups);
+    }
+
+    @Test
+    public void testExpiration() {
+        CachingRegionStrategy cache = create(16, 0L); // expire immediately
+        Location location = new Location(world, 0.0, 64.0, 0.0);
+
+        cache.getRegions(location);
+        cache.getRegions(location);
+        assertEquals(2, delegate.lookups);
+        assertEquals(0L, cache.getHits());
+    }
+
+    // Cuboid region around the origin of the first world, and a checkerboard
+    // region next to it
+    private class TestRegionStrategy implements RegionStrategy {
+
+        private String regionName = "spawn";
+
+        private long revision;
+
+        private int lookups;
+
+        private boolean invalidated;
+
+        @Override
+        public String getName() {
+            return "Test";
+        }
+
+        @Override
+        public boolean isPresent() {
+            return true;
+        }
+
+        @Override
+        public void init() {
+        }
+
+        @Override
+        public boolean isEnabled() {
+            return true;
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public void invalidate() {
+            invalidated = true;
+            revision++;
+        }
+
+        @Override
+        public long getRevision() {
+            return revision;
+        }
+
+        @Override
+        public Set<String> getRegions(Location location) {
+            lookups++;
+            return regionsAt(location.getWorld().getName(), location.getBlockX(), location.getBlockY(), location.getBlockZ());
+        }
+
+        private Set<String> regionsAt(String worldName, int x, int y, int z) {
+            Set<String> result = new HashSet<String>();
+            if (world.getName().equals(worldName) && x >= -10 && x <= 10 && z >= -10 && z <= 10)
+                result.add(regionName);
+            else if (world.getName().equals(worldName) && x >= 16 && x < 32 && ((x + y + z) & 1) == 0)
+                result.add("checkers");
+            return result;
+        }
+
+    }
+
+}
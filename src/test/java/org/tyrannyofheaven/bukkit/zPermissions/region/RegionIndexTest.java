@@ -0,0 +1,109 @@
+/*
+ * Copyright 2013 Allan Saddi <allan@saddi.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.zPermissions.region;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class RegionIndexTest {
+
+    @Test
+    public void testBasic() {
+        RegionIndex<String> index = new RegionIndex.Builder<String>()
+                .add("world", "spawn", -10, 0, -10, 10, 255, 10)
+                .add("world", "house", 5, 60, 5, 8, 70, 8)
+                .add("world", "huge", -100000, 0, -100000, 100000, 255, 100000) // scanned linearly
+                .add("nether", "fortress", 300, 30, -20, 200, 90, 20) // corners swapped
+                .build();
+        assertEquals(4, index.size());
+
+        assertEquals(set("spawn", "huge"), set(index.query("world", 0, 64, 0)));
+        assertEquals(set("spawn", "house", "huge"), set(index.query("world", 5, 70, 8)));
+        assertEquals(set("spawn", "huge"), set(index.query("world", 5, 71, 8)));
+        assertEquals(set("huge"), set(index.query("world", -11, 64, 0)));
+        assertTrue(index.query("world", 100001, 64, 0).isEmpty());
+
+        assertEquals(set("fortress"), set(index.query("nether", 250, 64, -20)));
+        assertTrue(index.query("nether", 250, 91, 0).isEmpty());
+        assertTrue(index.query("the_end", 0, 64, 0).isEmpty());
+    }
+
+    @Test
+    public void testColumnBoundaries() {
+        // Spans columns on both sides of the origin
+        RegionIndex<String> index = new RegionIndex.Builder<String>()
+                .add("world", "a", -257, 0, -1, 256, 0, 0)
+                .build();
+
+        for (int x = -258; x <= 257; x++) {
+            boolean expected = x >= -257 && x <= 256;
+            assertEquals("x=" + x, expected, !index.query("world", x, 0, 0).isEmpty());
+            assertEquals("x=" + x, expected, !index.query("world", x, 0, -1).isEmpty());
+            assertTrue(index.query("world", x, 0, 1).isEmpty());
+            assertTrue(index.query("world", x, 0, -2).isEmpty());
+        }
+    }
+
+    @Test
+    public void testAgainstBruteForce() {
+        Random random = new Random(1L);
+        List<int[]> boxes = new ArrayList<int[]>();
+        RegionIndex.Builder<Integer> builder = new RegionIndex.Builder<Integer>();
+        for (int i = 0; i < 200; i++) {
+            int x = random.nextInt(4000) - 2000;
+            int z = random.nextInt(4000) - 2000;
+            int y = random.nextInt(256);
+            int[] box = { x, y / 2, z, x + random.nextInt(600), y, z + random.nextInt(600) };
+            boxes.add(box);
+            builder.add("world", i, box[0], box[1], box[2], box[3], box[4], box[5]);
+        }
+        RegionIndex<Integer> index = builder.build();
+
+        for (int i = 0; i < 10000; i++) {
+            int x = random.nextInt(5000) - 2500;
+            int y = random.nextInt(256);
+            int z = random.nextInt(5000) - 2500;
+
+            Set<Integer> expected = new HashSet<Integer>();
+            for (int j = 0; j < boxes.size(); j++) {
+                int[] box = boxes.get(j);
+                if (x >= box[0] && y >= box[1] && z >= box[2] && x <= box[3] && y <= box[4] && z <= box[5])
+                    expected.add(j);
+            }
+            assertEquals(expected, new HashSet<Integer>(index.query("world", x, y, z)));
+        }
+    }
+
+    private static Set<String> set(String... names) {
+        Set<String> result = new HashSet<String>();
+        Collections.addAll(result, names);
+        return result;
+    }
+
+    private static Set<String> set(List<String> names) {
+        return new HashSet<String>(names);
+    }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2012 Allan Saddi <allan@saddi.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.zPermissions.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class TimingWheelTest {
+
+    private static final long TICK = 10L;
+
+    @Test
+    public void testBasic() {
+        TimingWheel<String> wheel = new TimingWheel<String>(TICK, 4, 2, 0L);
+        wheel.schedule("a", 25L);
+        wheel.schedule("b", 1000L); // beyond both levels
+        wheel.schedule("c", 5L);
+        assertEquals(3, wheel.size());
+
+        assertEquals(Collections.singletonList("c"), wheel.advance(10L));
+        assertFalse(wheel.contains("c"));
+
+        // Never early
+        assertTrue(wheel.advance(29L).isEmpty());
+        assertEquals(Collections.singletonList("a"), wheel.advance(30L));
+
+        // Rescheduling replaces
+        wheel.schedule("b", 40L);
+        assertTrue(wheel.cancel("b"));
+        assertFalse(wheel.cancel("b"));
+        assertTrue(wheel.isEmpty());
+        assertTrue(wheel.advance(2000L).isEmpty());
+    }
+
+    @Test(timeout=10000L)
+    public void testScheduleAfterIdle() {
+        TimingWheel<String> wheel = new TimingWheel<String>(TICK, 4, 2, 0L);
+        wheel.schedule("a", 5L, 0L);
+        assertEquals(Collections.singletonList("a"), wheel.advance(10L));
+
+        // Wheel sat idle and unadvanced for a very long time. Stepping
+        // through every missed tick would never finish.
+        long later = 1000000000000000L;
+        wheel.schedule("b", later + 25L, later);
+        wheel.schedule("c", later + 1005L, later); // wheel not empty, no jump
+        assertTrue(wheel.advance(later + 29L).isEmpty());
+        assertEquals(Collections.singletonList("b"), wheel.advance(later + 30L));
+        assertTrue(wheel.advance(later + 1009L).isEmpty());
+        assertEquals(Collections.singletonList("c"), wheel.advance(later + 1010L));
+
+        // Rescheduling the only pending timer also jumps ahead
+        wheel.schedule("d", later + 5000L, later + 2000L);
+        wheel.schedule("d", 2 * later + 15L, 2 * later);
+        assertEquals(Collections.singletonList("d"), wheel.advance(2 * later + 20L));
+    }
+
+    @Test
+    public void testAgainstBruteForce() {
+        Random random = new Random(42L);
+        TimingWheel<Integer> wheel = new TimingWheel<Integer>(TICK, 4, 3, 0L);
+        Map<Integer, Long> deadlines = new HashMap<Integer, Long>();
+
+        long now = 0L;
+        for (int round = 0; round < 2000; round++) {
+            // Schedule, reschedule or cancel some timers
+            for (int i = 0; i < 3; i++) {
+                Integer key = random.nextInt(200);
+                if (random.nextInt(5) == 0) {
+                    assertEquals(deadlines.remove(key) != null, wheel.cancel(key));
+                }
+                else {
+                    long deadline = now + random.nextInt(random.nextBoolean() ? 100 : 10000) - 20;
+                    wheel.schedule(key, deadline);
+                    // Deadlines in the past are due at the end of the current tick
+                    deadlines.put(key, Math.max(deadline, (now / TICK) * TICK));
+                }
+            }
+
+            now += random.nextInt(3 * (int)TICK);
+
+            Set<Integer> expired = new HashSet<Integer>(wheel.advance(now));
+            for (Integer key : expired) {
+                // Never early
+                long deadline = deadlines.remove(key);
+                assertTrue(deadline <= now);
+            }
+            // At most one tick late
+            for (Iterator<Map.Entry<Integer, Long>> i = deadlines.entrySet().iterator(); i.hasNext();) {
+                Map.Entry<Integer, Long> me = i.next();
+                assertTrue("Timer " + me.getKey() + " overdue", now < (me.getValue() / TICK + 1) * TICK);
+            }
+            assertEquals(deadlines.size(), wheel.size());
+        }
+    }
+
+}
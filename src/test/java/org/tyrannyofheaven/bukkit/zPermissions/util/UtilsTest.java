@@ -0,0 +1,86 @@
+/*
+ * Copyright 2012 Allan Saddi <allan@saddi.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.zPermissions.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class UtilsTest {
+
+    private static Map<String, Boolean> children(Object... keysAndValues) {
+        Map<String, Boolean> result = new LinkedHashMap<String, Boolean>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            result.put((String)keysAndValues[i], (Boolean)keysAndValues[i + 1]);
+        }
+        return result;
+    }
+
+    private static void assertSameOrder(Map<String, Boolean> expected, Map<String, Boolean> actual) {
+        assertEquals(expected, actual);
+        assertEquals(new ArrayList<String>(expected.keySet()), new ArrayList<String>(actual.keySet()));
+    }
+
+    @Test
+    public void testUpdateChildrenIdentical() {
+        Map<String, Boolean> target = children("a", true, "b", false);
+        assertFalse(Utils.updateChildren(target, children("a", true, "b", false)));
+        assertSameOrder(children("a", true, "b", false), target);
+    }
+
+    @Test
+    public void testUpdateChildrenChangedValue() {
+        Map<String, Boolean> target = children("a", true, "b", false, "c", true);
+        assertTrue(Utils.updateChildren(target, children("a", true, "b", true, "c", true)));
+        assertSameOrder(children("a", true, "b", true, "c", true), target);
+    }
+
+    @Test
+    public void testUpdateChildrenAddedKey() {
+        Map<String, Boolean> target = children("a", true, "b", false);
+        assertTrue(Utils.updateChildren(target, children("a", true, "b", false, "c", true)));
+        assertSameOrder(children("a", true, "b", false, "c", true), target);
+    }
+
+    @Test
+    public void testUpdateChildrenRemovedKey() {
+        Map<String, Boolean> target = children("a", true, "b", false, "c", true);
+        assertTrue(Utils.updateChildren(target, children("a", true, "c", true)));
+        assertSameOrder(children("a", true, "c", true), target);
+    }
+
+    @Test
+    public void testUpdateChildrenReordered() {
+        // Same entries, different order: still a change, since Bukkit applies
+        // children in order
+        Map<String, Boolean> target = children("a", true, "b", false);
+        assertTrue(Utils.updateChildren(target, children("b", false, "a", true)));
+        assertSameOrder(children("b", false, "a", true), target);
+
+        // Added key that must come before existing ones
+        target = children("b", true);
+        assertTrue(Utils.updateChildren(target, children("a", false, "b", true)));
+        assertEquals(Arrays.asList("a", "b"), new ArrayList<String>(target.keySet()));
+    }
+
+}